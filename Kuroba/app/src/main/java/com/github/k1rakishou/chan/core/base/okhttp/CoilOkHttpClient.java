@@ -3,14 +3,9 @@ package com.github.k1rakishou.chan.core.base.okhttp;
 import android.content.Context;
 
 import com.github.k1rakishou.ChanSettings;
-import com.github.k1rakishou.chan.Chan;
 import com.github.k1rakishou.chan.core.helper.ProxyStorage;
 import com.github.k1rakishou.chan.core.manager.FirewallBypassManager;
-import com.github.k1rakishou.chan.core.net.KurobaProxySelector;
 import com.github.k1rakishou.chan.core.site.SiteResolver;
-import com.github.k1rakishou.common.dns.CompositeDnsSelector;
-import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory;
-import com.github.k1rakishou.common.dns.NormalDnsSelectorFactory;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -22,11 +17,8 @@ import okhttp3.OkHttpClient;
 
 public class CoilOkHttpClient implements CustomOkHttpClient {
     private final Context applicationContext;
-    private final NormalDnsSelectorFactory normalDnsSelectorFactory;
-    private final DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory;
-    private final Chan.OkHttpProtocols okHttpProtocols;
+    private final OkHttpClientCore okHttpClientCore;
     private final HttpLoggingInterceptorLazy httpLoggingInterceptorLazy;
-    private final ProxyStorage proxyStorage;
     private final SiteResolver siteResolver;
     private final FirewallBypassManager firewallBypassManager;
 
@@ -35,19 +27,13 @@ public class CoilOkHttpClient implements CustomOkHttpClient {
     @Inject
     public CoilOkHttpClient(
             Context applicationContext,
-            NormalDnsSelectorFactory normalDnsSelectorFactory,
-            DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
-            Chan.OkHttpProtocols okHttpProtocols,
-            ProxyStorage proxyStorage,
+            OkHttpClientCore okHttpClientCore,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
     ) {
         this.applicationContext = applicationContext;
-        this.normalDnsSelectorFactory = normalDnsSelectorFactory;
-        this.dnsOverHttpsSelectorFactory = dnsOverHttpsSelectorFactory;
-        this.okHttpProtocols = okHttpProtocols;
-        this.proxyStorage = proxyStorage;
+        this.okHttpClientCore = okHttpClientCore;
         this.httpLoggingInterceptorLazy = httpLoggingInterceptorLazy;
         this.siteResolver = siteResolver;
         this.firewallBypassManager = firewallBypassManager;
@@ -59,11 +45,6 @@ public class CoilOkHttpClient implements CustomOkHttpClient {
         if (coilClient == null) {
             synchronized (this) {
                 if (coilClient == null) {
-                    KurobaProxySelector kurobaProxySelector = new KurobaProxySelector(
-                            proxyStorage,
-                            ProxyStorage.ProxyActionType.SiteMediaPreviews
-                    );
-
                     Interceptor interceptor = new CloudFlareHandlerInterceptor(
                             siteResolver,
                             firewallBypassManager,
@@ -71,23 +52,14 @@ public class CoilOkHttpClient implements CustomOkHttpClient {
                             "Coil"
                     );
 
-                    OkHttpClient.Builder builder = new OkHttpClient.Builder()
-                            .protocols(okHttpProtocols.getProtocols())
-                            .proxySelector(kurobaProxySelector)
+                    OkHttpClient.Builder builder = okHttpClientCore.newBuilder(ProxyStorage.ProxyActionType.SiteMediaPreviews)
                             .addNetworkInterceptor(interceptor);
 
                     HttpLoggingInterceptorInstaller.install(builder, httpLoggingInterceptorLazy);
                     OkHttpClient okHttpClient = builder.build();
 
-                    CompositeDnsSelector compositeDnsSelector = new CompositeDnsSelector(
-                            okHttpClient,
-                            ChanSettings.okHttpUseDnsOverHttps.get(),
-                            normalDnsSelectorFactory,
-                            dnsOverHttpsSelectorFactory
-                    );
-
                     coilClient = okHttpClient.newBuilder()
-                            .dns(compositeDnsSelector)
+                            .dns(okHttpClientCore.dnsSelector(okHttpClient))
                             .addNetworkInterceptor(new GzipInterceptor())
                             .build();
                 }
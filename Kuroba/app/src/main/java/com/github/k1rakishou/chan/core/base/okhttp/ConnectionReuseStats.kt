@@ -0,0 +1,61 @@
+package com.github.k1rakishou.chan.core.base.okhttp
+
+import okhttp3.Call
+import okhttp3.Connection
+import okhttp3.EventListener
+import okhttp3.Handshake
+import okhttp3.Protocol
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Counts how many calls (of all OkHttp clients derived from [OkHttpClientCore]) were executed using
+ * an already established connection instead of opening a new one (and doing a new TLS handshake).
+ * */
+class ConnectionReuseStats : EventListener() {
+  private val calls = AtomicLong(0)
+  private val acquiredConnections = AtomicLong(0)
+  private val newConnections = AtomicLong(0)
+  private val tlsHandshakes = AtomicLong(0)
+
+  override fun callStart(call: Call) {
+    calls.incrementAndGet()
+  }
+
+  override fun connectionAcquired(call: Call, connection: Connection) {
+    acquiredConnections.incrementAndGet()
+  }
+
+  override fun connectEnd(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy, protocol: Protocol?) {
+    newConnections.incrementAndGet()
+  }
+
+  override fun secureConnectEnd(call: Call, handshake: Handshake?) {
+    tlsHandshakes.incrementAndGet()
+  }
+
+  fun snapshot(): Snapshot {
+    return Snapshot(
+      calls = calls.get(),
+      acquiredConnections = acquiredConnections.get(),
+      newConnections = newConnections.get(),
+      tlsHandshakes = tlsHandshakes.get()
+    )
+  }
+
+  data class Snapshot(
+    val calls: Long,
+    val acquiredConnections: Long,
+    val newConnections: Long,
+    val tlsHandshakes: Long
+  ) {
+    val reusedConnections: Long
+      get() = (acquiredConnections - newConnections).coerceAtLeast(0)
+
+    override fun toString(): String {
+      return "calls=$calls, acquiredConnections=$acquiredConnections, newConnections=$newConnections, " +
+        "reusedConnections=$reusedConnections, tlsHandshakes=$tlsHandshakes"
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package com.github.k1rakishou.chan.core.base.okhttp
+
+import com.github.k1rakishou.chan.core.site.SiteBase
+import com.github.k1rakishou.chan.core.site.SiteResolver
+import okhttp3.Interceptor
+import okhttp3.Response
+import java.io.InterruptedIOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+
+/**
+ * Limits the amount of concurrently executing requests per host of a site to
+ * [SiteBase.maxConcurrentRequestsPerHost]. [okhttp3.Dispatcher] only supports one limit for all
+ * hosts (and only for async calls) which is set to [maxRequestsPerHost] so that every site may only
+ * lower it. Like with the Dispatcher a request is considered finished once its response headers are
+ * received. Hosts that don't belong to any site are not limited.
+ * */
+class HostConcurrencyLimitInterceptor(
+  private val siteResolver: SiteResolver,
+  private val maxRequestsPerHost: Int
+) : Interceptor {
+  private val semaphores = ConcurrentHashMap<String, Semaphore>(16)
+
+  override fun intercept(chain: Interceptor.Chain): Response {
+    val request = chain.request()
+
+    val semaphore = getOrCreateSemaphore(request.url.host, request.url.toString())
+      ?: return chain.proceed(request)
+
+    try {
+      semaphore.acquire()
+    } catch (error: InterruptedException) {
+      throw InterruptedIOException("Interrupted while waiting for a free slot for ${request.url.host}")
+    }
+
+    try {
+      return chain.proceed(request)
+    } finally {
+      semaphore.release()
+    }
+  }
+
+  private fun getOrCreateSemaphore(host: String, url: String): Semaphore? {
+    val semaphore = semaphores[host]
+    if (semaphore != null) {
+      return semaphore
+    }
+
+    // Not cached when the site is not found because sites may not be initialized yet
+    val site = siteResolver.findSiteForUrl(url) as? SiteBase
+      ?: return null
+
+    val maxConcurrentRequests = site.maxConcurrentRequestsPerHost()
+      .coerceIn(1, maxRequestsPerHost)
+
+    return semaphores.getOrPut(host) { Semaphore(maxConcurrentRequests, true) }
+  }
+}
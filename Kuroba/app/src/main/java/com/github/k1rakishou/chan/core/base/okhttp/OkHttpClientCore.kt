@@ -0,0 +1,119 @@
+package com.github.k1rakishou.chan.core.base.okhttp
+
+import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.Chan
+import com.github.k1rakishou.chan.core.helper.ProxyStorage
+import com.github.k1rakishou.chan.core.net.KurobaProxySelector
+import com.github.k1rakishou.chan.core.site.SiteResolver
+import com.github.k1rakishou.common.dns.CompositeDnsSelector
+import com.github.k1rakishou.common.dns.DnsCache
+import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory
+import com.github.k1rakishou.common.dns.NormalDnsSelectorFactory
+import com.github.k1rakishou.core_logger.Logger
+import okhttp3.ConnectionPool
+import okhttp3.Dispatcher
+import okhttp3.OkHttpClient
+import java.io.IOException
+import java.net.Proxy
+import java.net.ProxySelector
+import java.net.SocketAddress
+import java.net.URI
+import java.util.concurrent.TimeUnit
+
+/**
+ * The base of all OkHttp clients of the app (posting/site requests, media downloading, Coil). All
+ * clients are derived from the same base client (see [newBuilder]) and thus share the same
+ * [ConnectionPool], [Dispatcher] (its thread pool) and [DnsCache] so that requests of different
+ * clients to the same host may reuse the same connection.
+ *
+ * OkHttp only reuses a connection for a client that has the same [okhttp3.Dns] and [ProxySelector]
+ * (they are a part of [okhttp3.Address]) so unless there are proxies for the kind of requests a client
+ * makes (proxy changes require an app restart) all clients use the same instances of them.
+ * */
+class OkHttpClientCore(
+  private val normalDnsSelectorFactory: NormalDnsSelectorFactory,
+  private val dnsOverHttpsSelectorFactory: DnsOverHttpsSelectorFactory,
+  private val okHttpProtocols: Chan.OkHttpProtocols,
+  private val proxyStorage: ProxyStorage,
+  private val siteResolver: SiteResolver
+) {
+  val dnsCache = DnsCache()
+  val connectionReuseStats = ConnectionReuseStats()
+
+  private val baseClient by lazy {
+    val dispatcher = Dispatcher()
+    dispatcher.maxRequests = MAX_REQUESTS
+    dispatcher.maxRequestsPerHost = MAX_REQUESTS_PER_HOST
+
+    return@lazy OkHttpClient.Builder()
+      .connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES))
+      .dispatcher(dispatcher)
+      .protocols(okHttpProtocols.protocols)
+      .proxySelector(NoProxySelector)
+      .eventListener(connectionReuseStats)
+      .addInterceptor(HostConcurrencyLimitInterceptor(siteResolver, MAX_REQUESTS_PER_HOST))
+      .build()
+  }
+
+  private val sharedDnsSelector by lazy { createDnsSelector(baseClient) }
+
+  /**
+   * Creates a builder of a new client that shares connections with all other clients. The client
+   * must be built with [dnsSelector] as its dns.
+   * */
+  fun newBuilder(proxyActionType: ProxyStorage.ProxyActionType): OkHttpClient.Builder {
+    val builder = baseClient.newBuilder()
+
+    if (proxyStorage.hasEnabledProxies(proxyActionType)) {
+      Logger.d(TAG, "newBuilder() using proxies for ${proxyActionType}")
+      builder.proxySelector(KurobaProxySelector(proxyStorage, proxyActionType))
+    }
+
+    return builder
+  }
+
+  /**
+   * Returns the dns selector for a client created with [newBuilder]. DNS-over-HTTPS requests are
+   * made using [okHttpClient] when the client uses proxies.
+   * */
+  fun dnsSelector(okHttpClient: OkHttpClient): CompositeDnsSelector {
+    if (okHttpClient.proxySelector === NoProxySelector) {
+      return sharedDnsSelector
+    }
+
+    return createDnsSelector(okHttpClient)
+  }
+
+  fun connectionReuseStatsSnapshot(): String {
+    return "${connectionReuseStats.snapshot()}, " +
+      "idleConnections=${baseClient.connectionPool.idleConnectionCount()}, " +
+      "totalConnections=${baseClient.connectionPool.connectionCount()}, " +
+      "dnsCacheHits=${dnsCache.hits()}, dnsCacheMisses=${dnsCache.misses()}"
+  }
+
+  private fun createDnsSelector(okHttpClient: OkHttpClient): CompositeDnsSelector {
+    return CompositeDnsSelector(
+      okHttpClient,
+      ChanSettings.okHttpUseDnsOverHttps.get(),
+      normalDnsSelectorFactory,
+      dnsOverHttpsSelectorFactory,
+      dnsCache
+    )
+  }
+
+  private object NoProxySelector : ProxySelector() {
+    private val noProxy = listOf(Proxy.NO_PROXY)
+
+    override fun select(uri: URI?): List<Proxy> = noProxy
+    override fun connectFailed(uri: URI?, sa: SocketAddress?, ioe: IOException?) = Unit
+  }
+
+  companion object {
+    private const val TAG = "OkHttpClientCore"
+
+    private const val MAX_REQUESTS = 64
+    private const val MAX_REQUESTS_PER_HOST = 16
+    private const val MAX_IDLE_CONNECTIONS = 16
+    private const val KEEP_ALIVE_DURATION_MINUTES = 5L
+  }
+}
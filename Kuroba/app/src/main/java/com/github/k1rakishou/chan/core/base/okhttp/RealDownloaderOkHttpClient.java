@@ -3,14 +3,9 @@ package com.github.k1rakishou.chan.core.base.okhttp;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.github.k1rakishou.ChanSettings;
-import com.github.k1rakishou.chan.Chan;
 import com.github.k1rakishou.chan.core.helper.ProxyStorage;
 import com.github.k1rakishou.chan.core.manager.FirewallBypassManager;
-import com.github.k1rakishou.chan.core.net.KurobaProxySelector;
 import com.github.k1rakishou.chan.core.site.SiteResolver;
-import com.github.k1rakishou.common.dns.CompositeDnsSelector;
-import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory;
-import com.github.k1rakishou.common.dns.NormalDnsSelectorFactory;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -20,11 +15,8 @@ import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 
 public class RealDownloaderOkHttpClient implements DownloaderOkHttpClient {
-    private final NormalDnsSelectorFactory normalDnsSelectorFactory;
-    private final DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory;
-    private final Chan.OkHttpProtocols okHttpProtocols;
+    private final OkHttpClientCore okHttpClientCore;
     private final HttpLoggingInterceptorLazy httpLoggingInterceptorLazy;
-    private final ProxyStorage proxyStorage;
     private final SiteResolver siteResolver;
     private final FirewallBypassManager firewallBypassManager;
 
@@ -32,18 +24,12 @@ public class RealDownloaderOkHttpClient implements DownloaderOkHttpClient {
 
     @Inject
     public RealDownloaderOkHttpClient(
-            NormalDnsSelectorFactory normalDnsSelectorFactory,
-            DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
-            Chan.OkHttpProtocols okHttpProtocols,
-            ProxyStorage proxyStorage,
+            OkHttpClientCore okHttpClientCore,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
     ) {
-        this.normalDnsSelectorFactory = normalDnsSelectorFactory;
-        this.dnsOverHttpsSelectorFactory = dnsOverHttpsSelectorFactory;
-        this.okHttpProtocols = okHttpProtocols;
-        this.proxyStorage = proxyStorage;
+        this.okHttpClientCore = okHttpClientCore;
         this.httpLoggingInterceptorLazy = httpLoggingInterceptorLazy;
         this.siteResolver = siteResolver;
         this.firewallBypassManager = firewallBypassManager;
@@ -55,11 +41,6 @@ public class RealDownloaderOkHttpClient implements DownloaderOkHttpClient {
         if (downloaderClient == null) {
             synchronized (this) {
                 if (downloaderClient == null) {
-                    KurobaProxySelector kurobaProxySelector = new KurobaProxySelector(
-                            proxyStorage,
-                            ProxyStorage.ProxyActionType.SiteMediaFull
-                    );
-
                     Interceptor interceptor = new CloudFlareHandlerInterceptor(
                             siteResolver,
                             firewallBypassManager,
@@ -67,25 +48,16 @@ public class RealDownloaderOkHttpClient implements DownloaderOkHttpClient {
                             "Downloader"
                     );
 
-                    OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                    OkHttpClient.Builder builder = okHttpClientCore.newBuilder(ProxyStorage.ProxyActionType.SiteMediaFull)
                             .readTimeout(5, SECONDS)
                             .writeTimeout(5, SECONDS)
-                            .proxySelector(kurobaProxySelector)
-                            .protocols(okHttpProtocols.getProtocols())
                             .addNetworkInterceptor(interceptor);
 
                     HttpLoggingInterceptorInstaller.install(builder, httpLoggingInterceptorLazy);
                     OkHttpClient okHttpClient = builder.build();
 
-                    CompositeDnsSelector compositeDnsSelector = new CompositeDnsSelector(
-                            okHttpClient,
-                            ChanSettings.okHttpUseDnsOverHttps.get(),
-                            normalDnsSelectorFactory,
-                            dnsOverHttpsSelectorFactory
-                    );
-
                     downloaderClient = okHttpClient.newBuilder()
-                            .dns(compositeDnsSelector)
+                            .dns(okHttpClientCore.dnsSelector(okHttpClient))
                             .addNetworkInterceptor(new GzipInterceptor())
                             .build();
                 }
@@ -3,14 +3,9 @@ package com.github.k1rakishou.chan.core.base.okhttp;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.github.k1rakishou.ChanSettings;
-import com.github.k1rakishou.chan.Chan;
 import com.github.k1rakishou.chan.core.helper.ProxyStorage;
 import com.github.k1rakishou.chan.core.manager.FirewallBypassManager;
-import com.github.k1rakishou.chan.core.net.KurobaProxySelector;
 import com.github.k1rakishou.chan.core.site.SiteResolver;
-import com.github.k1rakishou.common.dns.CompositeDnsSelector;
-import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory;
-import com.github.k1rakishou.common.dns.NormalDnsSelectorFactory;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -23,28 +18,19 @@ import okhttp3.OkHttpClient;
 public class RealProxiedOkHttpClient implements ProxiedOkHttpClient {
     private OkHttpClient proxiedClient;
 
-    private final NormalDnsSelectorFactory normalDnsSelectorFactory;
-    private final DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory;
-    private final Chan.OkHttpProtocols okHttpProtocols;
-    private final ProxyStorage proxyStorage;
+    private final OkHttpClientCore okHttpClientCore;
     private final HttpLoggingInterceptorLazy httpLoggingInterceptorLazy;
     private final SiteResolver siteResolver;
     private final FirewallBypassManager firewallBypassManager;
 
     @Inject
     public RealProxiedOkHttpClient(
-            NormalDnsSelectorFactory normalDnsSelectorFactory,
-            DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
-            Chan.OkHttpProtocols okHttpProtocols,
-            ProxyStorage proxyStorage,
+            OkHttpClientCore okHttpClientCore,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
     ) {
-        this.normalDnsSelectorFactory = normalDnsSelectorFactory;
-        this.dnsOverHttpsSelectorFactory = dnsOverHttpsSelectorFactory;
-        this.okHttpProtocols = okHttpProtocols;
-        this.proxyStorage = proxyStorage;
+        this.okHttpClientCore = okHttpClientCore;
         this.httpLoggingInterceptorLazy = httpLoggingInterceptorLazy;
         this.siteResolver = siteResolver;
         this.firewallBypassManager = firewallBypassManager;
@@ -56,11 +42,6 @@ public class RealProxiedOkHttpClient implements ProxiedOkHttpClient {
         if (proxiedClient == null) {
             synchronized (this) {
                 if (proxiedClient == null) {
-                    KurobaProxySelector kurobaProxySelector = new KurobaProxySelector(
-                            proxyStorage,
-                            ProxyStorage.ProxyActionType.SiteRequests
-                    );
-
                     Interceptor interceptor = new CloudFlareHandlerInterceptor(
                             siteResolver,
                             firewallBypassManager,
@@ -69,26 +50,17 @@ public class RealProxiedOkHttpClient implements ProxiedOkHttpClient {
                     );
 
                     // Proxies are usually slow, so they have increased timeouts
-                    OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                    OkHttpClient.Builder builder = okHttpClientCore.newBuilder(ProxyStorage.ProxyActionType.SiteRequests)
                             .connectTimeout(30, SECONDS)
                             .readTimeout(30, SECONDS)
                             .writeTimeout(30, SECONDS)
-                            .protocols(okHttpProtocols.getProtocols())
-                            .proxySelector(kurobaProxySelector)
                             .addNetworkInterceptor(interceptor);
 
                     HttpLoggingInterceptorInstaller.install(builder, httpLoggingInterceptorLazy);
                     OkHttpClient okHttpClient = builder.build();
 
-                    CompositeDnsSelector compositeDnsSelector = new CompositeDnsSelector(
-                            okHttpClient,
-                            ChanSettings.okHttpUseDnsOverHttps.get(),
-                            normalDnsSelectorFactory,
-                            dnsOverHttpsSelectorFactory
-                    );
-
                     proxiedClient = okHttpClient.newBuilder()
-                            .dns(compositeDnsSelector)
+                            .dns(okHttpClientCore.dnsSelector(okHttpClient))
                             .addNetworkInterceptor(new GzipInterceptor())
                             .build();
                 }
@@ -0,0 +1,461 @@
+package com.github.k1rakishou.chan.core.cache
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.core_logger.Logger
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+
+/**
+ * An append-only, memory-mapped journal of cache file metas for one [CacheFileType]. It replaces
+ * the old approach where every cache file had it's own ".cache_meta" text file which made
+ * checking whether a file is downloaded, trimming the cache and recalculating it's size require
+ * opening every single meta file.
+ *
+ * The journal consists of a header followed by fixed-size records. Every record is either a PUT
+ * (which replaces any previous record for the same key) or a REMOVE. The whole journal is read
+ * into an in-memory index when opened and all lookups are served from that index. Last access
+ * time updates are written in place into the latest PUT record of a key so that they don't
+ * grow the journal. When there are too many stale records the journal is compacted (rewritten
+ * with only the live records).
+ *
+ * Every record has a CRC32 checksum. Records with a bad checksum (e.g. torn writes after a crash)
+ * are skipped when reading the journal.
+ *
+ * Thread safe.
+ * */
+internal class CacheFileMetaJournal(
+  private val journalFile: File,
+  private val isDevBuild: Boolean
+) {
+  private val TAG = "CacheFileMetaJournal{${journalFile.parentFile?.name}}"
+
+  @GuardedBy("this")
+  private val index = HashMap<String, IndexEntry>(128)
+  @GuardedBy("this")
+  private var randomAccessFile: RandomAccessFile? = null
+  @GuardedBy("this")
+  private var mappedBuffer: MappedByteBuffer? = null
+  @GuardedBy("this")
+  private var writeOffset = HEADER_SIZE
+  @GuardedBy("this")
+  private var recordsCount = 0
+  @GuardedBy("this")
+  private var totalFileSize = 0L
+
+  private val recordBytes = ByteArray(RECORD_SIZE)
+  private val crc32 = CRC32()
+
+  @Synchronized
+  fun open() {
+    if (mappedBuffer != null) {
+      return
+    }
+
+    try {
+      openInternal()
+    } catch (error: Throwable) {
+      Logger.e(TAG, "Failed to open journal ${journalFile.absolutePath}, recreating it", error)
+
+      closeInternal()
+      journalFile.delete()
+      openInternal()
+    }
+  }
+
+  @Synchronized
+  fun get(key: String): Record? {
+    return index[key]?.record
+  }
+
+  @Synchronized
+  fun contains(key: String): Boolean {
+    return index.containsKey(key)
+  }
+
+  @Synchronized
+  fun count(): Int {
+    return index.size
+  }
+
+  @Synchronized
+  fun totalFileSize(): Long {
+    return totalFileSize
+  }
+
+  @Synchronized
+  fun snapshot(): List<Record> {
+    return index.values.map { indexEntry -> indexEntry.record }
+  }
+
+  @Synchronized
+  fun put(record: Record) {
+    require(record.key.length in 1..MAX_KEY_LENGTH) { "Bad key: '${record.key}'" }
+
+    val offset = append(TYPE_PUT, record)
+
+    val prev = index.put(record.key, IndexEntry(record, offset))
+    totalFileSize += record.fileSize - (prev?.record?.fileSize ?: 0L)
+  }
+
+  @Synchronized
+  fun remove(key: String): Record? {
+    val prev = index.remove(key)
+      ?: return null
+
+    append(TYPE_REMOVE, prev.record)
+    totalFileSize -= prev.record.fileSize
+
+    return prev.record
+  }
+
+  /**
+   * Updates the last access time of a record by overwriting it's latest PUT record in place.
+   * */
+  @Synchronized
+  fun updateLastAccessTime(key: String, lastAccessTime: Long): Boolean {
+    val indexEntry = index[key]
+      ?: return false
+
+    val updatedRecord = indexEntry.record.copy(lastAccessTime = lastAccessTime)
+
+    try {
+      writeRecord(indexEntry.offset, TYPE_PUT, updatedRecord)
+      indexEntry.record = updatedRecord
+    } catch (error: Throwable) {
+      Logger.e(TAG, "updateLastAccessTime($key) error", error)
+      return false
+    }
+
+    return true
+  }
+
+  @Synchronized
+  fun clear() {
+    Logger.d(TAG, "clear()")
+
+    closeInternal()
+    journalFile.delete()
+    openInternal()
+  }
+
+  private fun openInternal() {
+    index.clear()
+    writeOffset = HEADER_SIZE
+    recordsCount = 0
+    totalFileSize = 0L
+
+    journalFile.parentFile?.let { parentDir ->
+      if (!parentDir.exists()) {
+        parentDir.mkdirs()
+      }
+    }
+
+    val isNewFile = !journalFile.exists() || journalFile.length() < HEADER_SIZE
+    val raf = RandomAccessFile(journalFile, "rw")
+    randomAccessFile = raf
+
+    val capacity = if (isNewFile) {
+      INITIAL_CAPACITY
+    } else {
+      Math.max(raf.length(), INITIAL_CAPACITY.toLong()).toInt()
+    }
+
+    val buffer = map(raf, capacity)
+    mappedBuffer = buffer
+
+    if (isNewFile) {
+      writeHeader(buffer)
+      return
+    }
+
+    val magic = buffer.getInt(0)
+    val version = buffer.getInt(4)
+
+    if (magic != MAGIC || version != VERSION) {
+      throw IOException("Bad journal header, magic=${magic}, version=${version}")
+    }
+
+    readRecords(buffer)
+
+    if (needsCompaction()) {
+      compact()
+    }
+
+    if (isDevBuild) {
+      Logger.d(TAG, "Opened journal, recordsCount=${recordsCount}, liveRecordsCount=${index.size}, " +
+        "capacity=${buffer.capacity()}")
+    }
+  }
+
+  private fun readRecords(buffer: MappedByteBuffer) {
+    var offset = HEADER_SIZE
+    var badRecords = 0
+
+    while (offset + RECORD_SIZE <= buffer.capacity()) {
+      buffer.position(offset)
+      buffer.get(recordBytes)
+
+      val type = recordBytes[0]
+      if (type == TYPE_END) {
+        break
+      }
+
+      val record = decodeRecord(recordBytes)
+      if (record == null) {
+        ++badRecords
+        offset += RECORD_SIZE
+        continue
+      }
+
+      when (type) {
+        TYPE_PUT -> {
+          val prev = index.put(record.key, IndexEntry(record, offset))
+          totalFileSize += record.fileSize - (prev?.record?.fileSize ?: 0L)
+        }
+        TYPE_REMOVE -> {
+          val prev = index.remove(record.key)
+          totalFileSize -= prev?.record?.fileSize ?: 0L
+        }
+        else -> ++badRecords
+      }
+
+      ++recordsCount
+      offset += RECORD_SIZE
+    }
+
+    writeOffset = offset
+
+    if (badRecords > 0) {
+      Logger.e(TAG, "Skipped ${badRecords} bad records while reading the journal")
+    }
+  }
+
+  private fun append(type: Byte, record: Record): Int {
+    ensureOpened()
+
+    if (writeOffset + RECORD_SIZE > mappedBuffer!!.capacity()) {
+      if (needsCompaction()) {
+        compact()
+      }
+
+      if (writeOffset + RECORD_SIZE > mappedBuffer!!.capacity()) {
+        grow()
+      }
+    }
+
+    val offset = writeOffset
+    writeRecord(offset, type, record)
+
+    writeOffset += RECORD_SIZE
+    ++recordsCount
+
+    return offset
+  }
+
+  private fun needsCompaction(): Boolean {
+    return recordsCount >= MIN_RECORDS_TO_COMPACT && recordsCount > index.size * 2
+  }
+
+  /**
+   * Rewrites the journal into a new file leaving only the latest PUT record of every live key.
+   * */
+  private fun compact() {
+    val start = System.currentTimeMillis()
+    val prevRecordsCount = recordsCount
+    val liveRecords = index.values.map { indexEntry -> indexEntry.record }
+
+    val tmpFile = File(journalFile.absolutePath + TMP_FILE_SUFFIX)
+    if (tmpFile.exists() && !tmpFile.delete()) {
+      throw IOException("Failed to delete old tmp journal file ${tmpFile.absolutePath}")
+    }
+
+    val requiredCapacity = HEADER_SIZE + (liveRecords.size + GROW_RECORDS_COUNT) * RECORD_SIZE
+    val capacity = Math.max(requiredCapacity, INITIAL_CAPACITY)
+
+    RandomAccessFile(tmpFile, "rw").use { tmpRaf ->
+      val tmpBuffer = map(tmpRaf, capacity)
+      writeHeader(tmpBuffer)
+
+      var offset = HEADER_SIZE
+      for (record in liveRecords) {
+        encodeRecord(TYPE_PUT, record, recordBytes)
+        tmpBuffer.position(offset)
+        tmpBuffer.put(recordBytes)
+        offset += RECORD_SIZE
+      }
+
+      tmpBuffer.force()
+    }
+
+    closeInternal()
+
+    if (!tmpFile.renameTo(journalFile)) {
+      throw IOException("Failed to rename ${tmpFile.absolutePath} into ${journalFile.absolutePath}")
+    }
+
+    val raf = RandomAccessFile(journalFile, "rw")
+    randomAccessFile = raf
+    mappedBuffer = map(raf, capacity)
+
+    index.clear()
+    var offset = HEADER_SIZE
+    for (record in liveRecords) {
+      index[record.key] = IndexEntry(record, offset)
+      offset += RECORD_SIZE
+    }
+
+    writeOffset = offset
+    recordsCount = liveRecords.size
+
+    Logger.d(TAG, "compact() took ${System.currentTimeMillis() - start}ms, " +
+      "recordsCount ${prevRecordsCount} -> ${recordsCount}")
+  }
+
+  private fun grow() {
+    val raf = randomAccessFile!!
+    val newCapacity = mappedBuffer!!.capacity() + GROW_RECORDS_COUNT * RECORD_SIZE
+
+    mappedBuffer = map(raf, newCapacity)
+
+    if (isDevBuild) {
+      Logger.d(TAG, "grow() newCapacity=${newCapacity}")
+    }
+  }
+
+  private fun writeRecord(offset: Int, type: Byte, record: Record) {
+    ensureOpened()
+
+    encodeRecord(type, record, recordBytes)
+
+    val buffer = mappedBuffer!!
+    buffer.position(offset)
+    buffer.put(recordBytes)
+  }
+
+  private fun encodeRecord(type: Byte, record: Record, outBytes: ByteArray) {
+    val keyBytes = record.key.toByteArray(Charsets.US_ASCII)
+    check(keyBytes.size <= MAX_KEY_LENGTH) { "Key is too long: ${record.key}" }
+
+    outBytes.fill(0)
+
+    val byteBuffer = ByteBuffer.wrap(outBytes)
+    byteBuffer.put(type)
+    byteBuffer.put(keyBytes.size.toByte())
+    byteBuffer.put(keyBytes)
+    byteBuffer.position(FILE_SIZE_OFFSET)
+    byteBuffer.putLong(record.fileSize)
+    byteBuffer.putLong(record.createdOn)
+    byteBuffer.putLong(record.lastAccessTime)
+    byteBuffer.put((if (record.isDownloaded) 1 else 0).toByte())
+    byteBuffer.putInt(calculateCrc(outBytes))
+  }
+
+  private fun decodeRecord(inBytes: ByteArray): Record? {
+    val byteBuffer = ByteBuffer.wrap(inBytes)
+
+    val expectedCrc = byteBuffer.getInt(CRC_OFFSET)
+    if (expectedCrc != calculateCrc(inBytes)) {
+      return null
+    }
+
+    val keyLength = inBytes[1].toInt()
+    if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH) {
+      return null
+    }
+
+    return Record(
+      key = String(inBytes, KEY_OFFSET, keyLength, Charsets.US_ASCII),
+      fileSize = byteBuffer.getLong(FILE_SIZE_OFFSET),
+      createdOn = byteBuffer.getLong(CREATED_ON_OFFSET),
+      lastAccessTime = byteBuffer.getLong(LAST_ACCESS_TIME_OFFSET),
+      isDownloaded = inBytes[DOWNLOADED_OFFSET].toInt() != 0
+    )
+  }
+
+  private fun calculateCrc(bytes: ByteArray): Int {
+    crc32.reset()
+    crc32.update(bytes, 0, CRC_OFFSET)
+    return crc32.value.toInt()
+  }
+
+  private fun writeHeader(buffer: MappedByteBuffer) {
+    buffer.putInt(0, MAGIC)
+    buffer.putInt(4, VERSION)
+  }
+
+  private fun map(raf: RandomAccessFile, capacity: Int): MappedByteBuffer {
+    return raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity.toLong())
+  }
+
+  private fun ensureOpened() {
+    if (mappedBuffer == null) {
+      openInternal()
+    }
+  }
+
+  private fun closeInternal() {
+    try {
+      mappedBuffer?.force()
+    } catch (ignored: Throwable) {
+      // no-op
+    }
+
+    try {
+      randomAccessFile?.close()
+    } catch (ignored: Throwable) {
+      // no-op
+    }
+
+    mappedBuffer = null
+    randomAccessFile = null
+  }
+
+  data class Record(
+    // Cache file name without the extension (hash of the url)
+    val key: String,
+    val fileSize: Long,
+    val createdOn: Long,
+    val lastAccessTime: Long,
+    val isDownloaded: Boolean
+  )
+
+  private class IndexEntry(
+    var record: Record,
+    // Offset of the latest PUT record of this key in the journal
+    val offset: Int
+  )
+
+  companion object {
+    private const val MAGIC = 0x4B434D4A // KCMJ
+    private const val VERSION = 1
+    private const val HEADER_SIZE = 8
+
+    private const val TYPE_END: Byte = 0
+    private const val TYPE_PUT: Byte = 1
+    private const val TYPE_REMOVE: Byte = 2
+
+    private const val MAX_KEY_LENGTH = 64
+
+    // type (1) + keyLength (1) + key (64) + fileSize (8) + createdOn (8) + lastAccessTime (8) +
+    // isDownloaded (1) + crc (4) + padding (1)
+    private const val RECORD_SIZE = 96
+    private const val KEY_OFFSET = 2
+    private const val FILE_SIZE_OFFSET = KEY_OFFSET + MAX_KEY_LENGTH
+    private const val CREATED_ON_OFFSET = FILE_SIZE_OFFSET + 8
+    private const val LAST_ACCESS_TIME_OFFSET = CREATED_ON_OFFSET + 8
+    private const val DOWNLOADED_OFFSET = LAST_ACCESS_TIME_OFFSET + 8
+    private const val CRC_OFFSET = DOWNLOADED_OFFSET + 1
+
+    private const val GROW_RECORDS_COUNT = 1024
+    private const val INITIAL_CAPACITY = HEADER_SIZE + GROW_RECORDS_COUNT * RECORD_SIZE
+    private const val MIN_RECORDS_TO_COMPACT = 512
+
+    private const val TMP_FILE_SUFFIX = ".tmp"
+  }
+
+}
@@ -23,8 +23,13 @@ import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.mbytesToBytes
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.util.ChanPostUtils
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
+import kotlinx.coroutines.yield
 import java.io.File
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
@@ -35,17 +40,23 @@ import kotlin.time.measureTime
 /**
  * CacheHandler has been re-worked a little bit because old implementation was relying on the
  * lastModified file flag which doesn't work on some Android versions/different phones. It was decided
- * to instead use a meta file for every cache file which will contain the following information:
+ * to instead store a meta for every cache file (in a [CacheFileMetaJournal], one per [CacheFileType])
+ * which will contain the following information:
  * 1. Time of creation of the cache file (in millis).
  * 2. A flag that indicates whether a download has been completed or not.
+ * 3. The size of the cache file and the last time it was accessed.
  *
  * We need creation time to not delete cache file for active downloads or for downloads that has
  * just been completed (otherwise the user may see a black screen instead of an image/webm). The
- * minimum cache file life time is 5 minutes. That means we won't delete any cache files (and their
- * meta files) for at least 5 minutes.
+ * minimum cache file life time is 1 minute. That means we won't delete any cache files (and their
+ * meta files) for at least 1 minute after they were last accessed.
  *
- * CacheHandler now also caches file chunks that are used by [ConcurrentChunkedFileDownloader] as well
- * as all media files retrieved via [ImageLoaderV2]
+ * Cache files are evicted in the least recently accessed order (every [getCacheFileOrNull] hit
+ * counts as an access) in small batches on the [cacheHandlerDispatcher] so that a trim never blocks
+ * it for a long time.
+ *
+ * CacheHandler caches all media files retrieved via [ImageLoaderV2] as well as files downloaded by
+ * [ConcurrentChunkedFileDownloader] (which writes the chunks directly into the cache file).
  */
 @OptIn(ExperimentalTime::class)
 class CacheHandler(
@@ -54,6 +65,7 @@ class CacheHandler(
 ) {
   private val innerCaches = ConcurrentHashMap<CacheFileType, InnerCache>()
   private val cacheHandlerDispatcher = Executors.newSingleThreadExecutor().asCoroutineDispatcher()
+  private val cacheHandlerScope = CoroutineScope(SupervisorJob() + cacheHandlerDispatcher)
 
   init {
     val duration = measureTime { init() }
@@ -94,9 +106,12 @@ class CacheHandler(
         innerCacheChunksDirFile.mkdirs()
       }
 
+      val innerCacheMetaJournalFile = File(File(diskCacheDir, cacheFileType.id.toString()), "meta.journal")
+
       val innerCache = InnerCache(
         cacheDirFile = innerCacheDirFile,
         chunksCacheDirFile = innerCacheChunksDirFile,
+        cacheMetaJournalFile = innerCacheMetaJournalFile,
         fileCacheDiskSizeBytes = cacheFileType.calculateDiskSize(totalFileCacheDiskSizeBytes),
         cacheFileType = cacheFileType,
         isDevBuild = ENABLE_LOGGING
@@ -134,26 +149,27 @@ class CacheHandler(
     return file
   }
 
-  fun getChunkCacheFileOrNull(cacheFileType: CacheFileType, chunkStart: Long, chunkEnd: Long, url: String): File? {
+  /**
+   * Returns the cache file of a download that is still in progress (or was interrupted) or null.
+   * Unlike [getOrCreateCacheFile] never creates a new file.
+   * */
+  fun getNotDownloadedCacheFileOrNull(cacheFileType: CacheFileType, url: String): File? {
+    BackgroundUtils.ensureBackgroundThread()
+    val file = getInnerCacheByFileType(cacheFileType).getNotDownloadedCacheFileOrNull(url)
+
     if (ENABLE_LOGGING) {
-      Logger.d(TAG, "getChunkCacheFileOrNull($cacheFileType, $chunkStart..$chunkEnd, $url)")
+      Logger.d(TAG, "getNotDownloadedCacheFileOrNull($cacheFileType, $url) -> ${file?.name}")
     }
 
-    BackgroundUtils.ensureBackgroundThread()
-    val innerCache = getInnerCacheByFileType(cacheFileType)
-
-    return innerCache.getChunkCacheFileOrNull(chunkStart, chunkEnd, url)
+    return file
   }
 
-  fun getOrCreateChunkCacheFile(cacheFileType: CacheFileType, chunkStart: Long, chunkEnd: Long, url: String): File? {
+  fun getPartialDownloadStateFile(cacheFileType: CacheFileType, url: String): File {
     if (ENABLE_LOGGING) {
-      Logger.d(TAG, "getOrCreateChunkCacheFile($cacheFileType, $chunkStart..$chunkEnd, $url)")
+      Logger.d(TAG, "getPartialDownloadStateFile($cacheFileType, $url)")
     }
 
-    BackgroundUtils.ensureBackgroundThread()
-    val innerCache = getInnerCacheByFileType(cacheFileType)
-
-    return innerCache.getOrCreateChunkCacheFile(chunkStart, chunkEnd, url)
+    return getInnerCacheByFileType(cacheFileType).getPartialDownloadStateFile(url)
   }
 
   fun cacheFileExists(cacheFileType: CacheFileType, fileUrl: String): Boolean {
@@ -250,13 +266,24 @@ class CacheHandler(
     return getInnerCacheByFileType(cacheFileType).getMaxSize()
   }
 
+  /**
+   * Hits/misses of [getCacheFileOrNull] and the amount of evicted files since the app start. Useful
+   * to figure out whether the disk cache size is big enough.
+   * */
+  fun getCacheStats(cacheFileType: CacheFileType): CacheStats {
+    return getInnerCacheByFileType(cacheFileType).getStats()
+  }
+
   /**
    * When a file is downloaded we add it's size to the total cache directory size variable and
-   * check whether it exceeds the maximum cache size or not. If it does then the trim() operation
-   * is executed in a background thread.
+   * check whether it exceeds the maximum cache size or not. If it does then the least recently
+   * accessed files are evicted in batches on the [cacheHandlerDispatcher].
    * */
   fun fileWasAdded(cacheFileType: CacheFileType, fileLen: Long) {
-    val totalSize = getInnerCacheByFileType(cacheFileType).fileWasAdded(fileLen)
+    val innerCache = getInnerCacheByFileType(cacheFileType)
+    val totalSize = innerCache.fileWasAdded(fileLen)
+
+    startTrimIfNeeded(cacheFileType, innerCache)
 
     if (ENABLE_LOGGING) {
       val maxSizeFormatted = ChanPostUtils.getReadableFileSize(getInnerCacheByFileType(cacheFileType).getMaxSize())
@@ -267,6 +294,36 @@ class CacheHandler(
     }
   }
 
+  /**
+   * Must be called after a not yet downloaded cache file was allocated with its final length (see
+   * [getOrCreateCacheFile]). The allocated bytes are counted towards the total cache directory size
+   * right away, so partially downloaded files are trimmed like the rest of the files. Once the file
+   * is downloaded [markFileDownloaded] and [fileWasAdded] must be called as usual.
+   * */
+  fun fileWasAllocated(cacheFileType: CacheFileType, cacheFile: File, fileLen: Long) {
+    BackgroundUtils.ensureBackgroundThread()
+
+    val innerCache = getInnerCacheByFileType(cacheFileType)
+    val totalSize = innerCache.fileWasAllocated(cacheFile, fileLen)
+
+    startTrimIfNeeded(cacheFileType, innerCache)
+
+    if (ENABLE_LOGGING) {
+      val maxSizeFormatted = ChanPostUtils.getReadableFileSize(getInnerCacheByFileType(cacheFileType).getMaxSize())
+      val fileLenFormatted = ChanPostUtils.getReadableFileSize(fileLen)
+      val totalSizeFormatted = ChanPostUtils.getReadableFileSize(totalSize)
+
+      Logger.d(TAG, "fileWasAllocated($cacheFileType, ${cacheFile.name}, ${fileLenFormatted}) -> (${totalSizeFormatted} / ${maxSizeFormatted})")
+    }
+  }
+
+  private fun startTrimIfNeeded(cacheFileType: CacheFileType, innerCache: InnerCache) {
+    val sizeToFree = innerCache.tryStartTrim()
+    if (sizeToFree != null) {
+      cacheHandlerScope.launch { trim(cacheFileType, innerCache, sizeToFree) }
+    }
+  }
+
   /**
    * For now only used in developer settings. Clears the cache completely.
    * */
@@ -290,12 +347,61 @@ class CacheHandler(
     return getInnerCacheByFileType(cacheFileType).deleteCacheFile(cacheFile.name)
   }
 
+  private suspend fun trim(cacheFileType: CacheFileType, innerCache: InnerCache, sizeToFree: Long) {
+    val start = System.currentTimeMillis()
+    var totalFreed = 0L
+    var filesDeleted = 0
+
+    try {
+      while (cacheHandlerScope.isActive && totalFreed < sizeToFree) {
+        val trimBatchResult = innerCache.trimBatch(
+          maxFilesToEvict = TRIM_BATCH_SIZE,
+          maxBytesToFree = sizeToFree - totalFreed
+        )
+
+        if (trimBatchResult.evictedFiles <= 0) {
+          break
+        }
+
+        totalFreed += trimBatchResult.freedBytes
+        filesDeleted += trimBatchResult.evictedFiles
+
+        if (System.currentTimeMillis() - start > MAX_TRIM_TIME_MS) {
+          Logger.d(TAG, "Exiting trim() early, the time bound exceeded")
+          break
+        }
+
+        // Let other tasks that use the cacheHandlerDispatcher run in between the batches
+        yield()
+      }
+    } catch (error: Throwable) {
+      Logger.e(TAG, "trim() error", error)
+    } finally {
+      innerCache.onTrimFinished()
+    }
+
+    Logger.d(TAG, "trim() ended (took ${System.currentTimeMillis() - start} ms), " +
+      "cacheFileType=$cacheFileType, filesDeleted=$filesDeleted, " +
+      "total space freed=${ChanPostUtils.getReadableFileSize(totalFreed)}, " +
+      "stats=${innerCache.getStats()}")
+  }
+
   private fun getInnerCacheByFileType(cacheFileType: CacheFileType): InnerCache {
     return innerCaches[cacheFileType]!!
   }
 
+  data class CacheStats(
+    val hits: Long,
+    val misses: Long,
+    val evictions: Long,
+    val evictedBytes: Long
+  )
+
   companion object {
     private const val TAG = "CacheHandler"
     private const val ENABLE_LOGGING = false
+
+    private const val TRIM_BATCH_SIZE = 32
+    private const val MAX_TRIM_TIME_MS = 3000L
   }
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+package com.github.k1rakishou.chan.core.cache
+
+import com.github.k1rakishou.chan.core.cache.downloader.PartialDownloadState
+import com.github.k1rakishou.chan.core.cache.downloader.PartialDownloadStateStore
+import com.github.k1rakishou.core_logger.Logger
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * Media files of one [CacheFileType] for the readers that stream the media instead of downloading
+ * it with [FileCacheV2] first (ExoPlayer). Files are keyed by their urls, partially downloaded files
+ * use the same [PartialDownloadState]s as the [FileCacheV2] downloads so they can be resumed by
+ * either of them.
+ * */
+internal interface CachedMediaStore {
+  /**
+   * A completely downloaded file or null. Counts as an access for the eviction.
+   * */
+  fun getDownloadedFile(url: String): File?
+
+  /**
+   * A file that was not completely downloaded yet together with the state of its download or null
+   * when there is no such file or its state is unknown.
+   * */
+  fun getPartialFile(url: String): PartialFile?
+
+  /**
+   * Creates a new empty file of [PartialDownloadState.fileLength] bytes and stores the [state] for
+   * it. Returns null when there is already a file for [url] (it's being downloaded by somebody
+   * else) or the file couldn't be created.
+   * */
+  fun createPartialFile(url: String, state: PartialDownloadState): File?
+
+  fun updatePartialFile(url: String, state: PartialDownloadState)
+
+  /**
+   * Must be called once all the bytes of the file are written. From now on the file is subject to
+   * the eviction like the rest of the cache files.
+   * */
+  fun markDownloaded(url: String, file: File): Boolean
+
+  fun delete(url: String)
+
+  class PartialFile(
+    val file: File,
+    val state: PartialDownloadState
+  )
+}
+
+internal class CacheHandlerMediaStore(
+  private val cacheHandler: CacheHandler,
+  private val cacheFileType: CacheFileType
+) : CachedMediaStore {
+  private val partialDownloadStateStore = PartialDownloadStateStore { cacheFileType, url ->
+    cacheHandler.getPartialDownloadStateFile(cacheFileType, url)
+  }
+
+  override fun getDownloadedFile(url: String): File? {
+    return cacheHandler.getCacheFileOrNull(cacheFileType, url)
+  }
+
+  override fun getPartialFile(url: String): CachedMediaStore.PartialFile? {
+    val file = cacheHandler.getNotDownloadedCacheFileOrNull(cacheFileType, url)
+      ?: return null
+
+    val state = partialDownloadStateStore.load(cacheFileType, url)
+      ?: return null
+
+    // Same check as the one FileCacheV2 does before resuming a download
+    if (file.length() != state.fileLength) {
+      return null
+    }
+
+    return CachedMediaStore.PartialFile(file, state)
+  }
+
+  override fun createPartialFile(url: String, state: PartialDownloadState): File? {
+    if (cacheHandler.cacheFileExists(cacheFileType, url)) {
+      return null
+    }
+
+    val file = cacheHandler.getOrCreateCacheFile(cacheFileType, url)
+      ?: return null
+
+    try {
+      RandomAccessFile(file, "rw").use { randomAccessFile -> randomAccessFile.setLength(state.fileLength) }
+    } catch (error: IOException) {
+      Logger.e(TAG, "createPartialFile() failed to allocate ${state.fileLength} bytes for ($url)", error)
+      cacheHandler.deleteCacheFile(cacheFileType, file)
+      return null
+    }
+
+    cacheHandler.fileWasAllocated(cacheFileType, file, state.fileLength)
+    partialDownloadStateStore.save(cacheFileType, url, state)
+    return file
+  }
+
+  override fun updatePartialFile(url: String, state: PartialDownloadState) {
+    partialDownloadStateStore.save(cacheFileType, url, state)
+  }
+
+  override fun markDownloaded(url: String, file: File): Boolean {
+    partialDownloadStateStore.delete(cacheFileType, url)
+
+    if (!cacheHandler.markFileDownloaded(cacheFileType, file)) {
+      return false
+    }
+
+    cacheHandler.fileWasAdded(cacheFileType, file.length())
+    return true
+  }
+
+  override fun delete(url: String) {
+    cacheHandler.deleteCacheFileByUrl(cacheFileType, url)
+  }
+
+  companion object {
+    private const val TAG = "CacheHandlerMediaStore"
+  }
+}
@@ -16,6 +16,7 @@ import com.github.k1rakishou.chan.core.cache.downloader.FileCacheException
 import com.github.k1rakishou.chan.core.cache.downloader.FileDownloadRequest
 import com.github.k1rakishou.chan.core.cache.downloader.FileDownloadResult
 import com.github.k1rakishou.chan.core.cache.downloader.PartialContentSupportChecker
+import com.github.k1rakishou.chan.core.cache.downloader.PartialDownloadStateStore
 import com.github.k1rakishou.chan.core.cache.downloader.log
 import com.github.k1rakishou.chan.core.cache.downloader.logError
 import com.github.k1rakishou.chan.core.cache.downloader.logErrorsAndExtractErrorMessage
@@ -50,6 +51,9 @@ class FileCacheV2(
   private val appConstants: AppConstants
 ) {
   private val activeDownloads = ActiveDownloads()
+  private val partialDownloadStateStore = PartialDownloadStateStore { cacheFileType, url ->
+    cacheHandler.get().getPartialDownloadStateFile(cacheFileType, url)
+  }
 
   private val normalRequestQueue = PublishProcessor.create<String>().toSerialized()
   private val threadsCount = (Runtime.getRuntime().availableProcessors() / 2).coerceAtLeast(4)
@@ -73,6 +77,7 @@ class FileCacheV2(
   private val partialContentSupportChecker = PartialContentSupportChecker(
     downloaderOkHttpClient,
     activeDownloads,
+    partialDownloadStateStore,
     siteResolver,
     MAX_TIMEOUT_MS,
     appConstants
@@ -86,13 +91,13 @@ class FileCacheV2(
     appConstants
   )
 
-  private val chunkReader = ChunkPersister(
-    cacheHandler,
+  private val chunkPersister = ChunkPersister(
     activeDownloads,
+    partialDownloadStateStore,
     verboseLogs
   )
 
-  private val chunkPersister = ChunkMerger(
+  private val chunkMerger = ChunkMerger(
     fileManager,
     cacheHandler,
     activeDownloads,
@@ -102,8 +107,9 @@ class FileCacheV2(
   private val concurrentChunkedFileDownloader = ConcurrentChunkedFileDownloader(
     siteResolver,
     chunkDownloader,
-    chunkReader,
     chunkPersister,
+    chunkMerger,
+    partialDownloadStateStore,
     workerScheduler,
     verboseLogs,
     activeDownloads,
@@ -579,6 +585,16 @@ class FileCacheV2(
       return
     }
 
+    val partialDownloadState = request.getPartialDownloadState()
+    if (partialDownloadState != null && partialDownloadState.downloadedBytes() > 0) {
+      // Keep the partially downloaded file so that the download can be resumed next time. It's
+      // counted towards the cache size with it's full allocated length (see
+      // CacheHandler.fileWasAllocated()) so if it's never resumed the cache trim evicts it like
+      // any other file.
+      log(TAG, "Not purging partially downloaded url=${url}, state=${partialDownloadState}")
+      return
+    }
+
     log(TAG, "Purging url=${url}, file=${output.absolutePath}")
 
     if (!cacheHandler.get().deleteCacheFile(request.cacheFileType, output)) {
@@ -17,8 +17,8 @@ import org.joda.time.format.DateTimeFormatterBuilder
 import org.joda.time.format.ISODateTimeFormat
 import java.io.File
 import java.io.IOException
-import java.io.PrintWriter
 import java.util.*
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
@@ -29,6 +29,7 @@ import kotlin.time.measureTime
 internal class InnerCache(
   cacheDirFile: File,
   chunksCacheDirFile: File,
+  cacheMetaJournalFile: File,
   private val fileCacheDiskSizeBytes: Long,
   private val cacheFileType: CacheFileType,
   private val isDevBuild: Boolean
@@ -37,31 +38,44 @@ internal class InnerCache(
 
   private val executor = Executors.newSingleThreadExecutor()
   private val cacheHandlerSynchronizer = CacheHandlerSynchronizer()
+  private val cacheMetaJournal = CacheFileMetaJournal(cacheMetaJournalFile, isDevBuild)
+  private val initializationLatch = CountDownLatch(1)
 
   /**
    * An estimation of the current size of the directory. Used to check if trim must be run
    * because the folder exceeds the maximum size.
    */
   private val size = AtomicLong()
+
+  /**
+   * Keys of all the cache files ordered from the least recently accessed to the most recently
+   * accessed one (values are the last access times). This is what trim evicts files by so it never
+   * has to list or sort the cache directory.
+   * */
+  @GuardedBy("accessOrder")
+  private val accessOrder = LinkedHashMap<String, Long>(256, 0.75f, true)
+
+  private val hits = AtomicLong(0)
+  private val misses = AtomicLong(0)
+  private val evictions = AtomicLong(0)
+  private val evictedBytes = AtomicLong(0)
+
   private val lastTrimTime = AtomicLong(0)
   private val trimRunning = AtomicBoolean(false)
   private val recalculationRunning = AtomicBoolean(false)
-  private val trimChunksRunning = AtomicBoolean(false)
   private val directoriesChecked = AtomicBoolean(false)
 
-  @GuardedBy("itself")
-  private val filesOnDiskCache = hashSetWithCap<String>(128)
-  @GuardedBy("itself")
-  private val fullyDownloadedFiles = hashSetWithCap<String>(128)
-
   private val _cacheDirFile: File = cacheDirFile
   private val cacheDirFile: File
     get() {
       if (!_cacheDirFile.exists()) {
         _cacheDirFile.mkdirs()
 
-        synchronized(filesOnDiskCache) { filesOnDiskCache.clear() }
-        synchronized(fullyDownloadedFiles) { fullyDownloadedFiles.clear() }
+        // The cache directory was deleted (most likely by the OS) so all the metas are not valid
+        // anymore.
+        cacheMetaJournal.clear()
+        synchronized(accessOrder) { accessOrder.clear() }
+        size.set(0L)
       }
 
       return _cacheDirFile
@@ -81,8 +95,7 @@ internal class InnerCache(
     Logger.d(TAG, "cacheFileType=$cacheFileType, " +
       "fileCacheDiskSize=${ChanPostUtils.getReadableFileSize(fileCacheDiskSizeBytes)}")
 
-    backgroundRecalculateSize()
-    backgroundClearChunksCacheDir()
+    backgroundInitialize()
   }
 
   fun getSize(): Long {
@@ -93,51 +106,39 @@ internal class InnerCache(
     return fileCacheDiskSizeBytes
   }
 
-  fun containsFile(fileName: String): Boolean {
-    return synchronized(filesOnDiskCache) { filesOnDiskCache.contains(fileName) }
+  fun getStats(): CacheHandler.CacheStats {
+    return CacheHandler.CacheStats(
+      hits = hits.get(),
+      misses = misses.get(),
+      evictions = evictions.get(),
+      evictedBytes = evictedBytes.get()
+    )
   }
 
-  fun getChunkCacheFileOrNull(chunkStart: Long, chunkEnd: Long, url: String): File? {
-    BackgroundUtils.ensureBackgroundThread()
-    val chunkCacheFile = getChunkCacheFileInternal(chunkStart, chunkEnd, url)
-
-    return cacheHandlerSynchronizer.withLocalLock(chunkCacheFile.name) {
-      try {
-        if (chunkCacheFile.exists()) {
-          return@withLocalLock chunkCacheFile
-        }
-
-        return@withLocalLock null
-      } catch (error: Throwable) {
-        Logger.e(TAG, "Error while trying to get chunk cache file (deleting)", error)
-
-        createDirectories(forced = true)
-        deleteCacheFile(chunkCacheFile)
-        return@withLocalLock null
-      }
-    }
+  fun containsFile(fileName: String): Boolean {
+    return cacheMetaJournal.contains(StringUtils.removeExtensionFromFileName(fileName))
   }
 
   fun getCacheFileOrNull(url: String): File? {
     BackgroundUtils.ensureBackgroundThread()
+    awaitInitialization()
 
     createDirectories()
     val cacheFile = getCacheFileByUrl(url)
 
-    return cacheHandlerSynchronizer.withLocalLock(cacheFile.name) {
+    val resultFile = cacheHandlerSynchronizer.withLocalLock(cacheFile.name) {
       try {
-        if (!cacheFile.exists()) {
+        val cacheFileMeta = cacheMetaJournal.get(hashUrl(url))
+        if (cacheFileMeta == null || !cacheFileMeta.isDownloaded) {
           return@withLocalLock null
         }
 
-        if (!getCacheFileMetaInternal(url).exists()) {
-          return@withLocalLock null
-        }
-
-        if (!isAlreadyDownloaded(cacheFile)) {
+        if (!cacheFile.exists()) {
+          deleteCacheFile(cacheFile)
           return@withLocalLock null
         }
 
+        onCacheFileAccessed(cacheFileMeta)
         return@withLocalLock cacheFile
       } catch (error: IOException) {
         Logger.e(TAG, "Error while trying to get cache file (deleting)", error)
@@ -147,10 +148,41 @@ internal class InnerCache(
         return@withLocalLock null
       }
     }
+
+    if (resultFile != null) {
+      hits.incrementAndGet()
+    } else {
+      misses.incrementAndGet()
+    }
+
+    return resultFile
+  }
+
+  /**
+   * Returns the cache file of a download that hasn't been completed yet (there is a meta but the
+   * file is not marked as downloaded) without creating a new one.
+   * */
+  fun getNotDownloadedCacheFileOrNull(url: String): File? {
+    BackgroundUtils.ensureBackgroundThread()
+    awaitInitialization()
+
+    createDirectories()
+    val cacheFile = getCacheFileByUrl(url)
+
+    return cacheHandlerSynchronizer.withLocalLock(cacheFile.name) {
+      val cacheFileMeta = cacheMetaJournal.get(hashUrl(url))
+      if (cacheFileMeta == null || cacheFileMeta.isDownloaded || !cacheFile.exists()) {
+        return@withLocalLock null
+      }
+
+      onCacheFileAccessed(cacheFileMeta)
+      return@withLocalLock cacheFile
+    }
   }
 
   fun getOrCreateCacheFile(url: String): File? {
     BackgroundUtils.ensureBackgroundThread()
+    awaitInitialization()
 
     createDirectories()
     val cacheFile = getCacheFileByUrl(url)
@@ -161,27 +193,23 @@ internal class InnerCache(
           throw IOException("Couldn't create cache file, path = ${cacheFile.absolutePath}")
         }
 
-        val cacheFileMeta = getCacheFileMetaInternal(url)
-        if (!cacheFileMeta.exists()) {
-          if (!cacheFileMeta.createNewFile()) {
-            throw IOException("Couldn't create cache file meta, path = ${cacheFileMeta.absolutePath}")
-          }
+        val key = hashUrl(url)
+        if (!cacheMetaJournal.contains(key)) {
+          val now = System.currentTimeMillis()
 
-          val result = updateCacheFileMeta(
-            file = cacheFileMeta,
-            overwrite = true,
-            createdOn = System.currentTimeMillis(),
-            fileDownloaded = false
+          cacheMetaJournal.put(
+            CacheFileMetaJournal.Record(
+              key = key,
+              fileSize = 0L,
+              createdOn = now,
+              lastAccessTime = now,
+              isDownloaded = false
+            )
           )
 
-          if (!result) {
-            throw IOException("Cache file meta update failed")
-          }
+          synchronized(accessOrder) { accessOrder[key] = now }
         }
 
-        val cacheFileName = cacheFile.name
-        synchronized(filesOnDiskCache) { filesOnDiskCache.add(cacheFileName) }
-
         return@withLocalLock cacheFile
       } catch (error: IOException) {
         Logger.e(TAG, "Error while trying to get or create cache file (deleting)", error)
@@ -193,91 +221,29 @@ internal class InnerCache(
     }
   }
 
-  fun getOrCreateChunkCacheFile(chunkStart: Long, chunkEnd: Long, url: String): File? {
-    BackgroundUtils.ensureBackgroundThread()
-    val chunkCacheFile = getChunkCacheFileInternal(chunkStart, chunkEnd, url)
-
-    return cacheHandlerSynchronizer.withLocalLock(chunkCacheFile.name) {
-      try {
-        if (chunkCacheFile.exists()) {
-          if (!chunkCacheFile.delete()) {
-            throw IOException("Couldn't delete old chunk cache file")
-          }
-        }
-
-        if (!chunkCacheFile.createNewFile()) {
-          throw IOException("Couldn't create new chunk cache file")
-        }
-
-        return@withLocalLock chunkCacheFile
-      } catch (error: Throwable) {
-        Logger.e(TAG, "Error while trying to get or create chunk cache file (deleting)", error)
-
-        createDirectories(forced = true)
-        deleteCacheFile(chunkCacheFile)
-        return@withLocalLock null
-      }
-    }
-  }
-
   fun isAlreadyDownloaded(cacheFile: File): Boolean {
     BackgroundUtils.ensureBackgroundThread()
+    awaitInitialization()
 
     createDirectories()
     val cacheFileName = cacheFile.name
 
     return cacheHandlerSynchronizer.withLocalLock(cacheFileName) {
       try {
-        val containsInCache = synchronized(fullyDownloadedFiles) { fullyDownloadedFiles.contains(cacheFileName) }
-        if (containsInCache) {
-          return@withLocalLock true
-        }
-
-        if (!cacheFile.exists()) {
-          deleteCacheFile(cacheFile)
-          return@withLocalLock false
-        }
-
         if (!cacheFileName.endsWith(CACHE_EXTENSION)) {
           Logger.e(TAG, "Not a cache file (deleting). file: ${cacheFile.absolutePath}")
           deleteCacheFile(cacheFile)
           return@withLocalLock false
         }
 
-        val cacheFileMetaFile = getCacheFileMetaByCacheFile(cacheFile)
-        if (cacheFileMetaFile == null) {
-          Logger.e(TAG, "Couldn't get cache file meta by cache file (deleting). cacheFile: ${cacheFile.absolutePath}")
-          deleteCacheFile(cacheFile)
-          return@withLocalLock false
-        }
-
-        if (!cacheFileMetaFile.exists()) {
-          Logger.e(TAG, "Cache file meta does not exist (deleting). cacheFileMetaFile: ${cacheFileMetaFile.absolutePath}")
-          deleteCacheFile(cacheFile)
-          return@withLocalLock false
-        }
-
-        if (cacheFileMetaFile.length() <= 0) {
-          Logger.e(TAG, "Cache file meta is empty (deleting). cacheFileMetaFile: ${cacheFileMetaFile.absolutePath}")
-          deleteCacheFile(cacheFile)
-          return@withLocalLock false
-        }
-
-        val cacheFileMeta = readCacheFileMeta(cacheFileMetaFile)
+        val cacheFileMeta = cacheMetaJournal.get(StringUtils.removeExtensionFromFileName(cacheFileName))
         if (cacheFileMeta == null) {
-          Logger.e(TAG, "Failed to read cache file meta (deleting). cacheFileMetaFile: ${cacheFileMetaFile.absolutePath}")
+          Logger.e(TAG, "Cache file meta does not exist (deleting). cacheFile: ${cacheFile.absolutePath}")
           deleteCacheFile(cacheFile)
           return@withLocalLock false
         }
 
-        val isDownloaded = cacheFileMeta.isDownloaded
-        if (isDownloaded) {
-          synchronized(fullyDownloadedFiles) { fullyDownloadedFiles += cacheFileName }
-        } else {
-          synchronized(fullyDownloadedFiles) { fullyDownloadedFiles -= cacheFileName }
-        }
-
-        return@withLocalLock isDownloaded
+        return@withLocalLock cacheFileMeta.isDownloaded
       } catch (error: Throwable) {
         Logger.e(TAG, "Error while trying to check whether the file is already downloaded", error)
         deleteCacheFile(cacheFile)
@@ -290,6 +256,8 @@ internal class InnerCache(
   fun markFileDownloaded(output: File): Boolean {
     BackgroundUtils.ensureBackgroundThread()
 
+    awaitInitialization()
+
     return cacheHandlerSynchronizer.withLocalLock(output.name) {
       try {
         createDirectories()
@@ -300,31 +268,36 @@ internal class InnerCache(
           return@withLocalLock false
         }
 
-        val cacheFileMeta = getCacheFileMetaByCacheFile(output)
-        if (cacheFileMeta == null) {
-          Logger.e(TAG, "Couldn't get cache file meta by cache file (deleting). output: ${output.absolutePath}")
+        if (!output.name.endsWith(CACHE_EXTENSION)) {
+          Logger.e(TAG, "Bad file (not a cache file) (deleting). output: ${output.absolutePath}")
           deleteCacheFile(output)
           return@withLocalLock false
         }
 
-        val updateResult = updateCacheFileMeta(
-          file = cacheFileMeta,
-          overwrite = false,
-          createdOn = null,
-          fileDownloaded = true
-        )
+        val key = StringUtils.removeExtensionFromFileName(output.name)
+        val prevCacheFileMeta = cacheMetaJournal.get(key)
+        val now = System.currentTimeMillis()
 
-        if (!updateResult) {
-          Logger.e(
-            TAG, "Failed to update cache file meta (deleting). " +
-            "cacheFileMeta: ${cacheFileMeta.absolutePath}, output: ${output.absolutePath}")
-          deleteCacheFile(output)
-        } else {
-          val outputFileName = output.name
-          synchronized(fullyDownloadedFiles) { fullyDownloadedFiles += outputFileName }
+        // The record is replaced with the one of the downloaded file whose size the caller adds with
+        // fileWasAdded() so the size of the old record (e.g. the allocated length of a partially
+        // downloaded file, see fileWasAllocated()) must not be counted anymore.
+        val prevFileSize = (prevCacheFileMeta?.fileSize ?: 0L).coerceAtLeast(0L)
+        if (prevFileSize > 0L && size.addAndGet(-prevFileSize) < 0L) {
+          size.set(0L)
         }
 
-        return@withLocalLock updateResult
+        cacheMetaJournal.put(
+          CacheFileMetaJournal.Record(
+            key = key,
+            fileSize = output.length(),
+            createdOn = prevCacheFileMeta?.createdOn ?: now,
+            lastAccessTime = now,
+            isDownloaded = true
+          )
+        )
+
+        synchronized(accessOrder) { accessOrder[key] = now }
+        return@withLocalLock true
       } catch (error: Throwable) {
         Logger.e(TAG, "Error while trying to mark file as downloaded (deleting)", error)
         deleteCacheFile(output)
@@ -334,39 +307,146 @@ internal class InnerCache(
   }
 
   fun fileWasAdded(fileLen: Long): Long {
-    val totalSize = size.addAndGet(fileLen.coerceAtLeast(0))
-    val trimTime = lastTrimTime.get()
+    return size.addAndGet(fileLen.coerceAtLeast(0))
+  }
+
+  /**
+   * Stores the length of a not yet downloaded cache file that was allocated with its final size (so
+   * that the downloaded ranges can be written directly into it) in its meta. This way partially
+   * downloaded files count towards the cache size like the rest of the files, both for [size] and
+   * for [recalculateSize], and the trim frees the actual amount of bytes when it evicts them.
+   * Returns the current size of the cache.
+   * */
+  fun fileWasAllocated(cacheFile: File, fileLen: Long): Long {
+    BackgroundUtils.ensureBackgroundThread()
+    awaitInitialization()
+
+    cacheHandlerSynchronizer.withLocalLock(cacheFile.name) {
+      val key = StringUtils.removeExtensionFromFileName(cacheFile.name)
+
+      val cacheFileMeta = cacheMetaJournal.get(key)
+      if (cacheFileMeta == null || cacheFileMeta.isDownloaded) {
+        return@withLocalLock
+      }
+
+      val now = System.currentTimeMillis()
+      val newFileSize = fileLen.coerceAtLeast(0L)
+
+      // The file is being written right now so it's not the one to evict first
+      cacheMetaJournal.put(cacheFileMeta.copy(fileSize = newFileSize, lastAccessTime = now))
+      synchronized(accessOrder) { accessOrder[key] = now }
+
+      size.addAndGet(newFileSize - cacheFileMeta.fileSize.coerceAtLeast(0L))
+    }
+
+    return size.get()
+  }
+
+  /**
+   * Returns the amount of bytes that the trim has to free or null if the trim is not needed right
+   * now (or is already running). When this returns a non null value the caller must run
+   * [trimBatch] until either this many bytes are freed or nothing can be evicted anymore and
+   * then call [onTrimFinished].
+   * */
+  fun tryStartTrim(): Long? {
+    val totalSize = size.get()
     val now = System.currentTimeMillis()
 
     val minTrimInterval = if (AppModuleAndroidUtils.isDevBuild()) {
       0
     } else {
       // If the user scrolls through high-res images very fast we may end up in a situation
-      // where the cache limit is hit but all the files in it were created earlier than
-      // MIN_CACHE_FILE_LIFE_TIME ago. So in such case trim() will be called on EVERY
-      // new opened image and since trim() is a pretty slow operation it may overload the
-      // disk IO. So to avoid it we run trim() only once per MIN_TRIM_INTERVAL.
+      // where the cache limit is hit but all the files in it were accessed earlier than
+      // MIN_CACHE_FILE_LIFE_TIME ago. So in such case trim would be started on EVERY new opened
+      // image only to find out that nothing can be evicted. So to avoid it we run trim only once
+      // per MIN_TRIM_INTERVAL.
       MIN_TRIM_INTERVAL
     }
 
     val canRunTrim = totalSize > fileCacheDiskSizeBytes
-      && now - trimTime > minTrimInterval
+      && now - lastTrimTime.get() > minTrimInterval
       && trimRunning.compareAndSet(false, true)
 
-    if (canRunTrim) {
-      executor.execute {
-        try {
-          trim()
-        } catch (e: Exception) {
-          Logger.e(TAG, "trim() error", e)
-        } finally {
-          lastTrimTime.set(now)
-          trimRunning.set(false)
+    if (!canRunTrim) {
+      return null
+    }
+
+    val sizeDiff = (totalSize - fileCacheDiskSizeBytes).coerceAtLeast(0)
+    val calculatedSizeToFree = (totalSize / (100f / ChanSettings.diskCacheCleanupRemovePercent.get().toFloat())).toLong()
+    val sizeToFree = sizeDiff + calculatedSizeToFree
+
+    Logger.d(TAG, "trim() started, " +
+      "cacheFileType=${cacheFileType}, " +
+      "currentCacheSize=${ChanPostUtils.getReadableFileSize(totalSize)}, " +
+      "fileCacheDiskSizeBytes=${ChanPostUtils.getReadableFileSize(fileCacheDiskSizeBytes)}, " +
+      "sizeToFree=${ChanPostUtils.getReadableFileSize(sizeToFree)}")
+
+    return sizeToFree
+  }
+
+  /**
+   * Evicts at most [maxFilesToEvict] least recently accessed cache files or less if [maxBytesToFree]
+   * bytes were freed earlier than that. Files that were accessed less than MIN_CACHE_FILE_LIFE_TIME
+   * ago are never evicted (the user may be looking at them right now).
+   * */
+  fun trimBatch(maxFilesToEvict: Int, maxBytesToFree: Long): TrimBatchResult {
+    BackgroundUtils.ensureBackgroundThread()
+    awaitInitialization()
+    createDirectories()
+
+    // Don't try to trim empty directories or just one file in it.
+    if (cacheMetaJournal.count() <= 1) {
+      return TrimBatchResult.EMPTY
+    }
+
+    val minCacheFileLifeTime = if (AppModuleAndroidUtils.isDevBuild()) {
+      0
+    } else {
+      MIN_CACHE_FILE_LIFE_TIME
+    }
+
+    val now = System.currentTimeMillis()
+    val keysToEvict = mutableListWithCap<String>(maxFilesToEvict)
+
+    synchronized(accessOrder) {
+      for ((key, lastAccessTime) in accessOrder) {
+        // The map is ordered by the access time so all the following files are "too young" to be
+        // evicted as well.
+        if (keysToEvict.size >= maxFilesToEvict || now - lastAccessTime < minCacheFileLifeTime) {
+          break
         }
+
+        keysToEvict += key
       }
     }
 
-    return totalSize
+    var freedBytes = 0L
+    var evictedFiles = 0
+
+    for (key in keysToEvict) {
+      if (freedBytes >= maxBytesToFree) {
+        break
+      }
+
+      val fileSize = cacheMetaJournal.get(key)?.fileSize ?: 0L
+
+      if (deleteCacheFile(formatCacheFileName(key))) {
+        freedBytes += fileSize
+        ++evictedFiles
+      }
+    }
+
+    evictions.addAndGet(evictedFiles.toLong())
+    evictedBytes.addAndGet(freedBytes)
+
+    return TrimBatchResult(evictedFiles, freedBytes)
+  }
+
+  fun onTrimFinished() {
+    recalculateSize()
+
+    lastTrimTime.set(System.currentTimeMillis())
+    trimRunning.set(false)
   }
 
   private fun deleteCacheFile(cacheFile: File): Boolean {
@@ -382,31 +462,23 @@ internal class InnerCache(
       }
 
       val cacheFileName = formatCacheFileName(originalFileName)
-      val cacheMetaFileName = formatCacheFileMetaName(originalFileName)
-
       val cacheFile = File(cacheDirFile, cacheFileName)
-      val cacheMetaFile = File(cacheDirFile, cacheMetaFileName)
-      val cacheFileSize = cacheFile.length()
 
       val deleteCacheFileResult = !cacheFile.exists() || cacheFile.delete()
       if (!deleteCacheFileResult) {
         Logger.e(TAG, "Failed to delete cache file, fileName = ${cacheFile.absolutePath}")
       }
 
-      val deleteCacheFileMetaResult = !cacheMetaFile.exists() || cacheMetaFile.delete()
-      if (!deleteCacheFileMetaResult) {
-        Logger.e(TAG, "Failed to delete cache file meta = ${cacheMetaFile.absolutePath}")
+      val removedCacheFileMeta = cacheMetaJournal.remove(originalFileName)
+
+      val partialDownloadStateFile = File(chunksCacheDirFile, formatPartialDownloadStateFileName(originalFileName))
+      if (partialDownloadStateFile.exists() && !partialDownloadStateFile.delete()) {
+        Logger.e(TAG, "Failed to delete partial download state, fileName = ${partialDownloadStateFile.absolutePath}")
       }
+      synchronized(accessOrder) { accessOrder.remove(originalFileName) }
 
-      synchronized(filesOnDiskCache) { filesOnDiskCache.remove(cacheFileName) }
-      synchronized(fullyDownloadedFiles) { fullyDownloadedFiles.remove(cacheFileName) }
-
-      if (deleteCacheFileResult && deleteCacheFileMetaResult) {
-        val fileSize = if (cacheFileSize < 0) {
-          0
-        } else {
-          cacheFileSize
-        }
+      if (deleteCacheFileResult) {
+        val fileSize = (removedCacheFileMeta?.fileSize ?: 0L).coerceAtLeast(0L)
 
         if (fileSize > 0) {
           size.getAndAdd(-fileSize)
@@ -415,7 +487,7 @@ internal class InnerCache(
           }
 
           if (isDevBuild) {
-            Logger.d(TAG, "Deleted $cacheFileName and it's meta $cacheMetaFileName, " +
+            Logger.d(TAG, "Deleted $cacheFileName and it's meta, " +
               "fileSize = ${ChanPostUtils.getReadableFileSize(fileSize)}, " +
               "cache size = ${ChanPostUtils.getReadableFileSize(size.get())}")
           }
@@ -424,7 +496,6 @@ internal class InnerCache(
         return@withLocalLock true
       }
 
-      // Only one of the files could be deleted
       return@withLocalLock false
     }
   }
@@ -449,99 +520,32 @@ internal class InnerCache(
         }
       }
 
-      synchronized(filesOnDiskCache) { filesOnDiskCache.clear() }
-      synchronized(fullyDownloadedFiles) { fullyDownloadedFiles.clear() }
-
+      cacheMetaJournal.clear()
+      synchronized(accessOrder) { accessOrder.clear() }
       recalculateSize()
     }
   }
 
-  private fun getCacheFileMetaByCacheFile(cacheFile: File): File? {
-    val fileNameWithExtension = cacheFile.name
-    if (!fileNameWithExtension.endsWith(CACHE_EXTENSION)) {
-      Logger.e(TAG, "Bad file (not a cache file), file = ${cacheFile.absolutePath}")
-      return null
-    }
-
-    val originalFileName = StringUtils.removeExtensionFromFileName(fileNameWithExtension)
-    if (originalFileName.isEmpty()) {
-      Logger.e(TAG, "Bad fileNameWithExtension, fileNameWithExtension = $fileNameWithExtension")
-      return null
-    }
-
-    return File(cacheDirFile, formatCacheFileMetaName(originalFileName))
-  }
-
-  @Throws(IOException::class)
-  private fun updateCacheFileMeta(
-    file: File,
-    overwrite: Boolean,
-    createdOn: Long?,
-    fileDownloaded: Boolean?
-  ): Boolean {
-    return cacheHandlerSynchronizer.withLocalLock(file.name) {
-      if (!file.exists()) {
-        Logger.e(TAG, "Cache file meta does not exist!")
-        return@withLocalLock false
-      }
-
-      if (!file.name.endsWith(CACHE_META_EXTENSION)) {
-        Logger.e(TAG, "Not a cache file meta! file = ${file.absolutePath}")
-        return@withLocalLock false
-      }
-
-      val prevCacheFileMeta = readCacheFileMeta(file).let { cacheFileMeta ->
-        when {
-          !overwrite && cacheFileMeta != null -> {
-            require(!(createdOn == null && fileDownloaded == null)) {
-              "Only one parameter may be null when updating!"
-            }
-
-            val updatedCreatedOn = createdOn ?: cacheFileMeta.createdOn
-            val updatedFileDownloaded = fileDownloaded ?: cacheFileMeta.isDownloaded
-
-            return@let CacheFileMeta(
-              CURRENT_META_FILE_VERSION,
-              updatedCreatedOn,
-              updatedFileDownloaded
-            )
-          }
-          else -> {
-            if (createdOn == null || fileDownloaded == null) {
-              throw IOException(
-                "Both parameters must not be null when writing! " +
-                  "(Probably prevCacheFileMeta couldn't be read, check the logs)"
-              )
-            }
-
-            return@let CacheFileMeta(CURRENT_META_FILE_VERSION, createdOn, fileDownloaded)
-          }
-        }
-      }
-
-      return@withLocalLock file.outputStream().use { stream ->
-        return@use PrintWriter(stream).use { pw ->
-          val toWrite = String.format(
-            Locale.ENGLISH,
-            CACHE_FILE_META_CONTENT_FORMAT,
-            CURRENT_META_FILE_VERSION,
-            prevCacheFileMeta.createdOn,
-            prevCacheFileMeta.isDownloaded
-          )
-
-          val lengthChars = ConversionUtils.intToCharArray(toWrite.length)
-          pw.write(lengthChars)
-          pw.write(toWrite)
-          pw.flush()
+  /**
+   * Moves the file to the end of the eviction queue. The new access time is only persisted when the
+   * old one is at least ACCESS_TIME_PERSIST_INTERVAL old so that scrolling back and forth through
+   * the same images doesn't write into the journal on every bind.
+   * */
+  private fun onCacheFileAccessed(cacheFileMeta: CacheFileMetaJournal.Record) {
+    val now = System.currentTimeMillis()
+    synchronized(accessOrder) { accessOrder[cacheFileMeta.key] = now }
 
-          return@use true
-        }
-      }
+    if (now - cacheFileMeta.lastAccessTime >= ACCESS_TIME_PERSIST_INTERVAL) {
+      cacheMetaJournal.updateLastAccessTime(cacheFileMeta.key, now)
     }
   }
 
+  /**
+   * Reads the old (per cache file) cache file meta. Only used to migrate them into the
+   * [cacheMetaJournal].
+   * */
   @Throws(IOException::class)
-  private fun readCacheFileMeta(cacheFileMeta: File): CacheFileMeta? {
+  private fun readLegacyCacheFileMeta(cacheFileMeta: File): CacheFileMeta? {
     return cacheHandlerSynchronizer.withLocalLock(cacheFileMeta.name) {
       if (!cacheFileMeta.exists()) {
         throw IOException("Cache file meta does not exist, path = ${cacheFileMeta.absolutePath}")
@@ -595,7 +599,7 @@ internal class InnerCache(
         }
 
         val fileVersion = split[0].toInt()
-        if (fileVersion != CURRENT_META_FILE_VERSION) {
+        if (fileVersion != LEGACY_META_FILE_VERSION) {
           throw IOException("Bad file version: $fileVersion")
         }
 
@@ -608,29 +612,20 @@ internal class InnerCache(
     }
   }
 
-  fun getCacheFileByUrl(url: String): File {
-    createDirectories()
-
-    val fileName = formatCacheFileName(hashUrl(url))
-    return File(cacheDirFile, fileName)
-  }
-
-  private fun getChunkCacheFileInternal(
-    chunkStart: Long,
-    chunkEnd: Long,
-    url: String
-  ): File {
+  /**
+   * Partially downloaded files are resumed using this state file (see PartialDownloadStateStore).
+   * It lives in the chunks directory and is deleted together with the cache file.
+   * */
+  fun getPartialDownloadStateFile(url: String): File {
     createDirectories()
 
-    val fileName = formatChunkCacheFileName(chunkStart, chunkEnd, hashUrl(url))
-    return File(chunksCacheDirFile, fileName)
+    return File(chunksCacheDirFile, formatPartialDownloadStateFileName(hashUrl(url)))
   }
 
-  internal fun getCacheFileMetaInternal(url: String): File {
+  fun getCacheFileByUrl(url: String): File {
     createDirectories()
 
-    // AbstractFile expects all file names to have extensions
-    val fileName = formatCacheFileMetaName(hashUrl(url))
+    val fileName = formatCacheFileName(hashUrl(url))
     return File(cacheDirFile, fileName)
   }
 
@@ -638,19 +633,12 @@ internal class InnerCache(
     return HashingUtil.stringHash(url)
   }
 
-  private fun formatChunkCacheFileName(
-    chunkStart: Long,
-    chunkEnd: Long,
-    originalFileName: String
-  ): String {
+  private fun formatPartialDownloadStateFileName(originalFileName: String): String {
     return String.format(
       Locale.ENGLISH,
-      CHUNK_CACHE_FILE_NAME_FORMAT,
+      CACHE_FILE_NAME_FORMAT,
       originalFileName,
-      chunkStart,
-      chunkEnd,
-      // AbstractFile expects all file names to have extensions
-      CHUNK_CACHE_EXTENSION
+      PARTIAL_DOWNLOAD_STATE_EXTENSION
     )
   }
 
@@ -664,16 +652,6 @@ internal class InnerCache(
     )
   }
 
-  private fun formatCacheFileMetaName(originalFileName: String): String {
-    return String.format(
-      Locale.ENGLISH,
-      CACHE_FILE_NAME_FORMAT,
-      originalFileName,
-      // AbstractFile expects all file names to have extensions
-      CACHE_META_EXTENSION
-    )
-  }
-
 
   private fun createDirectories(forced: Boolean = false) {
     if (!forced && !directoriesChecked.compareAndSet(false, true)) {
@@ -697,254 +675,168 @@ internal class InnerCache(
     }
   }
 
-  private fun backgroundClearChunksCacheDir() {
-    if (trimChunksRunning.compareAndSet(false, true)) {
-      executor.execute { clearChunksCacheDirInternal() }
+  private fun awaitInitialization() {
+    if (initializationLatch.count == 0L) {
+      return
     }
-  }
-
-  private fun clearChunksCacheDirInternal() {
-    try {
-      Logger.d(TAG, "clearChunksCacheDirInternal() start")
-
-      cacheHandlerSynchronizer.withGlobalLock {
-        if (chunksCacheDirFile.exists()) {
-          chunksCacheDirFile.listFiles()?.forEach { file -> file.delete() }
-        }
-      }
 
-      Logger.d(TAG, "clearChunksCacheDirInternal() end")
-    } finally {
-      trimChunksRunning.set(false)
-    }
+    Logger.d(TAG, "awaitInitialization() waiting...")
+    initializationLatch.await()
+    Logger.d(TAG, "awaitInitialization() waiting...done")
   }
 
-  private fun backgroundRecalculateSize() {
-    if (recalculationRunning.get()) {
-      return
-    }
-
+  private fun backgroundInitialize() {
     executor.execute {
-      recalculateSize()
+      try {
+        initialize()
+      } catch (error: Throwable) {
+        Logger.e(TAG, "initialize() error", error)
+      } finally {
+        initializationLatch.countDown()
+      }
     }
   }
 
+  /**
+   * Opens the [cacheMetaJournal], migrates old per-file cache metas into it (if there are any) and
+   * reconciles the journal with the files on the disk. This is the only place where we list the
+   * cache directory, everything else works with the journal's in-memory index.
+   * */
   @OptIn(ExperimentalTime::class)
-  private fun recalculateSize() {
-    var calculatedSize: Long = 0
+  private fun initialize() {
+    Logger.d(TAG, "initialize() start")
 
-    if (!recalculationRunning.compareAndSet(false, true)) {
-      return
-    }
-
-    Logger.d(TAG, "recalculateSize() start")
+    var migratedMetasCount = 0
+    var orphanFilesCount = 0
+    var staleMetasCount = 0
+    var stalePartialDownloadsCount = 0
 
     val time = measureTime {
-      synchronized(filesOnDiskCache) { filesOnDiskCache.clear() }
+      cacheMetaJournal.open()
 
-      try {
-        cacheHandlerSynchronizer.withGlobalLock {
-          val files = cacheDirFile.listFiles() ?: emptyArray()
-          for (file in files) {
-            if (file.name.endsWith(CACHE_META_EXTENSION)) {
-              continue
-            }
+      cacheHandlerSynchronizer.withGlobalLock {
+        val files = cacheDirFile.listFiles() ?: emptyArray()
+        val cacheFileNames = hashSetWithCap<String>(files.size)
+        val legacyMetaFiles = mutableListWithCap<File>(16)
 
-            calculatedSize += file.length()
-            val cacheFileName = file.name
+        for (file in files) {
+          val fileName = file.name
 
-            synchronized(filesOnDiskCache) { filesOnDiskCache.add(cacheFileName) }
+          when {
+            fileName.endsWith(CACHE_META_EXTENSION) -> legacyMetaFiles += file
+            fileName.endsWith(CACHE_EXTENSION) -> cacheFileNames += fileName
           }
         }
 
-        size.set(calculatedSize)
-      } finally {
-        recalculationRunning.set(false)
-      }
-    }
-
-    Logger.d(
-      TAG, "recalculateSize() end took $time, " +
-      "filesOnDiskCount=${filesOnDiskCache.size}, " +
-      "fullyDownloadedFilesCount=${fullyDownloadedFiles.size}")
-  }
-
-  private fun trim() {
-    BackgroundUtils.ensureBackgroundThread()
-    createDirectories()
-
-    val directoryFiles = cacheHandlerSynchronizer.withGlobalLock { cacheDirFile.listFiles() ?: emptyArray() }
-    // Don't try to trim empty directories or just two files in it.
-    // Two (not one) because for every cache file we now have a cache file meta with some
-    // additional info.
-    if (directoryFiles.size <= 2) {
-      return
-    }
-
-    val start = System.currentTimeMillis()
-
-    // LastModified doesn't work on some platforms/phones
-    // (https://issuetracker.google.com/issues/36930892)
-    // so we have to use a workaround. When creating a cache file for a download we also create a
-    // meta file where we will put some info about this download: the main file creation time and
-    // a flag that will tell us whether the download is complete or not. So now we need to parse
-    // the creation time from the meta file to sort cache files in ascending order (from the
-    // oldest cache file to the newest).
-
-    var totalDeleted = 0L
-    var filesDeleted = 0
-
-    val sortedFiles = groupFilterAndSortFiles(directoryFiles)
-    val now = System.currentTimeMillis()
-
-    val currentCacheSizeToUse = if (size.get() > fileCacheDiskSizeBytes) {
-      size.get()
-    } else {
-      fileCacheDiskSizeBytes
-    }
-
-    val sizeDiff = (size.get() - fileCacheDiskSizeBytes).coerceAtLeast(0)
-    val calculatedSizeToFree = (currentCacheSizeToUse / (100f / ChanSettings.diskCacheCleanupRemovePercent.get().toFloat())).toLong()
-    val sizeToFree = sizeDiff + calculatedSizeToFree
-
-    Logger.d(
-      TAG, "trim() started, " +
-      "cacheFileType=${cacheFileType}, " +
-      "currentCacheSize=${ChanPostUtils.getReadableFileSize(size.get())}, " +
-      "fileCacheDiskSizeBytes=${ChanPostUtils.getReadableFileSize(fileCacheDiskSizeBytes)}, " +
-      "sizeToFree=${ChanPostUtils.getReadableFileSize(sizeToFree)}")
-
-    // We either delete all files we can in the cache directory or at most half of the cache
-    for (cacheFile in sortedFiles) {
-      val file = cacheFile.file
-      val createdOn = cacheFile.createdOn
-
-      val minCacheFileLifeTime = if (AppModuleAndroidUtils.isDevBuild()) {
-        0
-      } else {
-        // Do not delete fresh files because it may happen right at the time user switched
-        // to it. Since the list is sorted there is no point to iterate it anymore since all
-        // the following files will be "too young" to be deleted so we just break out of
-        // the loop.
-        MIN_CACHE_FILE_LIFE_TIME
-      }
-
-      if (now - createdOn < minCacheFileLifeTime) {
-        break
-      }
-
-      if (totalDeleted >= sizeToFree) {
-        break
-      }
+        for (legacyMetaFile in legacyMetaFiles) {
+          if (migrateLegacyCacheFileMeta(legacyMetaFile, cacheFileNames)) {
+            ++migratedMetasCount
+          }
+        }
 
-      val fileSize = file.length()
+        for (cacheFileName in cacheFileNames) {
+          if (cacheMetaJournal.contains(StringUtils.removeExtensionFromFileName(cacheFileName))) {
+            continue
+          }
 
-      if (deleteCacheFile(file)) {
-        totalDeleted += fileSize
-        ++filesDeleted
-      }
+          // A cache file without a meta, we can't know whether it was fully downloaded or not
+          ++orphanFilesCount
+          File(cacheDirFile, cacheFileName).delete()
+        }
 
-      if (System.currentTimeMillis() - start > MAX_TRIM_TIME_MS) {
-        Logger.d(TAG, "Exiting trim() early, the time bound exceeded")
-        break
-      }
-    }
+        for (cacheFileMeta in cacheMetaJournal.snapshot()) {
+          if (formatCacheFileName(cacheFileMeta.key) in cacheFileNames) {
+            continue
+          }
 
-    val timeDiff = System.currentTimeMillis() - start
-    recalculateSize()
+          // A meta without a cache file
+          ++staleMetasCount
+          cacheMetaJournal.remove(cacheFileMeta.key)
+        }
 
-    Logger.d(TAG, "trim() ended (took ${timeDiff} ms), " +
-      "cacheFileType=$cacheFileType, filesDeleted=$filesDeleted, " +
-      "total space freed=${ChanPostUtils.getReadableFileSize(totalDeleted)}") }
+        // The chunks directory only contains partial download states (and chunk files created by
+        // older versions of the app). Only keep the states of cache files that still exist and
+        // aren't fully downloaded yet so that they can be resumed.
+        for (file in chunksCacheDirFile.listFiles() ?: emptyArray()) {
+          val fileName = file.name
 
-  private fun groupFilterAndSortFiles(directoryFiles: Array<File>): List<CacheFile> {
-    BackgroundUtils.ensureBackgroundThread()
+          if (fileName.endsWith(PARTIAL_DOWNLOAD_STATE_EXTENSION)) {
+            val cacheFileMeta = cacheMetaJournal.get(StringUtils.removeExtensionFromFileName(fileName))
+            if (cacheFileMeta != null && !cacheFileMeta.isDownloaded) {
+              continue
+            }
+          }
 
-    val groupedCacheFiles = filterAndGroupCacheFilesWithMeta(directoryFiles)
-    val cacheFiles = ArrayList<CacheFile>(groupedCacheFiles.size)
+          ++stalePartialDownloadsCount
+          file.delete()
+        }
 
-    for ((abstractFile, abstractFileMeta) in groupedCacheFiles) {
-      val cacheFileMeta = try {
-        readCacheFileMeta(abstractFileMeta)
-      } catch (error: IOException) {
-        null
-      }
+        val sortedCacheFileMetas = cacheMetaJournal.snapshot().sortedWith(CACHE_FILE_COMPARATOR)
 
-      if (cacheFileMeta == null) {
-        Logger.e(TAG, "Couldn't read cache meta for file = ${abstractFile.absolutePath}")
+        synchronized(accessOrder) {
+          accessOrder.clear()
 
-        if (!deleteCacheFile(abstractFile)) {
-          Logger.e(TAG, "Couldn't delete cache file with meta for file = ${abstractFile.absolutePath}")
+          for (cacheFileMeta in sortedCacheFileMetas) {
+            accessOrder[cacheFileMeta.key] = cacheFileMeta.lastAccessTime
+          }
         }
-        continue
       }
 
-      cacheFiles.add(CacheFile(abstractFile, cacheFileMeta))
+      recalculateSize()
     }
 
-    // Sort in ascending order, the oldest files are in the beginning of the list
-    Collections.sort(cacheFiles, CACHE_FILE_COMPARATOR)
-    return cacheFiles
+    Logger.d(TAG, "initialize() end took $time, migratedMetasCount=${migratedMetasCount}, " +
+      "orphanFilesCount=${orphanFilesCount}, staleMetasCount=${staleMetasCount}, " +
+      "stalePartialDownloadsCount=${stalePartialDownloadsCount}, " +
+      "filesCount=${cacheMetaJournal.count()}")
   }
 
-  private fun filterAndGroupCacheFilesWithMeta(
-    directoryFiles: Array<File>
-  ): List<GroupedCacheFile> {
-    BackgroundUtils.ensureBackgroundThread()
-
-    val grouped = directoryFiles
-      .map { file -> Pair(file, file.name) }
-      .filter { (_, fileName) ->
-        // Either cache file or cache meta
-        fileName.endsWith(CACHE_EXTENSION) || fileName.endsWith(CACHE_META_EXTENSION)
-      }
-      .groupBy { (_, fileName) ->
-        StringUtils.removeExtensionFromFileName(fileName)
-      }
-
-    val groupedCacheFileList = mutableListWithCap<GroupedCacheFile>(grouped.size / 2)
-
-    for ((fileName, groupOfFiles) in grouped) {
-      // We have already filtered all non-cache related files so it's safe to delete them here.
-      // We delete files without where either the cache file or cache file meta (or both) are
-      // missing.
-      if (groupOfFiles.isEmpty()) {
-        deleteCacheFile(fileName)
-        continue
-      }
+  private fun migrateLegacyCacheFileMeta(legacyMetaFile: File, cacheFileNames: Set<String>): Boolean {
+    try {
+      val key = StringUtils.removeExtensionFromFileName(legacyMetaFile.name)
+      val cacheFileName = formatCacheFileName(key)
 
-      // We also handle a hypothetical case where there are more than one cache file/meta with
-      // the same name
-      if (groupOfFiles.size != 2) {
-        groupOfFiles.forEach { (file, _) -> deleteCacheFile(file) }
-        continue
+      if (key.isEmpty() || cacheFileName !in cacheFileNames || cacheMetaJournal.contains(key)) {
+        return false
       }
 
-      val (file1, fileName1) = groupOfFiles[0]
-      val (file2, fileName2) = groupOfFiles[1]
+      val legacyCacheFileMeta = readLegacyCacheFileMeta(legacyMetaFile)
+        ?: return false
 
-      val cacheFile = when {
-        fileName1.endsWith(CACHE_EXTENSION) -> file1
-        fileName2.endsWith(CACHE_EXTENSION) -> file2
-        else -> throw IllegalStateException(
-          "Neither of grouped files is a cache file! " +
-            "fileName1 = $fileName1, fileName2 = $fileName2"
+      cacheMetaJournal.put(
+        CacheFileMetaJournal.Record(
+          key = key,
+          fileSize = File(cacheDirFile, cacheFileName).length(),
+          createdOn = legacyCacheFileMeta.createdOn,
+          lastAccessTime = legacyCacheFileMeta.createdOn,
+          isDownloaded = legacyCacheFileMeta.isDownloaded
         )
-      }
+      )
 
-      val cacheFileMeta = when {
-        fileName1.endsWith(CACHE_META_EXTENSION) -> file1
-        fileName2.endsWith(CACHE_META_EXTENSION) -> file2
-        else -> throw IllegalStateException(
-          "Neither of grouped files is a cache file meta! " +
-            "fileName1 = $fileName1, fileName2 = $fileName2"
-        )
-      }
+      return true
+    } catch (error: Throwable) {
+      Logger.e(TAG, "Failed to migrate legacy cache file meta ${legacyMetaFile.absolutePath}", error)
+      return false
+    } finally {
+      legacyMetaFile.delete()
+    }
+  }
 
-      groupedCacheFileList += GroupedCacheFile(cacheFile, cacheFileMeta)
+  private fun recalculateSize() {
+    if (!recalculationRunning.compareAndSet(false, true)) {
+      return
     }
 
-    return groupedCacheFileList
+    try {
+      size.set(cacheMetaJournal.totalFileSize())
+    } finally {
+      recalculationRunning.set(false)
+    }
+
+    if (isDevBuild) {
+      Logger.d(TAG, "recalculateSize() size=${ChanPostUtils.getReadableFileSize(size.get())}, " +
+        "filesCount=${cacheMetaJournal.count()}")
+    }
   }
 
   private fun getAdditionalDebugInfo(file: File): String {
@@ -964,25 +856,17 @@ internal class InnerCache(
       "internalCacheDir = ${internalCacheDir})"
   }
 
-  private class CacheFile(
-    val file: File,
-    private val cacheFileMeta: CacheFileMeta
+  internal class TrimBatchResult(
+    val evictedFiles: Int,
+    val freedBytes: Long
   ) {
-
-    val createdOn: Long
-      get() = cacheFileMeta.createdOn
-
-    override fun toString(): String {
-      return "CacheFile{" +
-        "file=${file.absolutePath}" +
-        ", cacheFileMeta=${cacheFileMeta}" +
-        "}"
+    companion object {
+      val EMPTY = TrimBatchResult(0, 0L)
     }
-
   }
 
   internal class CacheFileMeta(
-    val version: Int = CURRENT_META_FILE_VERSION,
+    val version: Int = LEGACY_META_FILE_VERSION,
     val createdOn: Long,
     val isDownloaded: Boolean
   ) {
@@ -1006,32 +890,25 @@ internal class InnerCache(
     }
   }
 
-  private data class GroupedCacheFile(
-    val cacheFile: File,
-    val cacheFileMeta: File
-  )
-
   companion object {
-    private const val CURRENT_META_FILE_VERSION = 1
+    private const val LEGACY_META_FILE_VERSION = 1
     private const val CACHE_FILE_META_HEADER_SIZE = 4
-    private const val MAX_TRIM_TIME_MS = 3000L
 
     // I don't think it will ever get this big but just in case don't forget to update it if it
     // ever gets
     private const val MAX_CACHE_META_SIZE = 1024L
 
     private const val CACHE_FILE_NAME_FORMAT = "%s.%s"
-    private const val CHUNK_CACHE_FILE_NAME_FORMAT = "%s_%d_%d.%s"
-    private const val CACHE_FILE_META_CONTENT_FORMAT = "%d,%d,%b"
     internal const val CACHE_EXTENSION = "cache"
     internal const val CACHE_META_EXTENSION = "cache_meta"
-    internal const val CHUNK_CACHE_EXTENSION = "chunk"
+    internal const val PARTIAL_DOWNLOAD_STATE_EXTENSION = "download_state"
 
     private val MIN_CACHE_FILE_LIFE_TIME = TimeUnit.MINUTES.toMillis(1)
     private val MIN_TRIM_INTERVAL = TimeUnit.SECONDS.toMillis(5)
+    private val ACCESS_TIME_PERSIST_INTERVAL = TimeUnit.MINUTES.toMillis(1)
 
-    private val CACHE_FILE_COMPARATOR = Comparator<CacheFile> { cacheFile1, cacheFile2 ->
-      cacheFile1.createdOn.compareTo(cacheFile2.createdOn)
+    private val CACHE_FILE_COMPARATOR = Comparator<CacheFileMetaJournal.Record> { cacheFileMeta1, cacheFileMeta2 ->
+      cacheFileMeta1.lastAccessTime.compareTo(cacheFileMeta2.lastAccessTime)
     }
   }
 
@@ -54,6 +54,13 @@ internal class ChunkDownloader(
       // (it was timed out) so we should download it normally.
       // In other words, if chunk.isWholeFile == true then we don't use the "Range" header.
       requestBuilder.header("Range", "bytes=" + chunk.start + "-" + chunk.end)
+
+      // If the file has changed on the server since we started downloading it (this may happen
+      // when resuming a download) the server will send us the whole new file (200 instead of 206)
+      // which will fail the download instead of mixing two different files together.
+      request.getPartialDownloadState()?.ifRangeValidator()?.let { validator ->
+        requestBuilder.header("If-Range", validator)
+      }
     }
 
     val httpRequest = requestBuilder.build()
@@ -8,6 +8,11 @@ import io.reactivex.Flowable
 import java.io.File
 
 
+/**
+ * Chunks are written directly into the output file by [ChunkPersister] so there is nothing to merge
+ * anymore. Here we only check that the stored chunks cover the whole file and then mark the file
+ * as downloaded.
+ * */
 internal class ChunkMerger(
   private val fileManager: FileManager,
   private val cacheHandler: Lazy<CacheHandler>,
@@ -15,7 +20,7 @@ internal class ChunkMerger(
   private val verboseLogs: Boolean
 ) {
 
-  fun mergeChunksIntoCacheFile(
+  fun finishChunkedDownload(
     url: String,
     chunkSuccessEvents: List<ChunkDownloadEvent.ChunkSuccess>,
     output: File,
@@ -25,7 +30,7 @@ internal class ChunkMerger(
 
     return Flowable.fromCallable {
       if (verboseLogs) {
-        log(TAG, "mergeChunksIntoCacheFile called ($url), " +
+        log(TAG, "finishChunkedDownload called ($url), " +
           "chunks count = ${chunkSuccessEvents.size}")
       }
 
@@ -34,39 +39,12 @@ internal class ChunkMerger(
         activeDownloads.throwCancellationException(url)
       }
 
-      try {
-        // Must be sorted in ascending order!!!
-        val sortedChunkEvents = chunkSuccessEvents.sortedBy { event -> event.chunk.start }
-
-        if (!output.exists()) {
-          throw FileCacheException.OutputFileDoesNotExist(output.absolutePath)
-        }
-
-        output.outputStream().use { outputStream ->
-          // Iterate each chunk and write it to the output file
-          for (chunkEvent in sortedChunkEvents) {
-            val chunkFile = chunkEvent.chunkCacheFile
-
-            if (!chunkFile.exists()) {
-              throw FileCacheException.ChunkFileDoesNotExist(chunkFile.absolutePath)
-            }
-
-            chunkFile.inputStream().use { inputStream ->
-              inputStream.copyTo(outputStream)
-            }
-          }
-
-          outputStream.flush()
-        }
-      } finally {
-        // In case of success or an error we want delete all chunk files
-        chunkSuccessEvents.forEach { event ->
-          if (!event.chunkCacheFile.delete()) {
-            logError(TAG, "Couldn't delete chunk file: ${event.chunkCacheFile.absolutePath}")
-          }
-        }
+      if (!output.exists()) {
+        throw FileCacheException.OutputFileDoesNotExist(output.absolutePath)
       }
 
+      checkChunksCoverWholeFile(url, chunkSuccessEvents, output)
+
       // Mark file as downloaded
       markFileAsDownloaded(output, url)
 
@@ -75,6 +53,53 @@ internal class ChunkMerger(
     }
   }
 
+  private fun checkChunksCoverWholeFile(
+    url: String,
+    chunkSuccessEvents: List<ChunkDownloadEvent.ChunkSuccess>,
+    output: File
+  ) {
+    val partialDownloadState = activeDownloads.get(url)?.getPartialDownloadState()
+    if (partialDownloadState != null) {
+      // The download might have been resumed so the chunks we have just downloaded are not
+      // necessarily all the chunks of this file.
+      val missingRanges = partialDownloadState.missingRanges()
+
+      if (missingRanges.isNotEmpty() || output.length() != partialDownloadState.fileLength) {
+        logError(TAG, "File ($url) is not fully downloaded, missingRanges=${missingRanges}, " +
+          "output file size=${output.length()}, expected=${partialDownloadState.fileLength}")
+        activeDownloads.throwCancellationException(url)
+      }
+
+      return
+    }
+
+    // Must be sorted in ascending order!!!
+    val sortedChunks = chunkSuccessEvents
+      .map { event -> event.chunk }
+      .sortedBy { chunk -> chunk.start }
+
+    if (sortedChunks.size == 1 && sortedChunks.first().isWholeFile()) {
+      return
+    }
+
+    var expectedStart = 0L
+
+    for (chunk in sortedChunks) {
+      if (chunk.start != expectedStart) {
+        logError(TAG, "Chunks of ($url) are not contiguous, expected chunk start ${expectedStart} " +
+          "but got ${chunk.start}")
+        activeDownloads.throwCancellationException(url)
+      }
+
+      expectedStart = chunk.realEnd
+    }
+
+    if (output.length() != expectedStart) {
+      logError(TAG, "Output file size (${output.length()}) != total chunks size (${expectedStart})")
+      activeDownloads.throwCancellationException(url)
+    }
+  }
+
   private fun markFileAsDownloaded(actualOutput: File, url: String) {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -103,6 +128,6 @@ internal class ChunkMerger(
   }
 
   companion object {
-    private const val TAG = "ChunkPersister"
+    private const val TAG = "ChunkMerger"
   }
 }
\ No newline at end of file
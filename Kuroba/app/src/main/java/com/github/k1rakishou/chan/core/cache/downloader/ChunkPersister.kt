@@ -1,27 +1,28 @@
 package com.github.k1rakishou.chan.core.cache.downloader
 
-import com.github.k1rakishou.chan.core.cache.CacheHandler
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.exhaustive
-import dagger.Lazy
 import io.reactivex.BackpressureStrategy
 import io.reactivex.Flowable
 import io.reactivex.FlowableEmitter
 import okhttp3.Response
 import okhttp3.ResponseBody
 import okhttp3.internal.closeQuietly
-import okio.Buffer
-import okio.BufferedSink
 import okio.BufferedSource
-import okio.buffer
-import okio.sink
-import java.io.File
 import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 import java.util.concurrent.atomic.AtomicLong
 
+/**
+ * Writes the body of every chunk response directly into the output cache file at the chunk's
+ * offset (all chunks share the same, preallocated, output file) so there is no need to store
+ * chunks in separate files and then merge them together afterwards.
+ * */
 internal class ChunkPersister(
-  private val cacheHandler: Lazy<CacheHandler>,
   private val activeDownloads: ActiveDownloads,
+  private val partialDownloadStateStore: PartialDownloadStateStore,
   private val verboseLogs: Boolean
 ) {
   fun storeChunkInFile(
@@ -59,54 +60,69 @@ internal class ChunkPersister(
           throw FileCacheException.HttpCodeException(response.code)
         }
 
-        val chunkCacheFile = cacheHandler.get().getOrCreateChunkCacheFile(
-          cacheFileType = request.cacheFileType,
-          chunkStart = chunk.start,
-          chunkEnd = chunk.end,
-          url = url
-        ) ?: throw IOException("Couldn't create chunk cache file")
+        if (!chunk.isWholeFile() && response.code != 206) {
+          // The server ignored the Range header and is sending us the whole file. We can't write it
+          // at the chunk's offset since it would overwrite other chunks.
+          throw FileCacheException.HttpCodeException(response.code)
+        }
+
+        val partialDownloadState = if (chunk.isWholeFile()) {
+          null
+        } else {
+          getOrCreatePartialDownloadState(request, response)
+        }
 
-        try {
-          response.useAsResponseBody { responseBody ->
-            var chunkSize = responseBody.contentLength()
+        val output = request.getOutputFile()
+          ?: activeDownloads.throwCancellationException(url)
 
-            if (totalChunksCount == 1) {
-              if (chunkSize <= 0) {
-                chunkSize = activeDownloads.get(url)?.extraInfo?.fileSize ?: -1
-              }
+        if (!output.exists()) {
+          throw FileCacheException.OutputFileDoesNotExist(output.absolutePath)
+        }
 
-              // When downloading the whole file in a single chunk we can only know
-              // for sure the whole size of the file at this point since we probably
-              // didn't send the HEAD request
-              activeDownloads.updateTotalLength(url, chunkSize)
+        response.useAsResponseBody { responseBody ->
+          var chunkSize = responseBody.contentLength()
+
+          if (totalChunksCount == 1) {
+            if (chunkSize <= 0) {
+              chunkSize = activeDownloads.get(url)?.extraInfo?.fileSize ?: -1
             }
 
-            responseBody.source().use { bufferedSource ->
-              if (!bufferedSource.isOpen) {
-                activeDownloads.throwCancellationException(url)
-              }
+            // When downloading the whole file in a single chunk we can only know
+            // for sure the whole size of the file at this point since we probably
+            // didn't send the HEAD request
+            activeDownloads.updateTotalLength(url, chunkSize)
+          }
+
+          responseBody.source().use { bufferedSource ->
+            if (!bufferedSource.isOpen) {
+              activeDownloads.throwCancellationException(url)
+            }
+
+            RandomAccessFile(output, "rw").use { randomAccessFile ->
+              val fileChannel = randomAccessFile.channel
 
-              chunkCacheFile.useAsBufferedSink { bufferedSink ->
-                readBodyLoop(
-                  chunkSize,
-                  url,
-                  bufferedSource,
-                  bufferedSink,
-                  totalDownloaded,
-                  serializedEmitter,
-                  chunkIndex,
-                  chunkCacheFile,
-                  chunk
-                )
+              if (chunk.isWholeFile()) {
+                // The output file may contain leftovers of a previous failed download
+                fileChannel.truncate(0L)
               }
+
+              readBodyLoop(
+                chunkSize,
+                url,
+                request,
+                partialDownloadState,
+                bufferedSource,
+                fileChannel,
+                totalDownloaded,
+                serializedEmitter,
+                chunkIndex,
+                chunk
+              )
             }
           }
-
-          log(TAG, "storeChunkInFile(${chunkIndex}) success, url=$url, chunk ${chunk.start}..${chunk.end}")
-        } catch (error: Throwable) {
-          deleteChunkFile(chunkCacheFile)
-          throw error
         }
+
+        log(TAG, "storeChunkInFile(${chunkIndex}) success, url=$url, chunk ${chunk.start}..${chunk.end}")
       } catch (error: Throwable) {
         handleErrors(
           url,
@@ -122,6 +138,38 @@ internal class ChunkPersister(
     }, BackpressureStrategy.BUFFER)
   }
 
+  /**
+   * When we skipped the HEAD request (see [PartialContentSupportChecker]) we don't know the
+   * validators of the file yet so we take them from the first ranged response, before anything is
+   * written into the output file, otherwise the download couldn't be resumed later.
+   * */
+  private fun getOrCreatePartialDownloadState(
+    request: FileDownloadRequest,
+    response: Response
+  ): PartialDownloadState? {
+    val responseCheckResult = PartialContentCheckResult(
+      supportsPartialContentDownload = true,
+      length = request.total.get(),
+      etag = response.header("ETag"),
+      lastModified = response.header("Last-Modified")
+    )
+
+    val partialDownloadState = request.getOrCreatePartialDownloadState {
+      PartialDownloadState.create(responseCheckResult)
+    }
+
+    if (partialDownloadState != null
+      && responseCheckResult.hasValidator()
+      && !partialDownloadState.matches(responseCheckResult)
+    ) {
+      // The file on the server has changed while we were downloading its chunks
+      throw IOException("Chunk response validators do not match, " +
+        "state=${partialDownloadState}, response=${responseCheckResult}")
+    }
+
+    return partialDownloadState
+  }
+
   @Synchronized
   private fun handleErrors(
     url: String,
@@ -172,28 +220,22 @@ internal class ChunkPersister(
     }
   }
 
-  private fun File.useAsBufferedSink(func: (BufferedSink) -> Unit) {
-    outputStream().sink().use { sink ->
-      sink.buffer().use { bufferedSink ->
-        func(bufferedSink)
-      }
-    }
-  }
-
   private fun readBodyLoop(
     chunkSize: Long,
     url: String,
+    request: FileDownloadRequest,
+    partialDownloadState: PartialDownloadState?,
     bufferedSource: BufferedSource,
-    bufferedSink: BufferedSink,
+    fileChannel: FileChannel,
     totalDownloaded: AtomicLong,
     serializedEmitter: FlowableEmitter<ChunkDownloadEvent>,
     chunkIndex: Int,
-    chunkCacheFile: File,
     chunk: Chunk
   ) {
     var downloaded = 0L
     var notifyTotal = 0L
-    val buffer = Buffer()
+    var persistedDownloaded = 0L
+    val byteBuffer = ByteBuffer.allocate(FileDownloader.BUFFER_SIZE.toInt())
 
     val notifySize = if (chunkSize <= 0) {
       FileDownloader.BUFFER_SIZE
@@ -207,17 +249,38 @@ internal class ChunkPersister(
           activeDownloads.throwCancellationException(url)
         }
 
-        val read = bufferedSource.read(buffer, FileDownloader.BUFFER_SIZE)
-        if (read == -1L) {
+        byteBuffer.clear()
+
+        val read = bufferedSource.read(byteBuffer)
+        if (read == -1) {
           break
         }
 
+        if (!chunk.isWholeFile() && downloaded + read > chunk.chunkSize()) {
+          logError(TAG, "Chunk response is bigger than the chunk (${chunk.chunkSize()})")
+          activeDownloads.throwCancellationException(url)
+        }
+
+        byteBuffer.flip()
+
+        // Positional writes do not change the channel's position so every chunk can be written
+        // concurrently into the same file
+        while (byteBuffer.hasRemaining()) {
+          fileChannel.write(byteBuffer, chunk.start + downloaded + byteBuffer.position())
+        }
+
         downloaded += read
-        bufferedSink.write(buffer, read)
 
-        val total = totalDownloaded.addAndGet(read)
+        val total = totalDownloaded.addAndGet(read.toLong())
         activeDownloads.updateDownloaded(url, chunkIndex, total)
 
+        if (partialDownloadState != null && downloaded - persistedDownloaded >= PERSIST_PROGRESS_INTERVAL) {
+          // Persist the progress every once in a while so that the download can be resumed even
+          // if the app gets killed in the middle of it
+          persistedDownloaded = downloaded
+          persistProgress(url, request, partialDownloadState, chunk, downloaded)
+        }
+
         if (downloaded >= notifyTotal + notifySize) {
           notifyTotal = downloaded
 
@@ -231,8 +294,6 @@ internal class ChunkPersister(
         }
       }
 
-      bufferedSink.flush()
-
       // So that we have 100% progress for every chunk
       if (chunkSize >= 0) {
         serializedEmitter.onNext(
@@ -253,26 +314,43 @@ internal class ChunkPersister(
         log(TAG, "pipeChunk($chunkIndex) ($url) SUCCESS for chunk ${chunk.start}..${chunk.end}")
       }
 
+      if (partialDownloadState != null) {
+        persistProgress(url, request, partialDownloadState, chunk, downloaded)
+      }
+
       serializedEmitter.onNext(
         ChunkDownloadEvent.ChunkSuccess(
           chunkIndex,
-          chunkCacheFile,
           chunk
         )
       )
       serializedEmitter.onComplete()
     } catch (error: Throwable) {
+      if (partialDownloadState != null && downloaded > persistedDownloaded) {
+        // Everything we have written so far is valid, store it so that we can continue from here
+        persistProgress(url, request, partialDownloadState, chunk, downloaded)
+      }
+
       // Handle StreamResetExceptions and such
       if (DownloaderUtils.isCancellationError(error)) {
         activeDownloads.throwCancellationException(url)
       } else {
         throw error
       }
-    } finally {
-      buffer.closeQuietly()
     }
   }
 
+  private fun persistProgress(
+    url: String,
+    request: FileDownloadRequest,
+    partialDownloadState: PartialDownloadState,
+    chunk: Chunk,
+    downloaded: Long
+  ) {
+    partialDownloadState.updateProgress(chunk, downloaded)
+    partialDownloadStateStore.save(request.cacheFileType, url, partialDownloadState)
+  }
+
   private fun isRequestStoppedOrCanceled(url: String): Boolean {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -282,13 +360,8 @@ internal class ChunkPersister(
     return !request.cancelableDownload.isRunning()
   }
 
-  private fun deleteChunkFile(chunkFile: File) {
-    if (!chunkFile.delete()) {
-      logError(TAG, "Couldn't delete chunk file: ${chunkFile.absolutePath}")
-    }
-  }
-
   companion object {
     private const val TAG = "ChunkReader"
+    private const val PERSIST_PROGRESS_INTERVAL = 1024L * 1024L // 1 MB
   }
 }
\ No newline at end of file
@@ -11,6 +11,7 @@ import io.reactivex.Scheduler
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import java.io.File
 import java.io.IOException
+import java.io.RandomAccessFile
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
 import javax.inject.Inject
@@ -20,6 +21,7 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
   private val chunkDownloader: ChunkDownloader,
   private val chunkPersister: ChunkPersister,
   private val chunkMerger: ChunkMerger,
+  private val partialDownloadStateStore: PartialDownloadStateStore,
   private val workerScheduler: Scheduler,
   private val verboseLogs: Boolean,
   activeDownloads: ActiveDownloads,
@@ -33,8 +35,10 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
   ): Flowable<FileDownloadResult> {
     BackgroundUtils.ensureBackgroundThread()
 
-    val output = activeDownloads.get(url)
-      ?.getOutputFile()
+    val request = activeDownloads.get(url)
+      ?: activeDownloads.throwCancellationException(url)
+
+    val output = request.getOutputFile()
       ?: activeDownloads.throwCancellationException(url)
 
     if (!output.exists()) {
@@ -45,35 +49,92 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
     val chunksCount = getChunksCount(supportsPartialContentDownload, partialContentCheckResult, url)
     check(chunksCount >= 1) { "Chunks count is less than 1 = $chunksCount" }
 
-    // Split the whole file size into chunks
-    val chunks = if (chunksCount > 1) {
-      chunkLong(
-        partialContentCheckResult.length,
-        chunksCount,
-        FileCacheV2.MIN_CHUNK_SIZE
-      )
-    } else {
-      // If there is only one chunk then we should download the whole file without using
-      // Partial Content
-      listOf(Chunk.wholeFile())
+    val partialDownloadState = getPartialDownloadState(
+      url = url,
+      request = request,
+      partialContentCheckResult = partialContentCheckResult,
+      supportsPartialContentDownload = supportsPartialContentDownload,
+      output = output
+    )
+
+    request.setPartialDownloadState(partialDownloadState)
+
+    val chunks = when {
+      partialDownloadState != null && partialDownloadState.downloadedBytes() > 0 -> {
+        // Only download what we haven't downloaded yet
+        log(TAG, "Resuming downloading ($url), state=${partialDownloadState}")
+        partialDownloadState.missingRanges()
+      }
+      chunksCount > 1 || partialDownloadState != null -> {
+        // Split the whole file size into chunks
+        chunkLong(
+          partialContentCheckResult.length,
+          chunksCount,
+          FileCacheV2.MIN_CHUNK_SIZE
+        )
+      }
+      else -> {
+        // If there is only one chunk then we should download the whole file without using
+        // Partial Content
+        listOf(Chunk.wholeFile())
+      }
     }
 
+    request.chunksCount(chunks.size)
+
     return Flowable.concat(
-      Flowable.just(FileDownloadResult.Start(chunksCount)),
+      Flowable.just(FileDownloadResult.Start(chunks.size)),
       Flowable.defer { downloadInternal(url, chunks, partialContentCheckResult, output) }
         .doOnSubscribe { log(TAG, "Starting downloading ($url)") }
         .doOnComplete {
           log(TAG, "Completed downloading ($url)")
-          removeChunksFromDisk(url)
+          activeDownloads.clearChunks(url)
+          partialDownloadStateStore.delete(request.cacheFileType, url)
         }
         .doOnError { error ->
           logErrorsAndExtractErrorMessage(TAG, "Error while trying to download", error)
-          removeChunksFromDisk(url)
+          activeDownloads.clearChunks(url)
         }
         .subscribeOn(workerScheduler)
     )
   }
 
+  /**
+   * Returns the stored state of a previous attempt to download this file if the file on the server
+   * hasn't changed since then (otherwise the stored state is discarded) or a new state if the file
+   * can be downloaded in a resumable way. Returns null if the file can't be resumed at all.
+   * */
+  private fun getPartialDownloadState(
+    url: String,
+    request: FileDownloadRequest,
+    partialContentCheckResult: PartialContentCheckResult,
+    supportsPartialContentDownload: Boolean,
+    output: File
+  ): PartialDownloadState? {
+    val storedState = partialDownloadStateStore.load(request.cacheFileType, url)
+    if (storedState != null) {
+      val canResume = supportsPartialContentDownload
+        && storedState.matches(partialContentCheckResult)
+        && output.length() == storedState.fileLength
+        && storedState.missingRanges().isNotEmpty()
+
+      if (canResume) {
+        return storedState
+      }
+
+      log(TAG, "Discarding stale partial download state of ($url), state=${storedState}, " +
+        "partialContentCheckResult=${partialContentCheckResult}, outputLength=${output.length()}")
+
+      partialDownloadStateStore.delete(request.cacheFileType, url)
+    }
+
+    if (!supportsPartialContentDownload) {
+      return null
+    }
+
+    return PartialDownloadState.create(partialContentCheckResult)
+  }
+
   private fun getChunksCount(
     supportsPartialContentDownload: Boolean,
     partialContentCheckResult: PartialContentCheckResult,
@@ -111,33 +172,6 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
     return chunksCount
   }
 
-  private fun removeChunksFromDisk(url: String) {
-    val chunks = activeDownloads.getChunks(url)
-    if (chunks.isEmpty()) {
-      return
-    }
-
-    val request = activeDownloads.get(url)
-      ?: activeDownloads.throwCancellationException(url)
-
-    for (chunk in chunks) {
-      val chunkFile = cacheHandler.get().getChunkCacheFileOrNull(
-        cacheFileType = request.cacheFileType,
-        chunkStart = chunk.start,
-        chunkEnd = chunk.end,
-        url = url
-      ) ?: continue
-
-      if (chunkFile.delete()) {
-        log(TAG, "Deleted chunk file ${chunkFile.absolutePath}")
-      } else {
-        logError(TAG, "Couldn't delete chunk file ${chunkFile.absolutePath}")
-      }
-    }
-
-    activeDownloads.clearChunks(url)
-  }
-
   private fun downloadInternal(
     url: String,
     chunks: List<Chunk>,
@@ -164,11 +198,26 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
     }
 
     val startTime = System.currentTimeMillis()
-    val totalDownloaded = AtomicLong(0L)
+    val totalDownloaded = AtomicLong(
+      activeDownloads.get(url)?.getPartialDownloadState()?.downloadedBytes() ?: 0L
+    )
     val chunkIndex = AtomicInteger(0)
 
     activeDownloads.addChunks(url, chunks)
 
+    if (partialContentCheckResult.couldDetermineFileSize() && chunks.none { chunk -> chunk.isWholeFile() }) {
+      // Every chunk is written directly at it's offset into the output file so it must have the
+      // final size before any of the chunks is written.
+      RandomAccessFile(output, "rw").use { randomAccessFile ->
+        randomAccessFile.setLength(partialContentCheckResult.length)
+      }
+
+      // The file takes all of it's final size on the disk now (even if the download never finishes)
+      activeDownloads.get(url)?.cacheFileType?.let { cacheFileType ->
+        cacheHandler.get().fileWasAllocated(cacheFileType, output, partialContentCheckResult.length)
+      }
+    }
+
     val downloadedChunks = Flowable.fromIterable(chunks)
       .subscribeOn(workerScheduler)
       .observeOn(workerScheduler)
@@ -239,7 +288,7 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
         }
 
         @Suppress("UNCHECKED_CAST")
-        return@flatMap chunkMerger.mergeChunksIntoCacheFile(
+        return@flatMap chunkMerger.finishChunkedDownload(
           url = url,
           chunkSuccessEvents = chunkEvents as List<ChunkDownloadEvent.ChunkSuccess>,
           output = output,
@@ -300,10 +349,9 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
       .flatMap { chunkResponse ->
         // Here is where the most fun is happening. At this point we have sent multiple
         // requests to the server and got responses. Now we need to read the bodies of
-        // those responses each into it's own chunk file. Then, after we have read
-        // them all, we need to sort them and write all chunks into the resulting
-        // file - cache file. After that we need to do clean up: delete chunk files
-        // (we also need to delete them in case of an error)
+        // those responses and write each one of them directly into the resulting file
+        // (cache file) at the chunk's offset. After we have read them all the cache file
+        // is complete and there is nothing left to merge.
         return@flatMap chunkPersister.storeChunkInFile(
           url = url,
           chunkResponse = chunkResponse,
@@ -14,11 +14,12 @@ internal open class FileDownloadRequest(
   // A handle to cancel the current download
   val cancelableDownload: CancelableDownload,
   val extraInfo: DownloadRequestExtraInfo,
-  // Chunks to delete from the disk upon download success or error
+  // Chunks of the file that are being downloaded concurrently
   val chunks: MutableSet<Chunk> = mutableSetOf(),
   val cacheFileType: CacheFileType
 ) {
   private var output: File? = null
+  private var partialDownloadState: PartialDownloadState? = null
 
   private var chunksCount = AtomicInteger(-1)
 
@@ -41,6 +42,34 @@ internal open class FileDownloadRequest(
     return output
   }
 
+  /**
+   * Only set when the file is downloaded using ranged requests and the server sent us the file's
+   * validators (either with the HEAD request or with the first chunk response), i.e. when the
+   * download can be resumed later.
+   * */
+  @Synchronized
+  fun setPartialDownloadState(state: PartialDownloadState?) {
+    this.partialDownloadState = state
+  }
+
+  @Synchronized
+  fun getPartialDownloadState(): PartialDownloadState? {
+    return partialDownloadState
+  }
+
+  /**
+   * Sets the state created by [creator] if there is no state yet. Chunks are downloaded
+   * concurrently so only the first chunk response gets to create it.
+   * */
+  @Synchronized
+  fun getOrCreatePartialDownloadState(creator: () -> PartialDownloadState?): PartialDownloadState? {
+    if (partialDownloadState == null) {
+      partialDownloadState = creator()
+    }
+
+    return partialDownloadState
+  }
+
   override fun toString(): String {
     val outputFileName = synchronized(this) {
       if (output == null) {
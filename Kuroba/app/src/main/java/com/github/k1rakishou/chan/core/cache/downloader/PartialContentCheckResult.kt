@@ -3,7 +3,13 @@ package com.github.k1rakishou.chan.core.cache.downloader
 internal data class PartialContentCheckResult(
   val supportsPartialContentDownload: Boolean,
   val notFoundOnServer: Boolean = false,
-  val length: Long = -1L
+  val length: Long = -1L,
+  // Validators of the file on the server (from the HEAD request or from a chunk response). Used to
+  // check whether a partially downloaded file can be resumed.
+  val etag: String? = null,
+  val lastModified: String? = null
 ) {
   fun couldDetermineFileSize(): Boolean = length >= 0
-}
\ No newline at end of file
+
+  fun hasValidator(): Boolean = etag != null || lastModified != null
+}
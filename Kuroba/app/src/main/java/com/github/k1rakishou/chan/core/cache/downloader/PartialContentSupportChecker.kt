@@ -32,6 +32,7 @@ import java.util.concurrent.TimeoutException
 internal class PartialContentSupportChecker(
   private val downloaderOkHttpClient: Lazy<RealDownloaderOkHttpClient>,
   private val activeDownloads: ActiveDownloads,
+  private val partialDownloadStateStore: PartialDownloadStateStore,
   private val siteResolver: SiteResolver,
   private val maxTimeoutMs: Long,
   private val appConstants: AppConstants
@@ -70,7 +71,14 @@ internal class PartialContentSupportChecker(
     }
 
     val fileSize = activeDownloads.get(url)?.extraInfo?.fileSize ?: -1L
-    if (fileSize > 0) {
+    val cacheFileType = activeDownloads.get(url)?.cacheFileType
+
+    // When there is a partially downloaded file we need the validators of the file on the server
+    // to check whether it can be resumed so we have to send the HEAD request.
+    val hasPartialDownload = cacheFileType != null
+      && partialDownloadStateStore.exists(cacheFileType, url)
+
+    if (fileSize > 0 && !hasPartialDownload) {
       val hostAlreadyChecked = synchronized(checkedChanHosts) {
         checkedChanHosts.containsKey(host)
       }
@@ -94,7 +102,9 @@ internal class PartialContentSupportChecker(
 
           if (supportsPartialContent) {
             // Fast path: we already had a file size and already checked whether this
-            // chan supports Partial Content. So we don't need to send HEAD request.
+            // chan supports Partial Content. So we don't need to send HEAD request. The
+            // validators of the file (needed to resume the download) are taken from the first
+            // chunk response instead (see ChunkPersister).
             return Single.just(
               PartialContentCheckResult(
                 supportsPartialContentDownload = true,
@@ -306,7 +316,9 @@ internal class PartialContentSupportChecker(
     val result = PartialContentCheckResult(
       supportsPartialContentDownload = true,
       notFoundOnServer = false,
-      length = length
+      length = length,
+      etag = response.header(ETAG_HEADER),
+      lastModified = response.header(LAST_MODIFIED_HEADER)
     )
 
     emitter.onSuccess(cache(url, result))
@@ -350,6 +362,8 @@ internal class PartialContentSupportChecker(
     private const val ACCEPT_RANGES_HEADER = "Accept-Ranges"
     private const val CONTENT_LENGTH_HEADER = "Content-Length"
     private const val CF_CACHE_STATUS_HEADER = "CF-Cache-Status"
+    private const val ETAG_HEADER = "ETag"
+    private const val LAST_MODIFIED_HEADER = "Last-Modified"
     private const val ACCEPT_RANGES_HEADER_VALUE = "bytes"
   }
 
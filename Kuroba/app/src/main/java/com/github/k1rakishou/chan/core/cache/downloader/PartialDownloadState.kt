@@ -0,0 +1,282 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.common.mutableListWithCap
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+
+/**
+ * Ranges of a file that were already written into the output cache file by [ChunkPersister] plus
+ * the validators (ETag/Last-Modified) of the file on the server at the time the download started.
+ * Persisted by [PartialDownloadStateStore] so that an interrupted download (even by an app restart)
+ * can be resumed by only downloading the missing ranges.
+ *
+ * ThreadSafe
+ * */
+internal class PartialDownloadState(
+  val fileLength: Long,
+  val etag: String?,
+  val lastModified: String?,
+  downloadedRanges: List<Chunk> = emptyList()
+) {
+  /**
+   * Chunk start -> the end (exclusive) of the bytes of that chunk that were already written.
+   * */
+  @GuardedBy("this")
+  private val progress = mutableMapOf<Long, Long>()
+
+  init {
+    downloadedRanges.forEach { range -> progress[range.start] = range.realEnd }
+  }
+
+  @Synchronized
+  fun updateProgress(chunk: Chunk, downloaded: Long) {
+    if (chunk.isWholeFile() || downloaded <= 0) {
+      return
+    }
+
+    val end = (chunk.start + downloaded).coerceAtMost(chunk.realEnd)
+    val prevEnd = progress[chunk.start] ?: chunk.start
+
+    if (end > prevEnd) {
+      progress[chunk.start] = end
+    }
+  }
+
+  /**
+   * Sorted and merged ranges that were already downloaded.
+   * */
+  @Synchronized
+  fun downloadedRanges(): List<Chunk> {
+    val sortedRanges = progress.entries
+      .sortedBy { (start, _) -> start }
+
+    val result = mutableListWithCap<Chunk>(sortedRanges.size)
+
+    for ((start, end) in sortedRanges) {
+      val last = result.lastOrNull()
+
+      if (last != null && start <= last.realEnd) {
+        if (end > last.realEnd) {
+          result[result.lastIndex] = Chunk(last.start, end)
+        }
+
+        continue
+      }
+
+      result += Chunk(start, end)
+    }
+
+    return result
+  }
+
+  fun missingRanges(): List<Chunk> {
+    val missingRanges = mutableListWithCap<Chunk>(4)
+    var current = 0L
+
+    for (downloadedRange in downloadedRanges()) {
+      if (downloadedRange.start > current) {
+        missingRanges += Chunk(current, downloadedRange.start)
+      }
+
+      current = downloadedRange.realEnd
+    }
+
+    if (current < fileLength) {
+      missingRanges += Chunk(current, fileLength)
+    }
+
+    return missingRanges
+  }
+
+  fun downloadedBytes(): Long {
+    return downloadedRanges().sumOf { range -> range.chunkSize() }
+  }
+
+  /**
+   * Whether the file on the server is still the same file we have partially downloaded. Weak ETags
+   * can't be used for this because they don't guarantee that the files are byte-to-byte identical.
+   * */
+  fun matches(partialContentCheckResult: PartialContentCheckResult): Boolean {
+    if (partialContentCheckResult.length != fileLength) {
+      return false
+    }
+
+    val strongEtag = strongEtagOrNull(etag)
+    if (strongEtag != null) {
+      return strongEtag == strongEtagOrNull(partialContentCheckResult.etag)
+    }
+
+    return lastModified != null && lastModified == partialContentCheckResult.lastModified
+  }
+
+  /**
+   * The value for the If-Range header. When the file on the server has changed since the download
+   * started the server will send us the whole file instead of the requested range.
+   * */
+  fun ifRangeValidator(): String? {
+    return strongEtagOrNull(etag) ?: lastModified
+  }
+
+  override fun toString(): String {
+    return "PartialDownloadState{fileLength=$fileLength, etag=$etag, lastModified=$lastModified, " +
+      "downloadedRanges=${downloadedRanges()}}"
+  }
+
+  companion object {
+    fun create(partialContentCheckResult: PartialContentCheckResult): PartialDownloadState? {
+      if (!partialContentCheckResult.supportsPartialContentDownload
+        || partialContentCheckResult.length <= 0
+      ) {
+        return null
+      }
+
+      val etag = strongEtagOrNull(partialContentCheckResult.etag)
+      val lastModified = partialContentCheckResult.lastModified
+
+      if (etag == null && lastModified == null) {
+        return null
+      }
+
+      return PartialDownloadState(partialContentCheckResult.length, etag, lastModified)
+    }
+
+    private fun strongEtagOrNull(etag: String?): String? {
+      if (etag.isNullOrEmpty() || etag.startsWith("W/")) {
+        return null
+      }
+
+      return etag
+    }
+  }
+}
+
+/**
+ * Stores [PartialDownloadState]s next to the cache files they belong to (see
+ * [CacheHandler.getPartialDownloadStateFile]). The state file is deleted together with the cache
+ * file.
+ * */
+internal class PartialDownloadStateStore(
+  private val stateFileProvider: (CacheFileType, String) -> File
+) {
+
+  fun exists(cacheFileType: CacheFileType, url: String): Boolean {
+    return stateFileProvider(cacheFileType, url).exists()
+  }
+
+  fun load(cacheFileType: CacheFileType, url: String): PartialDownloadState? {
+    val stateFile = stateFileProvider(cacheFileType, url)
+    if (!stateFile.exists()) {
+      return null
+    }
+
+    try {
+      return DataInputStream(stateFile.inputStream().buffered()).use { inputStream ->
+        val version = inputStream.readInt()
+        if (version != STATE_FILE_VERSION) {
+          throw IOException("Bad state file version: $version")
+        }
+
+        val fileLength = inputStream.readLong()
+        val etag = readNullableString(inputStream)
+        val lastModified = readNullableString(inputStream)
+
+        val rangesCount = inputStream.readInt()
+        if (rangesCount < 0 || rangesCount > MAX_RANGES_COUNT) {
+          throw IOException("Bad ranges count: $rangesCount")
+        }
+
+        val downloadedRanges = mutableListWithCap<Chunk>(rangesCount)
+
+        repeat(rangesCount) {
+          val start = inputStream.readLong()
+          val end = inputStream.readLong()
+
+          if (start < 0 || end <= start || end > fileLength) {
+            throw IOException("Bad range: $start..$end, fileLength: $fileLength")
+          }
+
+          downloadedRanges += Chunk(start, end)
+        }
+
+        return@use PartialDownloadState(fileLength, etag, lastModified, downloadedRanges)
+      }
+    } catch (error: Throwable) {
+      logError(TAG, "Failed to read partial download state of ($url), deleting it", error)
+      stateFile.delete()
+      return null
+    }
+  }
+
+  fun save(cacheFileType: CacheFileType, url: String, state: PartialDownloadState) {
+    val stateFile = stateFileProvider(cacheFileType, url)
+    val tmpStateFile = File(stateFile.parentFile, stateFile.name + TMP_FILE_SUFFIX)
+
+    // Chunks are downloaded concurrently and every one of them saves the state
+    synchronized(state) {
+      try {
+        writeState(tmpStateFile, stateFile, state)
+      } catch (error: Throwable) {
+        logError(TAG, "Failed to save partial download state of ($url)", error)
+        tmpStateFile.delete()
+        stateFile.delete()
+      }
+    }
+  }
+
+  fun delete(cacheFileType: CacheFileType, url: String) {
+    val stateFile = stateFileProvider(cacheFileType, url)
+
+    if (stateFile.exists() && !stateFile.delete()) {
+      logError(TAG, "Failed to delete partial download state file ${stateFile.absolutePath}")
+    }
+  }
+
+  private fun writeState(tmpStateFile: File, stateFile: File, state: PartialDownloadState) {
+    val downloadedRanges = state.downloadedRanges()
+
+    DataOutputStream(tmpStateFile.outputStream().buffered()).use { outputStream ->
+      outputStream.writeInt(STATE_FILE_VERSION)
+      outputStream.writeLong(state.fileLength)
+      writeNullableString(outputStream, state.etag)
+      writeNullableString(outputStream, state.lastModified)
+      outputStream.writeInt(downloadedRanges.size)
+
+      for (downloadedRange in downloadedRanges) {
+        outputStream.writeLong(downloadedRange.start)
+        outputStream.writeLong(downloadedRange.realEnd)
+      }
+    }
+
+    if (!tmpStateFile.renameTo(stateFile)) {
+      throw IOException("Failed to rename ${tmpStateFile.absolutePath} into ${stateFile.absolutePath}")
+    }
+  }
+
+  private fun writeNullableString(outputStream: DataOutputStream, value: String?) {
+    outputStream.writeBoolean(value != null)
+
+    if (value != null) {
+      outputStream.writeUTF(value)
+    }
+  }
+
+  private fun readNullableString(inputStream: DataInputStream): String? {
+    if (!inputStream.readBoolean()) {
+      return null
+    }
+
+    return inputStream.readUTF()
+  }
+
+  companion object {
+    private const val TAG = "PartialDownloadStateStore"
+    private const val STATE_FILE_VERSION = 1
+    private const val MAX_RANGES_COUNT = 1024
+    private const val TMP_FILE_SUFFIX = ".tmp"
+  }
+}
@@ -198,9 +198,9 @@ class HelperModule {
 
   @Provides
   @Singleton
-  fun provideExoPlayerDiskCache(context: Context, appConstants: AppConstants): ExoPlayerCache {
+  fun provideExoPlayerDiskCache(cacheHandler: Lazy<CacheHandler>): ExoPlayerCache {
     Logger.deps("ExoPlayerCache");
-    return ExoPlayerCache(context, appConstants)
+    return ExoPlayerCache(cacheHandler)
   }
 
   @Provides
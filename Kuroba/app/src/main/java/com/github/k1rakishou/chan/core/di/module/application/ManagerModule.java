@@ -853,6 +853,7 @@ public class ManagerModule {
     public ThreadDownloadingDelegate provideThreadDownloadingDelegate(
             AppConstants appConstants,
             Lazy<RealDownloaderOkHttpClient> realDownloaderOkHttpClient,
+            Lazy<CacheHandler> cacheHandler,
             SiteManager siteManager,
             SiteResolver siteResolver,
             ThreadDownloadManager threadDownloadManager,
@@ -866,6 +867,7 @@ public class ManagerModule {
         return new ThreadDownloadingDelegate(
                 appConstants,
                 realDownloaderOkHttpClient,
+                cacheHandler,
                 siteManager,
                 siteResolver,
                 threadDownloadManager,
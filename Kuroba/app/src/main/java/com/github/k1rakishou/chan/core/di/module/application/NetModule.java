@@ -23,6 +23,7 @@ import com.github.k1rakishou.ChanSettings;
 import com.github.k1rakishou.chan.Chan;
 import com.github.k1rakishou.chan.core.base.okhttp.CoilOkHttpClient;
 import com.github.k1rakishou.chan.core.base.okhttp.HttpLoggingInterceptorLazy;
+import com.github.k1rakishou.chan.core.base.okhttp.OkHttpClientCore;
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient;
 import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient;
 import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient;
@@ -120,15 +121,35 @@ public class NetModule {
     }
 
     /**
-     * This okHttpClient is for posting.
+     * Connection pool, dispatcher and dns cache shared by all okHttpClients below.
      */
     @Provides
     @Singleton
-    public ProxiedOkHttpClient provideProxiedOkHttpClient(
+    public OkHttpClientCore provideOkHttpClientCore(
             NormalDnsSelectorFactory normalDnsSelectorFactory,
             DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
             Chan.OkHttpProtocols okHttpProtocols,
             ProxyStorage proxyStorage,
+            SiteResolver siteResolver
+    ) {
+        Logger.deps("OkHttpClientCore");
+
+        return new OkHttpClientCore(
+                normalDnsSelectorFactory,
+                dnsOverHttpsSelectorFactory,
+                okHttpProtocols,
+                proxyStorage,
+                siteResolver
+        );
+    }
+
+    /**
+     * This okHttpClient is for posting.
+     */
+    @Provides
+    @Singleton
+    public ProxiedOkHttpClient provideProxiedOkHttpClient(
+            OkHttpClientCore okHttpClientCore,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
@@ -136,10 +157,7 @@ public class NetModule {
         Logger.deps("RealProxiedOkHttpClient");
 
         return new RealProxiedOkHttpClient(
-                normalDnsSelectorFactory,
-                dnsOverHttpsSelectorFactory,
-                okHttpProtocols,
-                proxyStorage,
+                okHttpClientCore,
                 httpLoggingInterceptorLazy,
                 siteResolver,
                 firewallBypassManager
@@ -153,10 +171,7 @@ public class NetModule {
     @Singleton
     public CoilOkHttpClient provideCoilOkHttpClient(
             Context applicationContext,
-            NormalDnsSelectorFactory normalDnsSelectorFactory,
-            DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
-            Chan.OkHttpProtocols okHttpProtocols,
-            ProxyStorage proxyStorage,
+            OkHttpClientCore okHttpClientCore,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
@@ -165,10 +180,7 @@ public class NetModule {
 
         return new CoilOkHttpClient(
                 applicationContext,
-                normalDnsSelectorFactory,
-                dnsOverHttpsSelectorFactory,
-                okHttpProtocols,
-                proxyStorage,
+                okHttpClientCore,
                 httpLoggingInterceptorLazy,
                 siteResolver,
                 firewallBypassManager
@@ -181,10 +193,7 @@ public class NetModule {
     @Provides
     @Singleton
     public RealDownloaderOkHttpClient provideDownloaderOkHttpClient(
-            NormalDnsSelectorFactory normalDnsSelectorFactory,
-            DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
-            Chan.OkHttpProtocols okHttpProtocols,
-            ProxyStorage proxyStorage,
+            OkHttpClientCore okHttpClientCore,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
@@ -192,10 +201,7 @@ public class NetModule {
         Logger.deps("RealDownloaderOkHttpClient");
 
         return new RealDownloaderOkHttpClient(
-                normalDnsSelectorFactory,
-                dnsOverHttpsSelectorFactory,
-                okHttpProtocols,
-                proxyStorage,
+                okHttpClientCore,
                 httpLoggingInterceptorLazy,
                 siteResolver,
                 firewallBypassManager
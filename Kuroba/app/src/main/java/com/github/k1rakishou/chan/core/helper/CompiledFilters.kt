@@ -0,0 +1,204 @@
+package com.github.k1rakishou.chan.core.helper
+
+import androidx.annotation.AnyThread
+import com.github.k1rakishou.common.RegexPatternCompiler
+import com.github.k1rakishou.common.datastructure.AhoCorasick
+import com.github.k1rakishou.model.data.filter.ChanFilter
+import com.github.k1rakishou.model.data.filter.FilterType
+import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import java.util.*
+
+/**
+ * A set of filters prepared to be matched against lots of posts (see [FilterEngine.compileFilters]).
+ * Instead of running every filter's pattern against every post the literals of all non-regex
+ * filters are merged into one [AhoCorasick] automaton per [FilterType] so that every post field is
+ * scanned only once. Only the filters whose literals were found in the field (plus the regex filters
+ * which can't be handled this way) then get their patterns checked and only if the post satisfies
+ * the filter prerequisites (OP only/saved replies only, the types of the fields the post has).
+ *
+ * The filters are expected to already be filtered by board. Immutable, safe to use from multiple
+ * threads.
+ * */
+class CompiledFilters internal constructor(
+  private val filterEngine: FilterEngine,
+  // In the priority order
+  val filters: List<ChanFilter>
+) {
+  private val prerequisiteMasks = IntArray(filters.size)
+  // Filters that have no required literals, their patterns need to be checked against every field
+  private val regexFilters = BitSet(filters.size)
+  private val keywordMatchers = EnumMap<FilterType, AhoCorasick>(FilterType::class.java)
+
+  init {
+    val keywordsByType = EnumMap<FilterType, MutableList<Pair<String, Int>>>(FilterType::class.java)
+
+    filters.forEachIndexed { index, chanFilter ->
+      var prerequisiteMask = 0
+
+      if (chanFilter.onlyOnOP) {
+        prerequisiteMask = prerequisiteMask or POST_IS_OP
+      }
+
+      if (chanFilter.applyToSaved) {
+        prerequisiteMask = prerequisiteMask or POST_IS_SAVED_REPLY
+      }
+
+      prerequisiteMasks[index] = prerequisiteMask
+
+      val literals = RegexPatternCompiler.extractRequiredLiterals(chanFilter.pattern)
+      if (literals == null) {
+        regexFilters.set(index)
+        return@forEachIndexed
+      }
+
+      for (filterType in FilterType.forFlags(chanFilter.type)) {
+        val keywords = keywordsByType.getOrPut(filterType) { mutableListOf() }
+        literals.forEach { literal -> keywords += literal to index }
+      }
+    }
+
+    keywordsByType.forEach { (filterType, keywords) ->
+      keywordMatchers[filterType] = AhoCorasick(keywords)
+    }
+  }
+
+  fun isEmpty(): Boolean = filters.isEmpty()
+
+  /**
+   * Returns the first filter (in the priority order) that matches the post or null if none do.
+   * */
+  @AnyThread
+  fun firstMatchingFilter(post: ChanPostBuilder): ChanFilter? {
+    if (filters.isEmpty()) {
+      return null
+    }
+
+    if (post.moderatorCapcode.isNotEmpty() || post.sticky) {
+      return null
+    }
+
+    var postMask = 0
+
+    if (post.op) {
+      postMask = postMask or POST_IS_OP
+    }
+
+    if (post.isSavedReply) {
+      postMask = postMask or POST_IS_SAVED_REPLY
+    }
+
+    val postFields = PostFields(post)
+    val candidatesByType = EnumMap<FilterType, BitSet>(FilterType::class.java)
+
+    postFields.forEachField { filterType, text ->
+      val keywordMatcher = keywordMatchers[filterType]
+        ?: return@forEachField
+
+      val candidates = candidatesByType.getOrPut(filterType) { BitSet(filters.size) }
+      keywordMatcher.findAll(text, candidates)
+    }
+
+    for ((index, chanFilter) in filters.withIndex()) {
+      val prerequisiteMask = prerequisiteMasks[index]
+      if ((postMask and prerequisiteMask) != prerequisiteMask) {
+        continue
+      }
+
+      if (chanFilter.applyToEmptyComments && postFields.comment.isEmpty()) {
+        return chanFilter
+      }
+
+      if ((chanFilter.type and postFields.typesMask) == 0) {
+        continue
+      }
+
+      val isRegexFilter = regexFilters.get(index)
+      var matched = false
+
+      postFields.forEachField { filterType, text ->
+        if (matched || !filterEngine.typeMatches(chanFilter, filterType)) {
+          return@forEachField
+        }
+
+        if (!isRegexFilter && candidatesByType[filterType]?.get(index) != true) {
+          return@forEachField
+        }
+
+        matched = filterEngine.matches(chanFilter, text, false)
+      }
+
+      if (matched) {
+        return chanFilter
+      }
+    }
+
+    return null
+  }
+
+  /**
+   * The fields of a post the filters are applied to. Country code is taken from the first post icon
+   * that has one (icon name is "country/code"), file names of all images are matched as one string.
+   * */
+  private class PostFields(private val post: ChanPostBuilder) {
+    val comment: CharSequence = post.postCommentBuilder.getComment()
+    private val fileNames: String?
+    private val countryCode: String?
+
+    val typesMask: Int
+
+    init {
+      fileNames = if (post.postImages.isNotEmpty()) {
+        val files = StringBuilder()
+
+        for (image in post.postImages) {
+          files.append(image.filename).append(" ")
+        }
+
+        files.toString()
+      } else {
+        null
+      }
+
+      countryCode = post.httpIcons
+        .firstOrNull { icon -> icon.iconName.indexOf('/') != -1 }
+        ?.let { icon -> icon.iconName.substring(icon.iconName.indexOf('/') + 1) }
+        ?.takeIf { countryCode -> countryCode.isNotEmpty() }
+
+      var mask = 0
+      forEachField { filterType, _ -> mask = mask or filterType.flag }
+      typesMask = mask
+    }
+
+    inline fun forEachField(iterator: (FilterType, CharSequence) -> Unit) {
+      iterateIfNotEmpty(FilterType.COMMENT, comment, iterator)
+      iterateIfNotEmpty(FilterType.SUBJECT, post.subject, iterator)
+      iterateIfNotEmpty(FilterType.NAME, post.name, iterator)
+      iterateIfNotEmpty(FilterType.TRIPCODE, post.tripcode, iterator)
+      iterateIfNotEmpty(FilterType.ID, post.posterId, iterator)
+
+      for (image in post.postImages) {
+        iterateIfNotEmpty(FilterType.IMAGE, image.fileHash, iterator)
+      }
+
+      iterateIfNotEmpty(FilterType.FILENAME, fileNames, iterator)
+      iterateIfNotEmpty(FilterType.COUNTRY_CODE, countryCode, iterator)
+    }
+
+    private inline fun iterateIfNotEmpty(
+      filterType: FilterType,
+      text: CharSequence?,
+      iterator: (FilterType, CharSequence) -> Unit
+    ) {
+      if (text.isNullOrEmpty()) {
+        return
+      }
+
+      iterator(filterType, text)
+    }
+  }
+
+  companion object {
+    private const val POST_IS_OP = 1 shl 0
+    private const val POST_IS_SAVED_REPLY = 1 shl 1
+  }
+}
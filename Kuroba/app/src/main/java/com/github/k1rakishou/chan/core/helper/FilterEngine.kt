@@ -24,8 +24,7 @@ import com.github.k1rakishou.model.data.board.ChanBoard
 import com.github.k1rakishou.model.data.filter.ChanFilter
 import com.github.k1rakishou.model.data.filter.ChanFilterMutable
 import com.github.k1rakishou.model.data.filter.FilterType
-import com.github.k1rakishou.model.data.post.ChanPostBuilder
-import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicLong
 import java.util.regex.Pattern
 import javax.inject.Inject
@@ -35,7 +34,7 @@ class FilterEngine @Inject constructor(
 ) {
   private val cacheHits = AtomicLong(0)
   private val cacheMisses = AtomicLong(0)
-  private val patternCache: MutableMap<String?, Pattern> = HashMap()
+  private val patternCache = ConcurrentHashMap<String, Pattern>()
 
   fun currentCacheHits(): Long {
     return cacheHits.get()
@@ -64,7 +63,7 @@ class FilterEngine @Inject constructor(
       return emptySet()
     }
 
-    val pattern = synchronized(patternCache) { patternCache[chanFilter.pattern] }
+    val pattern = chanFilter.pattern?.let { rawPattern -> patternCache[rawPattern] }
     if (pattern == null) {
       return emptySet()
     }
@@ -93,105 +92,12 @@ class FilterEngine @Inject constructor(
   }
 
   /**
-   * @param filter the filter to use
-   * @param post   the post content to test against
-   * @return true if the filter matches and should be applied to the content, false if not
-   */
+   * Prepares [filters] (in the priority order, already filtered by board) to be matched against
+   * many posts at once. See [CompiledFilters.firstMatchingFilter].
+   * */
   @AnyThread
-  fun matches(filter: ChanFilter, post: ChanPostBuilder): Boolean {
-    if (post.moderatorCapcode.isNotEmpty() || post.sticky) {
-      return false
-    }
-
-    if (filter.onlyOnOP && !post.op) {
-      return false
-    }
-
-    if (filter.applyToSaved && !post.isSavedReply) {
-      return false
-    }
-
-    if (filter.applyToEmptyComments && post.postCommentBuilder.getComment().isEmpty()) {
-      return true
-    }
-
-    if (typeMatches(filter, FilterType.COMMENT) && post.postCommentBuilder.getComment().isNotEmpty()) {
-      if (matches(filter, post.postCommentBuilder.getComment(), false)) {
-        return true
-      }
-    }
-
-    if (typeMatches(filter, FilterType.SUBJECT) && matches(filter, post.subject, false)) {
-      return true
-    }
-
-    if (typeMatches(filter, FilterType.NAME) && matches(filter, post.name, false)) {
-      return true
-    }
-
-    if (typeMatches(filter, FilterType.TRIPCODE) && matches(filter, post.tripcode, false)) {
-      return true
-    }
-
-    if (typeMatches(filter, FilterType.ID) && matches(filter, post.posterId, false)) {
-      return true
-    }
-
-    if (post.postImages.size > 0) {
-      if (tryMatchPostImagesWithFilter(filter, post)) {
-        return true
-      }
-    }
-
-    if (post.httpIcons.size > 0) {
-      if (tryMatchPostFlagsWithFilter(filter, post)) {
-        return true
-      }
-    }
-
-    return false
-  }
-
-  private fun tryMatchPostFlagsWithFilter(filter: ChanFilter, post: ChanPostBuilder): Boolean {
-    // figure out if the post has a country code, if so check the filter
-    var countryCode = ""
-
-    for (icon in post.httpIcons) {
-      val index = icon.iconName.indexOf('/')
-      if (index != -1) {
-        countryCode = icon.iconName.substring(index + 1)
-        break
-      }
-    }
-
-    if (countryCode.isEmpty()) {
-      return false
-    }
-
-    return typeMatches(filter, FilterType.COUNTRY_CODE) && matches(filter, countryCode, false)
-  }
-
-  private fun tryMatchPostImagesWithFilter(filter: ChanFilter, post: ChanPostBuilder): Boolean {
-    for (image in post.postImages) {
-      if (typeMatches(filter, FilterType.IMAGE) && matches(filter, image.fileHash, false)) {
-        return true
-      }
-    }
-
-    val files = StringBuilder()
-
-    for (image in post.postImages) {
-      files.append(image.filename).append(" ")
-    }
-
-    val fnames = files.toString()
-    if (fnames.isNotEmpty()) {
-      if (typeMatches(filter, FilterType.FILENAME) && matches(filter, fnames, false)) {
-        return true
-      }
-    }
-
-    return false
+  fun compileFilters(filters: List<ChanFilter>): CompiledFilters {
+    return CompiledFilters(this, filters)
   }
 
   @AnyThread
@@ -234,19 +140,17 @@ class FilterEngine @Inject constructor(
     text: CharSequence?,
     forceCompile: Boolean
   ): Boolean {
-    if (text.isNullOrEmpty()) {
+    if (text.isNullOrEmpty() || patternRaw.isNullOrEmpty()) {
       return false
     }
 
     var pattern: Pattern? = null
     if (!forceCompile) {
-      synchronized(patternCache) {
-        pattern = patternCache[patternRaw]
-        if (pattern == null) {
-          cacheMisses.incrementAndGet()
-        } else {
-          cacheHits.incrementAndGet()
-        }
+      pattern = patternCache[patternRaw]
+      if (pattern == null) {
+        cacheMisses.incrementAndGet()
+      } else {
+        cacheHits.incrementAndGet()
       }
     }
 
@@ -259,7 +163,7 @@ class FilterEngine @Inject constructor(
 
       pattern = compile(patternRaw, extraFlags).patternOrNull
       if (pattern != null) {
-        synchronized(patternCache) { patternCache.put(patternRaw, pattern!!) }
+        patternCache[patternRaw] = pattern!!
       }
     }
 
@@ -73,6 +73,16 @@ class ProxyStorage(
     return synchronized(this) { allProxiesMap.values.toList() }
   }
 
+  fun hasEnabledProxies(proxyActionType: ProxyActionType): Boolean {
+    loadProxies()
+
+    return synchronized(this) {
+      return@synchronized allProxiesMap.values.any { kurobaProxy ->
+        proxyActionType in kurobaProxy.supportedActions && kurobaProxy.enabled
+      }
+    }
+  }
+
   fun getProxyByUri(uri: URI, proxyActionType: ProxyActionType): List<Proxy> {
     loadProxies()
     awaitBlockingUntilDependenciesAreInitialized()
@@ -0,0 +1,480 @@
+package com.github.k1rakishou.chan.core.loader
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.common.mutableListWithCap
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Runs the loaders of the bound posts. Every loader has its own queue with [maxConcurrencyPerLoader]
+ * slots so that different posts may be processed by different loaders at the same time (loaders of
+ * the same post still run one after another, in the order of [loaders], since a loader may depend
+ * on the results of the previous ones).
+ *
+ * Posts waiting for a loader slot are ordered by their distance (in post indexes) from the viewport
+ * of their thread/catalog (see [onViewportChanged]), so the visible posts are always processed
+ * first and the posts that were scrolled away are demoted. Posts that get further than
+ * [windowSize] posts from the viewport are cancelled (and reported via [onCancelled] so that they
+ * are scheduled again when they are bound next time). Posts with unknown indexes (or without a
+ * viewport) are never cancelled.
+ *
+ * Posts whose content is not cached wait for [settleDelayMs] before the first loader is run so that
+ * nothing is loaded for the posts that are only shown for a couple of frames during a fling.
+ *
+ * Loader results that need the post view to be updated are passed to [onContentLoaded] as soon as
+ * the loader completes (other results are not passed anywhere).
+ *
+ * [Metrics] are collected separately for every thread/catalog and are reset by [forgetViewport].
+ * */
+class PostLoaderScheduler(
+  private val scope: CoroutineScope,
+  private val dispatcher: CoroutineDispatcher,
+  private val loaders: List<OnDemandContentLoader>,
+  private val maxConcurrencyPerLoader: Int = DEFAULT_MAX_CONCURRENCY_PER_LOADER,
+  private val windowSize: Int = DEFAULT_WINDOW_SIZE,
+  private val settleDelayMs: Long = DEFAULT_SETTLE_DELAY_MS,
+  private val maxLoadingTimeMs: Long,
+  private val currentTimeMs: () -> Long = { System.currentTimeMillis() },
+  private val onCancelled: (PostLoaderData) -> Unit,
+  private val onContentLoaded: suspend (LoaderBatchResult) -> Unit
+) {
+  private val lock = Any()
+
+  @GuardedBy("lock")
+  private val tasks = HashMap<PostDescriptor, Task>()
+  @GuardedBy("lock")
+  private val viewports = HashMap<ChanDescriptor, Viewport>()
+  @GuardedBy("lock")
+  private val loaderQueues = Array(loaders.size) { LoaderQueue() }
+  @GuardedBy("lock")
+  private var sequence = 0L
+  @GuardedBy("lock")
+  private val metrics = HashMap<ChanDescriptor, MutableMetrics>()
+
+  init {
+    require(loaders.isNotEmpty()) { "No loaders!" }
+    require(maxConcurrencyPerLoader > 0) { "Bad maxConcurrencyPerLoader: $maxConcurrencyPerLoader" }
+    require(windowSize >= 0) { "Bad windowSize: $windowSize" }
+  }
+
+  /**
+   * Returns null when the post is already scheduled. [postIndex] is the index of the post in its
+   * thread/catalog (the same one that is used by [onViewportChanged]) or -1 when it's unknown.
+   * */
+  fun schedule(postLoaderData: PostLoaderData, postIndex: Int): Job? {
+    val postDescriptor = postLoaderData.postDescriptor
+
+    val task = synchronized(lock) {
+      if (tasks.containsKey(postDescriptor)) {
+        return@synchronized null
+      }
+
+      val task = Task(
+        postLoaderData = postLoaderData,
+        postIndex = postIndex,
+        sequence = sequence++,
+        scheduledAtMs = currentTimeMs()
+      )
+
+      task.visibleWhenScheduled = postIndex >= 0
+        && viewports[postDescriptor.descriptor] != null
+        && distanceToViewportLocked(task) == 0
+
+      tasks[postDescriptor] = task
+
+      val descriptorMetrics = metricsLocked(task.chanDescriptor)
+      descriptorMetrics.tasks++
+      descriptorMetrics.scheduledPosts++
+      updateMaxQueueDepthLocked(descriptorMetrics)
+
+      return@synchronized task
+    }
+
+    if (task == null) {
+      return null
+    }
+
+    // Lazy so that the job is stored in the task before it can finish
+    val job = scope.launch(context = dispatcher, start = CoroutineStart.LAZY) { runTask(task) }
+    synchronized(lock) { task.job = job }
+    job.start()
+
+    return job
+  }
+
+  /**
+   * [firstVisiblePostIndex] and [lastVisiblePostIndex] are the indexes of the first and the last
+   * visible posts of [chanDescriptor].
+   * */
+  fun onViewportChanged(chanDescriptor: ChanDescriptor, firstVisiblePostIndex: Int, lastVisiblePostIndex: Int) {
+    if (firstVisiblePostIndex < 0 || lastVisiblePostIndex < firstVisiblePostIndex) {
+      return
+    }
+
+    val tasksToCancel = synchronized(lock) {
+      val viewport = Viewport(firstVisiblePostIndex, lastVisiblePostIndex)
+      if (viewports.put(chanDescriptor, viewport) == viewport) {
+        return@synchronized emptyList<Task>()
+      }
+
+      return@synchronized tasks.values
+        .filter { task -> task.chanDescriptor == chanDescriptor && isOutsideWindowLocked(task) }
+        .onEach { task -> task.cancelledByScheduler = true }
+    }
+
+    // The rest of the queued posts are reordered lazily, when the next loader slot is freed
+    tasksToCancel.forEach { task -> task.job?.cancel() }
+  }
+
+  /**
+   * Returns the metrics of [chanDescriptor] collected since it was opened (since the previous
+   * [forgetViewport] call) and resets them.
+   * */
+  fun forgetViewport(chanDescriptor: ChanDescriptor): Metrics {
+    return synchronized(lock) {
+      viewports.remove(chanDescriptor)
+
+      val descriptorMetrics = metrics.remove(chanDescriptor)
+        ?: return@synchronized MutableMetrics().toMetrics()
+
+      if (descriptorMetrics.tasks > 0) {
+        // Some posts are still being loaded (posts of catalogs are not cancelled when the catalog is
+        // closed), keep them in the queue depth of the new metrics
+        val newMetrics = MutableMetrics()
+        newMetrics.tasks = descriptorMetrics.tasks
+        newMetrics.runningLoaders = descriptorMetrics.runningLoaders
+
+        metrics[chanDescriptor] = newMetrics
+      }
+
+      return@synchronized descriptorMetrics.toMetrics()
+    }
+  }
+
+  fun metrics(chanDescriptor: ChanDescriptor): Metrics {
+    return synchronized(lock) {
+      (metrics[chanDescriptor] ?: MutableMetrics()).toMetrics()
+    }
+  }
+
+  private suspend fun runTask(task: Task) {
+    val postLoaderData = task.postLoaderData
+    var completed = false
+
+    try {
+      val allLoadersCached = loaders.all { loader -> loader.isCached(postLoaderData) }
+      if (!allLoadersCached) {
+        delay(settleDelayMs)
+      }
+
+      val scrolledAway = synchronized(lock) {
+        task.cancelledByScheduler = isOutsideWindowLocked(task)
+        return@synchronized task.cancelledByScheduler
+      }
+
+      if (scrolledAway) {
+        return
+      }
+
+      var notEmittedResults = mutableListWithCap<LoaderResult>(loaders.size)
+
+      for ((loaderIndex, loader) in loaders.withIndex()) {
+        acquireLoaderSlot(task, loaderIndex)
+
+        val loaderResult = try {
+          withTimeoutOrNull(maxLoadingTimeMs) { loader.startLoading(postLoaderData) }
+            ?: LoaderResult.Failed(loader.loaderType)
+        } finally {
+          releaseLoaderSlot(task, loaderIndex)
+        }
+
+        notEmittedResults += loaderResult
+
+        if (loaderResult is LoaderResult.Succeeded && loaderResult.needUpdateView) {
+          onFirstContent(task)
+          onContentLoaded(LoaderBatchResult(postLoaderData.postDescriptor, notEmittedResults))
+          notEmittedResults = mutableListWithCap(loaders.size - loaderIndex - 1)
+        }
+      }
+
+      completed = true
+    } finally {
+      onTaskFinished(task, completed)
+    }
+  }
+
+  private suspend fun acquireLoaderSlot(task: Task, loaderIndex: Int) {
+    val slotGranted = synchronized(lock) {
+      val loaderQueue = loaderQueues[loaderIndex]
+
+      val slotGranted = CompletableDeferred<Unit>()
+      task.slotGranted = slotGranted
+      loaderQueue.waiting += task
+
+      if (loaderQueue.running < maxConcurrencyPerLoader && !loaderQueue.grantScheduled) {
+        // Free slots are granted a bit later so that all the posts that get here at the same time
+        // (e.g. a bunch of posts bound together) are granted in the order of priority and not in the
+        // order they got here
+        loaderQueue.grantScheduled = true
+        scope.launch(dispatcher) { grantLoaderSlots(loaderIndex) }
+      }
+
+      return@synchronized slotGranted
+    }
+
+    try {
+      slotGranted.await()
+    } catch (error: Throwable) {
+      synchronized(lock) {
+        task.slotGranted = null
+
+        if (!loaderQueues[loaderIndex].waiting.remove(task)) {
+          // The slot was granted right before the cancellation, the loader was never run
+          task.loaderRuns--
+          metricsLocked(task.chanDescriptor).loaderRuns--
+          releaseLoaderSlotLocked(task, loaderIndex)
+        }
+      }
+
+      throw error
+    }
+  }
+
+  private fun releaseLoaderSlot(task: Task, loaderIndex: Int) {
+    synchronized(lock) { releaseLoaderSlotLocked(task, loaderIndex) }
+  }
+
+  private fun grantLoaderSlots(loaderIndex: Int) {
+    synchronized(lock) {
+      loaderQueues[loaderIndex].grantScheduled = false
+      grantLoaderSlotsLocked(loaderIndex)
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun releaseLoaderSlotLocked(task: Task, loaderIndex: Int) {
+    loaderQueues[loaderIndex].running--
+
+    val descriptorMetrics = metricsLocked(task.chanDescriptor)
+    descriptorMetrics.runningLoaders--
+
+    grantLoaderSlotsLocked(loaderIndex)
+    updateMaxQueueDepthLocked(descriptorMetrics)
+  }
+
+  @GuardedBy("lock")
+  private fun grantLoaderSlotsLocked(loaderIndex: Int) {
+    val loaderQueue = loaderQueues[loaderIndex]
+
+    while (loaderQueue.running < maxConcurrencyPerLoader && loaderQueue.waiting.isNotEmpty()) {
+      val nextTask = loaderQueue.waiting.minWithOrNull(taskComparator)!!
+      loaderQueue.waiting.remove(nextTask)
+
+      onLoaderSlotGrantedLocked(nextTask, loaderQueue)
+      nextTask.slotGranted?.complete(Unit)
+      nextTask.slotGranted = null
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun onLoaderSlotGrantedLocked(task: Task, loaderQueue: LoaderQueue) {
+    loaderQueue.running++
+    task.loaderRuns++
+
+    val descriptorMetrics = metricsLocked(task.chanDescriptor)
+    descriptorMetrics.runningLoaders++
+    descriptorMetrics.loaderRuns++
+  }
+
+  private fun onFirstContent(task: Task) {
+    synchronized(lock) {
+      if (task.firstContentLoaded) {
+        return@synchronized
+      }
+
+      task.firstContentLoaded = true
+
+      if (task.visibleWhenScheduled) {
+        val timeToFirstContentMs = currentTimeMs() - task.scheduledAtMs
+        val descriptorMetrics = metricsLocked(task.chanDescriptor)
+
+        descriptorMetrics.visiblePostsWithContent++
+        descriptorMetrics.totalVisiblePostTimeToFirstContentMs += timeToFirstContentMs
+        descriptorMetrics.maxVisiblePostTimeToFirstContentMs =
+          max(descriptorMetrics.maxVisiblePostTimeToFirstContentMs, timeToFirstContentMs)
+      }
+    }
+  }
+
+  private fun onTaskFinished(task: Task, completed: Boolean) {
+    val cancelledByScheduler = synchronized(lock) {
+      tasks.remove(task.postLoaderData.postDescriptor)
+
+      val descriptorMetrics = metricsLocked(task.chanDescriptor)
+      descriptorMetrics.tasks--
+
+      if (completed) {
+        descriptorMetrics.completedPosts++
+      } else {
+        descriptorMetrics.cancelledPosts++
+        descriptorMetrics.wastedLoaderRuns += task.loaderRuns
+      }
+
+      return@synchronized task.cancelledByScheduler && !completed
+    }
+
+    if (cancelledByScheduler) {
+      onCancelled(task.postLoaderData)
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun metricsLocked(chanDescriptor: ChanDescriptor): MutableMetrics {
+    return metrics.getOrPut(chanDescriptor) { MutableMetrics() }
+  }
+
+  @GuardedBy("lock")
+  private fun updateMaxQueueDepthLocked(descriptorMetrics: MutableMetrics) {
+    descriptorMetrics.maxQueueDepth = max(descriptorMetrics.maxQueueDepth, descriptorMetrics.queueDepth)
+  }
+
+  @GuardedBy("lock")
+  private fun isOutsideWindowLocked(task: Task): Boolean {
+    return distanceToViewportLocked(task) > windowSize
+  }
+
+  @GuardedBy("lock")
+  private fun distanceToViewportLocked(task: Task): Int {
+    if (task.postIndex < 0) {
+      return 0
+    }
+
+    val viewport = viewports[task.chanDescriptor]
+      ?: return 0
+
+    if (task.postIndex in viewport.firstVisiblePostIndex..viewport.lastVisiblePostIndex) {
+      return 0
+    }
+
+    return min(
+      abs(task.postIndex - viewport.firstVisiblePostIndex),
+      abs(task.postIndex - viewport.lastVisiblePostIndex)
+    )
+  }
+
+  // Only used under the lock (the distances depend on the current viewports)
+  private val taskComparator = Comparator<Task> { task1, task2 ->
+    val result = distanceToViewportLocked(task1).compareTo(distanceToViewportLocked(task2))
+    if (result != 0) {
+      return@Comparator result
+    }
+
+    return@Comparator task1.sequence.compareTo(task2.sequence)
+  }
+
+  private class Task(
+    val postLoaderData: PostLoaderData,
+    val postIndex: Int,
+    val sequence: Long,
+    val scheduledAtMs: Long
+  ) {
+    val chanDescriptor: ChanDescriptor
+      get() = postLoaderData.postDescriptor.descriptor
+
+    var job: Job? = null
+    var slotGranted: CompletableDeferred<Unit>? = null
+    var visibleWhenScheduled = false
+    var cancelledByScheduler = false
+    var firstContentLoaded = false
+    var loaderRuns = 0
+  }
+
+  private class LoaderQueue {
+    var running = 0
+    var grantScheduled = false
+    val waiting = ArrayList<Task>()
+  }
+
+  private data class Viewport(
+    val firstVisiblePostIndex: Int,
+    val lastVisiblePostIndex: Int
+  )
+
+  private class MutableMetrics {
+    // Scheduled posts that are not finished yet and loader slots they hold
+    var tasks = 0
+    var runningLoaders = 0
+    var maxQueueDepth = 0
+    var scheduledPosts = 0
+    var completedPosts = 0
+    var cancelledPosts = 0
+    var loaderRuns = 0
+    var wastedLoaderRuns = 0
+    var visiblePostsWithContent = 0
+    var totalVisiblePostTimeToFirstContentMs = 0L
+    var maxVisiblePostTimeToFirstContentMs = 0L
+
+    val queueDepth: Int
+      get() = tasks - runningLoaders
+
+    fun toMetrics(): Metrics {
+      return Metrics(
+        queueDepth = queueDepth,
+        maxQueueDepth = maxQueueDepth,
+        scheduledPosts = scheduledPosts,
+        completedPosts = completedPosts,
+        cancelledPosts = cancelledPosts,
+        loaderRuns = loaderRuns,
+        wastedLoaderRuns = wastedLoaderRuns,
+        visiblePostsWithContent = visiblePostsWithContent,
+        totalVisiblePostTimeToFirstContentMs = totalVisiblePostTimeToFirstContentMs,
+        maxVisiblePostTimeToFirstContentMs = maxVisiblePostTimeToFirstContentMs
+      )
+    }
+  }
+
+  /**
+   * [queueDepth] is the amount of scheduled posts that are not being processed by a loader right
+   * now (waiting for the settle delay or for a loader slot). [wastedLoaderRuns] is the amount of
+   * loader runs of the posts that were cancelled before all of their loaders completed. Time to
+   * first content is only measured for the posts that were visible when they were scheduled.
+   * */
+  data class Metrics(
+    val queueDepth: Int,
+    val maxQueueDepth: Int,
+    val scheduledPosts: Int,
+    val completedPosts: Int,
+    val cancelledPosts: Int,
+    val loaderRuns: Int,
+    val wastedLoaderRuns: Int,
+    val visiblePostsWithContent: Int,
+    val totalVisiblePostTimeToFirstContentMs: Long,
+    val maxVisiblePostTimeToFirstContentMs: Long
+  ) {
+    val averageVisiblePostTimeToFirstContentMs: Long
+      get() {
+        if (visiblePostsWithContent == 0) {
+          return 0L
+        }
+
+        return totalVisiblePostTimeToFirstContentMs / visiblePostsWithContent
+      }
+  }
+
+  companion object {
+    const val DEFAULT_MAX_CONCURRENCY_PER_LOADER = 16
+    const val DEFAULT_WINDOW_SIZE = 40
+    const val DEFAULT_SETTLE_DELAY_MS = 300L
+  }
+}
@@ -10,6 +10,7 @@ import com.github.k1rakishou.common.SuspendableInitializer
 import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.common.mutableMapWithCap
 import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.bookmark.DirtyBookmarks
 import com.github.k1rakishou.model.data.bookmark.ThreadBookmark
 import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkView
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
@@ -25,6 +26,8 @@ import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.asSharedFlow
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import okhttp3.HttpUrl
 import org.joda.time.DateTime
 import java.util.*
@@ -54,6 +57,14 @@ class BookmarksManager(
 
   @GuardedBy("lock")
   private val bookmarks = mutableMapWithCap<ChanDescriptor.ThreadDescriptor, ThreadBookmark>(256)
+  /**
+   * Every change of [bookmarks] must be recorded here, only the recorded changes are persisted.
+   * */
+  @GuardedBy("lock")
+  private val dirtyBookmarks = DirtyBookmarks()
+
+  // Changes must be written in the same order they were taken from dirtyBookmarks
+  private val persistMutex = Mutex()
 
   private val applicationVisibilityManager: ApplicationVisibilityManager
     get() = _applicationVisibilityManager.get()
@@ -95,6 +106,7 @@ class BookmarksManager(
       is ModularResult.Value -> {
         lock.write {
           bookmarks.clear()
+          dirtyBookmarks.clear()
 
           bookmarksResult.value.forEach { threadBookmark ->
             bookmarks[threadBookmark.threadDescriptor] = threadBookmark
@@ -267,6 +279,7 @@ class BookmarksManager(
 
         actuallyCreated += threadDescriptor
         bookmarks[threadDescriptor] = threadBookmark
+        dirtyBookmarks.markUpdatedWithAllReplies(threadDescriptor)
       }
     }
 
@@ -293,6 +306,7 @@ class BookmarksManager(
         }
 
         bookmarks.remove(threadDescriptor)
+        dirtyBookmarks.markDeleted(threadDescriptor)
         actuallyDeleted += threadDescriptor
       }
 
@@ -353,7 +367,7 @@ class BookmarksManager(
         val mutatedBookmark = oldThreadBookmark.deepCopy()
         mutator(mutatedBookmark)
 
-        if (oldThreadBookmark != mutatedBookmark) {
+        if (dirtyBookmarks.markUpdatedIfChanged(oldThreadBookmark, mutatedBookmark)) {
           bookmarks[threadDescriptor] = mutatedBookmark
           updatedBookmarks += threadDescriptor
         }
@@ -384,6 +398,7 @@ class BookmarksManager(
       if (toDelete.size > 0) {
         toDelete.forEach { threadDescriptor ->
           bookmarks.remove(threadDescriptor)
+          dirtyBookmarks.markDeleted(threadDescriptor)
         }
       }
     }
@@ -401,6 +416,7 @@ class BookmarksManager(
     lock.write {
       allBookmarksDescriptors.addAll(bookmarks.keys.toList())
       bookmarks.clear()
+      dirtyBookmarks.clear()
     }
 
     persistBookmarksExecutor.post {
@@ -423,12 +439,15 @@ class BookmarksManager(
       val threadBookmark = bookmarks[threadDescriptor]
         ?: return@write
 
+      val oldThreadBookmark = threadBookmark.deepCopy()
       threadBookmark.readAllPostsAndNotifications()
 
       if (lastPostInThreadNo != null) {
         threadBookmark.updateLastViewedPostNo(lastPostInThreadNo)
       }
 
+      dirtyBookmarks.markUpdatedIfChanged(oldThreadBookmark, threadBookmark)
+
       bookmarksChanged(BookmarkChange.BookmarksUpdated(listOf(threadDescriptor)))
     }
   }
@@ -442,7 +461,9 @@ class BookmarksManager(
       }
 
       bookmarks.entries.forEach { (_, threadBookmark) ->
+        val oldThreadBookmark = threadBookmark.deepCopy()
         threadBookmark.readAllPostsAndNotifications()
+        dirtyBookmarks.markUpdatedIfChanged(oldThreadBookmark, threadBookmark)
       }
 
       bookmarksChanged(BookmarkChange.BookmarksUpdated(bookmarks.keys))
@@ -702,15 +723,20 @@ class BookmarksManager(
   }
 
   private suspend fun persistBookmarksInternal() {
-    bookmarksRepository.persist(getAllBookmarks())
-      .safeUnwrap { error ->
-        Logger.e(TAG, "Failed to persist bookmarks", error)
+    persistMutex.withLock {
+      // Only the bookmarks (and replies) that were changed since the last persist are copied and written
+      val changes = lock.write { dirtyBookmarks.takeChanges { threadDescriptor -> bookmarks[threadDescriptor] } }
+      if (changes.isEmpty()) {
         return
       }
-  }
 
-  private fun getAllBookmarks(): List<ThreadBookmark> {
-    return lock.read { bookmarks.values.map { bookmark -> bookmark.deepCopy() } }
+      bookmarksRepository.persistChanges(changes)
+        .safeUnwrap { error ->
+          Logger.e(TAG, "Failed to persist bookmarks (${changes})", error)
+          lock.write { dirtyBookmarks.restore(changes) }
+          return
+        }
+    }
   }
 
   private fun activeBookmarkPredicate(threadBookmark: ThreadBookmark): Boolean {
@@ -73,10 +73,6 @@ class ChanThreadManager(
     chanPostRepository.awaitUntilInitialized()
   }
 
-  fun isThreadLockCurrentlyLocked(threadDescriptor: ChanDescriptor.ThreadDescriptor): Boolean {
-    return chanThreadsCache.isThreadLockCurrentlyLocked(threadDescriptor)
-  }
-
   fun bindChanDescriptor(chanDescriptor: ChanDescriptor) {
     when (chanDescriptor) {
       is ChanDescriptor.ThreadDescriptor -> {
@@ -1,32 +1,21 @@
 package com.github.k1rakishou.chan.core.manager
 
 import androidx.annotation.GuardedBy
-import com.github.k1rakishou.chan.core.base.QueueableConcurrentCoroutineExecutor
 import com.github.k1rakishou.chan.core.loader.LoaderBatchResult
-import com.github.k1rakishou.chan.core.loader.LoaderResult
 import com.github.k1rakishou.chan.core.loader.OnDemandContentLoader
 import com.github.k1rakishou.chan.core.loader.PostLoaderData
-import com.github.k1rakishou.chan.utils.BackgroundUtils
+import com.github.k1rakishou.chan.core.loader.PostLoaderScheduler
 import com.github.k1rakishou.common.AppConstants
-import com.github.k1rakishou.common.isExceptionImportant
-import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
-import kotlinx.coroutines.isActive
-import kotlinx.coroutines.withContext
-import kotlinx.coroutines.withTimeoutOrNull
-import java.util.*
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.collections.HashMap
 import kotlin.collections.set
-import kotlin.concurrent.read
 import kotlin.concurrent.write
 
 class OnDemandContentLoaderManager(
@@ -47,13 +36,28 @@ class OnDemandContentLoaderManager(
   val postUpdateFlow: SharedFlow<LoaderBatchResult>
     get() = _postUpdateFlow
 
-  private val executor = QueueableConcurrentCoroutineExecutor(
-    maxConcurrency = 64,
-    dispatcher = dispatcher,
-    scope = scope
-  )
+  private val scheduler by lazy {
+    val maxLoadingTime = if (appConstants.isDebuggerAttached) {
+      MAX_LOADER_LOADING_TIME_DEBUGGING_MS
+    } else {
+      MAX_LOADER_LOADING_TIME_NORMAL_MS
+    }
+
+    return@lazy PostLoaderScheduler(
+      scope = scope,
+      dispatcher = dispatcher,
+      loaders = loaders,
+      maxLoadingTimeMs = maxLoadingTime,
+      onCancelled = { postLoaderData -> removeFromActiveLoaders(postLoaderData.postDescriptor) },
+      onContentLoaded = { loaderBatchResult -> _postUpdateFlow.emit(loaderBatchResult) }
+    )
+  }
 
-  fun onPostBind(postDescriptor: PostDescriptor, catalogMode: Boolean) {
+  /**
+   * [postIndex] is the index of the post in its thread/catalog (see [onViewportChanged]) or -1 if
+   * it's unknown (posts with unknown indexes are processed as if they were visible).
+   * */
+  fun onPostBind(postDescriptor: PostDescriptor, catalogMode: Boolean, postIndex: Int = -1) {
     check(loaders.isNotEmpty()) { "No loaders!" }
 
     val chanDescriptor = postDescriptor.descriptor
@@ -77,25 +81,26 @@ class OnDemandContentLoaderManager(
       return
     }
 
-    val job = executor.post {
-      val loaderBatchResults = try {
-        onPostBindInternal(postLoaderData)
-      } catch (error: Throwable) {
-        if (error.isExceptionImportant()) {
-          Logger.e(TAG, "onPostBindInternal(${postLoaderData.postDescriptor}) error", error)
-        }
-
-        null
-      }
-
-      if (loaderBatchResults != null) {
-        _postUpdateFlow.emit(loaderBatchResults)
-      }
+    val post = chanThreadManager.getPost(postDescriptor)
+    if (post == null || post.allLoadersCompletedLoading()) {
+      // Everything is done
+      return
     }
 
+    val job = scheduler.schedule(postLoaderData, postIndex)
+      ?: return
+
     postLoaderData.setJob(job)
   }
 
+  /**
+   * Called when the visible posts of [chanDescriptor] change. The loaders of the posts closer to
+   * the viewport are run first, the posts that get too far from it are cancelled.
+   * */
+  fun onViewportChanged(chanDescriptor: ChanDescriptor, firstVisiblePostIndex: Int, lastVisiblePostIndex: Int) {
+    scheduler.onViewportChanged(chanDescriptor, firstVisiblePostIndex, lastVisiblePostIndex)
+  }
+
   fun onPostUnbind(postDescriptor: PostDescriptor, isActuallyRecycling: Boolean) {
     check(loaders.isNotEmpty()) { "No loaders!" }
 
@@ -109,12 +114,19 @@ class OnDemandContentLoaderManager(
   }
 
   fun cancelAllForDescriptor(chanDescriptor: ChanDescriptor) {
-    if (chanDescriptor.isCatalogDescriptor()) {
-      return
+    if (chanDescriptor is ChanDescriptor.ThreadDescriptor) {
+      cancelAllForThread(chanDescriptor)
     }
 
-    val threadDescriptor = chanDescriptor as ChanDescriptor.ThreadDescriptor
+    val metrics = scheduler.forgetViewport(chanDescriptor)
+    Logger.d(TAG, "cancelAllForDescriptor($chanDescriptor) scheduledPosts=${metrics.scheduledPosts}, " +
+      "completedPosts=${metrics.completedPosts}, cancelledPosts=${metrics.cancelledPosts}, " +
+      "maxQueueDepth=${metrics.maxQueueDepth}, loaderRuns=${metrics.loaderRuns}, " +
+      "wastedLoaderRuns=${metrics.wastedLoaderRuns}, " +
+      "avgTimeToFirstContentMs=${metrics.averageVisiblePostTimeToFirstContentMs}")
+  }
 
+  private fun cancelAllForThread(threadDescriptor: ChanDescriptor.ThreadDescriptor) {
     lock.write {
       val postLoaderDataList = activeLoaders[threadDescriptor]
         ?: return@write
@@ -129,64 +141,6 @@ class OnDemandContentLoaderManager(
     }
   }
 
-  private suspend fun CoroutineScope.onPostBindInternal(postLoaderData: PostLoaderData): LoaderBatchResult? {
-    BackgroundUtils.ensureBackgroundThread()
-    val postDescriptor = postLoaderData.postDescriptor
-
-    val post = chanThreadManager.getPost(postDescriptor)
-    if (post == null || post.allLoadersCompletedLoading()) {
-      // Everything is done
-      return null
-    }
-
-    val allLoadersCached = loaders.all { loader -> loader.isCached(postLoaderData) }
-
-    // Add some delay here to avoid visual glitches when quickly scrolling through posts
-    // (Especially when using the fast scroller). In case when the post loader results are not
-    // cached by the loaders we use the long delay, otherwise if everything is already cached,
-    // we use the short delay.
-    if (!allLoadersCached) {
-      delay(LONG_LOADING_DELAY_TIME_MS)
-    } else {
-      delay(SHORT_LOADING_DELAY_TIME_MS)
-    }
-
-    if (!isStillActive(postLoaderData)) {
-      removeFromActiveLoaders(postDescriptor)
-      return null
-    }
-
-    val maxLoadingTime = if (appConstants.isDebuggerAttached) {
-      MAX_LOADER_LOADING_TIME_DEBUGGING_MS
-    } else {
-      MAX_LOADER_LOADING_TIME_NORMAL_MS
-    }
-
-    // We want to process loaders in the same order they are in the list
-    val loaderResults = withContext(Dispatchers.Default) {
-      withTimeoutOrNull(maxLoadingTime) {
-        loaders.fold(mutableListWithCap<LoaderResult>(loaders.size)) { acc, loader ->
-          if (!isActive) {
-            acc += LoaderResult.Failed(loader.loaderType)
-          } else {
-            acc += loader.startLoading(postLoaderData)
-          }
-
-          return@fold acc
-        }
-      }
-    }
-
-    if (loaderResults == null) {
-      val allFailed = loaders.map { loader -> LoaderResult.Failed(loader.loaderType) }
-
-      removeFromActiveLoaders(postDescriptor)
-      return LoaderBatchResult(postDescriptor, allFailed)
-    }
-
-    return LoaderBatchResult(postLoaderData.postDescriptor, loaderResults)
-  }
-
   private fun removeFromActiveLoaders(postDescriptor: PostDescriptor) {
     val postLoaderData = lock.write {
       activeLoaders[postDescriptor.descriptor]?.remove(postDescriptor)
@@ -198,20 +152,8 @@ class OnDemandContentLoaderManager(
     }
   }
 
-  private fun isStillActive(postLoaderData: PostLoaderData): Boolean {
-    return lock.read {
-      val chanDescriptor = postLoaderData.postDescriptor.descriptor
-      val postDescriptor = postLoaderData.postDescriptor
-
-      return@read activeLoaders[chanDescriptor]?.containsKey(postDescriptor)
-        ?: false
-    }
-  }
-
   companion object {
     private const val TAG = "OnDemandContentLoaderManager"
-    const val LONG_LOADING_DELAY_TIME_MS = 1500L
-    const val SHORT_LOADING_DELAY_TIME_MS = 500L
     const val MAX_LOADER_LOADING_TIME_NORMAL_MS = 15_000L
     const val MAX_LOADER_LOADING_TIME_DEBUGGING_MS = 600_000L
   }
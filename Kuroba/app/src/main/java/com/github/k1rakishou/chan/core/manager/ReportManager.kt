@@ -162,7 +162,7 @@ class ReportManager(
       appendLine("userAgent: ${userAgent}")
       appendLine("kurobaExCustomUserAgent: ${appConstants.kurobaExCustomUserAgent}")
 
-      appendLine("maxPostsCountInPostsCache: ${appConstants.maxPostsCountInPostsCache}")
+      appendLine("postsCacheMaxMemoryFraction: ${appConstants.postsCacheMaxMemoryFraction}")
       appendLine("maxAmountOfPostsInDatabase: ${appConstants.maxAmountOfPostsInDatabase}")
       appendLine("maxAmountOfThreadsInDatabase: ${appConstants.maxAmountOfThreadsInDatabase}")
 
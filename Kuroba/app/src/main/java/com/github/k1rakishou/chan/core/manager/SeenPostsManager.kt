@@ -3,17 +3,13 @@ package com.github.k1rakishou.chan.core.manager
 import androidx.annotation.GuardedBy
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.DebouncingCoroutineExecutor
+import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.common.hashSetWithCap
-import com.github.k1rakishou.common.linkedMapWithCap
-import com.github.k1rakishou.common.mutableIteration
-import com.github.k1rakishou.common.mutableMapWithCap
-import com.github.k1rakishou.common.putIfNotContains
-import com.github.k1rakishou.common.toHashSetBy
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
-import com.github.k1rakishou.model.data.post.SeenPost
+import com.github.k1rakishou.model.data.post.SeenPostNumbers
 import com.github.k1rakishou.model.repository.SeenPostRepository
 import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
 import com.github.k1rakishou.model.source.cache.thread.ChanThreadsCache
@@ -21,8 +17,7 @@ import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.asSharedFlow
-import org.joda.time.DateTime
-import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
 import kotlin.concurrent.write
@@ -38,10 +33,14 @@ class SeenPostsManager(
   private val seenPostsRepository: SeenPostRepository
 ) {
   private val lock = ReentrantReadWriteLock()
-  @GuardedBy("lock")
-  private val seenPostsMap = linkedMapWithCap<ChanDescriptor.ThreadDescriptor, MutableMap<PostDescriptor, SeenPost>>(256)
-  @GuardedBy("lock")
-  private val seenPostsToPersist = mutableMapOf<ChanDescriptor.ThreadDescriptor, MutableMap<PostDescriptor, SeenPost>>()
+
+  /**
+   * Values are never modified, they are replaced (under the write [lock]) with new instances instead,
+   * so reading doesn't require the lock (onPostBind is called on the main thread for every bound post).
+   * */
+  private val seenPostsMap = ConcurrentHashMap<ChanDescriptor.ThreadDescriptor, SeenPostNumbers>(256)
+  @GuardedBy("itself")
+  private val seenPostsToPersist = mutableMapOf<ChanDescriptor.ThreadDescriptor, SeenPostNumbers>()
   @GuardedBy("lock")
   private var lastLoadedCatalogDescriptor: ChanDescriptor.ICatalogDescriptor? = null
   @GuardedBy("lock")
@@ -70,11 +69,8 @@ class SeenPostsManager(
       return
     }
 
-    val alreadyPreloaded = lock.read {
-      // We consider data preloaded only if it contains more than one entry (for original post) per thread.
-      return@read (seenPostsMap[threadDescriptor]?.size ?: 0) > 1
-    }
-
+    // We consider data preloaded only if it contains more than one entry (for original post) per thread.
+    val alreadyPreloaded = (seenPostsMap[threadDescriptor]?.size ?: 0) > 1
     if (alreadyPreloaded) {
       return
     }
@@ -84,7 +80,7 @@ class SeenPostsManager(
     }
 
     val time = measureTime {
-      val seenPosts = seenPostsRepository.selectAllByThreadDescriptor(threadDescriptor)
+      val seenPostNumbers = seenPostsRepository.selectSeenPostNumbers(threadDescriptor)
         .safeUnwrap { error ->
           Logger.e(TAG, "Error while trying to select all seen posts by threadDescriptor " +
             "($threadDescriptor), error = ${error.errorMessageOrClassName()}")
@@ -92,15 +88,7 @@ class SeenPostsManager(
           return@measureTime
         }
 
-      lock.write {
-        val resultMap = mutableMapWithCap<PostDescriptor, SeenPost>(seenPosts.size)
-
-        for (seenPost in seenPosts) {
-          resultMap[seenPost.postDescriptor] = seenPost
-        }
-
-        seenPostsMap.put(threadDescriptor, resultMap)
-      }
+      mergeSeenPosts(threadDescriptor, seenPostNumbers)
     }
 
     if (verboseLogsEnabled) {
@@ -140,10 +128,7 @@ class SeenPostsManager(
         "alreadyLoadedDescriptorsForUnlimitedCatalog=${alreadyLoadedDescriptorsForUnlimitedCatalog.size}")
 
       seenPostsGrouped.entries.forEach { (threadDescriptor, seenPosts) ->
-        seenPostsMap.putIfNotContains(threadDescriptor, mutableMapWithCap(seenPosts.size))
-
-        val innerMap = seenPostsMap[threadDescriptor]!!
-        seenPosts.forEach { seenPost -> innerMap[seenPost.postDescriptor] = seenPost }
+        mergeSeenPosts(threadDescriptor, SeenPostNumbers.fromSeenPosts(seenPosts))
       }
     }
   }
@@ -153,104 +138,81 @@ class SeenPostsManager(
       return
     }
 
-    val seenPost = SeenPost(
-      postDescriptor = postDescriptor,
-      insertedAt = DateTime.now()
-    )
+    val threadDescriptor = postDescriptor.threadDescriptor()
+    val postNo = postDescriptor.postNo
+    val postSubNo = postDescriptor.postSubNo
+
+    // Fast path, already seen posts don't allocate anything nor take any locks
+    if (seenPostsMap[threadDescriptor]?.contains(postNo, postSubNo) == true) {
+      return
+    }
+
+    val added = synchronized(seenPostsToPersist) {
+      val batch = seenPostsToPersist.getOrPut(threadDescriptor) { SeenPostNumbers() }
+      return@synchronized batch.add(postNo, postSubNo, System.currentTimeMillis())
+    }
 
-    createNewSeenPosts(listOf(seenPost))
+    if (!added) {
+      return
+    }
+
+    debouncingCoroutineExecutor.post(DEBOUNCE_TIMEOUT_MS) { persistSeenPosts() }
   }
 
   fun onPostUnbind(threadMode: Boolean, postDescriptor: PostDescriptor) {
     // No-op (maybe something will be added here in the future)
   }
 
-  fun getSeenPostOrNull(postDescriptor: PostDescriptor): SeenPost? {
-    return lock.read { seenPostsMap[postDescriptor.threadDescriptor()]?.get(postDescriptor) }
+  /**
+   * Returns the time (in millis) when the post was seen or -1 if it wasn't seen yet.
+   * */
+  fun getSeenPostInsertedAtMillis(postDescriptor: PostDescriptor): Long {
+    return seenPostsMap[postDescriptor.threadDescriptor()]
+      ?.insertedAtMillis(postDescriptor.postNo, postDescriptor.postSubNo)
+      ?: -1L
   }
 
   fun isThreadAlreadySeen(threadDescriptor: ChanDescriptor.ThreadDescriptor): Boolean {
-    return lock.read { (seenPostsMap[threadDescriptor]?.size ?: 0) > 0 }
+    return (seenPostsMap[threadDescriptor]?.size ?: 0) > 0
   }
 
-  private fun createNewSeenPosts(seenPosts: Collection<SeenPost>) {
-    if (seenPosts.isEmpty()) {
-      return
-    }
-
-    val needPersist = lock.write {
-      var needPersist = false
-
-      for (seenPost in seenPosts) {
-        val postDescriptor = seenPost.postDescriptor
-        val threadDescriptor = postDescriptor.threadDescriptor()
-
-        seenPostsToPersist.putIfNotContains(threadDescriptor, mutableMapWithCap(32))
-
-        if (seenPostsMap[threadDescriptor]?.contains(postDescriptor) == true) {
-          continue
-        }
-
-        if (seenPostsToPersist[threadDescriptor]?.contains(postDescriptor) == true) {
-          continue
-        }
-
-        seenPostsToPersist[threadDescriptor]!!.put(postDescriptor, seenPost)
-        needPersist = true
-      }
+  private suspend fun persistSeenPosts() {
+    // Everything that was accumulated so far is persisted in one go, one insertMany per thread.
+    val toPersistMap = synchronized(seenPostsToPersist) {
+      val toPersistMap = seenPostsToPersist.toMap()
+      seenPostsToPersist.clear()
 
-      return@write needPersist
+      return@synchronized toPersistMap
     }
 
-    if (!needPersist) {
-      return
-    }
-
-    debouncingCoroutineExecutor.post(DEBOUNCE_TIMEOUT_MS) {
-      val threadDescriptors = seenPosts.toHashSetBy { seenPost -> seenPost.postDescriptor.threadDescriptor() }
-
-      val toPersistMap = lock.write {
-        val toPersistMap = mutableMapOf<ChanDescriptor.ThreadDescriptor, Set<SeenPost>>()
-
-        for (threadDescriptor in threadDescriptors) {
-          val seenPostsMap = seenPostsToPersist.remove(threadDescriptor)
-            ?.toMutableMap()
-
-          if (seenPostsMap == null || seenPostsMap.values.isEmpty()) {
-            continue
-          }
-
-          toPersistMap[threadDescriptor] = seenPostsMap.values.toSet()
-        }
-
-        return@write toPersistMap
+    for ((threadDescriptor, seenPostNumbers) in toPersistMap) {
+      if (seenPostNumbers.isEmpty()) {
+        continue
       }
 
-      if (toPersistMap.isEmpty()) {
-        return@post
+      if (verboseLogsEnabled) {
+        Logger.d(TAG, "persistSeenPosts() persisting ${seenPostNumbers.size} posts")
       }
 
-      toPersistMap.forEach { (threadDescriptor, seenPostSet) ->
-        if (verboseLogsEnabled) {
-          Logger.d(TAG, "onPostBind() persisting ${seenPostSet.size} posts")
-        }
-
-        seenPostsRepository.insertMany(threadDescriptor, seenPostSet)
-          .safeUnwrap { error ->
-            Logger.e(TAG, "Error while trying to store new seen post with threadDescriptor " +
-                "($threadDescriptor), error = ${error.errorMessageOrClassName()}")
-            return@post
-          }
-
-        lock.write {
-          seenPostsMap.putIfNotContains(threadDescriptor, mutableMapWithCap(32))
+      val result = seenPostsRepository.insertMany(threadDescriptor, seenPostNumbers.toSeenPosts(threadDescriptor))
+      if (result is ModularResult.Error) {
+        Logger.e(TAG, "Error while trying to store new seen post with threadDescriptor " +
+          "($threadDescriptor), error = ${result.error.errorMessageOrClassName()}")
+        continue
+      }
 
-          val innerMap = seenPostsMap[threadDescriptor]!!
-          seenPostSet.forEach { seenPost -> innerMap[seenPost.postDescriptor] = seenPost }
-        }
+      mergeSeenPosts(threadDescriptor, seenPostNumbers)
+      _seenThreadUpdatesFlow.emit(threadDescriptor)
+    }
+  }
 
-        _seenThreadUpdatesFlow.emit(threadDescriptor)
-      }
+  private fun mergeSeenPosts(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    seenPostNumbers: SeenPostNumbers
+  ) {
+    lock.write {
+      val prev = seenPostsMap[threadDescriptor]
+      seenPostsMap[threadDescriptor] = prev?.mergedWith(seenPostNumbers) ?: seenPostNumbers
     }
   }
 
@@ -273,14 +235,12 @@ class SeenPostsManager(
           var removedPosts = 0
 
           threadDeleteEvent.entries.forEach { (threadDescriptor, originalPostDescriptor) ->
-            seenPostsMap[threadDescriptor]?.keys?.mutableIteration { mutableIterator, postDescriptor ->
-              if (postDescriptor != originalPostDescriptor) {
-                ++removedPosts
-                mutableIterator.remove()
-              }
-
-              return@mutableIteration true
-            }
+            val prev = seenPostsMap[threadDescriptor]
+              ?: return@forEach
+
+            val retained = prev.retainOnly(originalPostDescriptor.postNo, originalPostDescriptor.postSubNo)
+            removedPosts += prev.size - retained.size
+            seenPostsMap[threadDescriptor] = retained
           }
 
           Logger.d(TAG, "onThreadDeleteEventReceived.RemoveThreadPostsExceptOP() removed ${removedPosts} posts")
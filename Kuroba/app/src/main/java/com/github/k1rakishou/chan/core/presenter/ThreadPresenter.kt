@@ -1009,12 +1009,24 @@ class ThreadPresenter @Inject constructor(
       BackgroundUtils.ensureBackgroundThread()
 
       val postDescriptor = postCellData.postDescriptor
-      onDemandContentLoaderManager.onPostBind(postDescriptor, catalogMode)
+      // Indexes of the posts in popups have nothing to do with the thread/catalog viewport
+      val postIndex = if (postCellData.isInPopup) -1 else postCellData.postIndex
+
+      onDemandContentLoaderManager.onPostBind(postDescriptor, catalogMode, postIndex)
       seenPostsManager.onPostBind(postCellData.isViewingThread, postDescriptor)
       threadBookmarkViewPost(postCellData)
     }
   }
 
+  fun onVisiblePostsChanged(firstVisiblePostIndex: Int, lastVisiblePostIndex: Int) {
+    BackgroundUtils.ensureMainThread()
+
+    val currentDescriptor = currentChanDescriptor
+      ?: return
+
+    onDemandContentLoaderManager.onViewportChanged(currentDescriptor, firstVisiblePostIndex, lastVisiblePostIndex)
+  }
+
   override fun onPostUnbind(postCellData: PostCellData, isActuallyRecycling: Boolean) {
     BackgroundUtils.ensureMainThread()
 
@@ -264,6 +264,13 @@ abstract class SiteBase : Site, CoroutineScope {
     return settings
   }
 
+  /**
+   * Max amount of requests that may be executed concurrently per host of this site (across all
+   * OkHttp clients). Override for sites that start throttling or banning when there are too many
+   * concurrent requests.
+   * */
+  open fun maxConcurrentRequestsPerHost(): Int = DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST
+
   override suspend fun createBoard(boardName: String, boardCode: String): ModularResult<ChanBoard?> {
     val existing = board(boardCode)
     if (existing != null) {
@@ -283,6 +290,7 @@ abstract class SiteBase : Site, CoroutineScope {
 
   companion object {
     private const val TAG = "SiteBase"
+    private const val DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST = 8
     val secureRandom: Random = SecureRandom()
 
     @JvmStatic
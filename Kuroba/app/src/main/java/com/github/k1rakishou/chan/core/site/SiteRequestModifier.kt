@@ -20,6 +20,7 @@ import android.webkit.WebView
 import androidx.annotation.CallSuper
 import com.github.k1rakishou.chan.core.base.okhttp.CloudFlareHandlerInterceptor
 import com.github.k1rakishou.chan.core.site.http.HttpCall
+import com.github.k1rakishou.chan.core.site.http.ResponseValidators
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.appendCookieHeader
 import com.github.k1rakishou.common.domain
@@ -68,6 +69,20 @@ abstract class SiteRequestModifier<T : Site>(
     addCloudFlareCookie(requestBuilder)
   }
 
+  /**
+   * Makes a catalog/thread request conditional (If-None-Match/If-Modified-Since) using the
+   * validators of the previous response. Sites that respond with broken validators (e.g. 304 when
+   * the content did actually change) should override this method and do nothing.
+   * */
+  open fun modifyConditionalCatalogOrThreadGetRequest(
+    site: T,
+    chanDescriptor: ChanDescriptor,
+    responseValidators: ResponseValidators,
+    requestBuilder: Request.Builder
+  ) {
+    responseValidators.applyTo(requestBuilder)
+  }
+
   @CallSuper
   open fun modifyFullImageHeadRequest(
     site: T,
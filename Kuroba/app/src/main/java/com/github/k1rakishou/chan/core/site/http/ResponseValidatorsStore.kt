@@ -0,0 +1,84 @@
+package com.github.k1rakishou.chan.core.site.http
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import okhttp3.HttpUrl
+import okhttp3.Request
+import okhttp3.Response
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remembers the validators (ETag/Last-Modified) of the last successfully processed response per
+ * [ChanDescriptor] so that the next request for the same url can be made conditional (the server
+ * responds with 304 and an empty body when nothing has changed). Validators are bound to the url
+ * they were received for, so when the url changes (e.g. incremental thread loading) they are not
+ * used.
+ *
+ * Every consumer must have its own store because a 304 only means that nothing has changed since
+ * the last response *this consumer* has processed.
+ * */
+class ResponseValidatorsStore {
+  private val validatorsMap = ConcurrentHashMap<ChanDescriptor, ResponseValidators>(64)
+
+  fun get(chanDescriptor: ChanDescriptor, url: HttpUrl): ResponseValidators? {
+    val responseValidators = validatorsMap[chanDescriptor]
+      ?: return null
+
+    if (responseValidators.url != url) {
+      return null
+    }
+
+    return responseValidators
+  }
+
+  fun put(chanDescriptor: ChanDescriptor, url: HttpUrl, response: Response) {
+    val responseValidators = ResponseValidators.fromResponse(url, response)
+    if (responseValidators == null) {
+      validatorsMap.remove(chanDescriptor)
+      return
+    }
+
+    validatorsMap[chanDescriptor] = responseValidators
+  }
+
+  fun remove(chanDescriptor: ChanDescriptor) {
+    validatorsMap.remove(chanDescriptor)
+  }
+
+}
+
+data class ResponseValidators(
+  val url: HttpUrl,
+  val eTag: String?,
+  val lastModified: String?
+) {
+
+  fun applyTo(requestBuilder: Request.Builder) {
+    if (eTag != null) {
+      requestBuilder.header(IF_NONE_MATCH_HEADER, eTag)
+    }
+
+    if (lastModified != null) {
+      requestBuilder.header(IF_MODIFIED_SINCE_HEADER, lastModified)
+    }
+  }
+
+  companion object {
+    const val NOT_MODIFIED_STATUS = 304
+
+    private const val ETAG_HEADER = "ETag"
+    private const val LAST_MODIFIED_HEADER = "Last-Modified"
+    private const val IF_NONE_MATCH_HEADER = "If-None-Match"
+    private const val IF_MODIFIED_SINCE_HEADER = "If-Modified-Since"
+
+    fun fromResponse(url: HttpUrl, response: Response): ResponseValidators? {
+      val eTag = response.header(ETAG_HEADER)?.takeIf { header -> header.isNotBlank() }
+      val lastModified = response.header(LAST_MODIFIED_HEADER)?.takeIf { header -> header.isNotBlank() }
+
+      if (eTag == null && lastModified == null) {
+        return null
+      }
+
+      return ResponseValidators(url, eTag, lastModified)
+    }
+  }
+}
@@ -25,6 +25,8 @@ import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
 import com.github.k1rakishou.chan.core.site.Site
 import com.github.k1rakishou.chan.core.site.SiteResolver
 import com.github.k1rakishou.chan.core.site.SiteSpecificError
+import com.github.k1rakishou.chan.core.site.http.ResponseValidators
+import com.github.k1rakishou.chan.core.site.http.ResponseValidatorsStore
 import com.github.k1rakishou.chan.core.site.loader.internal.ChanPostPersister
 import com.github.k1rakishou.chan.core.site.loader.internal.DatabasePostLoader
 import com.github.k1rakishou.chan.core.site.loader.internal.usecase.ParsePostsV1UseCase
@@ -56,6 +58,7 @@ import com.github.k1rakishou.model.repository.ChanCatalogSnapshotRepository
 import com.github.k1rakishou.model.repository.ChanPostRepository
 import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
 import com.github.k1rakishou.model.source.cache.thread.ChanThreadsCache
+import com.github.k1rakishou.model.util.ChanPostUtils
 import kotlinx.coroutines.CoroutineName
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
@@ -98,6 +101,7 @@ class ChanThreadLoaderCoordinator(
     get() = Dispatchers.IO + job + CoroutineName("ChanThreadLoaderCoordinator")
 
   private val lastFullThreadUpdate = ConcurrentHashMap<ChanDescriptor.ThreadDescriptor, Long>(16)
+  private val responseValidatorsStore = ResponseValidatorsStore()
 
   private val reloadPostsFromDatabaseUseCase by lazy {
     ReloadPostsFromDatabaseUseCase(
@@ -180,12 +184,28 @@ class ChanThreadLoaderCoordinator(
           .url(chanLoadUrl.url)
           .get()
 
+        val responseValidators = getResponseValidators(
+          chanDescriptor = chanDescriptor,
+          chanLoadUrl = chanLoadUrl,
+          chanReadOptions = chanReadOptions,
+          chanLoadOptions = chanLoadOptions
+        )
+
         siteResolver.findSiteForUrl(chanLoadUrl.urlString)?.let { site ->
           site.requestModifier().modifyCatalogOrThreadGetRequest(
             site = site,
             chanDescriptor = chanDescriptor,
             requestBuilder = requestBuilder
           )
+
+          if (responseValidators != null) {
+            site.requestModifier().modifyConditionalCatalogOrThreadGetRequest(
+              site = site,
+              chanDescriptor = chanDescriptor,
+              responseValidators = responseValidators,
+              requestBuilder = requestBuilder
+            )
+          }
         }
 
         chanLoadProgressNotifier.sendProgressEvent(ChanLoadProgressEvent.Loading(chanDescriptor))
@@ -217,7 +237,17 @@ class ChanThreadLoaderCoordinator(
           return@Try reloadFunc(error)
         }
 
+        if (response.code == ResponseValidators.NOT_MODIFIED_STATUS && responseValidators != null) {
+          // Nothing has changed since the last load and all the posts are already in the cache
+          response.close()
+
+          Logger.d(TAG, "loadThreadOrCatalog(chanLoadUrl='${chanLoadUrl}') not modified, " +
+            "requestDuration=${requestDuration}")
+          return@Try ThreadLoadResult.Loaded(chanDescriptor)
+        }
+
         if (!response.isSuccessful) {
+          responseValidatorsStore.remove(chanDescriptor)
           return@Try reloadFunc(BadStatusResponseException(response.code))
         }
 
@@ -276,6 +306,10 @@ class ChanThreadLoaderCoordinator(
             archived = chanReaderProcessor.archived || isThreadDownloaded,
             closed = chanReaderProcessor.closed
           )
+
+          if (threadLoadResult is ThreadLoadResult.Loaded) {
+            responseValidatorsStore.put(chanDescriptor, chanLoadUrl.url, response)
+          }
         }
 
         loadRequestStatistics(
@@ -290,6 +324,29 @@ class ChanThreadLoaderCoordinator(
     }
   }
 
+  private fun getResponseValidators(
+    chanDescriptor: ChanDescriptor,
+    chanLoadUrl: ChanLoadUrl,
+    chanReadOptions: ChanReadOptions,
+    chanLoadOptions: ChanLoadOptions
+  ): ResponseValidators? {
+    if (chanDescriptor !is ChanDescriptor.ThreadDescriptor) {
+      return null
+    }
+
+    // A 304 response has no body so we can only make the request conditional when the thread posts
+    // are already in the memory cache and we were not asked to reparse or to drop any of them.
+    if (!chanReadOptions.isDefault() || chanLoadOptions.canClearCache() || chanLoadOptions.isForceUpdating(null)) {
+      return null
+    }
+
+    if (chanThreadsCache.getThreadPostsCount(chanDescriptor) <= 1) {
+      return null
+    }
+
+    return responseValidatorsStore.get(chanDescriptor, chanLoadUrl.url)
+  }
+
   @OptIn(ExperimentalTime::class)
   private suspend fun loadRequestStatistics(
     url: HttpUrl,
@@ -328,7 +385,9 @@ class ChanThreadLoaderCoordinator(
       appendLine("Store new posts took $storeDuration (stored $storedPostsCount posts).")
       appendLine("Parse posts took $parsingDuration (parsed $parsedPostsCount out of $postsInChanReaderProcessor posts).")
       appendLine("Filter processing took $filterProcessingDuration (filers count: $filtersCount).")
-      appendLine("Total in-memory cached posts count: $cachedPostsCount/${appConstants.maxPostsCountInPostsCache}.")
+      appendLine("Total in-memory cached posts count: $cachedPostsCount, " +
+        "estimated size: ${ChanPostUtils.getReadableFileSize(chanThreadsCache.getEstimatedRetainedBytes())}/" +
+        "${ChanPostUtils.getReadableFileSize(chanThreadsCache.getMaxCacheSizeBytes())}.")
 
       if (currentThreadCachedPostsCount != null) {
         appendLine("Current thread cached posts count: $currentThreadCachedPostsCount")
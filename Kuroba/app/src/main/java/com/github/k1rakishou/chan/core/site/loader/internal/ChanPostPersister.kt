@@ -104,6 +104,9 @@ internal class ChanPostPersister(
         )
       }
 
+      // The posts are in the cache now so we can skip them during the next reload unless they change
+      chanPostRepository.putPostHashes(parsingResult.postHashes)
+
       val loadTimeInfo = LoadTimeInfo(
         storeDuration = storeDuration,
         storedPostsCount = storedPostsCount,
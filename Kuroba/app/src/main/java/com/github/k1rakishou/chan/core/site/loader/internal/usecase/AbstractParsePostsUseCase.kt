@@ -1,6 +1,7 @@
 package com.github.k1rakishou.chan.core.site.loader.internal.usecase
 
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressNotifier
+import com.github.k1rakishou.chan.core.helper.CompiledFilters
 import com.github.k1rakishou.chan.core.helper.FilterEngine
 import com.github.k1rakishou.chan.core.manager.BoardManager
 import com.github.k1rakishou.chan.core.manager.PostFilterManager
@@ -8,9 +9,11 @@ import com.github.k1rakishou.chan.core.manager.PostHideManager
 import com.github.k1rakishou.chan.core.manager.SavedReplyManager
 import com.github.k1rakishou.chan.core.site.parser.PostParser
 import com.github.k1rakishou.chan.utils.BackgroundUtils
+import com.github.k1rakishou.common.MurmurHashUtils
 import com.github.k1rakishou.common.processDataCollectionConcurrently
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.filter.ChanFilter
 import com.github.k1rakishou.model.data.filter.FilterAction
 import com.github.k1rakishou.model.data.post.ChanPost
@@ -58,11 +61,14 @@ abstract class AbstractParsePostsUseCase(
       return
     }
 
-    processDataCollectionConcurrently(postBuildersToParse, THREAD_COUNT * 2, Dispatchers.IO) { postToParse ->
-      if (filters.isNotEmpty()) {
-        processFilters(postToParse, filters)
-      }
+    // Do not auto create watch filters, this may end up pretty bad
+    val compiledFilters = filterEngine.compileFilters(filters.filter { filter -> !filter.isWatchFilter() })
+    if (compiledFilters.isEmpty()) {
+      return
+    }
 
+    processDataCollectionConcurrently(postBuildersToParse, THREAD_COUNT * 2, Dispatchers.IO) { postToParse ->
+      processFilters(postToParse, compiledFilters)
       return@processDataCollectionConcurrently
     }
 
@@ -71,38 +77,34 @@ abstract class AbstractParsePostsUseCase(
       "cacheMisses=${filterEngine.currentCacheMisses()}")
   }
 
-  private fun processFilters(postToParse: ChanPostBuilder, filters: List<ChanFilter>) {
+  private fun processFilters(postToParse: ChanPostBuilder, compiledFilters: CompiledFilters) {
     // Process the filters before finish, because parsing the html is dependent on filter matches
     val postDescriptor = postToParse.postDescriptor
 
-    if (postFilterManager.contains(postDescriptor)) {
-      // Fast path. We have already processed this post so we don't want to do that again. This
-      // should make filter processing way faster after the initial processing but it's kinda
-      // dangerous in case a post is updated on the server which "shouldn't" happen normally. It
-      // can happen when a poster is getting banned with a message and we can't handle that for now,
-      // because 4chan as well as other sites do not provide "last_modified" parameter for posts.
-      // There is a workaround for that - to compare post that we got from the server with the one
-      // in the database and if they differ update the "last_modified" but it will make everything
-      // slower. Maybe it's doable by calculating a post hash and store it in the memory cache and
-      // in the database too.
+    if (postFilterManager.contains(postDescriptor) && !postChangedSinceLastParse(postToParse)) {
+      // Fast path. We have already processed this post so we don't want to do that again. A post
+      // may get updated on the server (e.g. when a poster is getting banned with a message) in which
+      // case its hash won't match the one we stored the last time we parsed it and we need to run
+      // the filters again.
       return
     }
 
-    for (filter in filters) {
-      if (filter.isWatchFilter()) {
-        // Do not auto create watch filters, this may end up pretty bad
-        continue
-      }
-
-      if (filterEngine.matches(filter, postToParse)) {
-        postFilterManager.insert(postDescriptor, createPostFilter(filter))
-        return
-      }
-
+    val matchedFilter = compiledFilters.firstMatchingFilter(postToParse)
+    if (matchedFilter != null) {
+      postFilterManager.insert(postDescriptor, createPostFilter(matchedFilter))
+    } else {
       postFilterManager.remove(postDescriptor)
     }
   }
 
+  private fun postChangedSinceLastParse(postToParse: ChanPostBuilder): Boolean {
+    // Catalog posts (and posts of threads that are not cached) have no stored hashes
+    val cachedPostHash = chanPostRepository.getPostHash(postToParse.postDescriptor)
+      ?: return false
+
+    return cachedPostHash != postToParse.getPostHash
+  }
+
   @Suppress("WHEN_ENUM_CAN_BE_NULL_IN_JAVA")
   private fun createPostFilter(filter: ChanFilter): PostFilter {
     return when (FilterAction.forId(filter.action)) {
@@ -166,6 +168,8 @@ abstract class AbstractParsePostsUseCase(
 
   class ParsingResult @OptIn(ExperimentalTime::class) constructor(
     val parsedPosts: List<ChanPost>,
+    // Hashes of the raw (unparsed) posts that were parsed, empty for catalogs
+    val postHashes: Map<PostDescriptor, MurmurHashUtils.Murmur3Hash>,
     val filterProcessionTime: Duration,
     val filtersCount: Int,
     val parsingTime: Duration
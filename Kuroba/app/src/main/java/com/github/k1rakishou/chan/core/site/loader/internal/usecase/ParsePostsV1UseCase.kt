@@ -54,7 +54,17 @@ class ParsePostsV1UseCase(
     boardManager.awaitUntilInitialized()
 
     if (postBuildersToParse.isEmpty()) {
-      return ParsingResult(emptyList(), Duration.ZERO, 0, Duration.ZERO)
+      return ParsingResult(emptyList(), emptyMap(), Duration.ZERO, 0, Duration.ZERO)
+    }
+
+    // Only posts that are new or have changed since the last time we parsed them get here (see
+    // ChanReaderProcessor). The hashes must be calculated before the comments are parsed and they
+    // are only stored once the posts are stored so that a failed reload won't make us skip them.
+    val postHashes = when (chanDescriptor) {
+      is ChanDescriptor.ICatalogDescriptor -> emptyMap()
+      is ChanDescriptor.ThreadDescriptor -> {
+        postBuildersToParse.associate { postBuilder -> postBuilder.postDescriptor to postBuilder.getPostHash }
+      }
     }
 
     val internalIds = getInternalIds(chanDescriptor, postBuildersToParse)
@@ -135,6 +145,7 @@ class ParsePostsV1UseCase(
 
     return ParsingResult(
       parsedPosts = parsedPosts,
+      postHashes = postHashes,
       filterProcessionTime = filterProcessingDuration,
       filtersCount = filters.size,
       parsingTime = parsingDuration
@@ -25,7 +25,6 @@ import com.github.k1rakishou.model.data.options.ChanLoadOptions
 import com.github.k1rakishou.model.data.options.ChanReadOptions
 import com.github.k1rakishou.model.data.post.ChanPostBuilder
 import com.github.k1rakishou.model.repository.ChanPostRepository
-import com.github.k1rakishou.model.util.ChanPostUtils
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 
@@ -158,34 +157,17 @@ class ChanReaderProcessor(
       return true
     }
 
-    val chanPost = chanPostRepository.getCachedPost(builder.postDescriptor)
-    if (chanPost == null) {
-      chanPostRepository.putPostHash(builder.postDescriptor, builder.getPostHash)
+    if (chanPostRepository.getCachedPost(builder.postDescriptor) == null) {
       return true
     }
 
+    // The hash is only stored after the post was successfully parsed and stored (see
+    // ChanPostPersister) and it covers everything the server sends us for a post (including the
+    // images) so if it's the same then there is nothing to parse, filter or store for this post.
     val cachedPostHash = chanPostRepository.getPostHash(builder.postDescriptor)
-    if (cachedPostHash == null) {
-      chanPostRepository.putPostHash(builder.postDescriptor, builder.getPostHash)
-      return true
-    }
-
-    if (builder.getPostHash != cachedPostHash) {
-      chanPostRepository.putPostHash(builder.postDescriptor, builder.getPostHash)
-      return true
-    }
-
-    val postsDiffer = ChanPostUtils.postsDiffer(
-      chanPostBuilder = builder,
-      chanPostFromCache = chanPost,
-      isThreadMode = chanDescriptor is ChanDescriptor.ThreadDescriptor
-    )
-
-    if (postsDiffer) {
-      return true
-    }
+      ?: return true
 
-    return false
+    return builder.getPostHash != cachedPostHash
   }
 
   override fun toString(): String {
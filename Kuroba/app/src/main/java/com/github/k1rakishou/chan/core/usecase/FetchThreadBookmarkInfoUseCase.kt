@@ -3,6 +3,8 @@ package com.github.k1rakishou.chan.core.usecase
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient
 import com.github.k1rakishou.chan.core.manager.BookmarksManager
 import com.github.k1rakishou.chan.core.manager.SiteManager
+import com.github.k1rakishou.chan.core.site.http.ResponseValidators
+import com.github.k1rakishou.chan.core.site.http.ResponseValidatorsStore
 import com.github.k1rakishou.chan.core.site.parser.ChanReader
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.EmptyBodyResponseException
@@ -32,6 +34,7 @@ class FetchThreadBookmarkInfoUseCase(
   private val bookmarksManager: BookmarksManager,
   private val appConstants: AppConstants
 ) : ISuspendUseCase<List<ChanDescriptor.ThreadDescriptor>, ModularResult<List<ThreadBookmarkFetchResult>>> {
+  private val responseValidatorsStore = ResponseValidatorsStore()
 
   override suspend fun execute(parameter: List<ChanDescriptor.ThreadDescriptor>): ModularResult<List<ThreadBookmarkFetchResult>> {
     Logger.d(TAG, "FetchThreadBookmarkInfoUseCase.execute(${parameter.size})")
@@ -71,12 +74,23 @@ class FetchThreadBookmarkInfoUseCase(
       .url(threadJsonEndpoint)
       .get()
 
+    val responseValidators = getResponseValidators(threadDescriptor, threadJsonEndpoint)
+
     siteManager.bySiteDescriptor(threadDescriptor.siteDescriptor())?.let { site ->
       site.requestModifier().modifyCatalogOrThreadGetRequest(
         site = site,
         chanDescriptor = threadDescriptor,
         requestBuilder = requestBuilder
       )
+
+      if (responseValidators != null) {
+        site.requestModifier().modifyConditionalCatalogOrThreadGetRequest(
+          site = site,
+          chanDescriptor = threadDescriptor,
+          responseValidators = responseValidators,
+          requestBuilder = requestBuilder
+        )
+      }
     }
 
     val request = requestBuilder.build()
@@ -87,7 +101,14 @@ class FetchThreadBookmarkInfoUseCase(
       return ThreadBookmarkFetchResult.Error(error, threadDescriptor)
     }
 
+    if (response.code == ResponseValidators.NOT_MODIFIED_STATUS && responseValidators != null) {
+      response.close()
+      return ThreadBookmarkFetchResult.NotModified(threadDescriptor)
+    }
+
     if (!response.isSuccessful) {
+      responseValidatorsStore.remove(threadDescriptor)
+
       if (response.code == NOT_FOUND_STATUS) {
         return ThreadBookmarkFetchResult.NotFoundOnServer(threadDescriptor)
       }
@@ -118,10 +139,28 @@ class FetchThreadBookmarkInfoUseCase(
         ensureCorrectPostOrder(threadBookmarkInfoObject.simplePostObjects)
       }
 
+      responseValidatorsStore.put(threadDescriptor, threadJsonEndpoint, response)
       return@use ThreadBookmarkFetchResult.Success(threadBookmarkInfoObject, threadDescriptor)
     }
   }
 
+  private fun getResponseValidators(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    threadJsonEndpoint: HttpUrl
+  ): ResponseValidators? {
+    // A 304 response means that the bookmark already has the latest info about the thread which is
+    // not true for bookmarks that have never been fetched yet (e.g. deleted and then re-created).
+    val isFirstFetch = bookmarksManager.mapBookmark(threadDescriptor) { threadBookmarkView ->
+      threadBookmarkView.isFirstFetch()
+    }
+
+    if (isFirstFetch == null || isFirstFetch) {
+      return null
+    }
+
+    return responseValidatorsStore.get(threadDescriptor, threadJsonEndpoint)
+  }
+
   private fun ensureCorrectPostOrder(simplePostObjects: List<ThreadBookmarkInfoPostObject>) {
     if (simplePostObjects.isEmpty()) {
       return
@@ -167,6 +206,10 @@ sealed class ThreadBookmarkFetchResult(val threadDescriptor: ChanDescriptor.Thre
     threadDescriptor: ChanDescriptor.ThreadDescriptor
   ) : ThreadBookmarkFetchResult(threadDescriptor)
 
+  class NotModified(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor
+  ) : ThreadBookmarkFetchResult(threadDescriptor)
+
   class Success(
     val threadBookmarkInfoObject: ThreadBookmarkInfoObject,
     threadDescriptor: ChanDescriptor.ThreadDescriptor
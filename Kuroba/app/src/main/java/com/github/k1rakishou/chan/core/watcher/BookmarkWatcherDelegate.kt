@@ -225,6 +225,11 @@ class BookmarkWatcherDelegate(
             // No-op. This just means that the user has deleted this bookmark while it was fetching
             // info so we have nothing to do.
           }
+          is ThreadBookmarkFetchResult.NotModified -> {
+            // The thread hasn't changed since the last successful fetch so the bookmark is already
+            // up to date, we only need to clear the error from a failed fetch in between.
+            threadBookmark.updateState(error = false)
+          }
           is ThreadBookmarkFetchResult.Success -> {
             throw IllegalStateException("Shouldn't be handled here")
           }
@@ -407,6 +412,7 @@ class BookmarkWatcherDelegate(
     var alreadyDeletedCount = 0
     var notFoundOnServerCount = 0
     var badStatusCount = 0
+    var notModifiedCount = 0
     var successCount = 0
 
     threadBookmarkFetchResults.forEach { fetchResult ->
@@ -439,6 +445,13 @@ class BookmarkWatcherDelegate(
 
           ++badStatusCount
         }
+        is ThreadBookmarkFetchResult.NotModified -> {
+          if (verboseLogsEnabled) {
+            Logger.d(TAG, "FetchResult.NotModified: descriptor=${fetchResult.threadDescriptor}")
+          }
+
+          ++notModifiedCount
+        }
         is ThreadBookmarkFetchResult.Success -> {
           if (verboseLogsEnabled) {
             val originalPost = fetchResult.threadBookmarkInfoObject.simplePostObjects.firstOrNull { post ->
@@ -456,7 +469,7 @@ class BookmarkWatcherDelegate(
     Logger.d(TAG, "fetchThreadBookmarkInfo stats: total results=${threadBookmarkFetchResults.size}, " +
       "errorsCount=$errorsCount, alreadyDeletedCount=$alreadyDeletedCount, " +
       "notFoundOnServerCount=$notFoundOnServerCount, badStatusCount=$badStatusCount, " +
-      "successCount=$successCount")
+      "notModifiedCount=$notModifiedCount, successCount=$successCount")
   }
 
   companion object {
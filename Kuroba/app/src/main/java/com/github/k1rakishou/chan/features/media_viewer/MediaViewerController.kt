@@ -13,6 +13,8 @@ import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.R
 import com.github.k1rakishou.chan.controller.Controller
 import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.FileCacheV2
 import com.github.k1rakishou.chan.core.di.component.activity.ActivityComponent
 import com.github.k1rakishou.chan.core.image.ImageLoaderV2
 import com.github.k1rakishou.chan.core.manager.ArchivesManager
@@ -28,12 +30,14 @@ import com.github.k1rakishou.chan.features.image_saver.ImageSaverV2
 import com.github.k1rakishou.chan.features.image_saver.ImageSaverV2OptionsController
 import com.github.k1rakishou.chan.features.media_viewer.helper.ExoPlayerCache
 import com.github.k1rakishou.chan.features.media_viewer.helper.ExoPlayerWrapper
+import com.github.k1rakishou.chan.features.media_viewer.helper.FileCacheMediaPrefetcher
 import com.github.k1rakishou.chan.features.media_viewer.helper.MediaLongClickMenuHelper
 import com.github.k1rakishou.chan.features.media_viewer.helper.MediaViewerGoToImagePostHelper
 import com.github.k1rakishou.chan.features.media_viewer.helper.MediaViewerGoToPostHelper
 import com.github.k1rakishou.chan.features.media_viewer.helper.MediaViewerMenuHelper
 import com.github.k1rakishou.chan.features.media_viewer.helper.MediaViewerOpenAlbumHelper
 import com.github.k1rakishou.chan.features.media_viewer.helper.MediaViewerOpenThreadHelper
+import com.github.k1rakishou.chan.features.media_viewer.helper.MediaViewerPrefetchPlanner
 import com.github.k1rakishou.chan.features.media_viewer.helper.MediaViewerScrollerHelper
 import com.github.k1rakishou.chan.features.media_viewer.helper.ViewPagerAutoSwiper
 import com.github.k1rakishou.chan.features.media_viewer.media_view.MediaViewContract
@@ -72,7 +76,6 @@ import com.google.android.exoplayer2.upstream.ContentDataSource
 import com.google.android.exoplayer2.upstream.DataSource
 import com.google.android.exoplayer2.upstream.DefaultHttpDataSource
 import com.google.android.exoplayer2.upstream.FileDataSource
-import com.google.android.exoplayer2.upstream.cache.CacheDataSource
 import dagger.Lazy
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.Dispatchers
@@ -125,10 +128,15 @@ class MediaViewerController(
   lateinit var mediaViewerGoToPostHelper: MediaViewerGoToPostHelper
   @Inject
   lateinit var mediaViewerOpenThreadHelper: MediaViewerOpenThreadHelper
+  @Inject
+  lateinit var fileCacheV2: FileCacheV2
+  @Inject
+  lateinit var cacheHandler: Lazy<CacheHandler>
 
   private var chanDescriptor: ChanDescriptor? = null
   private var autoSwipeJob: Job? = null
   private var lifecycleChange = false
+  private var mediaViewerPrefetchPlanner: MediaViewerPrefetchPlanner? = null
 
   override val viewerChanDescriptor: ChanDescriptor?
     get() = chanDescriptor
@@ -373,6 +381,12 @@ class MediaViewerController(
     mediaLongClickMenuHelper.onDestroy()
     mediaViewerToolbar.onDestroy()
 
+    mediaViewerPrefetchPlanner?.let { planner ->
+      Logger.d(TAG, "Prefetch metrics: ${planner.metrics()}")
+      planner.onDestroy()
+    }
+    mediaViewerPrefetchPlanner = null
+
     chanDescriptor = null
     pager.removeOnPageChangeListener(this)
     pager.adapter = null
@@ -407,6 +421,8 @@ class MediaViewerController(
       adapter.doBind(position)
       viewModel.updateLastViewedIndex(position)
     }
+
+    mediaViewerPrefetchPlanner?.onPageSelected(position)
   }
 
   override fun onPageScrolled(position: Int, positionOffset: Float, positionOffsetPixels: Int) {
@@ -811,6 +827,14 @@ class MediaViewerController(
     pager.adapter = adapter
     pager.setCurrentItem(mediaViewerState.initialPagerIndex, false)
 
+    mediaViewerPrefetchPlanner?.onDestroy()
+    mediaViewerPrefetchPlanner = MediaViewerPrefetchPlanner(
+      mediaPrefetcher = FileCacheMediaPrefetcher(fileCacheV2),
+      pagesCount = { mediaViewerState.loadedMedia.size },
+      prefetchUrlAt = { position -> getPrefetchUrl(mediaViewerState.loadedMedia.getOrNull(position)) },
+      offscreenPageLimit = pager.offscreenPageLimit
+    ).also { planner -> planner.onPageSelected(mediaViewerState.initialPagerIndex) }
+
     withTimeoutOrNull(MAX_WAIT_TIME_MS) { adapter.awaitUntilPreviewThumbnailFullyLoaded() }
 
     pager.setVisibilityFast(View.VISIBLE)
@@ -820,13 +844,42 @@ class MediaViewerController(
         "initialPagerIndex=${mediaViewerState.initialPagerIndex}")
   }
 
+  private fun getPrefetchUrl(viewableMedia: ViewableMedia?): String? {
+    if (viewableMedia == null) {
+      return null
+    }
+
+    val mediaLocation = viewableMedia.mediaLocation as? MediaLocation.Remote
+      ?: return null
+
+    when (viewableMedia) {
+      is ViewableMedia.Image,
+      is ViewableMedia.Gif -> {
+        // no-op
+      }
+      is ViewableMedia.Video -> {
+        // mpv streams the videos by itself
+        if (ChanSettings.useMpvVideoPlayer.get()) {
+          return null
+        }
+      }
+      is ViewableMedia.Audio,
+      is ViewableMedia.Unsupported -> return null
+    }
+
+    // Respects the auto load network settings and the spoilers
+    if (!MediaViewerControllerViewModel.canAutoLoad(cacheHandler.get(), viewableMedia, CacheFileType.PostMediaFull)) {
+      return null
+    }
+
+    return mediaLocation.url.toString()
+  }
+
   private fun createCacheDataSourceFactory(viewableMedia: List<ViewableMedia>): DataSource.Factory {
     val defaultDataSourceFactory = DefaultHttpDataSource.Factory()
       .setDefaultRequestProperties(createRequestProperties(viewableMedia))
 
-    return CacheDataSource.Factory()
-      .setCache(exoPlayerCache.actualCache)
-      .setUpstreamDataSourceFactory(defaultDataSourceFactory)
+    return exoPlayerCache.createDataSourceFactory(defaultDataSourceFactory)
   }
 
   private fun createRequestProperties(viewableMediaList: List<ViewableMedia>): Map<String, String> {
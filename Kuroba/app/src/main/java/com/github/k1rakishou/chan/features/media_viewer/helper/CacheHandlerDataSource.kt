@@ -0,0 +1,457 @@
+package com.github.k1rakishou.chan.features.media_viewer.helper
+
+import android.net.Uri
+import com.github.k1rakishou.chan.core.cache.CachedMediaStore
+import com.github.k1rakishou.chan.core.cache.downloader.Chunk
+import com.github.k1rakishou.chan.core.cache.downloader.PartialContentCheckResult
+import com.github.k1rakishou.chan.core.cache.downloader.PartialDownloadState
+import com.github.k1rakishou.core_logger.Logger
+import com.google.android.exoplayer2.C
+import com.google.android.exoplayer2.PlaybackException
+import com.google.android.exoplayer2.upstream.DataSource
+import com.google.android.exoplayer2.upstream.DataSourceException
+import com.google.android.exoplayer2.upstream.DataSpec
+import com.google.android.exoplayer2.upstream.HttpDataSource
+import com.google.android.exoplayer2.upstream.TransferListener
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * Plays remote media directly from the CacheHandler files (see [CachedMediaStore]) instead of a
+ * separate ExoPlayer cache, so that a video that was already prefetched is never downloaded again
+ * and all the media files share one disk budget and one eviction policy.
+ *
+ * - A downloaded file is read from the disk, [upstream] is not touched at all.
+ * - A partially downloaded file (e.g. an interrupted prefetch) is read from the disk where it's
+ * possible, only the missing ranges are requested from [upstream] (with If-Range so that the bytes of
+ * two different versions of the file are never mixed) and written into the file.
+ * - A file that is not cached yet is streamed from [upstream] and written into a new cache file at
+ * the same time. Once all of its bytes are written it's marked as downloaded, otherwise the next
+ * playback (or a FileCacheV2 download) continues from where we have stopped.
+ *
+ * Just like with FileCacheV2, files are only written when the server supports range requests and
+ * sends a validator (ETag/Last-Modified), otherwise the media is streamed as is.
+ * */
+internal class CacheHandlerDataSource(
+  private val cachedMediaStore: CachedMediaStore,
+  private val upstream: HttpDataSource
+) : DataSource {
+  private var dataSpec: DataSpec? = null
+  private var url: String? = null
+
+  private var cacheFile: File? = null
+  private var cacheFileRaf: RandomAccessFile? = null
+  private var cacheFileLength = 0L
+  // Null when the cache file is completely downloaded
+  private var partialDownloadState: PartialDownloadState? = null
+  private var downloadedRanges: List<Chunk> = emptyList()
+
+  private var readPosition = 0L
+  private var bytesRemaining = 0L
+
+  private var upstreamOpened = false
+  // End (exclusive) of the range requested from the upstream
+  private var upstreamEnd = 0L
+  // Start of the range that is currently being written into the cache file
+  private var writeRangeStart = 0L
+
+  override fun addTransferListener(transferListener: TransferListener) {
+    // Only the bytes that actually come from the network are interesting for the bandwidth meter
+    upstream.addTransferListener(transferListener)
+  }
+
+  override fun open(dataSpec: DataSpec): Long {
+    val url = dataSpec.uri.toString()
+
+    this.dataSpec = dataSpec
+    this.url = url
+    this.readPosition = dataSpec.position
+
+    val downloadedFile = cachedMediaStore.getDownloadedFile(url)
+    if (downloadedFile != null) {
+      openCacheFile(downloadedFile, null)
+      return resolveBytesRemaining(dataSpec)
+    }
+
+    val partialFile = cachedMediaStore.getPartialFile(url)
+    if (partialFile != null) {
+      openCacheFile(partialFile.file, partialFile.state)
+      return resolveBytesRemaining(dataSpec)
+    }
+
+    val openedLength = openUpstream(dataSpec)
+    bytesRemaining = openedLength
+
+    if (dataSpec.length == LENGTH_UNSET) {
+      startCachingUpstream(url, dataSpec.position, openedLength)
+    }
+
+    return openedLength
+  }
+
+  override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+    if (length == 0) {
+      return 0
+    }
+
+    if (bytesRemaining == 0L) {
+      return C.RESULT_END_OF_INPUT
+    }
+
+    if (upstreamOpened && readPosition == upstreamEnd) {
+      closeUpstream()
+    }
+
+    if (!upstreamOpened && !isDownloaded(readPosition)) {
+      // Somebody else (the prefetcher) may have downloaded this range while we were reading the
+      // previous one
+      mergeStoredDownloadedRanges()
+
+      if (!isDownloaded(readPosition)) {
+        openUpstreamForMissingRange()
+      }
+    }
+
+    val bytesRead = if (upstreamOpened) {
+      readFromUpstream(buffer, offset, length)
+    } else {
+      readFromCacheFile(buffer, offset, length)
+    }
+
+    if (bytesRead == C.RESULT_END_OF_INPUT) {
+      return C.RESULT_END_OF_INPUT
+    }
+
+    readPosition += bytesRead
+
+    if (bytesRemaining != LENGTH_UNSET) {
+      bytesRemaining -= bytesRead
+    }
+
+    return bytesRead
+  }
+
+  override fun getUri(): Uri? {
+    return dataSpec?.uri
+  }
+
+  override fun getResponseHeaders(): Map<String, List<String>> {
+    if (!upstreamOpened) {
+      return emptyMap()
+    }
+
+    return upstream.responseHeaders
+  }
+
+  override fun close() {
+    try {
+      if (upstreamOpened) {
+        closeUpstream()
+      }
+    } finally {
+      closeCacheFile()
+
+      dataSpec = null
+      url = null
+    }
+  }
+
+  private fun resolveBytesRemaining(dataSpec: DataSpec): Long {
+    if (dataSpec.position > cacheFileLength) {
+      throw DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE)
+    }
+
+    bytesRemaining = cacheFileLength - dataSpec.position
+
+    if (dataSpec.length != LENGTH_UNSET) {
+      bytesRemaining = minOf(bytesRemaining, dataSpec.length)
+    }
+
+    return bytesRemaining
+  }
+
+  private fun openCacheFile(file: File, state: PartialDownloadState?) {
+    cacheFile = file
+    cacheFileRaf = RandomAccessFile(file, if (state != null) "rw" else "r")
+    cacheFileLength = state?.fileLength ?: file.length()
+    partialDownloadState = state
+    downloadedRanges = state?.downloadedRanges() ?: emptyList()
+  }
+
+  private fun closeCacheFile() {
+    try {
+      cacheFileRaf?.close()
+    } catch (error: IOException) {
+      Logger.e(TAG, "Failed to close cache file ${cacheFile?.absolutePath}", error)
+    }
+
+    cacheFile = null
+    cacheFileRaf = null
+    cacheFileLength = 0L
+    partialDownloadState = null
+    downloadedRanges = emptyList()
+  }
+
+  private fun isDownloaded(position: Long): Boolean {
+    if (cacheFileRaf == null) {
+      return false
+    }
+
+    if (partialDownloadState == null) {
+      return true
+    }
+
+    return downloadedRanges.any { range -> position >= range.start && position < range.realEnd }
+  }
+
+  private fun readFromCacheFile(buffer: ByteArray, offset: Int, length: Int): Int {
+    val cacheFileRaf = cacheFileRaf
+      ?: return C.RESULT_END_OF_INPUT
+
+    val downloadedRangeEnd = if (partialDownloadState == null) {
+      cacheFileLength
+    } else {
+      downloadedRanges.first { range -> readPosition >= range.start && readPosition < range.realEnd }.realEnd
+    }
+
+    var bytesToRead = minOf(length.toLong(), downloadedRangeEnd - readPosition)
+    if (bytesRemaining != LENGTH_UNSET) {
+      bytesToRead = minOf(bytesToRead, bytesRemaining)
+    }
+
+    cacheFileRaf.seek(readPosition)
+
+    val bytesRead = cacheFileRaf.read(buffer, offset, bytesToRead.toInt())
+    if (bytesRead < 0) {
+      return C.RESULT_END_OF_INPUT
+    }
+
+    return bytesRead
+  }
+
+  private fun readFromUpstream(buffer: ByteArray, offset: Int, length: Int): Int {
+    var bytesToRead = length.toLong()
+    if (upstreamEnd != LENGTH_UNSET) {
+      bytesToRead = minOf(bytesToRead, upstreamEnd - readPosition)
+    }
+
+    val bytesRead = upstream.read(buffer, offset, bytesToRead.toInt())
+    if (bytesRead == C.RESULT_END_OF_INPUT) {
+      return C.RESULT_END_OF_INPUT
+    }
+
+    writeIntoCacheFile(buffer, offset, bytesRead)
+    return bytesRead
+  }
+
+  private fun openUpstream(dataSpec: DataSpec): Long {
+    val openedLength = upstream.open(dataSpec)
+
+    upstreamOpened = true
+    upstreamEnd = if (openedLength == LENGTH_UNSET) {
+      LENGTH_UNSET
+    } else {
+      dataSpec.position + openedLength
+    }
+
+    writeRangeStart = dataSpec.position
+    return openedLength
+  }
+
+  /**
+   * Requests the bytes from [readPosition] up to the next downloaded range of the cache file (or up
+   * to the end of the requested data when there is no cache file anymore).
+   * */
+  private fun openUpstreamForMissingRange() {
+    val dataSpec = checkNotNull(dataSpec) { "dataSpec is null" }
+    val state = partialDownloadState
+
+    if (cacheFileRaf == null || state == null) {
+      openUpstream(dataSpec.subrange(readPosition - dataSpec.position, bytesRemaining))
+      return
+    }
+
+    val missingRangeEnd = downloadedRanges
+      .firstOrNull { range -> range.start > readPosition }
+      ?.start
+      ?: cacheFileLength
+
+    var length = missingRangeEnd - readPosition
+    if (bytesRemaining != LENGTH_UNSET) {
+      length = minOf(length, bytesRemaining)
+    }
+
+    val httpRequestHeaders = dataSpec.httpRequestHeaders.toMutableMap()
+    state.ifRangeValidator()?.let { validator -> httpRequestHeaders[IF_RANGE_HEADER] = validator }
+
+    val upstreamDataSpec = dataSpec.buildUpon()
+      .setPosition(readPosition)
+      .setLength(length)
+      .setHttpRequestHeaders(httpRequestHeaders)
+      .build()
+
+    val openedLength = openUpstream(upstreamDataSpec)
+
+    if (!upstreamServesCachedFile(state, openedLength)) {
+      Logger.d(TAG, "File ($url) has changed on the server since it was cached, deleting the cache file")
+
+      closeCacheFile()
+      url?.let { url -> cachedMediaStore.delete(url) }
+    }
+  }
+
+  private fun upstreamServesCachedFile(state: PartialDownloadState, openedLength: Long): Boolean {
+    if (upstream.responseCode == HTTP_PARTIAL_CONTENT) {
+      return true
+    }
+
+    // The server has ignored the range, either the file has changed (If-Range didn't match) or we
+    // have requested the whole file
+    val partialContentCheckResult = PartialContentCheckResult(
+      supportsPartialContentDownload = true,
+      length = openedLength,
+      etag = upstreamResponseHeader(ETAG_HEADER),
+      lastModified = upstreamResponseHeader(LAST_MODIFIED_HEADER)
+    )
+
+    return readPosition == 0L && state.matches(partialContentCheckResult)
+  }
+
+  /**
+   * Creates a new cache file for the media we have just started streaming from the upstream (at
+   * [position]) so that the streamed bytes can be written into it.
+   * */
+  private fun startCachingUpstream(url: String, position: Long, openedLength: Long) {
+    if (openedLength == LENGTH_UNSET) {
+      return
+    }
+
+    val supportsRanges = upstream.responseCode == HTTP_PARTIAL_CONTENT
+      || upstreamResponseHeader(ACCEPT_RANGES_HEADER).equals("bytes", ignoreCase = true)
+
+    val partialContentCheckResult = PartialContentCheckResult(
+      supportsPartialContentDownload = supportsRanges,
+      length = position + openedLength,
+      etag = upstreamResponseHeader(ETAG_HEADER),
+      lastModified = upstreamResponseHeader(LAST_MODIFIED_HEADER)
+    )
+
+    val state = PartialDownloadState.create(partialContentCheckResult)
+      ?: return
+
+    val file = cachedMediaStore.createPartialFile(url, state)
+      ?: return
+
+    try {
+      openCacheFile(file, state)
+    } catch (error: IOException) {
+      Logger.e(TAG, "Failed to open the new cache file for ($url)", error)
+      closeCacheFile()
+      cachedMediaStore.delete(url)
+    }
+  }
+
+  private fun writeIntoCacheFile(buffer: ByteArray, offset: Int, count: Int) {
+    val cacheFileRaf = cacheFileRaf
+      ?: return
+    val state = partialDownloadState
+      ?: return
+
+    try {
+      cacheFileRaf.seek(readPosition)
+      cacheFileRaf.write(buffer, offset, count)
+    } catch (error: IOException) {
+      Logger.e(TAG, "Failed to write into cache file ${cacheFile?.absolutePath}, deleting it", error)
+
+      closeCacheFile()
+      url?.let { url -> cachedMediaStore.delete(url) }
+      return
+    }
+
+    state.updateProgress(Chunk(writeRangeStart, cacheFileLength), readPosition + count - writeRangeStart)
+  }
+
+  private fun closeUpstream() {
+    try {
+      upstream.close()
+    } finally {
+      upstreamOpened = false
+      persistDownloadedRanges()
+    }
+  }
+
+  private fun persistDownloadedRanges() {
+    val url = url
+      ?: return
+    val file = cacheFile
+      ?: return
+    val state = partialDownloadState
+      ?: return
+
+    if (state.missingRanges().isNotEmpty()) {
+      cachedMediaStore.updatePartialFile(url, state)
+      downloadedRanges = state.downloadedRanges()
+      return
+    }
+
+    if (cachedMediaStore.markDownloaded(url, file)) {
+      Logger.d(TAG, "Cached ($url), ${cacheFileLength} bytes")
+    }
+
+    partialDownloadState = null
+    downloadedRanges = emptyList()
+  }
+
+  private fun mergeStoredDownloadedRanges() {
+    val url = url
+      ?: return
+    val state = partialDownloadState
+      ?: return
+
+    val storedState = cachedMediaStore.getPartialFile(url)?.state
+    if (storedState == null) {
+      if (cachedMediaStore.getDownloadedFile(url) != null) {
+        // Completely downloaded by somebody else
+        partialDownloadState = null
+        downloadedRanges = emptyList()
+      } else {
+        // Evicted or deleted, don't write into a file that doesn't belong to the cache anymore
+        closeCacheFile()
+      }
+
+      return
+    }
+
+    storedState.downloadedRanges().forEach { range -> state.updateProgress(range, range.chunkSize()) }
+    downloadedRanges = state.downloadedRanges()
+  }
+
+  private fun upstreamResponseHeader(name: String): String? {
+    return upstream.responseHeaders.entries
+      .firstOrNull { (headerName, _) -> headerName != null && headerName.equals(name, ignoreCase = true) }
+      ?.value
+      ?.firstOrNull()
+  }
+
+  class Factory(
+    private val cachedMediaStore: CachedMediaStore,
+    private val upstreamDataSourceFactory: HttpDataSource.Factory
+  ) : DataSource.Factory {
+
+    override fun createDataSource(): DataSource {
+      return CacheHandlerDataSource(cachedMediaStore, upstreamDataSourceFactory.createDataSource())
+    }
+  }
+
+  companion object {
+    private const val TAG = "CacheHandlerDataSource"
+    private const val LENGTH_UNSET = C.LENGTH_UNSET.toLong()
+    private const val HTTP_PARTIAL_CONTENT = 206
+
+    private const val IF_RANGE_HEADER = "If-Range"
+    private const val ETAG_HEADER = "ETag"
+    private const val LAST_MODIFIED_HEADER = "Last-Modified"
+    private const val ACCEPT_RANGES_HEADER = "Accept-Ranges"
+  }
+}
@@ -1,20 +1,25 @@
 package com.github.k1rakishou.chan.features.media_viewer.helper
 
-import android.content.Context
-import com.github.k1rakishou.common.AppConstants
-import com.google.android.exoplayer2.database.ExoDatabaseProvider
-import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor
-import com.google.android.exoplayer2.upstream.cache.SimpleCache
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.CacheHandlerMediaStore
+import com.google.android.exoplayer2.upstream.DataSource
+import com.google.android.exoplayer2.upstream.HttpDataSource
+import dagger.Lazy
 
+/**
+ * ExoPlayer doesn't have a disk cache of its own, remote media is played from (and written into)
+ * the same [CacheFileType.PostMediaFull] files that the prefetcher and the image viewer use (see
+ * [CacheHandlerDataSource]), which means one disk budget and one eviction policy for all of them.
+ * */
 class ExoPlayerCache(
-  context: Context,
-  appConstants: AppConstants
+  private val cacheHandler: Lazy<CacheHandler>
 ) {
-  val actualCache by lazy {
-    SimpleCache(
-      appConstants.exoPlayerCacheDir,
-      LeastRecentlyUsedCacheEvictor(appConstants.exoPlayerDiskCacheMaxSize),
-      ExoDatabaseProvider(context)
-    )
+  private val cachedMediaStore by lazy {
+    CacheHandlerMediaStore(cacheHandler.get(), CacheFileType.PostMediaFull)
   }
-}
\ No newline at end of file
+
+  fun createDataSourceFactory(upstreamDataSourceFactory: HttpDataSource.Factory): DataSource.Factory {
+    return CacheHandlerDataSource.Factory(cachedMediaStore, upstreamDataSourceFactory)
+  }
+}
@@ -0,0 +1,61 @@
+package com.github.k1rakishou.chan.features.media_viewer.helper
+
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.FileCacheListener
+import com.github.k1rakishou.chan.core.cache.FileCacheV2
+import java.io.File
+
+/**
+ * Downloads the media viewer's media into the same [CacheFileType.PostMediaFull] files the media
+ * viewer pages load their media from.
+ * */
+class FileCacheMediaPrefetcher(
+  private val fileCacheV2: FileCacheV2
+) : MediaViewerPrefetchPlanner.MediaPrefetcher {
+
+  override fun prefetch(
+    url: String,
+    listener: MediaViewerPrefetchPlanner.MediaPrefetcher.Listener
+  ): MediaViewerPrefetchPlanner.MediaPrefetcher.Cancelable {
+    // Somebody else (most likely a media viewer page) is already downloading this file, we only
+    // wait for it to complete and must not cancel it.
+    val alreadyRunning = fileCacheV2.isRunning(url)
+
+    val cancelableDownload = fileCacheV2.enqueueDownloadFileRequest(
+      url = url,
+      cacheFileType = CacheFileType.PostMediaFull,
+      callback = object : FileCacheListener() {
+        override fun onStart(chunksCount: Int) {
+          listener.onDownloadStarted()
+        }
+
+        override fun onSuccess(file: File) {
+          listener.onSuccess(file.length())
+        }
+
+        override fun onNotFound() {
+          listener.onFailure()
+        }
+
+        override fun onFail(exception: Exception) {
+          listener.onFailure()
+        }
+
+        override fun onStop(file: File?) {
+          listener.onFailure()
+        }
+
+        override fun onCancel() {
+          listener.onFailure()
+        }
+      }
+    )
+
+    return MediaViewerPrefetchPlanner.MediaPrefetcher.Cancelable {
+      if (!alreadyRunning) {
+        cancelableDownload.cancel()
+      }
+    }
+  }
+
+}
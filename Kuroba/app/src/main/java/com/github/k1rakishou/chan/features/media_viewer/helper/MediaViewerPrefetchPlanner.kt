@@ -0,0 +1,340 @@
+package com.github.k1rakishou.chan.features.media_viewer.helper
+
+import kotlin.math.abs
+import kotlin.math.ceil
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Prefetches the full media of the media viewer pages into the disk cache before the user gets to
+ * them. The ViewPager only keeps [offscreenPageLimit] pages around the current one (on both sides)
+ * which is not enough when swiping through an album quickly, and keeping more pages would cost a
+ * lot of memory, so the planner only downloads the files.
+ *
+ * The planner tracks the swipe direction and how long the user stays on a page (dwell time).
+ * Once the direction is known it prefetches up to [MAX_AHEAD_DEPTH] pages ahead in the direction of
+ * travel and only [offscreenPageLimit] pages behind. The number of pages ahead is the number of pages
+ * the user is going to swipe through during the next [PREFETCH_HORIZON_MS], limited by the number
+ * of files that can be downloaded during that time at the observed download throughput. Prefetches
+ * of the pages that are not planned anymore (e.g. after the user has changed the direction) are
+ * cancelled, but only once they are outside of the ViewPager window because the pages inside of it
+ * may be using the same download.
+ *
+ * Not thread-safe, must only be used on the main thread (the same goes for [MediaPrefetcher]'s
+ * callbacks).
+ * */
+class MediaViewerPrefetchPlanner(
+  private val mediaPrefetcher: MediaPrefetcher,
+  private val pagesCount: () -> Int,
+  // Null for the pages that must not be prefetched (local files, unsupported media etc)
+  private val prefetchUrlAt: (Int) -> String?,
+  private val offscreenPageLimit: Int,
+  private val maxConcurrentPrefetches: Int = DEFAULT_MAX_CONCURRENT_PREFETCHES,
+  private val currentTimeMs: () -> Long = { System.currentTimeMillis() }
+) {
+  private val prefetches = mutableMapOf<String, Prefetch>()
+  // Positions to prefetch, ordered by priority
+  private var plannedPositions = emptyList<Int>()
+
+  private var currentPosition = -1
+  // 1 - forward, -1 - backward, 0 - unknown yet
+  private var direction = 0
+  private var pageSelectedAt = 0L
+  private var aheadDepth = 0
+
+  private var dwellTimeMs: Double? = null
+  private var throughputBytesPerMs: Double? = null
+  private var mediaSizeBytes: Double? = null
+
+  private var hits = 0
+  private var misses = 0
+  private var started = 0
+  private var cancelled = 0
+  private var destroyed = false
+
+  fun onPageSelected(position: Int) {
+    if (destroyed || position == currentPosition) {
+      return
+    }
+
+    val now = currentTimeMs()
+    val url = prefetchUrlAt(position)
+
+    if (currentPosition >= 0) {
+      direction = if (position > currentPosition) 1 else -1
+
+      val dwellTime = (now - pageSelectedAt).coerceIn(0L, MAX_DWELL_TIME_MS)
+      dwellTimeMs = movingAverage(dwellTimeMs, dwellTime.toDouble())
+
+      // The very first page can't be prefetched by us so it's not counted, neither are the pages
+      // the user comes back to
+      if (url != null) {
+        when (prefetches[url]?.state) {
+          State.Ready -> ++hits
+          State.Viewed -> Unit
+          else -> ++misses
+        }
+      }
+    }
+
+    currentPosition = position
+    pageSelectedAt = now
+
+    // The page loads its media by itself, there is no need to prefetch it once the user leaves it
+    if (url != null && !prefetches.containsKey(url)) {
+      prefetches[url] = Prefetch(url, position).apply { state = State.Viewed }
+    }
+
+    replan()
+  }
+
+  fun onDestroy() {
+    destroyed = true
+
+    prefetches.values.forEach { prefetch ->
+      if (prefetch.state == State.Running) {
+        prefetch.cancelable?.cancel()
+      }
+    }
+
+    prefetches.clear()
+    plannedPositions = emptyList()
+  }
+
+  fun metrics(): Metrics {
+    return Metrics(
+      hits = hits,
+      misses = misses,
+      started = started,
+      cancelled = cancelled,
+      aheadDepth = aheadDepth,
+      dwellTimeMs = dwellTimeMs?.toLong() ?: -1L,
+      throughputBytesPerSecond = throughputBytesPerMs?.let { throughput -> (throughput * 1000).toLong() } ?: -1L
+    )
+  }
+
+  private fun replan() {
+    if (destroyed || currentPosition < 0) {
+      return
+    }
+
+    val ahead: Int
+    val behind: Int
+
+    if (direction == 0) {
+      // We don't know where the user is going yet
+      ahead = max(offscreenPageLimit, INITIAL_DEPTH)
+      behind = ahead
+    } else {
+      ahead = calculateAheadDepth()
+      behind = offscreenPageLimit
+    }
+
+    aheadDepth = ahead
+
+    val forward = if (direction == 0) 1 else direction
+    val newPlannedPositions = mutableListOf<Int>()
+    val plannedUrls = mutableSetOf<String>()
+
+    for (distance in 1..max(ahead, behind)) {
+      if (distance <= ahead) {
+        addPlannedPosition(currentPosition + distance * forward, newPlannedPositions, plannedUrls)
+      }
+
+      if (distance <= behind) {
+        addPlannedPosition(currentPosition - distance * forward, newPlannedPositions, plannedUrls)
+      }
+    }
+
+    plannedPositions = newPlannedPositions
+
+    val stalePrefetches = prefetches.values.filter { prefetch ->
+      prefetch.state == State.Running
+        && prefetch.url !in plannedUrls
+        && abs(prefetch.position - currentPosition) > offscreenPageLimit
+    }
+
+    stalePrefetches.forEach { prefetch ->
+      prefetches.remove(prefetch.url)
+      prefetch.cancelable?.cancel()
+      ++cancelled
+    }
+
+    startPlannedPrefetches()
+  }
+
+  private fun addPlannedPosition(position: Int, positions: MutableList<Int>, urls: MutableSet<String>) {
+    if (position < 0 || position >= pagesCount()) {
+      return
+    }
+
+    val url = prefetchUrlAt(position)
+      ?: return
+
+    positions += position
+    urls += url
+  }
+
+  private fun startPlannedPrefetches() {
+    for (position in plannedPositions) {
+      if (destroyed || runningPrefetchesCount() >= maxConcurrentPrefetches) {
+        break
+      }
+
+      val url = prefetchUrlAt(position)
+        ?: continue
+
+      if (prefetches.containsKey(url)) {
+        continue
+      }
+
+      val prefetch = Prefetch(url, position)
+      prefetches[url] = prefetch
+      ++started
+
+      // May call the listener right away if the file is already cached
+      prefetch.cancelable = mediaPrefetcher.prefetch(url, PrefetchListener(prefetch))
+    }
+  }
+
+  private fun runningPrefetchesCount(): Int {
+    return prefetches.values.count { prefetch -> prefetch.state == State.Running }
+  }
+
+  private fun calculateAheadDepth(): Int {
+    val minDepth = max(1, offscreenPageLimit)
+
+    val dwellTime = (dwellTimeMs ?: PREFETCH_HORIZON_MS.toDouble())
+      .coerceAtLeast(MIN_DWELL_TIME_MS.toDouble())
+    val pagesToBeViewed = PREFETCH_HORIZON_MS / dwellTime
+
+    val throughput = throughputBytesPerMs
+    if (throughput == null) {
+      return ceil(min(pagesToBeViewed, DEFAULT_AHEAD_DEPTH.toDouble())).toInt()
+        .coerceIn(minDepth, MAX_AHEAD_DEPTH)
+    }
+
+    val mediaSize = mediaSizeBytes ?: DEFAULT_MEDIA_SIZE_BYTES.toDouble()
+    val pagesToBeDownloaded = throughput * PREFETCH_HORIZON_MS / mediaSize
+
+    return ceil(min(pagesToBeViewed, pagesToBeDownloaded)).toInt()
+      .coerceIn(minDepth, MAX_AHEAD_DEPTH)
+  }
+
+  private fun onPrefetchDownloadStarted(prefetch: Prefetch) {
+    if (prefetches[prefetch.url] !== prefetch) {
+      return
+    }
+
+    prefetch.downloadStartedAt = currentTimeMs()
+  }
+
+  private fun onPrefetchSucceeded(prefetch: Prefetch, fileSize: Long) {
+    if (prefetches[prefetch.url] !== prefetch || prefetch.state != State.Running) {
+      return
+    }
+
+    prefetch.state = State.Ready
+
+    if (fileSize > 0) {
+      mediaSizeBytes = movingAverage(mediaSizeBytes, fileSize.toDouble())
+    }
+
+    // Files that were already cached (the download hasn't even started) and small files (where the
+    // latency dominates) say nothing about the throughput
+    if (prefetch.downloadStartedAt >= 0 && fileSize >= MIN_THROUGHPUT_SAMPLE_BYTES) {
+      val downloadTime = (currentTimeMs() - prefetch.downloadStartedAt).coerceAtLeast(1L)
+      throughputBytesPerMs = movingAverage(throughputBytesPerMs, fileSize.toDouble() / downloadTime)
+    }
+
+    // The depth may have changed
+    replan()
+  }
+
+  private fun onPrefetchFailed(prefetch: Prefetch) {
+    if (prefetches[prefetch.url] !== prefetch || prefetch.state != State.Running) {
+      return
+    }
+
+    // Not retried, the page will try to load it by itself once it's shown
+    prefetch.state = State.Failed
+    startPlannedPrefetches()
+  }
+
+  private fun movingAverage(prev: Double?, value: Double): Double {
+    if (prev == null) {
+      return value
+    }
+
+    return prev + (value - prev) * MOVING_AVERAGE_WEIGHT
+  }
+
+  private inner class PrefetchListener(private val prefetch: Prefetch) : MediaPrefetcher.Listener {
+    override fun onDownloadStarted() = onPrefetchDownloadStarted(prefetch)
+    override fun onSuccess(fileSize: Long) = onPrefetchSucceeded(prefetch, fileSize)
+    override fun onFailure() = onPrefetchFailed(prefetch)
+  }
+
+  private class Prefetch(
+    val url: String,
+    val position: Int
+  ) {
+    var state = State.Running
+    var cancelable: MediaPrefetcher.Cancelable? = null
+    // -1 until the actual download starts (it never does for the files that are already cached)
+    var downloadStartedAt = -1L
+  }
+
+  private enum class State {
+    Running,
+    Ready,
+    Failed,
+    Viewed
+  }
+
+  interface MediaPrefetcher {
+    /**
+     * Downloads the media into the disk cache (or joins the download of it that is already
+     * running).
+     * */
+    fun prefetch(url: String, listener: Listener): Cancelable
+
+    interface Listener {
+      fun onDownloadStarted()
+      fun onSuccess(fileSize: Long)
+      fun onFailure()
+    }
+
+    fun interface Cancelable {
+      fun cancel()
+    }
+  }
+
+  data class Metrics(
+    // The user has swiped to a page that was already prefetched
+    val hits: Int,
+    // The user has swiped to a page that was not prefetched (yet)
+    val misses: Int,
+    val started: Int,
+    val cancelled: Int,
+    val aheadDepth: Int,
+    val dwellTimeMs: Long,
+    val throughputBytesPerSecond: Long
+  )
+
+  companion object {
+    private const val DEFAULT_MAX_CONCURRENT_PREFETCHES = 2
+
+    private const val INITIAL_DEPTH = 2
+    private const val DEFAULT_AHEAD_DEPTH = 3
+    const val MAX_AHEAD_DEPTH = 8
+
+    const val PREFETCH_HORIZON_MS = 10_000L
+    private const val MIN_DWELL_TIME_MS = 250L
+    private const val MAX_DWELL_TIME_MS = 30_000L
+
+    private const val DEFAULT_MEDIA_SIZE_BYTES = 1024L * 1024L
+    private const val MIN_THROUGHPUT_SAMPLE_BYTES = 64L * 1024L
+    private const val MOVING_AVERAGE_WEIGHT = 0.5
+  }
+}
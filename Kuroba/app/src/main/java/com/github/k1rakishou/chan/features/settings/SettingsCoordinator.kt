@@ -5,6 +5,7 @@ import com.airbnb.epoxy.EpoxyRecyclerView
 import com.github.k1rakishou.chan.core.base.KurobaCoroutineScope
 import com.github.k1rakishou.chan.core.base.LazySuspend
 import com.github.k1rakishou.chan.core.base.SerializedCoroutineExecutor
+import com.github.k1rakishou.chan.core.base.okhttp.OkHttpClientCore
 import com.github.k1rakishou.chan.core.cache.CacheHandler
 import com.github.k1rakishou.chan.core.cache.FileCacheV2
 import com.github.k1rakishou.chan.core.helper.AppRestarter
@@ -50,6 +51,7 @@ import com.github.k1rakishou.core_themes.ThemeEngine
 import com.github.k1rakishou.fsaf.FileChooser
 import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.model.repository.ChanPostRepository
+import com.github.k1rakishou.model.repository.DatabaseMetaRepository
 import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository
 import com.github.k1rakishou.model.repository.SeenPostRepository
 import com.github.k1rakishou.persist_state.IndexAndTop
@@ -111,6 +113,8 @@ class SettingsCoordinator(
   @Inject
   lateinit var chanPostRepository: ChanPostRepository
   @Inject
+  lateinit var databaseMetaRepository: DatabaseMetaRepository
+  @Inject
   lateinit var themeEngine: ThemeEngine
   @Inject
   lateinit var dialogFactory: DialogFactory
@@ -134,6 +138,8 @@ class SettingsCoordinator(
   lateinit var installMpvNativeLibrariesFromLocalDirectoryUseCase: InstallMpvNativeLibrariesFromLocalDirectoryUseCase
   @Inject
   lateinit var appRestarter: AppRestarter
+  @Inject
+  lateinit var okHttpClientCore: OkHttpClientCore
 
   private val scope = KurobaCoroutineScope()
   private val settingBuilderExecutor = SerializedCoroutineExecutor(scope)
@@ -198,7 +204,8 @@ class SettingsCoordinator(
       context,
       navigationController,
       themeEngine,
-      appRestarter
+      appRestarter,
+      okHttpClientCore
     )
   }
 
@@ -208,7 +215,8 @@ class SettingsCoordinator(
       appConstants,
       mediaServiceLinkExtraContentRepository,
       seenPostRepository,
-      chanPostRepository
+      chanPostRepository,
+      databaseMetaRepository
     )
   }
 
@@ -167,6 +167,7 @@ sealed class DeveloperScreen(
     object EnableDisableVerboseLogs : MainGroup("enable_disable_verbose_logs")
     object CrashApp : MainGroup("crash_the_app")
     object ShowDatabaseSummary : MainGroup("show_database_summary")
+    object ShowConnectionReuseStats : MainGroup("show_connection_reuse_stats")
     object ResetThreadOpenCounter : MainGroup("reset_thread_open_counter")
     object CrashOnSafeThrow : MainGroup("crash_on_safe_throw")
     object SimulateAppUpdated : MainGroup("simulate_app_updated")
@@ -212,6 +213,8 @@ sealed class DatabaseSummaryScreen(
     object ClearSeenPostsTable : MainGroup("clear_seen_posts_table")
     object ThreadsTable : MainGroup("threads_table")
     object PostsTable : MainGroup("posts_table")
+    object SchedulerMetrics : MainGroup("scheduler_metrics")
+    object TextSpansStats : MainGroup("text_spans_stats")
 
     companion object : IGroupIdentifier() {
       override fun screenIdentifier(): ScreenIdentifier = DatabaseSummaryScreen.screenIdentifier()
@@ -685,7 +688,6 @@ sealed class CachingScreen(
     CachingScreen(groupIdentifier, SettingIdentifier(settingsId)) {
 
     data class ClearFileCache(val cacheFileTypeName: String) : CacheGroup("clear_file_cache_${cacheFileTypeName}")
-    object ClearExoPlayerCache : CacheGroup("clear_exo_player_cache")
     object ThreadDownloadCacheSize : CacheGroup("thread_download_cache_size")
 
     companion object : IGroupIdentifier() {
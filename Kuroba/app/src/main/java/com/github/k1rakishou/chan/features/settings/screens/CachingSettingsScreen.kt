@@ -16,7 +16,6 @@ import com.github.k1rakishou.chan.utils.IOUtils
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.util.ChanPostUtils
-import com.google.android.exoplayer2.upstream.cache.SimpleCache
 import dagger.Lazy
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
@@ -59,12 +58,16 @@ class CachingSettingsScreen(
             bottomDescriptionStringFunc = {
               val internalCacheSizeBytes = cacheHandler.get().getSize(cacheFileType)
               val internalCacheMaxSizeBytes = cacheHandler.get().getMaxSize(cacheFileType)
+              val cacheStats = cacheHandler.get().getCacheStats(cacheFileType)
 
               context.getString(
                 R.string.settings_clear_file_cache_bottom_description,
                 cacheFileType.name,
                 ChanPostUtils.getReadableFileSize(internalCacheSizeBytes),
                 ChanPostUtils.getReadableFileSize(internalCacheMaxSizeBytes),
+                cacheStats.hits,
+                cacheStats.misses,
+                cacheStats.evictions,
               )
             },
             callback = {
@@ -74,26 +77,6 @@ class CachingSettingsScreen(
           )
         }
 
-        group += LinkSettingV2.createBuilder(
-          context = context,
-          identifier = CachingScreen.CacheGroup.ClearExoPlayerCache,
-          topDescriptionStringFunc = { context.getString(R.string.settings_clear_exo_player_file_cache) },
-          bottomDescriptionStringFunc = {
-            val exoPlayerCacheSizeBytes = withContext(Dispatchers.Default) {
-              IOUtils.calculateDirectoryFilesFullSize(appConstants.exoPlayerCacheDir)
-            }
-
-            context.getString(
-              R.string.settings_clear_exo_player_cache_bottom_description,
-              ChanPostUtils.getReadableFileSize(exoPlayerCacheSizeBytes)
-            )
-          },
-          callback = {
-            SimpleCache.delete(appConstants.exoPlayerCacheDir, null)
-            AppModuleAndroidUtils.showToast(context, "Cleared exoplayer cache")
-          }
-        )
-
         group += LinkSettingV2.createBuilder(
           context = context,
           identifier = CachingScreen.CacheGroup.ThreadDownloadCacheSize,
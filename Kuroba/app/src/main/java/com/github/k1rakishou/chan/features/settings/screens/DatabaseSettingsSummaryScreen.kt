@@ -8,6 +8,7 @@ import com.github.k1rakishou.chan.features.settings.setting.LinkSettingV2
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.showToast
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.model.repository.ChanPostRepository
+import com.github.k1rakishou.model.repository.DatabaseMetaRepository
 import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository
 import com.github.k1rakishou.model.repository.SeenPostRepository
 import java.util.*
@@ -17,7 +18,8 @@ class DatabaseSettingsSummaryScreen(
   private val appConstants: AppConstants,
   private val mediaServiceLinkExtraContentRepository: MediaServiceLinkExtraContentRepository,
   private val seenPostRepository: SeenPostRepository,
-  private val chanPostRepository: ChanPostRepository
+  private val chanPostRepository: ChanPostRepository,
+  private val databaseMetaRepository: DatabaseMetaRepository
 ) : BaseSettingsScreen(
   context,
   DatabaseSummaryScreen,
@@ -81,7 +83,7 @@ class DatabaseSettingsSummaryScreen(
             return@createBuilder String.format(
               Locale.ENGLISH,
               "Total threads count: ${count} out of ${maxCount} maximum allowed threads"
-            )
+            ) + formatOldDataGcProgress(ChanPostRepository.OldDataGcProgress.Type.Threads)
           },
           callback = {
             val deleted = chanPostRepository.deleteOldThreadsIfNeeded(forced = true).unwrap()
@@ -102,7 +104,7 @@ class DatabaseSettingsSummaryScreen(
             return@createBuilder String.format(
               Locale.ENGLISH,
               "Total posts count: ${count} out of ${maxCount} maximum allowed posts"
-            )
+            ) + formatOldDataGcProgress(ChanPostRepository.OldDataGcProgress.Type.Posts)
           },
           callback = {
             val deleted = chanPostRepository.deleteOldPostsIfNeeded(forced = true).unwrap()
@@ -112,9 +114,44 @@ class DatabaseSettingsSummaryScreen(
           }
         )
 
+        group += LinkSettingV2.createBuilder(
+          context = context,
+          identifier = DatabaseSummaryScreen.MainGroup.SchedulerMetrics,
+          topDescriptionIdFunc = { R.string.settings_database_scheduler_metrics },
+          bottomDescriptionStringFunc = { databaseMetaRepository.schedulerMetrics() },
+          callback = {
+            showToast(context, databaseMetaRepository.schedulerMetrics())
+          }
+        )
+
+        group += LinkSettingV2.createBuilder(
+          context = context,
+          identifier = DatabaseSummaryScreen.MainGroup.TextSpansStats,
+          topDescriptionIdFunc = { R.string.settings_database_text_spans_stats },
+          bottomDescriptionStringFunc = { databaseMetaRepository.textSpansStats() },
+          callback = {
+            showToast(context, databaseMetaRepository.textSpansStats())
+          }
+        )
+
         group
       }
     )
   }
 
+  private fun formatOldDataGcProgress(type: ChanPostRepository.OldDataGcProgress.Type): String {
+    val progress = chanPostRepository.oldDataGcProgress.value[type]
+      ?: return ""
+
+    val state = if (progress.finished) "finished" else "in progress"
+
+    return String.format(
+      Locale.ENGLISH,
+      "\n\nLast cleanup ($state): deleted ${progress.deletedTotal} out of ${progress.toDeleteCount}, " +
+        "skipped ${progress.skippedTotal}, ${progress.batches} batches, " +
+        "transactions took ${progress.transactionsTimeMs}ms (longest ${progress.longestTransactionMs}ms), " +
+        "paused for ${progress.throttledMs}ms, total ${progress.elapsedMs}ms"
+    )
+  }
+
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import android.content.Context
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.BuildConfig
 import com.github.k1rakishou.chan.R
+import com.github.k1rakishou.chan.core.base.okhttp.OkHttpClientCore
 import com.github.k1rakishou.chan.core.helper.AppRestarter
 import com.github.k1rakishou.chan.features.settings.DatabaseSummaryScreen
 import com.github.k1rakishou.chan.features.settings.DeveloperScreen
@@ -22,7 +23,8 @@ class DeveloperSettingsScreen(
   context: Context,
   private val navigationController: NavigationController,
   private val themeEngine: ThemeEngine,
-  private val appRestarter: AppRestarter
+  private val appRestarter: AppRestarter,
+  private val okHttpClientCore: OkHttpClientCore
 ) : BaseSettingsScreen(
   context,
   DeveloperScreen,
@@ -113,6 +115,16 @@ class DeveloperSettingsScreen(
           }
         )
 
+        group += LinkSettingV2.createBuilder(
+          context = context,
+          identifier = DeveloperScreen.MainGroup.ShowConnectionReuseStats,
+          topDescriptionIdFunc = { R.string.settings_connection_reuse_stats },
+          bottomDescriptionStringFunc = { okHttpClientCore.connectionReuseStatsSnapshot() },
+          callback = {
+            showToast(context, okHttpClientCore.connectionReuseStatsSnapshot())
+          }
+        )
+
         group += LinkSettingV2.createBuilder(
           context = context,
           identifier = DeveloperScreen.MainGroup.ResetThreadOpenCounter,
@@ -154,7 +154,7 @@ class ThemeControllerHelper(
       )
 
     val post1 = postParser.parseFull(builder1, parserCallback)
-    post1.repliesFrom.add(PostDescriptor.create(dummyThreadDescriptor, 234567890L))
+    post1.addRepliesFrom(listOf(PostDescriptor.create(dummyThreadDescriptor, 234567890L)))
 
     val pd2 = PostDescriptor.create(dummyBoardDescriptor, 234567890L, 123456789L)
     val builder2 = ChanPostBuilder()
@@ -1,8 +1,11 @@
 package com.github.k1rakishou.chan.features.thread_downloading
 
 import android.net.ConnectivityManager
+import androidx.annotation.VisibleForTesting
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
 import com.github.k1rakishou.chan.core.helper.ThreadDownloaderFileManagerWrapper
 import com.github.k1rakishou.chan.core.manager.SiteManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
@@ -28,6 +31,7 @@ import com.github.k1rakishou.model.data.post.ChanPostImage
 import com.github.k1rakishou.model.data.thread.ThreadDownload
 import com.github.k1rakishou.model.repository.ChanPostImageRepository
 import com.github.k1rakishou.model.repository.ChanPostRepository
+import com.github.k1rakishou.model.util.ChanPostUtils
 import dagger.Lazy
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
@@ -39,7 +43,10 @@ import okhttp3.HttpUrl
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.internal.closeQuietly
+import java.io.File
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.coroutines.coroutineContext
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTimedValue
@@ -47,6 +54,7 @@ import kotlin.time.measureTimedValue
 class ThreadDownloadingDelegate(
   private val appConstants: AppConstants,
   private val downloaderOkHttpClient: Lazy<RealDownloaderOkHttpClient>,
+  private val cacheHandler: Lazy<CacheHandler>,
   private val siteManager: SiteManager,
   private val siteResolver: SiteResolver,
   private val threadDownloadManager: ThreadDownloadManager,
@@ -192,15 +200,10 @@ class ThreadDownloadingDelegate(
 
     val ownerThreadDatabaseId = threadDownload.ownerThreadDatabaseId
 
-    val isNetworkGoodForMediaDownload = if (ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork.get()) {
-      true
-    } else {
-      AppModuleAndroidUtils.isConnected(ConnectivityManager.TYPE_WIFI)
-    }
-
+    // The network is checked for every media file separately since the media that is already in
+    // the disk cache can be reused even when we are not allowed to download anything
     val canProcessThreadMedia = threadDownload.downloadMedia
       && !outOfDiskSpaceError.get()
-      && isNetworkGoodForMediaDownload
 
     if (canProcessThreadMedia) {
       val chanPostImages = chanPostImageRepository.selectPostImagesByOwnerThreadDatabaseId(ownerThreadDatabaseId)
@@ -217,7 +220,6 @@ class ThreadDownloadingDelegate(
       )
     } else {
       Logger.d(TAG, "processThread($index/$total) " +
-        "isNetworkGoodForMediaDownload=$isNetworkGoodForMediaDownload, " +
         "downloadMedia=${threadDownload.downloadMedia}, " +
         "outOfDiskSpaceError=${outOfDiskSpaceError.get()}")
     }
@@ -246,7 +248,8 @@ class ThreadDownloadingDelegate(
     Logger.d(TAG, "processThread($index/$total) loadThreadOrCatalog($threadDescriptor) end, status: $status")
   }
 
-  private suspend fun processThreadMedia(
+  @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
+  suspend fun processThreadMedia(
     index: Int,
     total: Int,
     chanPostImages: List<ChanPostImage>,
@@ -278,32 +281,27 @@ class ThreadDownloadingDelegate(
       return
     }
 
-    val noMediaFile = outputDirectory.clone(FileSegment(NO_MEDIA_FILE_NAME))
-    if (!fileManager.exists(noMediaFile)) {
+    // Listed once per thread, all the checks below go through it instead of querying the directory
+    val directoryListing = ThreadMediaDirectoryListing.create(fileManager, outputDirectory)
+
+    if (!directoryListing.contains(NO_MEDIA_FILE_NAME)) {
       // Disable media scanner
-      fileManager.create(noMediaFile)
+      if (fileManager.create(outputDirectory.clone(FileSegment(NO_MEDIA_FILE_NAME))) != null) {
+        directoryListing.onFileWritten(NO_MEDIA_FILE_NAME, 0L)
+      }
     }
 
     // "* 2" because thumbnails and full images
     val progressIncrement = (1f - POSTS_PROCESSED_PROGRESS) / (chanPostImages.size.toFloat() * 2)
     val mutex = Mutex()
     var totalProgress = POSTS_PROCESSED_PROGRESS
+    val mediaDownloadStats = MediaDownloadStats()
 
     processDataCollectionConcurrently(
       dataList = chanPostImages,
       batchCount = batchCount,
       dispatcher = Dispatchers.IO
     ) { postImage ->
-      val isNetworkGoodForMediaDownload = if (ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork.get()) {
-        true
-      } else {
-        AppModuleAndroidUtils.isConnected(ConnectivityManager.TYPE_WIFI)
-      }
-
-      if (!isNetworkGoodForMediaDownload) {
-        return@processDataCollectionConcurrently
-      }
-
       if (outOfDiskSpaceError.get()) {
         return@processDataCollectionConcurrently
       }
@@ -321,6 +319,8 @@ class ThreadDownloadingDelegate(
           isThumbnail = true,
           name = thumbnailName,
           imageUrl = thumbnailUrl,
+          directoryListing = directoryListing,
+          mediaDownloadStats = mediaDownloadStats,
           outOfDiskSpaceError = outOfDiskSpaceError,
           outputDirError = outputDirError
         )
@@ -344,6 +344,8 @@ class ThreadDownloadingDelegate(
           isThumbnail = false,
           name = fullImageName,
           imageUrl = fullImageUrl,
+          directoryListing = directoryListing,
+          mediaDownloadStats = mediaDownloadStats,
           outOfDiskSpaceError = outOfDiskSpaceError,
           outputDirError = outputDirError
         )
@@ -359,7 +361,8 @@ class ThreadDownloadingDelegate(
       )
     }
 
-    Logger.d(TAG, "processThreadMedia($index/$total) chanThread=${threadDescriptor} success")
+    Logger.d(TAG, "processThreadMedia($index/$total) chanThread=${threadDescriptor} success, " +
+      "mediaDownloadStats: ${mediaDownloadStats}")
   }
 
   private suspend fun downloadImage(
@@ -367,21 +370,43 @@ class ThreadDownloadingDelegate(
     isThumbnail: Boolean,
     name: String,
     imageUrl: HttpUrl,
+    directoryListing: ThreadMediaDirectoryListing,
+    mediaDownloadStats: MediaDownloadStats,
     outOfDiskSpaceError: AtomicBoolean,
     outputDirError: AtomicBoolean,
   ) {
-    var outputFile = fileManager.findFile(outputDirectory, name)
-    if (outputFile == null) {
-      outputFile = fileManager.create(outputDirectory, listOf(FileSegment(name)))
+    if (directoryListing.isDownloaded(name)) {
+      // Already downloaded, nothing to do
+      return
     }
 
-    if (outputFile == null) {
-      outputDirError.set(true)
+    val reusedCachedMedia = reuseCachedMedia(
+      outputDirectory = outputDirectory,
+      isThumbnail = isThumbnail,
+      name = name,
+      imageUrl = imageUrl,
+      directoryListing = directoryListing,
+      mediaDownloadStats = mediaDownloadStats,
+      outOfDiskSpaceError = outOfDiskSpaceError
+    )
+
+    if (reusedCachedMedia) {
       return
     }
 
-    if (fileManager.exists(outputFile) && fileManager.getLength(outputFile) > 0L) {
-      // Already downloaded, nothing to do
+    if (!isNetworkGoodForMediaDownload()) {
+      mediaDownloadStats.skippedFiles.incrementAndGet()
+      return
+    }
+
+    val outputFile = if (directoryListing.contains(name)) {
+      outputDirectory.clone(FileSegment(name))
+    } else {
+      fileManager.create(outputDirectory, listOf(FileSegment(name)))
+    }
+
+    if (outputFile == null) {
+      outputDirError.set(true)
       return
     }
 
@@ -423,13 +448,17 @@ class ThreadDownloadingDelegate(
         return
       }
 
-      runInterruptible {
+      val downloadedBytes = runInterruptible {
         responseBody.byteStream().use { inputStream ->
           outputStream.use { os ->
             inputStream.copyTo(os)
           }
         }
       }
+
+      directoryListing.onFileWritten(name, downloadedBytes)
+      mediaDownloadStats.downloadedFiles.incrementAndGet()
+      mediaDownloadStats.downloadedBytes.addAndGet(downloadedBytes)
     } catch (error: Throwable) {
       if (error.isOutOfDiskSpaceError()) {
         outOfDiskSpaceError.set(true)
@@ -438,11 +467,108 @@ class ThreadDownloadingDelegate(
       Logger.e(TAG, "Failed to store image into file '$outputFile', deleting it. " +
         "Error: ${error.errorMessageOrClassName()}")
       fileManager.delete(outputFile)
+      directoryListing.onFileDeleted(name)
     } finally {
       responseBody.closeQuietly()
     }
   }
 
+  private fun isNetworkGoodForMediaDownload(): Boolean {
+    if (ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork.get()) {
+      return true
+    }
+
+    return AppModuleAndroidUtils.isConnected(ConnectivityManager.TYPE_WIFI)
+  }
+
+  /**
+   * The same media is usually already in the disk cache (the user has opened the thread or it was
+   * prefetched) so we copy the cached file into the thread directory instead of downloading it
+   * again. The file is not hard linked because the disk cache may rewrite its files in place (e.g.
+   * when a file is downloaded again into the same cache file) which would also change the file of
+   * the downloaded thread. Returns false if the media has to be downloaded.
+   * */
+  private suspend fun reuseCachedMedia(
+    outputDirectory: AbstractFile,
+    isThumbnail: Boolean,
+    name: String,
+    imageUrl: HttpUrl,
+    directoryListing: ThreadMediaDirectoryListing,
+    mediaDownloadStats: MediaDownloadStats,
+    outOfDiskSpaceError: AtomicBoolean
+  ): Boolean {
+    val cacheFileType = if (isThumbnail) {
+      CacheFileType.PostMediaThumbnail
+    } else {
+      CacheFileType.PostMediaFull
+    }
+
+    // Only returns completely downloaded files
+    val cacheFile = cacheHandler.get().getCacheFileOrNull(cacheFileType, imageUrl.toString())
+      ?: return false
+
+    val cacheFileLength = cacheFile.length()
+    if (cacheFileLength <= 0L) {
+      return false
+    }
+
+    // The output directory is always a raw file (see processThreadMedia())
+    val outputFile = File(outputDirectory.getFullPath(), name)
+    if (directoryListing.contains(name)) {
+      if (!outputFile.delete()) {
+        return false
+      }
+
+      directoryListing.onFileDeleted(name)
+    }
+
+    try {
+      val copiedBytes = runInterruptible { cacheFile.copyTo(outputFile, overwrite = true).length() }
+
+      directoryListing.onFileWritten(name, copiedBytes)
+      mediaDownloadStats.onReused(copiedBytes)
+      return true
+    } catch (error: Throwable) {
+      outputFile.delete()
+
+      if (error is CancellationException) {
+        throw error
+      }
+
+      if (error.isOutOfDiskSpaceError()) {
+        outOfDiskSpaceError.set(true)
+        Logger.e(TAG, "reuseCachedMedia() out of disk space while copying '${cacheFile.absolutePath}'")
+        return true
+      }
+
+      // The cache file may have been evicted while we were copying it, download it instead
+      Logger.e(TAG, "reuseCachedMedia() failed to copy '${cacheFile.absolutePath}' into " +
+        "'${outputFile.absolutePath}', error: ${error.errorMessageOrClassName()}")
+      return false
+    }
+  }
+
+  private class MediaDownloadStats {
+    val reusedFiles = AtomicInteger(0)
+    val reusedBytes = AtomicLong(0L)
+    val skippedFiles = AtomicInteger(0)
+    val downloadedFiles = AtomicInteger(0)
+    val downloadedBytes = AtomicLong(0L)
+
+    fun onReused(bytes: Long) {
+      reusedFiles.incrementAndGet()
+      reusedBytes.addAndGet(bytes)
+    }
+
+    override fun toString(): String {
+      return "reused ${reusedFiles.get()} files from the disk cache " +
+        "(${ChanPostUtils.getReadableFileSize(reusedBytes.get())} saved), " +
+        "downloaded ${downloadedFiles.get()} files " +
+        "(${ChanPostUtils.getReadableFileSize(downloadedBytes.get())}), " +
+        "skipped ${skippedFiles.get()} files (no good network for media download)"
+    }
+  }
+
   companion object {
     private const val TAG = "ThreadDownloadingDelegate"
     private const val NO_MEDIA_FILE_NAME = ".nomedia"
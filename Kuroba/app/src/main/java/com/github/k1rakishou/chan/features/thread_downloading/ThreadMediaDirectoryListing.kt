@@ -0,0 +1,54 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import com.github.k1rakishou.fsaf.FileManager
+import com.github.k1rakishou.fsaf.file.AbstractFile
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Names and lengths of the files of a thread media directory. Checking every media file separately
+ * (findFile()/exists()/getLength()) is a directory query per call (on SAF directories it lists the
+ * whole directory) so instead the directory is listed once per thread processing run (lazily, on
+ * the first access) and then the listing is updated as the files are written or deleted.
+ *
+ * Thread safe.
+ * */
+class ThreadMediaDirectoryListing(
+  private val listDirectory: () -> Map<String, Long>
+) {
+  private val fileLengths by lazy(LazyThreadSafetyMode.SYNCHRONIZED) {
+    ConcurrentHashMap(listDirectory())
+  }
+
+  fun contains(name: String): Boolean {
+    return fileLengths.containsKey(name)
+  }
+
+  /**
+   * Empty files are leftovers of failed downloads.
+   * */
+  fun isDownloaded(name: String): Boolean {
+    return (fileLengths[name] ?: 0L) > 0L
+  }
+
+  fun onFileWritten(name: String, length: Long) {
+    fileLengths[name] = length
+  }
+
+  fun onFileDeleted(name: String) {
+    fileLengths.remove(name)
+  }
+
+  companion object {
+    fun create(fileManager: FileManager, directory: AbstractFile): ThreadMediaDirectoryListing {
+      return ThreadMediaDirectoryListing {
+        val files = fileManager.listFiles(directory)
+        val fileLengths = HashMap<String, Long>(files.size)
+
+        files.forEach { file -> fileLengths[fileManager.getName(file)] = fileManager.getLength(file) }
+
+        return@ThreadMediaDirectoryListing fileLengths
+      }
+    }
+  }
+
+}
@@ -36,6 +36,7 @@ import com.github.k1rakishou.chan.ui.cell.CatalogStatusCell
 import com.github.k1rakishou.chan.ui.cell.GenericPostCell
 import com.github.k1rakishou.chan.ui.cell.PostCell
 import com.github.k1rakishou.chan.ui.cell.PostCellData
+import com.github.k1rakishou.chan.ui.cell.PostCellDataDiff
 import com.github.k1rakishou.chan.ui.cell.PostCellInterface.PostCellCallback
 import com.github.k1rakishou.chan.ui.cell.PreviousThreadScrollPositionData
 import com.github.k1rakishou.chan.ui.cell.ThreadCellData
@@ -333,7 +334,7 @@ class PostAdapter(
   ) {
     BackgroundUtils.ensureMainThread()
 
-    threadCellData.updateThreadData(
+    val diffResult = threadCellData.updateThreadData(
       postCellCallback = postCellCallback,
       chanDescriptor = chanDescriptor,
       postIndexedList = postIndexedList,
@@ -348,9 +349,26 @@ class PostAdapter(
       )
     }
 
-    notifyDataSetChanged()
+    val updates = diffResult.updates
+    if (updates == null) {
+      notifyDataSetChanged()
+
+      Logger.d(TAG, "setThread() notifyDataSetChanged called, postIndexedList.size=" + postIndexedList.size)
+      return
+    }
+
+    updatingPosts.addAll(diffResult.changedPostDescriptors)
+
+    updates.forEach { update ->
+      when (update) {
+        is PostCellDataDiff.Update.Inserted -> notifyItemRangeInserted(update.position, update.count)
+        is PostCellDataDiff.Update.Removed -> notifyItemRangeRemoved(update.position, update.count)
+        is PostCellDataDiff.Update.Changed -> notifyItemRangeChanged(update.position, update.count)
+      }
+    }
 
-    Logger.d(TAG, "setThread() notifyDataSetChanged called, postIndexedList.size=" + postIndexedList.size)
+    Logger.d(TAG, "setThread() postIndexedList.size=${postIndexedList.size}, " +
+      "rebuilt=${diffResult.rebuiltCount}, updates=${updates.size}")
   }
 
   fun cleanup() {
@@ -92,7 +92,6 @@ import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
-import org.joda.time.DateTime
 import java.lang.ref.WeakReference
 import javax.inject.Inject
 
@@ -664,17 +663,12 @@ class PostCell @JvmOverloads constructor(
       return -1
     }
 
-    val now = DateTime.now()
-
-    val insertedAtMillis = seenPostsManager.get().getSeenPostOrNull(postCellData.postDescriptor)
-      ?.insertedAt
-      ?.millis
-
-    if (insertedAtMillis == null) {
+    val insertedAtMillis = seenPostsManager.get().getSeenPostInsertedAtMillis(postCellData.postDescriptor)
+    if (insertedAtMillis < 0) {
       return PostUnseenIndicatorFadeAnimator.ANIMATION_DURATION.toInt()
     }
 
-    val deltaTime = now.minus(insertedAtMillis).millis.toInt()
+    val deltaTime = (System.currentTimeMillis() - insertedAtMillis).toInt()
     if (deltaTime >= PostUnseenIndicatorFadeAnimator.ANIMATION_DURATION) {
       return -1
     }
@@ -921,7 +915,7 @@ class PostCell @JvmOverloads constructor(
   @SuppressLint("ClickableViewAccessibility")
   private fun bindPostContent(postCellData: PostCellData) {
     val theme = postCellData.theme
-    comment.setText(postCellData.commentText, TextView.BufferType.SPANNABLE)
+    postCellData.setCommentText(comment)
 
     if (postCellData.isSelectionMode) {
       comment.customSelectionActionModeCallback = null
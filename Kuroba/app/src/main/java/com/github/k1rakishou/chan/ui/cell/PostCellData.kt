@@ -5,6 +5,7 @@ import android.text.SpannableStringBuilder
 import android.text.TextUtils
 import android.text.format.DateUtils
 import android.text.style.UnderlineSpan
+import android.widget.TextView
 import androidx.core.text.buildSpannedString
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.R
@@ -88,6 +89,8 @@ data class PostCellData(
   private var postFileInfoHashPrecalculated: MurmurHashUtils.Murmur3Hash? = null
   private var commentTextPrecalculated: CharSequence? = null
   private var repliesToThisPostTextPrecalculated: CharSequence? = null
+  @Volatile
+  private var precomputedCommentText: PrecomputedCommentText? = null
 
   val iconSizePx = sp(textSizeSp - 2.toFloat())
 
@@ -218,6 +221,7 @@ data class PostCellData(
     postFileInfoHashPrecalculated = null
     commentTextPrecalculated = null
     repliesToThisPostTextPrecalculated = null
+    precomputedCommentText = null
 
     _detailsSizePx.resetValue()
     _postTitle.resetValue()
@@ -231,6 +235,7 @@ data class PostCellData(
 
   fun resetCommentTextCache() {
     commentTextPrecalculated = null
+    precomputedCommentText = null
     _commentText.resetValue()
   }
 
@@ -268,6 +273,32 @@ data class PostCellData(
     _repliesToThisPostText.value()
   }
 
+  /**
+   * Background thread only. Measures the comment text so that it doesn't have to be measured when
+   * the post cell is bound (see [PrecomputedCommentText]).
+   * */
+  fun precomputeCommentText() {
+    if (precomputedCommentText != null) {
+      return
+    }
+
+    precomputedCommentText = PrecomputedCommentText.precompute(
+      commentText = commentText,
+      textSizeSp = textSizeSp,
+      postCellDataWidthNoPaddings = postCellDataWidthNoPaddings
+    )
+  }
+
+  fun setCommentText(textView: TextView) {
+    PrecomputedCommentText.setCommentText(
+      textView = textView,
+      commentText = commentText,
+      textSizeSp = textSizeSp,
+      postCellDataWidthNoPaddings = postCellDataWidthNoPaddings,
+      precomputedCommentText = precomputedCommentText
+    )
+  }
+
   fun fullCopy(): PostCellData {
     return PostCellData(
       chanDescriptor = chanDescriptor,
@@ -311,6 +342,32 @@ data class PostCellData(
       newPostCellData.postTitleStubPrecalculated = postTitleStubPrecalculated
       newPostCellData.commentTextPrecalculated = commentTextPrecalculated
       newPostCellData.repliesToThisPostTextPrecalculated = repliesToThisPostTextPrecalculated
+      newPostCellData.precomputedCommentText = precomputedCommentText
+    }
+  }
+
+  /**
+   * Background thread only. A copy of this PostCellData for another instance of the same (not
+   * changed) post. Everything that was already calculated is kept except for the post title when the
+   * post index changed (the index is a part of the title).
+   * */
+  fun reusedFor(newPost: ChanPost, newPostIndex: Int): PostCellData {
+    if (newPost === post && newPostIndex == postIndex) {
+      return this
+    }
+
+    return copy(post = newPost, postImages = newPost.postImages, postIndex = newPostIndex).also { newPostCellData ->
+      newPostCellData.postCellCallback = postCellCallback
+
+      if (newPostIndex == postIndex) {
+        newPostCellData.postTitlePrecalculated = postTitle
+      }
+
+      newPostCellData.postTitleStubPrecalculated = postTitleStub
+      newPostCellData.commentTextPrecalculated = commentText
+      newPostCellData.repliesToThisPostTextPrecalculated = repliesToThisPostText
+      newPostCellData.precomputedCommentText = precomputedCommentText
+      newPostCellData.preload()
     }
   }
 
@@ -0,0 +1,230 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+
+/**
+ * Positional diff between the currently displayed posts and the new ones (after a thread reload).
+ * Posts are matched by their descriptors, a matched post whose content hash did not change keeps
+ * its old PostCellData (see [Result.reusedOldIndexes]), every other post gets a new one. A reused
+ * post whose index changed (a post above it was removed) still has to be rebound since the index is
+ * shown in the post title.
+ *
+ * [Result.updates] are in the order RecyclerView expects them (every update is applied to the list
+ * produced by the previous ones). When the relative order of the matched posts changed (catalog
+ * threads got bumped) there are no updates and the whole list has to be reset.
+ * */
+object PostCellDataDiff {
+
+  fun calculate(
+    oldPostDescriptors: List<PostDescriptor>,
+    oldContentHashes: IntArray,
+    oldPostIndexes: IntArray,
+    newPostDescriptors: List<PostDescriptor>,
+    newContentHashes: IntArray,
+    newPostIndexes: IntArray
+  ): Result {
+    require(oldPostDescriptors.size == oldContentHashes.size) { "Bad oldContentHashes size" }
+    require(oldPostDescriptors.size == oldPostIndexes.size) { "Bad oldPostIndexes size" }
+    require(newPostDescriptors.size == newContentHashes.size) { "Bad newContentHashes size" }
+    require(newPostDescriptors.size == newPostIndexes.size) { "Bad newPostIndexes size" }
+
+    val oldSize = oldPostDescriptors.size
+    val newSize = newPostDescriptors.size
+
+    val oldIndexes = HashMap<PostDescriptor, Int>(oldSize * 2)
+    oldPostDescriptors.forEachIndexed { oldIndex, postDescriptor -> oldIndexes[postDescriptor] = oldIndex }
+
+    // Old index of the same post for every new post or -1 if it's a new one
+    val matchedOldIndexes = IntArray(newSize)
+    val reusedOldIndexes = IntArray(newSize)
+    // Reused posts that don't have to be rebound
+    val notChangedPosts = BooleanArray(newSize)
+    val keptOldPosts = BooleanArray(oldSize)
+    var prevMatchedOldIndex = -1
+    var orderPreserved = true
+
+    for (newIndex in 0 until newSize) {
+      val oldIndex = oldIndexes[newPostDescriptors[newIndex]] ?: -1
+
+      matchedOldIndexes[newIndex] = oldIndex
+      reusedOldIndexes[newIndex] = -1
+
+      if (oldIndex < 0) {
+        continue
+      }
+
+      if (oldContentHashes[oldIndex] == newContentHashes[newIndex]) {
+        reusedOldIndexes[newIndex] = oldIndex
+        notChangedPosts[newIndex] = oldPostIndexes[oldIndex] == newPostIndexes[newIndex]
+      }
+
+      if (oldIndex < prevMatchedOldIndex) {
+        orderPreserved = false
+      }
+
+      keptOldPosts[oldIndex] = true
+      prevMatchedOldIndex = oldIndex
+    }
+
+    if (!orderPreserved || oldSize == 0 || newSize == 0) {
+      return Result(reusedOldIndexes, null, emptyList())
+    }
+
+    val updates = ArrayList<Update>()
+    val changedPostDescriptors = ArrayList<PostDescriptor>()
+
+    var oldIndex = 0
+    var newIndex = 0
+    var position = 0
+
+    while (oldIndex < oldSize || newIndex < newSize) {
+      if (oldIndex < oldSize && !keptOldPosts[oldIndex]) {
+        val start = oldIndex
+
+        while (oldIndex < oldSize && !keptOldPosts[oldIndex]) {
+          ++oldIndex
+        }
+
+        updates += Update.Removed(position, oldIndex - start)
+        continue
+      }
+
+      if (newIndex < newSize && matchedOldIndexes[newIndex] < 0) {
+        val start = newIndex
+
+        while (newIndex < newSize && matchedOldIndexes[newIndex] < 0) {
+          ++newIndex
+        }
+
+        updates += Update.Inserted(position, newIndex - start)
+        position += newIndex - start
+        continue
+      }
+
+      // Both point to the same post here since the order of the matched posts is preserved
+      if (notChangedPosts[newIndex]) {
+        ++oldIndex
+        ++newIndex
+        ++position
+        continue
+      }
+
+      val start = newIndex
+
+      while (
+        oldIndex < oldSize
+        && newIndex < newSize
+        && keptOldPosts[oldIndex]
+        && matchedOldIndexes[newIndex] >= 0
+        && !notChangedPosts[newIndex]
+      ) {
+        changedPostDescriptors += newPostDescriptors[newIndex]
+
+        ++oldIndex
+        ++newIndex
+      }
+
+      updates += Update.Changed(position, newIndex - start)
+      position += newIndex - start
+    }
+
+    return Result(reusedOldIndexes, updates, changedPostDescriptors)
+  }
+
+  class Result(
+    val reusedOldIndexes: IntArray,
+    /**
+     * Null when the whole list has to be reset.
+     * */
+    val updates: List<Update>?,
+    val changedPostDescriptors: List<PostDescriptor>
+  ) {
+    val rebuiltCount: Int
+      get() = reusedOldIndexes.count { oldIndex -> oldIndex < 0 }
+
+    /**
+     * Converts post positions into adapter positions. The last seen indicator is an adapter item
+     * right before the post at [oldPosition] (or [newPosition] after the update), it's moved along
+     * with the last seen post, removed together with it and then moved to [newPosition].
+     * */
+    fun withLastSeenIndicator(oldPosition: Int, newPosition: Int): Result {
+      val postUpdates = updates
+        ?: return this
+
+      if (oldPosition < 0 && newPosition < 0) {
+        return this
+      }
+
+      val adapterUpdates = ArrayList<Update>(postUpdates.size + 2)
+      var indicatorPosition = oldPosition
+
+      for (update in postUpdates) {
+        val position = update.position
+        val count = update.count
+
+        when (update) {
+          is Update.Inserted -> {
+            adapterUpdates += Update.Inserted(toAdapterPosition(position, indicatorPosition), count)
+
+            if (indicatorPosition > position) {
+              indicatorPosition += count
+            }
+          }
+          is Update.Removed -> {
+            if (indicatorPosition in (position + 1)..(position + count)) {
+              // The last seen post is removed
+              adapterUpdates += Update.Removed(indicatorPosition, 1)
+              adapterUpdates += update
+              indicatorPosition = -1
+            } else {
+              adapterUpdates += Update.Removed(toAdapterPosition(position, indicatorPosition), count)
+
+              if (indicatorPosition > position) {
+                indicatorPosition -= count
+              }
+            }
+          }
+          is Update.Changed -> {
+            val adapterCount = if (indicatorPosition in (position + 1) until (position + count)) {
+              count + 1
+            } else {
+              count
+            }
+
+            adapterUpdates += Update.Changed(toAdapterPosition(position, indicatorPosition), adapterCount)
+          }
+        }
+      }
+
+      if (indicatorPosition != newPosition) {
+        if (indicatorPosition >= 0) {
+          adapterUpdates += Update.Removed(indicatorPosition, 1)
+        }
+
+        if (newPosition >= 0) {
+          adapterUpdates += Update.Inserted(newPosition, 1)
+        }
+      }
+
+      return Result(reusedOldIndexes, adapterUpdates, changedPostDescriptors)
+    }
+
+    private fun toAdapterPosition(position: Int, indicatorPosition: Int): Int {
+      if (indicatorPosition in 0..position) {
+        return position + 1
+      }
+
+      return position
+    }
+  }
+
+  sealed class Update {
+    abstract val position: Int
+    abstract val count: Int
+
+    data class Inserted(override val position: Int, override val count: Int) : Update()
+    data class Removed(override val position: Int, override val count: Int) : Update()
+    data class Changed(override val position: Int, override val count: Int) : Update()
+  }
+
+}
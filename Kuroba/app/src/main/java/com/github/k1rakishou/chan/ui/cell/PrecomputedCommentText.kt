@@ -0,0 +1,152 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import android.widget.TextView
+import androidx.core.text.PrecomputedTextCompat
+import androidx.core.widget.TextViewCompat
+import com.github.k1rakishou.common.AndroidUtils
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+
+/**
+ * Post comment measured on a background thread (after ThreadCellData has built the PostCellData) so
+ * that PostCell doesn't have to measure every glyph of a long comment on the main thread when it's
+ * bound, only the line breaks are calculated there.
+ *
+ * The measurements depend on the text metrics (text size, typeface, locale etc.) of the comment
+ * TextView which can only be taken from the actual view, so they are published by the post cells
+ * every time they bind a comment without a matching precomputed text. Until then (and after a font
+ * size change) nothing gets precomputed, so ThreadCellData waits for the metrics with
+ * [awaitCommentTextMetrics] and precomputes the comments once they are published. A precomputed
+ * comment is only used for the exact comment text it was created from, with the same text size,
+ * width and text metrics, which means it's dropped after the theme (new PostCellData), the font
+ * size or the width change.
+ *
+ * Only used on Android 10+ where TextView uses the measurements directly.
+ * */
+class PrecomputedCommentText private constructor(
+  private val key: Key,
+  private val sourceText: CharSequence,
+  private val precomputedText: PrecomputedTextCompat
+) {
+
+  private fun precomputedTextOrNull(
+    commentText: CharSequence,
+    textSizeSp: Int,
+    postCellDataWidthNoPaddings: Int,
+    textMetricsParams: PrecomputedTextCompat.Params
+  ): PrecomputedTextCompat? {
+    if (sourceText !== commentText) {
+      return null
+    }
+
+    if (key != Key(textSizeSp, postCellDataWidthNoPaddings, textMetricsParams)) {
+      return null
+    }
+
+    return precomputedText
+  }
+
+  private data class Key(
+    val textSizeSp: Int,
+    val postCellDataWidthNoPaddings: Int,
+    val textMetricsParams: PrecomputedTextCompat.Params
+  )
+
+  private class CommentTextMetrics(
+    val textSizeSp: Int,
+    val textMetricsParams: PrecomputedTextCompat.Params
+  )
+
+  companion object {
+    private val commentTextMetricsState = MutableStateFlow<CommentTextMetrics?>(null)
+
+    fun isSupported(): Boolean = AndroidUtils.isAndroid10()
+
+    fun hasCommentTextMetrics(textSizeSp: Int): Boolean {
+      return commentTextMetricsState.value?.textSizeSp == textSizeSp
+    }
+
+    /**
+     * Suspends until a post cell publishes the comment text metrics for [textSizeSp]. Returns false
+     * right away when comments can't be precomputed on this device.
+     * */
+    suspend fun awaitCommentTextMetrics(textSizeSp: Int): Boolean {
+      if (!isSupported()) {
+        return false
+      }
+
+      commentTextMetricsState.first { textMetrics -> textMetrics?.textSizeSp == textSizeSp }
+      return true
+    }
+
+    /**
+     * Must be called on a background thread. Returns null when the comment text metrics for
+     * [textSizeSp] are not known yet.
+     * */
+    fun precompute(
+      commentText: CharSequence,
+      textSizeSp: Int,
+      postCellDataWidthNoPaddings: Int
+    ): PrecomputedCommentText? {
+      if (!isSupported() || commentText.isEmpty()) {
+        return null
+      }
+
+      val textMetrics = commentTextMetricsState.value
+        ?: return null
+
+      if (textMetrics.textSizeSp != textSizeSp) {
+        return null
+      }
+
+      return PrecomputedCommentText(
+        key = Key(textSizeSp, postCellDataWidthNoPaddings, textMetrics.textMetricsParams),
+        sourceText = commentText,
+        precomputedText = PrecomputedTextCompat.create(commentText, textMetrics.textMetricsParams)
+      )
+    }
+
+    /**
+     * Sets the comment using [precomputedCommentText] when it was precomputed for [commentText] with
+     * the text metrics of [textView], otherwise sets the comment as is and publishes the text
+     * metrics of [textView] for the next precomputations.
+     * */
+    fun setCommentText(
+      textView: TextView,
+      commentText: CharSequence,
+      textSizeSp: Int,
+      postCellDataWidthNoPaddings: Int,
+      precomputedCommentText: PrecomputedCommentText?
+    ) {
+      if (!isSupported()) {
+        textView.setText(commentText, TextView.BufferType.SPANNABLE)
+        return
+      }
+
+      val textMetricsParams = TextViewCompat.getTextMetricsParams(textView)
+
+      val precomputedText = precomputedCommentText?.precomputedTextOrNull(
+        commentText = commentText,
+        textSizeSp = textSizeSp,
+        postCellDataWidthNoPaddings = postCellDataWidthNoPaddings,
+        textMetricsParams = textMetricsParams
+      )
+
+      if (precomputedText != null) {
+        TextViewCompat.setPrecomputedText(textView, precomputedText)
+        return
+      }
+
+      val prevTextMetrics = commentTextMetricsState.value
+      if (prevTextMetrics == null
+        || prevTextMetrics.textSizeSp != textSizeSp
+        || prevTextMetrics.textMetricsParams != textMetricsParams
+      ) {
+        commentTextMetricsState.value = CommentTextMetrics(textSizeSp, textMetricsParams)
+      }
+
+      textView.setText(commentText, TextView.BufferType.SPANNABLE)
+    }
+  }
+
+}
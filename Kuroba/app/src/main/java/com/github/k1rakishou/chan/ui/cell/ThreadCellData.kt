@@ -20,7 +20,10 @@ import com.github.k1rakishou.core_themes.ChanTheme
 import com.github.k1rakishou.model.data.board.pages.BoardPages
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.filter.HighlightFilterKeyword
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
 import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostHide
 import com.github.k1rakishou.model.data.post.PostIndexed
 import dagger.Lazy
 import kotlinx.coroutines.CoroutineScope
@@ -120,7 +123,9 @@ class ThreadCellData(
         )
 
         // precalculate right away
-        updatedPostCellData.forEach { postCellDataLazy -> postCellDataLazy.getOrCalculate(isPrecalculating = true) }
+        updatedPostCellData.forEach { postCellDataLazy ->
+          postCellDataLazy.getOrCalculate(isPrecalculating = true).precomputeCommentText()
+        }
 
         return@withContext updatedPostCellData
       }
@@ -145,6 +150,11 @@ class ThreadCellData(
     return updatedAtLeastOne
   }
 
+  /**
+   * Only the posts that were added or changed since the previous update get new PostCellData, the
+   * rest of them keep the old (most likely already calculated) ones (see [PostCellDataLazy.reusedFor]).
+   * Returns the adapter updates (see [PostCellDataDiff]).
+   * */
   @OptIn(ExperimentalTime::class)
   suspend fun updateThreadData(
     postCellCallback: PostCellInterface.PostCellCallback,
@@ -153,10 +163,13 @@ class ThreadCellData(
     postCellDataWidthNoPaddings: Int,
     theme: ChanTheme,
     prevScrollPositionData: PreviousThreadScrollPositionData? = null
-  ) {
+  ): PostCellDataDiff.Result {
     require(postCellDataWidthNoPaddings > 0) { "Bad postCellDataWidthNoPaddings: ${postCellDataWidthNoPaddings}" }
     BackgroundUtils.ensureMainThread()
 
+    val prevChanDescriptor = this._chanDescriptor
+    val oldPostCellDataLazyList = this.postCellDataLazyList.toList()
+
     this._chanDescriptor = chanDescriptor
     this.postCellCallback = postCellCallback
     this.currentTheme = theme
@@ -165,8 +178,8 @@ class ThreadCellData(
       postIndexed.chanPost.postDescriptor
     }
 
-    val newPostCellDataLazyList = withContext(Dispatchers.Default) {
-      return@withContext postIndexedListToLazyPostCellDataList(
+    val (builtPostCellDataLazyList, reusedPostCellDataLazyList, diffResult) = withContext(Dispatchers.Default) {
+      val builtPostCellDataLazyList = postIndexedListToLazyPostCellDataList(
         postCellCallback = postCellCallback,
         chanDescriptor = chanDescriptor,
         theme = theme,
@@ -175,8 +188,45 @@ class ThreadCellData(
         postCellDataWidthNoPaddings = postCellDataWidthNoPaddings,
         oldPostCellData = null
       )
+
+      val diffResult = PostCellDataDiff.calculate(
+        oldPostDescriptors = oldPostCellDataLazyList.map { postCellDataLazy -> postCellDataLazy.postDescriptor },
+        oldContentHashes = IntArray(oldPostCellDataLazyList.size) { index -> oldPostCellDataLazyList[index].contentHash },
+        oldPostIndexes = IntArray(oldPostCellDataLazyList.size) { index -> oldPostCellDataLazyList[index].postIndex },
+        newPostDescriptors = postDescriptors,
+        newContentHashes = IntArray(builtPostCellDataLazyList.size) { index -> builtPostCellDataLazyList[index].contentHash },
+        newPostIndexes = IntArray(builtPostCellDataLazyList.size) { index -> builtPostCellDataLazyList[index].postIndex }
+      )
+
+      val reusedPostCellDataLazyList = builtPostCellDataLazyList.mapIndexed { index, builtPostCellDataLazy ->
+        val reusedOldIndex = diffResult.reusedOldIndexes[index]
+        if (reusedOldIndex < 0) {
+          return@mapIndexed builtPostCellDataLazy
+        }
+
+        return@mapIndexed oldPostCellDataLazyList[reusedOldIndex].reusedFor(builtPostCellDataLazy)
+      }
+
+      return@withContext Triple(builtPostCellDataLazyList, reusedPostCellDataLazyList, diffResult)
     }
 
+    BackgroundUtils.ensureMainThread()
+
+    // The list might have been changed (e.g. cleared) while we were building the new one. Neither
+    // the old PostCellData nor the updates can be used in this case since they were calculated
+    // against the old list.
+    val canUseDiff = prevChanDescriptor == chanDescriptor
+      && samePostDescriptors(oldPostCellDataLazyList, this.postCellDataLazyList)
+
+    val newPostCellDataLazyList = if (canUseDiff) {
+      reusedPostCellDataLazyList
+    } else {
+      builtPostCellDataLazyList
+    }
+
+    Logger.d(TAG, "updateThreadData() posts=${newPostCellDataLazyList.size}, canUseDiff=${canUseDiff}, " +
+      "rebuilt=${diffResult.rebuiltCount}, updates=${diffResult.updates?.size}")
+
     if (newPostCellDataLazyList.isNotEmpty()) {
       lazyCalculationJob?.cancel()
       lazyCalculationJob = coroutineScope.launch(Dispatchers.IO) {
@@ -186,7 +236,7 @@ class ThreadCellData(
       }
     }
 
-    BackgroundUtils.ensureMainThread()
+    val oldLastSeenIndicatorPosition = this.lastSeenIndicatorPosition
 
     this.postCellDataLazyList.clear()
     this.postCellDataLazyList.addAll(newPostCellDataLazyList)
@@ -194,9 +244,31 @@ class ThreadCellData(
     if (postViewMode.canShowLastSeenIndicator()) {
       this.lastSeenIndicatorPosition = getLastSeenIndicatorPosition(chanDescriptor) ?: -1
     }
+
+    if (!canUseDiff) {
+      return PostCellDataDiff.Result(IntArray(newPostCellDataLazyList.size) { -1 }, null, emptyList())
+    }
+
+    return diffResult.withLastSeenIndicator(
+      oldPosition = oldLastSeenIndicatorPosition,
+      newPosition = this.lastSeenIndicatorPosition
+    )
   }
 
-  private fun CoroutineScope.runPreloadingTask(
+  private fun samePostDescriptors(
+    oldPostCellDataLazyList: List<PostCellDataLazy>,
+    currentPostCellDataLazyList: List<PostCellDataLazy>
+  ): Boolean {
+    if (oldPostCellDataLazyList.size != currentPostCellDataLazyList.size) {
+      return false
+    }
+
+    return oldPostCellDataLazyList.indices.all { index ->
+      oldPostCellDataLazyList[index].postDescriptor == currentPostCellDataLazyList[index].postDescriptor
+    }
+  }
+
+  private suspend fun CoroutineScope.runPreloadingTask(
     prevScrollPositionData: PreviousThreadScrollPositionData?,
     newPostCellDataLazyList: List<PostCellDataLazy>
   ) {
@@ -225,11 +297,34 @@ class ThreadCellData(
 
     Logger.d(TAG, "runPreloading() startingPosition=$startingPosition, dataListSize=${newPostCellDataLazyList.size}")
 
+    val textSizeSp = newPostCellDataLazyList.first().getOrCalculate(isPrecalculating = true).textSizeSp
+    val commentTextMetricsKnown = PrecomputedCommentText.hasCommentTextMetrics(textSizeSp)
+
     newPostCellDataLazyList
       .bidirectionalSequenceIndexed(startingPosition.coerceIn(0, newPostCellDataLazyList.lastIndex))
       .forEach { (_, newPostCellDataLazy) ->
         ensureActive()
-        newPostCellDataLazy.getOrCalculate(isPrecalculating = true)
+        newPostCellDataLazy.getOrCalculate(isPrecalculating = true).precomputeCommentText()
+      }
+
+    if (commentTextMetricsKnown) {
+      return
+    }
+
+    // No post cell has published the comment text metrics yet (the first opened thread after the app
+    // start or after a font size change) so the comments were not precomputed. The metrics are
+    // published by the first bound post cell, precompute the comments once that happens.
+    if (!PrecomputedCommentText.awaitCommentTextMetrics(textSizeSp)) {
+      return
+    }
+
+    Logger.d(TAG, "runPreloading() comment text metrics published, precomputing comments")
+
+    newPostCellDataLazyList
+      .bidirectionalSequenceIndexed(startingPosition.coerceIn(0, newPostCellDataLazyList.lastIndex))
+      .forEach { (_, newPostCellDataLazy) ->
+        ensureActive()
+        newPostCellDataLazy.getOrCalculate(isPrecalculating = true).precomputeCommentText()
       }
   }
 
@@ -297,7 +392,54 @@ class ThreadCellData(
 
     val highlightFilterKeywordMap = postFilterHighlightManager.getHighlightFilterKeywordForDescriptor(postDescriptors)
 
+    // Everything that is the same for all posts, the content hash of every post depends on it so
+    // that no old PostCellData is reused after any of these change.
+    val settingsHash = PostCellDataSettings(
+      chanDescriptor = chanDescriptor,
+      postCellCallback = postCellCallback,
+      theme = theme,
+      postCellDataWidthNoPaddings = postCellDataWidthNoPaddings,
+      textSizeSp = textSizeSp,
+      detailsSizeSp = detailsSizeSp,
+      boardPostsSortOrder = boardPostsSortOrder,
+      neverShowPages = neverShowPages,
+      tapNoReply = tapNoReply,
+      postFullDate = postFullDate,
+      postFullDateLocalLocale = postFullDateLocalLocale,
+      shiftPostComment = shiftPostComment,
+      forceShiftPostComment = forceShiftPostComment,
+      textOnly = textOnly,
+      showPostFileInfo = showPostFileInfo,
+      markUnseenPosts = markUnseenPosts,
+      markSeenThreads = markSeenThreads,
+      postCellThumbnailSizePercents = postCellThumbnailSizePercents,
+      boardPages = boardPages,
+      isTablet = isTablet,
+      isSplitLayout = isSplitLayout,
+      postHideMap = postHideMap,
+      postAlignmentMode = postAlignmentMode,
+      postViewMode = postViewMode,
+      markedPostNo = defaultMarkedNo,
+      compact = defaultIsCompact,
+      boardPostViewMode = defaultBoardPostViewMode,
+      searchQuery = defaultSearchQuery,
+      postMultipleImagesCompactMode = ChanSettings.postMultipleImagesCompactMode.get()
+    ).hashCode()
+
     postIndexedList.forEachIndexed { orderInList, postIndexed ->
+      val showDivider = oldPostCellData?.showDivider ?: defaultShowDividerFunc.invoke(orderInList, totalPostsCount)
+      val keywordsToHighlight = highlightFilterKeywordMap[postIndexed.chanPost.postDescriptor] ?: emptySet()
+      val isReplyToSavedReply = postIndexed.chanPost.repliesTo
+        .any { replyTo -> threadPostReplyMap[replyTo] == true }
+
+      val contentHash = calculateContentHash(
+        settingsHash = settingsHash,
+        postIndexed = postIndexed,
+        showDivider = showDivider,
+        keywordsToHighlight = keywordsToHighlight,
+        isReplyToSavedReply = isReplyToSavedReply
+      )
+
       val lazyFunc = lazy {
         val chanPost = postIndexed.chanPost
         val postDescriptor = chanPost.postDescriptor
@@ -320,7 +462,7 @@ class ThreadCellData(
           theme = chanTheme,
           postViewMode = postViewMode,
           markedPostNo = defaultMarkedNo,
-          showDivider = oldPostCellData?.showDivider ?: defaultShowDividerFunc.invoke(orderInList, totalPostsCount),
+          showDivider = showDivider,
           compact = defaultIsCompact,
           boardPostViewMode = defaultBoardPostViewMode,
           boardPostsSortOrder = boardPostsSortOrder,
@@ -338,12 +480,11 @@ class ThreadCellData(
           markSeenThreads = markSeenThreads,
           postHideMap = postHideMap,
           searchQuery = defaultSearchQuery,
-          keywordsToHighlight = highlightFilterKeywordMap[postDescriptor] ?: emptySet(),
+          keywordsToHighlight = keywordsToHighlight,
           postAlignmentMode = postAlignmentMode,
           postCellThumbnailSizePercents = postCellThumbnailSizePercents,
           isSavedReply = chanPost.isSavedReply,
-          isReplyToSavedReply = chanPost.repliesTo
-            .any { replyTo -> threadPostReplyMap[replyTo] == true },
+          isReplyToSavedReply = isReplyToSavedReply,
           isTablet = isTablet,
           isSplitLayout = isSplitLayout,
         )
@@ -356,6 +497,8 @@ class ThreadCellData(
 
       val postCellDataLazy = PostCellDataLazy(
         post = postIndexed.chanPost,
+        postIndex = postIndexed.postIndex,
+        contentHash = contentHash,
         lazyDataCalcFunc = lazyFunc
       )
 
@@ -365,6 +508,52 @@ class ThreadCellData(
     return resultList
   }
 
+  private fun calculateContentHash(
+    settingsHash: Int,
+    postIndexed: PostIndexed,
+    showDivider: Boolean,
+    keywordsToHighlight: Set<HighlightFilterKeyword>,
+    isReplyToSavedReply: Boolean
+  ): Int {
+    val chanPost = postIndexed.chanPost
+
+    // Posts are merged into new instances on every thread update so ChanPost.hashCode() can't be
+    // used here (it hashes the spans of the comment which are different for every instance).
+    var result = settingsHash
+    result = 31 * result + showDivider.hashCode()
+    result = 31 * result + keywordsToHighlight.hashCode()
+    result = 31 * result + isReplyToSavedReply.hashCode()
+    result = 31 * result + chanPost.postComment.originalCommentHash.hashCode()
+    result = 31 * result + (chanPost.postComment.updatedCommentHash?.hashCode() ?: 0)
+    result = 31 * result + (chanPost.subject?.toString()?.hashCode() ?: 0)
+    result = 31 * result + (chanPost.tripcode?.toString()?.hashCode() ?: 0)
+    result = 31 * result + (chanPost.name?.hashCode() ?: 0)
+    result = 31 * result + (chanPost.posterId?.hashCode() ?: 0)
+    result = 31 * result + chanPost.posterIdColor
+    result = 31 * result + (chanPost.moderatorCapcode?.hashCode() ?: 0)
+    result = 31 * result + chanPost.timestamp.hashCode()
+    result = 31 * result + chanPost.isSavedReply.hashCode()
+    result = 31 * result + chanPost.isSage.hashCode()
+    result = 31 * result + chanPost.isDeleted.hashCode()
+    result = 31 * result + chanPost.postImages.hashCode()
+    result = 31 * result + chanPost.postIcons.hashCode()
+    result = 31 * result + chanPost.repliesTo.size
+    result = 31 * result + chanPost.repliesFromCount
+    result = 31 * result + chanPost.catalogRepliesCount
+    result = 31 * result + chanPost.catalogImagesCount
+    result = 31 * result + chanPost.uniqueIps
+    result = 31 * result + chanPost.copyOnDemandContentLoadedArray().contentHashCode()
+
+    if (chanPost is ChanOriginalPost) {
+      result = 31 * result + chanPost.sticky.hashCode()
+      result = 31 * result + chanPost.closed.hashCode()
+      result = 31 * result + chanPost.archived.hashCode()
+      result = 31 * result + chanPost.endless.hashCode()
+    }
+
+    return result
+  }
+
   private fun getBoardPages(
     chanDescriptor: ChanDescriptor,
     neverShowPages: Boolean,
@@ -607,6 +796,8 @@ class ThreadCellData(
 
   class PostCellDataLazy(
     val post: ChanPost,
+    val postIndex: Int,
+    val contentHash: Int,
     private val lazyDataCalcFunc: kotlin.Lazy<PostCellData>
   ) {
     val postDescriptor: PostDescriptor
@@ -633,6 +824,29 @@ class ThreadCellData(
       return calculatedValue
     }
 
+    /**
+     * [newPostCellDataLazy] is for the same post with the same [contentHash] but it has the new
+     * ChanPost instance and maybe a new [postIndex]. The already calculated PostCellData is kept
+     * (only copied with them), there is nothing to keep when it's not calculated yet.
+     * */
+    fun reusedFor(newPostCellDataLazy: PostCellDataLazy): PostCellDataLazy {
+      require(newPostCellDataLazy.contentHash == contentHash) { "Content hashes differ" }
+
+      if (!lazyDataCalcFunc.isInitialized()) {
+        return newPostCellDataLazy
+      }
+
+      val postCellData = lazyDataCalcFunc.value
+        .reusedFor(newPostCellDataLazy.post, newPostCellDataLazy.postIndex)
+
+      return PostCellDataLazy(
+        post = newPostCellDataLazy.post,
+        postIndex = newPostCellDataLazy.postIndex,
+        contentHash = contentHash,
+        lazyDataCalcFunc = lazyOf(postCellData)
+      )
+    }
+
     override fun equals(other: Any?): Boolean {
       if (this === other) return true
       if (javaClass != other?.javaClass) return false
@@ -660,6 +874,38 @@ class ThreadCellData(
 
   }
 
+  private data class PostCellDataSettings(
+    val chanDescriptor: ChanDescriptor,
+    val postCellCallback: PostCellInterface.PostCellCallback,
+    val theme: ChanTheme,
+    val postCellDataWidthNoPaddings: Int,
+    val textSizeSp: Int,
+    val detailsSizeSp: Int,
+    val boardPostsSortOrder: PostsFilter.Order,
+    val neverShowPages: Boolean,
+    val tapNoReply: Boolean,
+    val postFullDate: Boolean,
+    val postFullDateLocalLocale: Boolean,
+    val shiftPostComment: Boolean,
+    val forceShiftPostComment: Boolean,
+    val textOnly: Boolean,
+    val showPostFileInfo: Boolean,
+    val markUnseenPosts: Boolean,
+    val markSeenThreads: Boolean,
+    val postCellThumbnailSizePercents: Int,
+    val boardPages: BoardPages?,
+    val isTablet: Boolean,
+    val isSplitLayout: Boolean,
+    val postHideMap: Map<PostDescriptor, ChanPostHide>,
+    val postAlignmentMode: ChanSettings.PostAlignmentMode,
+    val postViewMode: PostCellData.PostViewMode,
+    val markedPostNo: Long?,
+    val compact: Boolean,
+    val boardPostViewMode: ChanSettings.BoardPostViewMode,
+    val searchQuery: PostCellData.SearchQuery,
+    val postMultipleImagesCompactMode: Boolean
+  )
+
   companion object {
     private const val TAG = "ThreadCellData"
   }
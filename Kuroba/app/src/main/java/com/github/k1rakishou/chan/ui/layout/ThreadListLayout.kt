@@ -236,6 +236,10 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
         onRecyclerViewScrolled()
       }
     }
+
+    override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+      onVisiblePostsChanged()
+    }
   }
 
   val replyPresenter: ReplyPresenter
@@ -306,6 +310,47 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
       return -1
     }
 
+  private val visibleAdapterPositions: IntRange?
+    get() {
+      if (layoutManager == null) {
+        return null
+      }
+
+      when (boardPostViewMode) {
+        BoardPostViewMode.LIST -> {
+          val linearLayoutManager = layoutManager as FixedLinearLayoutManager
+          val firstPosition = linearLayoutManager.findFirstVisibleItemPosition()
+          val lastPosition = linearLayoutManager.findLastVisibleItemPosition()
+
+          if (firstPosition < 0 || lastPosition < firstPosition) {
+            return null
+          }
+
+          return firstPosition..lastPosition
+        }
+        BoardPostViewMode.GRID,
+        BoardPostViewMode.STAGGER -> {
+          val staggeredGridLayoutManager = layoutManager as StaggeredGridLayoutManager
+          val firstPosition = staggeredGridLayoutManager.findFirstVisibleItemPositions(null)
+            .filter { position -> position >= 0 }
+            .minOrNull()
+            ?: return null
+          val lastPosition = staggeredGridLayoutManager.findLastVisibleItemPositions(null)
+            .maxOrNull()
+            ?: return null
+
+          if (lastPosition < firstPosition) {
+            return null
+          }
+
+          return firstPosition..lastPosition
+        }
+        null -> null
+      }
+
+      return null
+    }
+
   private val completeBottomAdapterPosition: Int
     get() {
       if (layoutManager == null) {
@@ -485,6 +530,18 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
     setRecyclerViewPadding()
   }
 
+  private fun onVisiblePostsChanged() {
+    val visibleAdapterPositions = visibleAdapterPositions
+      ?: return
+
+    val threadCellData = postAdapter.threadCellData
+
+    threadPresenter?.onVisiblePostsChanged(
+      firstVisiblePostIndex = threadCellData.getPostPosition(visibleAdapterPositions.first),
+      lastVisiblePostIndex = threadCellData.getPostPosition(visibleAdapterPositions.last)
+    )
+  }
+
   private fun onRecyclerViewScrolled() {
     recyclerView.post {
       // onScrolled can be called after cleanup()
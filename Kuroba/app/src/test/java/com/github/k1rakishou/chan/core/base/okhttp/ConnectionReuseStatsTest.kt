@@ -0,0 +1,84 @@
+package com.github.k1rakishou.chan.core.base.okhttp
+
+import junit.framework.Assert.assertEquals
+import okhttp3.Dns
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.net.InetAddress
+
+class ConnectionReuseStatsTest {
+  private lateinit var server: MockWebServer
+
+  @Before
+  fun setUp() {
+    server = MockWebServer()
+    server.start()
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+  }
+
+  @Test
+  fun `test clients derived from the same base client reuse connections`() {
+    val connectionReuseStats = ConnectionReuseStats()
+    val dns = TestDns()
+
+    val baseClient = OkHttpClient.Builder()
+      .eventListener(connectionReuseStats)
+      .build()
+
+    val siteRequestsClient = baseClient.newBuilder().dns(dns).build()
+    val mediaClient = baseClient.newBuilder().dns(dns).addNetworkInterceptor(GzipInterceptor()).build()
+
+    repeat(3) {
+      execute(siteRequestsClient)
+      execute(mediaClient)
+    }
+
+    val snapshot = connectionReuseStats.snapshot()
+    assertEquals(6L, snapshot.calls)
+    assertEquals(1L, snapshot.newConnections)
+    assertEquals(5L, snapshot.reusedConnections)
+  }
+
+  @Test
+  fun `test clients with different dns instances do not reuse connections`() {
+    val connectionReuseStats = ConnectionReuseStats()
+
+    val baseClient = OkHttpClient.Builder()
+      .eventListener(connectionReuseStats)
+      .build()
+
+    val siteRequestsClient = baseClient.newBuilder().dns(TestDns()).build()
+    val mediaClient = baseClient.newBuilder().dns(TestDns()).build()
+
+    execute(siteRequestsClient)
+    execute(mediaClient)
+
+    val snapshot = connectionReuseStats.snapshot()
+    assertEquals(2L, snapshot.newConnections)
+    assertEquals(0L, snapshot.reusedConnections)
+  }
+
+  private fun execute(okHttpClient: OkHttpClient) {
+    server.enqueue(MockResponse().setBody("test"))
+
+    val request = Request.Builder()
+      .url(server.url("/test"))
+      .get()
+      .build()
+
+    okHttpClient.newCall(request).execute().use { response -> response.body!!.string() }
+  }
+
+  private class TestDns : Dns {
+    override fun lookup(hostname: String): List<InetAddress> = Dns.SYSTEM.lookup(hostname)
+  }
+}
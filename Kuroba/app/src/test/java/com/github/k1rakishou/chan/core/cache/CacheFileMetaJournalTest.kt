@@ -0,0 +1,135 @@
+package com.github.k1rakishou.chan.core.cache
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.file.Files
+
+@RunWith(RobolectricTestRunner::class)
+class CacheFileMetaJournalTest {
+  private lateinit var dir: File
+  private lateinit var journalFile: File
+
+  @Before
+  fun setUp() {
+    dir = Files.createTempDirectory("cache_meta_journal_test").toFile()
+    journalFile = File(dir, "meta.journal")
+  }
+
+  @After
+  fun tearDown() {
+    dir.deleteRecursively()
+  }
+
+  @Test
+  fun `test records survive reopening the journal`() {
+    val journal = CacheFileMetaJournal(journalFile, true)
+    journal.open()
+
+    journal.put(record("a", fileSize = 100, createdOn = 1))
+    journal.put(record("b", fileSize = 200, createdOn = 2))
+    journal.put(record("a", fileSize = 150, createdOn = 1, isDownloaded = true))
+    journal.put(record("c", fileSize = 300, createdOn = 3))
+    journal.remove("b")
+    journal.updateLastAccessTime("c", 777L)
+
+    val reopened = CacheFileMetaJournal(journalFile, true)
+    reopened.open()
+
+    assertEquals(2, reopened.count())
+    assertEquals(450L, reopened.totalFileSize())
+    assertNull(reopened.get("b"))
+    assertEquals(record("a", fileSize = 150, createdOn = 1, isDownloaded = true), reopened.get("a"))
+    assertEquals(777L, reopened.get("c")!!.lastAccessTime)
+  }
+
+  @Test
+  fun `test journal grows and gets compacted`() {
+    val journal = CacheFileMetaJournal(journalFile, true)
+    journal.open()
+
+    // Many more records than the initial capacity, most of them are overwritten/removed
+    repeat(10_000) { index ->
+      val key = "key_${index % 100}"
+
+      if (index % 3 == 0) {
+        journal.remove(key)
+      } else {
+        journal.put(record(key, fileSize = index.toLong(), createdOn = index.toLong()))
+      }
+    }
+
+    val expected = journal.snapshot().associateBy { record -> record.key }
+
+    val reopened = CacheFileMetaJournal(journalFile, true)
+    reopened.open()
+
+    assertEquals(expected, reopened.snapshot().associateBy { record -> record.key })
+    assertEquals(expected.values.sumOf { record -> record.fileSize }, reopened.totalFileSize())
+
+    // The journal must not grow unbounded when there are only 100 live keys
+    assertTrue(journalFile.length() < 10_000L * 96)
+  }
+
+  @Test
+  fun `test corrupted record is skipped`() {
+    val journal = CacheFileMetaJournal(journalFile, true)
+    journal.open()
+
+    journal.put(record("a", fileSize = 1, createdOn = 1))
+    journal.put(record("b", fileSize = 2, createdOn = 2))
+    journal.put(record("c", fileSize = 3, createdOn = 3))
+
+    // Corrupt the key of the second record (header is 8 bytes, records are 96 bytes)
+    RandomAccessFile(journalFile, "rw").use { raf ->
+      raf.seek(8L + 96L + 3L)
+      raf.write('X'.code)
+    }
+
+    val reopened = CacheFileMetaJournal(journalFile, true)
+    reopened.open()
+
+    assertTrue(reopened.contains("a"))
+    assertFalse(reopened.contains("b"))
+    assertTrue(reopened.contains("c"))
+  }
+
+  @Test
+  fun `test bad header recreates the journal`() {
+    journalFile.writeText("definitely not a journal")
+
+    val journal = CacheFileMetaJournal(journalFile, true)
+    journal.open()
+    assertEquals(0, journal.count())
+
+    journal.put(record("a", fileSize = 1, createdOn = 1))
+
+    val reopened = CacheFileMetaJournal(journalFile, true)
+    reopened.open()
+    assertTrue(reopened.contains("a"))
+  }
+
+  private fun record(
+    key: String,
+    fileSize: Long,
+    createdOn: Long,
+    isDownloaded: Boolean = false
+  ): CacheFileMetaJournal.Record {
+    return CacheFileMetaJournal.Record(
+      key = key,
+      fileSize = fileSize,
+      createdOn = createdOn,
+      lastAccessTime = createdOn,
+      isDownloaded = isDownloaded
+    )
+  }
+
+}
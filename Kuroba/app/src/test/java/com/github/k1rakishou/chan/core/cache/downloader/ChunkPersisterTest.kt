@@ -0,0 +1,279 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import io.reactivex.Flowable
+import io.reactivex.schedulers.Schedulers
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertTrue
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okhttp3.mockwebserver.SocketPolicy
+import okio.Buffer
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.file.Files
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+class ChunkPersisterTest {
+  private val fileBytes = Random(1337).nextBytes(1024 * 1024 + 123)
+  private val okHttpClient = OkHttpClient()
+  private val requestCancellationThread = Executors.newSingleThreadExecutor()
+
+  private lateinit var server: MockWebServer
+  private lateinit var dir: File
+  private lateinit var output: File
+  private lateinit var partialDownloadStateStore: PartialDownloadStateStore
+
+  @Before
+  fun setUp() {
+    server = MockWebServer()
+    server.start()
+
+    dir = Files.createTempDirectory("chunk_persister_test").toFile()
+    output = File(dir, "output.cache")
+    output.createNewFile()
+
+    partialDownloadStateStore = PartialDownloadStateStore { _, _ -> File(dir, "output.download_state") }
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+    dir.deleteRecursively()
+    requestCancellationThread.shutdown()
+  }
+
+  @Test
+  fun `test chunks are written into the output file at their offsets`() {
+    server.dispatcher = RangeDispatcher(fileBytes, supportsRange = true)
+
+    val url = server.url("/file.webm").toString()
+    val activeDownloads = createActiveDownloads(url)
+    val chunks = chunkLong(fileBytes.size.toLong(), 4, 1024)
+
+    RandomAccessFile(output, "rw").use { randomAccessFile -> randomAccessFile.setLength(fileBytes.size.toLong()) }
+
+    val events = downloadChunks(activeDownloads, url, chunks)
+
+    assertEquals(chunks.size, events.filterIsInstance<ChunkDownloadEvent.ChunkSuccess>().size)
+    assertTrue(events.none { event -> event is ChunkDownloadEvent.ChunkError })
+    assertTrue(fileBytes.contentEquals(output.readBytes()))
+    assertEquals(chunks.size, server.requestCount)
+  }
+
+  @Test
+  fun `test whole file download overwrites stale output file content`() {
+    server.dispatcher = RangeDispatcher(fileBytes, supportsRange = false)
+    output.writeBytes(ByteArray(fileBytes.size * 2) { 0x7F })
+
+    val url = server.url("/file.webm").toString()
+    val activeDownloads = createActiveDownloads(url)
+
+    val events = downloadChunks(activeDownloads, url, listOf(Chunk.wholeFile()))
+
+    assertEquals(1, events.filterIsInstance<ChunkDownloadEvent.ChunkSuccess>().size)
+    assertTrue(fileBytes.contentEquals(output.readBytes()))
+  }
+
+  @Test
+  fun `test chunk fails when the server ignores the range header`() {
+    server.dispatcher = RangeDispatcher(fileBytes, supportsRange = false)
+
+    val url = server.url("/file.webm").toString()
+    val activeDownloads = createActiveDownloads(url)
+    val chunks = chunkLong(fileBytes.size.toLong(), 2, 1024)
+
+    RandomAccessFile(output, "rw").use { randomAccessFile -> randomAccessFile.setLength(fileBytes.size.toLong()) }
+
+    val events = downloadChunks(activeDownloads, url, chunks.take(1))
+
+    assertTrue(events.single() is ChunkDownloadEvent.ChunkError)
+    // Nothing must have been written into the file
+    assertTrue(output.readBytes().all { byte -> byte == 0.toByte() })
+  }
+
+  @Test
+  fun `test interrupted download is resumed from the persisted state`() {
+    val dispatcher = RangeDispatcher(fileBytes, supportsRange = true, disconnectFirstRequests = 1)
+    server.dispatcher = dispatcher
+
+    val url = server.url("/file.webm").toString()
+    val chunks = chunkLong(fileBytes.size.toLong(), 2, 1024)
+
+    RandomAccessFile(output, "rw").use { randomAccessFile -> randomAccessFile.setLength(fileBytes.size.toLong()) }
+
+    // First attempt, the first chunk's connection is dropped in the middle of the body
+    val firstActiveDownloads = createActiveDownloads(url)
+    firstActiveDownloads.get(url)!!.setPartialDownloadState(
+      PartialDownloadState(fileBytes.size.toLong(), ETAG, null)
+    )
+
+    val firstEvents = downloadChunks(firstActiveDownloads, url, chunks.take(1))
+    assertTrue(firstEvents.single() is ChunkDownloadEvent.ChunkError)
+
+    // The app was restarted, load the state from the disk
+    val storedState = partialDownloadStateStore.load(CacheFileType.PostMediaFull, url)
+    assertNotNull(storedState)
+    assertTrue(storedState!!.matches(PartialContentCheckResult(true, length = fileBytes.size.toLong(), etag = ETAG)))
+    assertFalse(storedState.matches(PartialContentCheckResult(true, length = fileBytes.size.toLong(), etag = "\"other\"")))
+
+    val downloadedBeforeResume = storedState.downloadedBytes()
+    assertTrue(downloadedBeforeResume > 0)
+
+    val secondActiveDownloads = createActiveDownloads(url)
+    secondActiveDownloads.get(url)!!.setPartialDownloadState(storedState)
+
+    val missingRanges = storedState.missingRanges()
+    val secondEvents = downloadChunks(secondActiveDownloads, url, missingRanges)
+
+    assertEquals(missingRanges.size, secondEvents.filterIsInstance<ChunkDownloadEvent.ChunkSuccess>().size)
+    assertTrue(storedState.missingRanges().isEmpty())
+    assertTrue(fileBytes.contentEquals(output.readBytes()))
+
+    // Only the missing bytes were requested the second time
+    assertEquals(fileBytes.size.toLong() - downloadedBeforeResume, dispatcher.servedRangeBytes - dispatcher.firstRequestsRangeBytes)
+  }
+
+  @Test
+  fun `test validators are taken from the chunk response when the HEAD request was skipped`() {
+    server.dispatcher = RangeDispatcher(fileBytes, supportsRange = true, disconnectFirstRequests = 1, etag = ETAG)
+
+    val url = server.url("/file.webm").toString()
+    val chunks = chunkLong(fileBytes.size.toLong(), 2, 1024)
+
+    RandomAccessFile(output, "rw").use { randomAccessFile -> randomAccessFile.setLength(fileBytes.size.toLong()) }
+
+    // No partial download state, the same as when PartialContentSupportChecker went the fast path
+    val activeDownloads = createActiveDownloads(url)
+    activeDownloads.updateTotalLength(url, fileBytes.size.toLong())
+
+    val events = downloadChunks(activeDownloads, url, chunks.take(1))
+    assertTrue(events.single() is ChunkDownloadEvent.ChunkError)
+
+    val storedState = partialDownloadStateStore.load(CacheFileType.PostMediaFull, url)
+    assertNotNull(storedState)
+    assertEquals(ETAG, storedState!!.etag)
+    assertEquals(fileBytes.size.toLong(), storedState.fileLength)
+    assertTrue(storedState.downloadedBytes() > 0)
+  }
+
+  private fun downloadChunks(
+    activeDownloads: ActiveDownloads,
+    url: String,
+    chunks: List<Chunk>
+  ): List<ChunkDownloadEvent> {
+    val chunkPersister = ChunkPersister(activeDownloads, partialDownloadStateStore, false)
+    val totalDownloaded = AtomicLong(0)
+
+    return Flowable.fromIterable(chunks.withIndex())
+      .flatMap { (chunkIndex, chunk) ->
+        Flowable.fromCallable { ChunkResponse(chunk, executeRequest(url, chunk)) }
+          .flatMap { chunkResponse ->
+            chunkPersister.storeChunkInFile(url, chunkResponse, totalDownloaded, chunkIndex, chunks.size)
+          }
+          .onErrorReturn { error -> ChunkDownloadEvent.ChunkError(error) }
+          .subscribeOn(Schedulers.io())
+      }
+      .filter { event -> event !is ChunkDownloadEvent.Progress }
+      .toList()
+      .blockingGet()
+  }
+
+  private fun executeRequest(url: String, chunk: Chunk): okhttp3.Response {
+    val requestBuilder = Request.Builder().url(url)
+
+    if (!chunk.isWholeFile()) {
+      requestBuilder.header("Range", "bytes=" + chunk.start + "-" + chunk.end)
+    }
+
+    return okHttpClient.newCall(requestBuilder.build()).execute()
+  }
+
+  private fun createActiveDownloads(url: String): ActiveDownloads {
+    val activeDownloads = ActiveDownloads()
+
+    val request = FileDownloadRequest(
+      url = url,
+      downloaded = AtomicLong(0),
+      total = AtomicLong(0),
+      cancelableDownload = CancelableDownload(
+        url = url,
+        downloadType = CancelableDownload.DownloadType(isPrefetchDownload = false, isGalleryBatchDownload = false),
+        requestCancellationThread = requestCancellationThread
+      ),
+      extraInfo = DownloadRequestExtraInfo(),
+      cacheFileType = CacheFileType.PostMediaFull
+    )
+
+    request.setOutputFile(output)
+    activeDownloads.put(url, request)
+
+    return activeDownloads
+  }
+
+  private class RangeDispatcher(
+    private val fileBytes: ByteArray,
+    private val supportsRange: Boolean,
+    private val disconnectFirstRequests: Int = 0,
+    private val etag: String? = null
+  ) : Dispatcher() {
+    @Volatile
+    var servedRangeBytes = 0L
+    @Volatile
+    var firstRequestsRangeBytes = 0L
+    private var requestsCount = 0
+
+    @Synchronized
+    override fun dispatch(request: RecordedRequest): MockResponse {
+      val range = request.getHeader("Range")
+
+      if (!supportsRange || range == null) {
+        return MockResponse()
+          .setResponseCode(200)
+          .setBody(Buffer().write(fileBytes))
+      }
+
+      val (start, end) = range.removePrefix("bytes=")
+        .split("-")
+        .map { value -> value.toInt() }
+
+      val response = MockResponse()
+        .setResponseCode(206)
+        .setHeader("Content-Range", "bytes $start-$end/${fileBytes.size}")
+        .setBody(Buffer().write(fileBytes, start, end - start + 1))
+
+      if (etag != null) {
+        response.setHeader("ETag", etag)
+      }
+
+      servedRangeBytes += end - start + 1
+
+      if (requestsCount++ < disconnectFirstRequests) {
+        firstRequestsRangeBytes += end - start + 1
+        // Sends only a half of the body and then closes the connection
+        response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY)
+      }
+
+      return response
+    }
+  }
+
+  companion object {
+    private const val ETAG = "\"5f6a1c2b-40000\""
+  }
+
+}
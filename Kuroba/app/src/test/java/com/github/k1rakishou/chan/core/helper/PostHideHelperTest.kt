@@ -325,12 +325,12 @@ class PostHideHelperTest {
   @Test
   fun shouldNotEndUpInEndlessRecursionWhenPostReplyToEachOther() {
     val firstPost = createPost(1).apply {
-      repliesTo.add(PostDescriptor.create(threadDescriptor, 2))
-      repliesFrom.add(PostDescriptor.create(threadDescriptor, 2))
+      addRepliesTo(listOf(PostDescriptor.create(threadDescriptor, 2)))
+      addRepliesFrom(listOf(PostDescriptor.create(threadDescriptor, 2)))
     }
     val secondPost = createPost(2).apply {
-      repliesTo.add(PostDescriptor.create(threadDescriptor, 1))
-      repliesFrom.add(PostDescriptor.create(threadDescriptor, 1))
+      addRepliesTo(listOf(PostDescriptor.create(threadDescriptor, 1)))
+      addRepliesFrom(listOf(PostDescriptor.create(threadDescriptor, 1)))
     }
 
     val posts = listOf(firstPost, secondPost)
@@ -510,8 +510,8 @@ class PostHideHelperTest {
       val builder = ReplyChainBuilder().also(builderFunc)
 
       parentPosts.forEach { parentPost ->
-        parentPost.repliesFrom.addAll(builder.posts.map { it.postDescriptor })
-        builder.posts.forEach { post -> post.repliesTo.add(parentPost.postDescriptor) }
+        parentPost.addRepliesFrom(builder.posts.map { it.postDescriptor })
+        builder.posts.forEach { post -> post.addRepliesTo(listOf(parentPost.postDescriptor)) }
       }
 
       posts.addAll(parentPosts)
@@ -525,8 +525,8 @@ class PostHideHelperTest {
       val parentPost = posts.last()
       val builder = ReplyChainBuilder().also(builderFunc)
 
-      parentPost.repliesFrom.addAll(builder.posts.map { it.postDescriptor })
-      builder.posts.forEach { post -> post.repliesTo.add(parentPost.postDescriptor) }
+      parentPost.addRepliesFrom(builder.posts.map { it.postDescriptor })
+      builder.posts.forEach { post -> post.addRepliesTo(listOf(parentPost.postDescriptor)) }
       posts.addAll(builder.posts)
       posts.addAll(builder.childPosts)
 
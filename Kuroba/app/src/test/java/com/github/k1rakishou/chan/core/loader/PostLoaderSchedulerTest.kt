@@ -0,0 +1,339 @@
+package com.github.k1rakishou.chan.core.loader
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.LoaderType
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.abs
+import kotlin.math.min
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class PostLoaderSchedulerTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", THREAD_NO)
+
+  @Test
+  fun `fling through a 1000 posts thread only loads the posts around the final viewport`() = runTest {
+    val testEnvironment = TestEnvironment(this, createLoaders())
+
+    // 10 posts per frame from the top to the posts 900..909, every post that shows up gets bound
+    var firstVisiblePostIndex = 0
+    while (firstVisiblePostIndex <= 900) {
+      testEnvironment.scrollTo(firstVisiblePostIndex)
+      advanceTimeBy(FRAME_TIME_MS)
+
+      firstVisiblePostIndex += 10
+    }
+
+    val flingEndTime = testScheduler.currentTime
+    advanceUntilIdle()
+
+    val metrics = testEnvironment.scheduler.metrics(threadDescriptor)
+
+    assertEquals(910, metrics.scheduledPosts)
+    assertEquals(0, metrics.queueDepth)
+    // Only the posts around the viewport are ever waiting
+    assertTrue("maxQueueDepth=${metrics.maxQueueDepth}", metrics.maxQueueDepth <= VISIBLE_POSTS + 2 * WINDOW_SIZE)
+    // Posts that were flung past are cancelled before any of their loaders run
+    assertEquals(0, metrics.wastedLoaderRuns)
+    assertTrue("completedPosts=${metrics.completedPosts}", metrics.completedPosts <= VISIBLE_POSTS + WINDOW_SIZE)
+    assertEquals(metrics.completedPosts * LOADERS_COUNT, metrics.loaderRuns)
+
+    // The posts the fling stopped at get their content before the posts around them that were still
+    // waiting when the fling stopped (only the posts that were already being loaded get it earlier)
+    val lastVisiblePostContentTime = (900..909).maxOf { postIndex -> testEnvironment.firstContentTime(postIndex) }
+    val loadedEarlierCount = (860..899).count { postIndex ->
+      testEnvironment.firstContentTime(postIndex) < lastVisiblePostContentTime
+    }
+    assertTrue("loadedEarlierCount=$loadedEarlierCount", loadedEarlierCount <= MAX_CONCURRENCY_PER_LOADER)
+
+    // Settle delay, the prefetches that were already running and then 3 rounds (10 posts, 4 slots) of
+    // prefetch and extra content loaders at most
+    val timeToFirstContent = lastVisiblePostContentTime - flingEndTime
+    assertTrue("timeToFirstContent=$timeToFirstContent", timeToFirstContent <= 300L + 200L + 3 * (200L + 300L))
+
+    testEnvironment.cleanup()
+  }
+
+  @Test
+  fun `visible posts are loaded first and the rest in order of distance from the viewport`() = runTest {
+    val testEnvironment = TestEnvironment(this, createLoaders(), maxConcurrencyPerLoader = 2)
+
+    testEnvironment.scheduler.onViewportChanged(threadDescriptor, 45, 54)
+    (0 until 100).forEach { postIndex -> testEnvironment.bind(postIndex) }
+    advanceUntilIdle()
+
+    // Posts 0..4 and 95..99 are further than WINDOW_SIZE posts from the viewport
+    assertEquals(((0..4) + (95..99)).toSet(), testEnvironment.cancelledPosts.toSet())
+
+    val postIndexesByFirstContent = testEnvironment.postIndexesByFirstContent()
+    assertEquals(90, postIndexesByFirstContent.size)
+    assertEquals((45..54).toSet(), postIndexesByFirstContent.take(10).toSet())
+
+    val distances = postIndexesByFirstContent.map { postIndex -> distanceToViewport(postIndex, 45, 54) }
+    assertEquals(distances.sorted(), distances)
+
+    val metrics = testEnvironment.scheduler.metrics(threadDescriptor)
+
+    assertEquals(90, metrics.completedPosts)
+    assertEquals(0, metrics.wastedLoaderRuns)
+    assertEquals(10, metrics.visiblePostsWithContent)
+
+    testEnvironment.cleanup()
+  }
+
+  @Test
+  fun `posts scrolled back to the top are demoted and then cancelled when they leave the window`() = runTest {
+    val testEnvironment = TestEnvironment(this, createLoaders(), maxConcurrencyPerLoader = 1)
+
+    testEnvironment.scrollTo(0)
+    advanceTimeBy(SETTLE_DELAY_MS + 50L)
+
+    // Slow scroll down, a post per frame, the first posts are still loading
+    (1..100).forEach { firstVisiblePostIndex ->
+      testEnvironment.scrollTo(firstVisiblePostIndex)
+      advanceTimeBy(FRAME_TIME_MS)
+    }
+
+    advanceUntilIdle()
+
+    val metrics = testEnvironment.scheduler.metrics(threadDescriptor)
+
+    assertTrue("wastedLoaderRuns=${metrics.wastedLoaderRuns}", metrics.wastedLoaderRuns > 0)
+    assertEquals(metrics.scheduledPosts, metrics.completedPosts + metrics.cancelledPosts)
+    assertEquals(metrics.cancelledPosts, testEnvironment.cancelledPosts.size)
+    // Every post that got cancelled was far away from the viewport at that moment
+    testEnvironment.cancelledPosts.forEach { postIndex -> assertTrue(postIndex < 100 - WINDOW_SIZE) }
+    // The posts the scroll stopped at got their content
+    (100 until 100 + VISIBLE_POSTS).forEach { postIndex -> testEnvironment.firstContentTime(postIndex) }
+
+    testEnvironment.cleanup()
+  }
+
+  @Test
+  fun `loaders of different posts run in parallel but loaders of the same post run in order`() = runTest {
+    val firstLoader = FakeLoader(LoaderType.PrefetchLoader, loadingTimeMs = 100L, needUpdateView = true)
+    val secondLoader = FakeLoader(LoaderType.PostExtraContentLoader, loadingTimeMs = 100L, needUpdateView = true)
+    val testEnvironment = TestEnvironment(
+      testScope = this,
+      loaders = listOf(firstLoader, secondLoader),
+      maxConcurrencyPerLoader = 1,
+      settleDelayMs = 0L
+    )
+
+    testEnvironment.scheduler.onViewportChanged(threadDescriptor, 0, 2)
+    (0..2).forEach { postIndex -> testEnvironment.bind(postIndex) }
+
+    // One post after another would take 600ms
+    advanceTimeBy(401L)
+    runCurrent()
+
+    assertEquals(3, testEnvironment.scheduler.metrics(threadDescriptor).completedPosts)
+    assertEquals(1, firstLoader.maxRunning)
+    assertEquals(1, secondLoader.maxRunning)
+
+    (0..2).forEach { postIndex ->
+      val postDescriptor = testEnvironment.postDescriptor(postIndex)
+      assertTrue(firstLoader.finishTimes[postDescriptor]!! <= secondLoader.startTimes[postDescriptor]!!)
+    }
+
+    testEnvironment.cleanup()
+  }
+
+  @Test
+  fun `posts with unknown indexes are never cancelled`() = runTest {
+    val testEnvironment = TestEnvironment(this, createLoaders())
+
+    testEnvironment.scheduler.onViewportChanged(threadDescriptor, 0, 9)
+    testEnvironment.bind(500, knownIndex = false)
+    testEnvironment.scheduler.onViewportChanged(threadDescriptor, 200, 209)
+    advanceUntilIdle()
+
+    val metrics = testEnvironment.scheduler.metrics(threadDescriptor)
+    assertEquals(1, metrics.completedPosts)
+    assertEquals(0, metrics.cancelledPosts)
+
+    testEnvironment.cleanup()
+  }
+
+  @Test
+  fun `metrics are collected per thread or catalog and reset when the viewport is forgotten`() = runTest {
+    val testEnvironment = TestEnvironment(this, createLoaders())
+    val catalogDescriptor = threadDescriptor.catalogDescriptor()
+
+    testEnvironment.scrollTo(0)
+    testEnvironment.scheduler.onViewportChanged(catalogDescriptor, 0, 4)
+    (0 until 5).forEach { postIndex ->
+      val postDescriptor = PostDescriptor.create(catalogDescriptor, THREAD_NO + postIndex)
+      testEnvironment.scheduler.schedule(PostLoaderData(catalogMode = true, postDescriptor = postDescriptor), postIndex)
+    }
+
+    advanceUntilIdle()
+
+    assertEquals(VISIBLE_POSTS, testEnvironment.scheduler.metrics(threadDescriptor).completedPosts)
+    assertEquals(5, testEnvironment.scheduler.metrics(catalogDescriptor).completedPosts)
+
+    val catalogMetrics = testEnvironment.scheduler.forgetViewport(catalogDescriptor)
+    assertEquals(5, catalogMetrics.scheduledPosts)
+    assertEquals(5, catalogMetrics.completedPosts)
+    assertEquals(5, catalogMetrics.visiblePostsWithContent)
+
+    // The catalog was opened again
+    assertEquals(0, testEnvironment.scheduler.metrics(catalogDescriptor).scheduledPosts)
+    // The thread is still opened
+    assertEquals(VISIBLE_POSTS, testEnvironment.scheduler.metrics(threadDescriptor).scheduledPosts)
+
+    testEnvironment.cleanup()
+  }
+
+  private fun createLoaders(): List<FakeLoader> {
+    return listOf(
+      FakeLoader(LoaderType.PrefetchLoader, loadingTimeMs = 200L, needUpdateView = false),
+      FakeLoader(LoaderType.PostExtraContentLoader, loadingTimeMs = 300L, needUpdateView = true),
+      FakeLoader(LoaderType.ThirdEyeLoader, loadingTimeMs = 100L, needUpdateView = true)
+    )
+  }
+
+  private fun distanceToViewport(postIndex: Int, firstVisiblePostIndex: Int, lastVisiblePostIndex: Int): Int {
+    if (postIndex in firstVisiblePostIndex..lastVisiblePostIndex) {
+      return 0
+    }
+
+    return min(abs(postIndex - firstVisiblePostIndex), abs(postIndex - lastVisiblePostIndex))
+  }
+
+  /**
+   * Imitates a RecyclerView: posts are bound when they become visible for the first time (or again
+   * after they were cancelled by the scheduler), nothing is unbound.
+   * */
+  private inner class TestEnvironment(
+    private val testScope: TestScope,
+    loaders: List<FakeLoader>,
+    maxConcurrencyPerLoader: Int = MAX_CONCURRENCY_PER_LOADER,
+    settleDelayMs: Long = SETTLE_DELAY_MS
+  ) {
+    private val dispatcher = StandardTestDispatcher(testScope.testScheduler)
+    private val schedulerScope = CoroutineScope(dispatcher + SupervisorJob())
+    private val boundPosts = mutableSetOf<PostDescriptor>()
+    private val firstContentTimes = linkedMapOf<PostDescriptor, Long>()
+
+    val cancelledPosts = mutableListOf<Int>()
+
+    val scheduler = PostLoaderScheduler(
+      scope = schedulerScope,
+      dispatcher = dispatcher,
+      loaders = loaders,
+      maxConcurrencyPerLoader = maxConcurrencyPerLoader,
+      windowSize = WINDOW_SIZE,
+      settleDelayMs = settleDelayMs,
+      maxLoadingTimeMs = 15_000L,
+      currentTimeMs = { testScope.testScheduler.currentTime },
+      onCancelled = { postLoaderData ->
+        boundPosts.remove(postLoaderData.postDescriptor)
+        cancelledPosts += postIndex(postLoaderData.postDescriptor)
+      },
+      onContentLoaded = { loaderBatchResult ->
+        if (!firstContentTimes.containsKey(loaderBatchResult.postDescriptor)) {
+          firstContentTimes[loaderBatchResult.postDescriptor] = testScope.testScheduler.currentTime
+        }
+      }
+    )
+
+    fun scrollTo(firstVisiblePostIndex: Int) {
+      val lastVisiblePostIndex = firstVisiblePostIndex + VISIBLE_POSTS - 1
+
+      scheduler.onViewportChanged(threadDescriptor, firstVisiblePostIndex, lastVisiblePostIndex)
+      (firstVisiblePostIndex..lastVisiblePostIndex).forEach { postIndex -> bind(postIndex) }
+    }
+
+    fun bind(postIndex: Int, knownIndex: Boolean = true) {
+      val postDescriptor = postDescriptor(postIndex)
+      if (!boundPosts.add(postDescriptor)) {
+        return
+      }
+
+      val postLoaderData = PostLoaderData(catalogMode = false, postDescriptor = postDescriptor)
+      scheduler.schedule(postLoaderData, if (knownIndex) postIndex else -1)
+    }
+
+    fun firstContentTime(postIndex: Int): Long {
+      val firstContentTime = firstContentTimes[postDescriptor(postIndex)]
+      assertTrue("No content for postIndex=$postIndex", firstContentTime != null)
+
+      return firstContentTime!!
+    }
+
+    fun postIndexesByFirstContent(): List<Int> {
+      return firstContentTimes.keys.map { postDescriptor -> postIndex(postDescriptor) }
+    }
+
+    fun postDescriptor(postIndex: Int): PostDescriptor {
+      return PostDescriptor.create(threadDescriptor, THREAD_NO + postIndex)
+    }
+
+    fun cleanup() {
+      schedulerScope.cancel()
+    }
+
+    private fun postIndex(postDescriptor: PostDescriptor): Int {
+      return (postDescriptor.postNo - THREAD_NO).toInt()
+    }
+  }
+
+  private class FakeLoader(
+    loaderType: LoaderType,
+    private val loadingTimeMs: Long,
+    private val needUpdateView: Boolean
+  ) : OnDemandContentLoader(loaderType) {
+    private var running = 0
+    var maxRunning = 0
+
+    val startTimes = mutableMapOf<PostDescriptor, Long>()
+    val finishTimes = mutableMapOf<PostDescriptor, Long>()
+
+    override suspend fun isCached(postLoaderData: PostLoaderData): Boolean = false
+
+    override suspend fun startLoading(postLoaderData: PostLoaderData): LoaderResult {
+      val startTime = System.nanoTime()
+      startTimes[postLoaderData.postDescriptor] = startTime
+
+      ++running
+      maxRunning = maxOf(maxRunning, running)
+
+      try {
+        delay(loadingTimeMs)
+      } finally {
+        --running
+      }
+
+      finishTimes[postLoaderData.postDescriptor] = System.nanoTime()
+      return succeeded(needUpdateView)
+    }
+
+    override fun cancelLoading(postLoaderData: PostLoaderData) {
+    }
+  }
+
+  companion object {
+    private const val THREAD_NO = 1_000_000L
+    private const val VISIBLE_POSTS = 10
+    private const val WINDOW_SIZE = 40
+    private const val SETTLE_DELAY_MS = 300L
+    private const val FRAME_TIME_MS = 16L
+    private const val LOADERS_COUNT = 3
+    private const val MAX_CONCURRENCY_PER_LOADER = 4
+  }
+
+}
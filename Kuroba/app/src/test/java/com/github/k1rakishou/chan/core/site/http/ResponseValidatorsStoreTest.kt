@@ -0,0 +1,149 @@
+package com.github.k1rakishou.chan.core.site.http
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNull
+import okhttp3.HttpUrl
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class ResponseValidatorsStoreTest {
+  private val okHttpClient = OkHttpClient()
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+
+  private lateinit var server: MockWebServer
+  private lateinit var dispatcher: ThreadDispatcher
+  private lateinit var responseValidatorsStore: ResponseValidatorsStore
+
+  @Before
+  fun setUp() {
+    dispatcher = ThreadDispatcher()
+
+    server = MockWebServer()
+    server.dispatcher = dispatcher
+    server.start()
+
+    responseValidatorsStore = ResponseValidatorsStore()
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+  }
+
+  @Test
+  fun `test not modified thread is not downloaded again`() {
+    val url = server.url("/g/thread/1.json")
+
+    executeRequest(url).use { response ->
+      assertEquals(200, response.code)
+      responseValidatorsStore.put(threadDescriptor, url, response)
+    }
+
+    val responseValidators = responseValidatorsStore.get(threadDescriptor, url)
+    assertNotNull(responseValidators)
+    assertEquals(dispatcher.eTag, responseValidators!!.eTag)
+    assertEquals(LAST_MODIFIED, responseValidators.lastModified)
+
+    executeRequest(url, responseValidators).use { response ->
+      assertEquals(ResponseValidators.NOT_MODIFIED_STATUS, response.code)
+      assertEquals(0L, response.body!!.contentLength())
+    }
+
+    server.takeRequest()
+    val conditionalRequest = server.takeRequest()
+    assertEquals(dispatcher.eTag, conditionalRequest.getHeader("If-None-Match"))
+    assertEquals(LAST_MODIFIED, conditionalRequest.getHeader("If-Modified-Since"))
+  }
+
+  @Test
+  fun `test modified thread is downloaded and its new validators are remembered`() {
+    val url = server.url("/g/thread/1.json")
+
+    executeRequest(url).use { response -> responseValidatorsStore.put(threadDescriptor, url, response) }
+    val oldResponseValidators = responseValidatorsStore.get(threadDescriptor, url)!!
+
+    dispatcher.eTag = "\"v2\""
+
+    executeRequest(url, oldResponseValidators).use { response ->
+      assertEquals(200, response.code)
+      assertEquals(THREAD_JSON, response.body!!.string())
+      responseValidatorsStore.put(threadDescriptor, url, response)
+    }
+
+    assertEquals("\"v2\"", responseValidatorsStore.get(threadDescriptor, url)?.eTag)
+  }
+
+  @Test
+  fun `test validators are not used for a different url`() {
+    val url = server.url("/g/thread/1.json")
+    val incrementalUrl = server.url("/g/thread/1/10.json")
+
+    executeRequest(url).use { response -> responseValidatorsStore.put(threadDescriptor, url, response) }
+
+    assertNotNull(responseValidatorsStore.get(threadDescriptor, url))
+    assertNull(responseValidatorsStore.get(threadDescriptor, incrementalUrl))
+  }
+
+  @Test
+  fun `test validators are forgotten when the server stops sending them`() {
+    val url = server.url("/g/thread/1.json")
+
+    executeRequest(url).use { response -> responseValidatorsStore.put(threadDescriptor, url, response) }
+    assertNotNull(responseValidatorsStore.get(threadDescriptor, url))
+
+    dispatcher.supportsValidators = false
+
+    executeRequest(url, responseValidatorsStore.get(threadDescriptor, url)).use { response ->
+      assertEquals(200, response.code)
+      responseValidatorsStore.put(threadDescriptor, url, response)
+    }
+
+    assertNull(responseValidatorsStore.get(threadDescriptor, url))
+  }
+
+  private fun executeRequest(url: HttpUrl, responseValidators: ResponseValidators? = null): Response {
+    val requestBuilder = Request.Builder()
+      .url(url)
+      .get()
+
+    responseValidators?.applyTo(requestBuilder)
+
+    return okHttpClient.newCall(requestBuilder.build()).execute()
+  }
+
+  private class ThreadDispatcher : Dispatcher() {
+    @Volatile var eTag = "\"v1\""
+    @Volatile var supportsValidators = true
+
+    override fun dispatch(request: RecordedRequest): MockResponse {
+      if (!supportsValidators) {
+        return MockResponse().setBody(THREAD_JSON)
+      }
+
+      if (request.getHeader("If-None-Match") == eTag) {
+        return MockResponse().setResponseCode(ResponseValidators.NOT_MODIFIED_STATUS)
+      }
+
+      return MockResponse()
+        .setHeader("ETag", eTag)
+        .setHeader("Last-Modified", LAST_MODIFIED)
+        .setBody(THREAD_JSON)
+    }
+  }
+
+  companion object {
+    private const val THREAD_JSON = "{\"posts\":[{\"no\":1}]}"
+    private const val LAST_MODIFIED = "Sat, 17 Oct 2026 10:00:00 GMT"
+  }
+
+}
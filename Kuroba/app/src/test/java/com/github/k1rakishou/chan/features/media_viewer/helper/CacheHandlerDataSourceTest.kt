@@ -0,0 +1,371 @@
+package com.github.k1rakishou.chan.features.media_viewer.helper
+
+import android.app.Application
+import android.net.Uri
+import com.github.k1rakishou.BookmarkGridViewInfo
+import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.ChanSettingsInfo
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.CacheHandlerMediaStore
+import com.github.k1rakishou.chan.core.cache.CachedMediaStore
+import com.github.k1rakishou.chan.core.cache.downloader.Chunk
+import com.github.k1rakishou.chan.core.cache.downloader.PartialDownloadState
+import com.github.k1rakishou.chan.core.cache.downloader.PartialDownloadStateStore
+import com.github.k1rakishou.chan.ui.adapter.PostsFilter
+import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
+import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.common.AppConstants
+import com.google.android.exoplayer2.C
+import com.google.android.exoplayer2.upstream.DataSource
+import com.google.android.exoplayer2.upstream.DataSpec
+import com.google.android.exoplayer2.upstream.DefaultHttpDataSource
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okio.Buffer
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.file.Files
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [29], application = Application::class)
+class CacheHandlerDataSourceTest {
+  private val videoBytes = Random(1337).nextBytes(1024 * 1024 + 123)
+
+  private lateinit var server: MockWebServer
+  private lateinit var dispatcher: RangeDispatcher
+  private lateinit var dir: File
+  private lateinit var cachedMediaStore: TestCachedMediaStore
+  private lateinit var url: String
+
+  @Before
+  fun setUp() {
+    dispatcher = RangeDispatcher(videoBytes)
+
+    server = MockWebServer()
+    server.dispatcher = dispatcher
+    server.start()
+
+    dir = Files.createTempDirectory("cache_handler_data_source_test").toFile()
+    cachedMediaStore = TestCachedMediaStore(dir)
+    url = server.url("/video.webm").toString()
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+    dir.deleteRecursively()
+  }
+
+  @Test
+  fun `test prefetched video is played without fetching anything`() {
+    // Downloaded by the prefetcher
+    cachedMediaStore.file(url).writeBytes(videoBytes)
+    cachedMediaStore.markDownloaded(url, cachedMediaStore.file(url))
+
+    assertTrue(videoBytes.contentEquals(play(url)))
+
+    // The user seeks somewhere into the middle of the video
+    val seekPosition = videoBytes.size / 2L
+    assertTrue(videoBytes.copyOfRange(seekPosition.toInt(), videoBytes.size).contentEquals(play(url, seekPosition)))
+
+    assertEquals(0, server.requestCount)
+    assertEquals(0L, dispatcher.servedBytes)
+  }
+
+  @Test
+  fun `test partially prefetched video only fetches the missing ranges`() {
+    val downloadedRanges = listOf(Chunk(0, 300_000), Chunk(600_000, 800_000))
+    val partiallyDownloadedBytes = videoBytes.copyOf()
+
+    // The prefetch was interrupted, the missing ranges of the file are garbage
+    var missingRangeStart = 0
+    for (downloadedRange in downloadedRanges + Chunk(videoBytes.size.toLong(), videoBytes.size.toLong())) {
+      partiallyDownloadedBytes.fill(0x7F, missingRangeStart, downloadedRange.start.toInt())
+      missingRangeStart = downloadedRange.realEnd.toInt()
+    }
+
+    cachedMediaStore.file(url).writeBytes(partiallyDownloadedBytes)
+    cachedMediaStore.updatePartialFile(url, PartialDownloadState(videoBytes.size.toLong(), ETAG, null, downloadedRanges))
+
+    assertTrue(videoBytes.contentEquals(play(url)))
+
+    val missingBytes = videoBytes.size - downloadedRanges.sumOf { range -> range.chunkSize() }
+    assertEquals(missingBytes, dispatcher.servedBytes)
+    assertTrue(dispatcher.ifRangeHeaders.all { ifRange -> ifRange == ETAG })
+
+    // All the missing ranges were written into the cache file so it's completely downloaded now
+    assertNotNull(cachedMediaStore.getDownloadedFile(url))
+
+    val requestCount = server.requestCount
+    assertTrue(videoBytes.contentEquals(play(url)))
+    assertEquals(requestCount, server.requestCount)
+  }
+
+  @Test
+  fun `test video that is not cached is fetched only once`() {
+    assertTrue(videoBytes.contentEquals(play(url)))
+
+    assertEquals(1, server.requestCount)
+    assertEquals(videoBytes.size.toLong(), dispatcher.servedBytes)
+    assertNotNull(cachedMediaStore.getDownloadedFile(url))
+    assertNull(cachedMediaStore.getPartialFile(url))
+
+    assertTrue(videoBytes.contentEquals(play(url)))
+    assertTrue(videoBytes.copyOfRange(1000, videoBytes.size).contentEquals(play(url, 1000)))
+
+    assertEquals(1, server.requestCount)
+    assertEquals(videoBytes.size.toLong(), dispatcher.servedBytes)
+  }
+
+  @Test
+  fun `test video that was not played till the end is resumed by the next playback`() {
+    val playedBytes = 400_000
+
+    // The user closes the video after a couple of seconds
+    val dataSource = createDataSource()
+    dataSource.open(DataSpec(Uri.parse(url)))
+    val buffer = ByteArray(playedBytes)
+    var read = 0
+    while (read < playedBytes) {
+      read += dataSource.read(buffer, read, playedBytes - read)
+    }
+    dataSource.close()
+
+    val partialFile = cachedMediaStore.getPartialFile(url)
+    assertNotNull(partialFile)
+    assertTrue(partialFile!!.state.downloadedBytes() >= playedBytes)
+
+    val servedBytes = dispatcher.servedBytes
+    assertTrue(videoBytes.contentEquals(play(url)))
+
+    // Only the rest of the file was fetched
+    assertEquals(videoBytes.size - partialFile.state.downloadedBytes(), dispatcher.servedBytes - servedBytes)
+    assertNotNull(cachedMediaStore.getDownloadedFile(url))
+  }
+
+  @Test
+  fun `test video streamed into the real cache is journaled and accounted once`() {
+    val diskCacheDir = File(dir, "disk_cache")
+    val cacheFileType = CacheFileType.PostMediaFull
+    val playedBytes = 400_000
+
+    initChanSettings()
+    val cacheHandler = createCacheHandler(diskCacheDir)
+    val mediaStore = CacheHandlerMediaStore(cacheHandler, cacheFileType)
+
+    // The user closes the video after a couple of seconds
+    val dataSource = createDataSource(mediaStore)
+    dataSource.open(DataSpec(Uri.parse(url)))
+    val buffer = ByteArray(playedBytes)
+    var read = 0
+    while (read < playedBytes) {
+      read += dataSource.read(buffer, read, playedBytes - read)
+    }
+    dataSource.close()
+
+    assertNull(cacheHandler.getCacheFileOrNull(cacheFileType, url))
+    assertNotNull(cacheHandler.getNotDownloadedCacheFileOrNull(cacheFileType, url))
+    // The whole file was allocated right away and is counted towards the cache size
+    assertEquals(videoBytes.size.toLong(), cacheHandler.getSize(cacheFileType))
+
+    // The app was restarted, the allocated size was stored in the journal
+    val restartedCacheHandler = createCacheHandler(diskCacheDir)
+    val restartedMediaStore = CacheHandlerMediaStore(restartedCacheHandler, cacheFileType)
+    assertEquals(videoBytes.size.toLong(), restartedCacheHandler.getSize(cacheFileType))
+
+    val partialFile = restartedMediaStore.getPartialFile(url)
+    assertNotNull(partialFile)
+    assertTrue(partialFile!!.state.downloadedBytes() >= playedBytes)
+
+    val servedBytes = dispatcher.servedBytes
+    assertTrue(videoBytes.contentEquals(play(url, mediaStore = restartedMediaStore)))
+    assertEquals(videoBytes.size - partialFile.state.downloadedBytes(), dispatcher.servedBytes - servedBytes)
+
+    // Marked as downloaded, the allocated size was replaced with the size of the downloaded file
+    assertNull(restartedCacheHandler.getNotDownloadedCacheFileOrNull(cacheFileType, url))
+    assertNull(restartedMediaStore.getPartialFile(url))
+    assertFalse(restartedCacheHandler.getPartialDownloadStateFile(cacheFileType, url).exists())
+
+    val downloadedFile = restartedCacheHandler.getCacheFileOrNull(cacheFileType, url)
+    assertNotNull(downloadedFile)
+    assertTrue(videoBytes.contentEquals(downloadedFile!!.readBytes()))
+    assertEquals(videoBytes.size.toLong(), restartedCacheHandler.getSize(cacheFileType))
+  }
+
+  private fun initChanSettings() {
+    val application = RuntimeEnvironment.application
+
+    AndroidUtils.init(application)
+    AppModuleAndroidUtils.init(application)
+    ChanSettings.init(
+      ChanSettingsInfo(
+        applicationId = application.packageName,
+        isTablet = false,
+        defaultFilterOrderName = PostsFilter.Order.BUMP.orderName,
+        isDevBuild = false,
+        isBetaBuild = false,
+        bookmarkGridViewInfo = BookmarkGridViewInfo(defaultWidth = 100, minWidth = 50, maxWidth = 200)
+      )
+    )
+  }
+
+  private fun createCacheHandler(diskCacheDir: File): CacheHandler {
+    val appConstants = mock<AppConstants> {
+      on { this.diskCacheDir } doReturn diskCacheDir
+    }
+
+    return CacheHandler(autoLoadThreadImages = false, appConstants = appConstants)
+  }
+
+  private fun createDataSource(mediaStore: CachedMediaStore = cachedMediaStore): DataSource {
+    return CacheHandlerDataSource.Factory(mediaStore, DefaultHttpDataSource.Factory())
+      .createDataSource()
+  }
+
+  /**
+   * Reads the media the way ExoPlayer's ProgressiveMediaPeriod does it, from [position] (seek) up
+   * to the end of the file.
+   * */
+  private fun play(url: String, position: Long = 0L, mediaStore: CachedMediaStore = cachedMediaStore): ByteArray {
+    val dataSource = createDataSource(mediaStore)
+    val output = ByteArrayOutputStream()
+
+    try {
+      dataSource.open(DataSpec.Builder().setUri(Uri.parse(url)).setPosition(position).build())
+
+      val buffer = ByteArray(32 * 1024)
+
+      while (true) {
+        val read = dataSource.read(buffer, 0, buffer.size)
+        if (read == C.RESULT_END_OF_INPUT) {
+          break
+        }
+
+        output.write(buffer, 0, read)
+      }
+    } finally {
+      dataSource.close()
+    }
+
+    return output.toByteArray()
+  }
+
+  /**
+   * CacheHandler's files in a temp directory.
+   * */
+  private class TestCachedMediaStore(private val dir: File) : CachedMediaStore {
+    private val downloadedUrls = mutableSetOf<String>()
+    private val partialDownloadStateStore = PartialDownloadStateStore { _, url ->
+      File(dir, "${url.hashCode()}.download_state")
+    }
+
+    fun file(url: String): File = File(dir, "${url.hashCode()}.cache")
+
+    override fun getDownloadedFile(url: String): File? {
+      return file(url).takeIf { url in downloadedUrls }
+    }
+
+    override fun getPartialFile(url: String): CachedMediaStore.PartialFile? {
+      if (url in downloadedUrls || !file(url).exists()) {
+        return null
+      }
+
+      val state = partialDownloadStateStore.load(CacheFileType.PostMediaFull, url)
+        ?: return null
+
+      if (file(url).length() != state.fileLength) {
+        return null
+      }
+
+      return CachedMediaStore.PartialFile(file(url), state)
+    }
+
+    override fun createPartialFile(url: String, state: PartialDownloadState): File? {
+      val file = file(url)
+      if (file.exists()) {
+        return null
+      }
+
+      RandomAccessFile(file, "rw").use { randomAccessFile -> randomAccessFile.setLength(state.fileLength) }
+      partialDownloadStateStore.save(CacheFileType.PostMediaFull, url, state)
+
+      return file
+    }
+
+    override fun updatePartialFile(url: String, state: PartialDownloadState) {
+      partialDownloadStateStore.save(CacheFileType.PostMediaFull, url, state)
+    }
+
+    override fun markDownloaded(url: String, file: File): Boolean {
+      partialDownloadStateStore.delete(CacheFileType.PostMediaFull, url)
+      downloadedUrls += url
+      return true
+    }
+
+    override fun delete(url: String) {
+      partialDownloadStateStore.delete(CacheFileType.PostMediaFull, url)
+      downloadedUrls -= url
+      file(url).delete()
+    }
+  }
+
+  private class RangeDispatcher(private val fileBytes: ByteArray) : Dispatcher() {
+    @Volatile
+    var servedBytes = 0L
+    val ifRangeHeaders = mutableListOf<String?>()
+
+    @Synchronized
+    override fun dispatch(request: RecordedRequest): MockResponse {
+      val range = request.getHeader("Range")
+
+      if (range == null) {
+        servedBytes += fileBytes.size
+
+        return MockResponse()
+          .setResponseCode(200)
+          .setHeader("Accept-Ranges", "bytes")
+          .setHeader("ETag", ETAG)
+          .setBody(Buffer().write(fileBytes))
+      }
+
+      ifRangeHeaders += request.getHeader("If-Range")
+
+      val (startString, endString) = range.removePrefix("bytes=").split("-")
+      val start = startString.toInt()
+      val end = if (endString.isEmpty()) fileBytes.size - 1 else endString.toInt()
+
+      servedBytes += end - start + 1
+
+      return MockResponse()
+        .setResponseCode(206)
+        .setHeader("Accept-Ranges", "bytes")
+        .setHeader("ETag", ETAG)
+        .setHeader("Content-Range", "bytes $start-$end/${fileBytes.size}")
+        .setBody(Buffer().write(fileBytes, start, end - start + 1))
+    }
+  }
+
+  companion object {
+    private const val ETAG = "\"5f6a1c2b-100000\""
+  }
+
+}
@@ -0,0 +1,194 @@
+package com.github.k1rakishou.chan.features.media_viewer.helper
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class MediaViewerPrefetchPlannerTest {
+
+  @Test
+  fun `swiping forward prefetches the pages ahead and only the pager window behind`() {
+    val testEnvironment = TestEnvironment()
+
+    // Direction is unknown yet, both sides are prefetched
+    testEnvironment.selectAt(10, 0L)
+    assertEquals(urls(11, 9), testEnvironment.prefetcher.requested)
+
+    testEnvironment.prefetcher.finishAll()
+    assertEquals(urls(11, 9, 12, 8), testEnvironment.prefetcher.requested)
+
+    testEnvironment.selectAt(11, 2_000L)
+    testEnvironment.prefetcher.finishAll()
+    testEnvironment.selectAt(12, 4_000L)
+    testEnvironment.prefetcher.finishAll()
+    testEnvironment.selectAt(13, 6_000L)
+    testEnvironment.prefetcher.finishAll()
+
+    // The page that was opened first (10) is never prefetched
+    assertEquals(urls(11, 9, 12, 8, 13, 14, 15, 16), testEnvironment.prefetcher.requested)
+    assertTrue(testEnvironment.prefetcher.cancelled.isEmpty())
+
+    val metrics = testEnvironment.planner.metrics()
+    assertEquals(3, metrics.hits)
+    assertEquals(0, metrics.misses)
+    assertEquals(3, metrics.aheadDepth)
+  }
+
+  @Test
+  fun `changing the swipe direction cancels the stale prefetches and prefetches the other way`() {
+    val testEnvironment = TestEnvironment()
+
+    testEnvironment.selectAt(20, 0L)
+    testEnvironment.prefetcher.finishAll()
+    testEnvironment.selectAt(21, 500L)
+    testEnvironment.selectAt(22, 1_000L)
+    testEnvironment.prefetcher.finishAll()
+    testEnvironment.selectAt(23, 1_500L)
+    testEnvironment.selectAt(24, 2_000L)
+
+    assertEquals(urls(21, 19, 22, 18, 23, 24, 25, 26, 27), testEnvironment.prefetcher.requested)
+    assertEquals(urls(26, 27), testEnvironment.prefetcher.running())
+
+    testEnvironment.selectAt(23, 2_500L)
+
+    // Both are more than one page away from the current one so the pager doesn't use them
+    assertEquals(urls(26, 27), testEnvironment.prefetcher.cancelled)
+    assertEquals(2, testEnvironment.planner.metrics().cancelled)
+
+    testEnvironment.selectAt(22, 3_000L)
+    testEnvironment.selectAt(21, 3_500L)
+    testEnvironment.selectAt(20, 4_000L)
+    testEnvironment.selectAt(19, 4_500L)
+
+    assertEquals(urls(21, 19, 22, 18, 23, 24, 25, 26, 27, 17, 16), testEnvironment.prefetcher.requested)
+  }
+
+  @Test
+  fun `fast network prefetches further ahead than slow network`() {
+    val fast = TestEnvironment()
+
+    fast.selectAt(0, 0L)
+    fast.download(url(1), MEDIA_SIZE, downloadTimeMs = 100L)
+    fast.download(url(2), MEDIA_SIZE, downloadTimeMs = 100L)
+    fast.selectAt(1, 1_000L)
+
+    assertEquals(MediaViewerPrefetchPlanner.MAX_AHEAD_DEPTH, fast.planner.metrics().aheadDepth)
+    assertEquals(urls(1, 2, 3, 4), fast.prefetcher.requested)
+
+    val slow = TestEnvironment()
+
+    slow.selectAt(0, 0L)
+    slow.prefetcher.startAll()
+    slow.selectAt(1, 1_000L)
+    // 10 seconds are only enough to download less than 2 files
+    slow.now = 6_000L
+    slow.prefetcher.finish(url(1), MEDIA_SIZE)
+    slow.prefetcher.finish(url(2), MEDIA_SIZE)
+
+    assertEquals(2, slow.planner.metrics().aheadDepth)
+    assertEquals(urls(1, 2, 3), slow.prefetcher.requested)
+  }
+
+  @Test
+  fun `hits and misses are counted for the prefetchable pages only`() {
+    val testEnvironment = TestEnvironment(notPrefetchablePages = setOf(3))
+
+    testEnvironment.selectAt(0, 0L)
+    testEnvironment.prefetcher.finish(url(1), MEDIA_SIZE)
+
+    testEnvironment.selectAt(1, 1_000L)
+    testEnvironment.selectAt(2, 2_000L)
+    testEnvironment.selectAt(3, 3_000L)
+    // Jumped with the scroller
+    testEnvironment.selectAt(25, 4_000L)
+    // Came back to an already viewed page
+    testEnvironment.selectAt(24, 5_000L)
+    testEnvironment.selectAt(25, 6_000L)
+
+    val metrics = testEnvironment.planner.metrics()
+    assertEquals(1, metrics.hits)
+    assertEquals(3, metrics.misses)
+    assertTrue(url(3) !in testEnvironment.prefetcher.requested)
+
+    testEnvironment.planner.onDestroy()
+    assertTrue(testEnvironment.prefetcher.running().isEmpty())
+  }
+
+  private class TestEnvironment(
+    notPrefetchablePages: Set<Int> = emptySet()
+  ) {
+    var now = 0L
+
+    val prefetcher = FakeMediaPrefetcher()
+    val planner = MediaViewerPrefetchPlanner(
+      mediaPrefetcher = prefetcher,
+      pagesCount = { PAGES_COUNT },
+      prefetchUrlAt = { position -> url(position).takeIf { position !in notPrefetchablePages } },
+      offscreenPageLimit = OFFSCREEN_PAGE_LIMIT,
+      currentTimeMs = { now }
+    )
+
+    fun selectAt(position: Int, timeMs: Long) {
+      now = timeMs
+      planner.onPageSelected(position)
+    }
+
+    fun download(url: String, fileSize: Long, downloadTimeMs: Long) {
+      prefetcher.start(url)
+      now += downloadTimeMs
+      prefetcher.finish(url, fileSize)
+    }
+  }
+
+  private class FakeMediaPrefetcher : MediaViewerPrefetchPlanner.MediaPrefetcher {
+    private val listeners = linkedMapOf<String, MediaViewerPrefetchPlanner.MediaPrefetcher.Listener>()
+
+    val requested = mutableListOf<String>()
+    val cancelled = mutableListOf<String>()
+
+    override fun prefetch(
+      url: String,
+      listener: MediaViewerPrefetchPlanner.MediaPrefetcher.Listener
+    ): MediaViewerPrefetchPlanner.MediaPrefetcher.Cancelable {
+      requested += url
+      listeners[url] = listener
+
+      return MediaViewerPrefetchPlanner.MediaPrefetcher.Cancelable {
+        if (listeners.remove(url) != null) {
+          cancelled += url
+        }
+      }
+    }
+
+    fun running(): List<String> = listeners.keys.toList()
+
+    fun startAll() {
+      listeners.values.toList().forEach { listener -> listener.onDownloadStarted() }
+    }
+
+    fun start(url: String) {
+      listeners.getValue(url).onDownloadStarted()
+    }
+
+    fun finish(url: String, fileSize: Long) {
+      listeners.remove(url)?.onSuccess(fileSize)
+    }
+
+    // Files that are already cached
+    fun finishAll() {
+      while (listeners.isNotEmpty()) {
+        finish(listeners.keys.first(), MEDIA_SIZE)
+      }
+    }
+  }
+
+  companion object {
+    private const val PAGES_COUNT = 30
+    private const val OFFSCREEN_PAGE_LIMIT = 1
+    private const val MEDIA_SIZE = 1024L * 1024L
+
+    private fun url(position: Int): String = "https://i.4cdn.org/g/${position}.jpg"
+    private fun urls(vararg positions: Int): List<String> = positions.map { position -> url(position) }
+  }
+
+}
@@ -0,0 +1,220 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import android.app.Application
+import android.content.Context
+import android.net.ConnectivityManager
+import com.github.k1rakishou.BookmarkGridViewInfo
+import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.ChanSettingsInfo
+import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.helper.ThreadDownloaderFileManagerWrapper
+import com.github.k1rakishou.chan.core.site.SiteResolver
+import com.github.k1rakishou.chan.ui.adapter.PostsFilter
+import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
+import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.common.AppConstants
+import com.github.k1rakishou.fsaf.BadPathSymbolResolutionStrategy
+import com.github.k1rakishou.fsaf.FileManager
+import com.github.k1rakishou.fsaf.manager.base_directory.DirectoryManager
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.eq
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.spy
+import com.nhaarman.mockitokotlin2.whenever
+import dagger.Lazy
+import kotlinx.coroutines.runBlocking
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicBoolean
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [29], application = Application::class)
+class ThreadDownloadingDelegateTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1_000_000L)
+
+  private lateinit var server: MockWebServer
+  private lateinit var cacheDir: File
+  private lateinit var fileManager: FileManager
+  private lateinit var cacheHandler: CacheHandler
+  private lateinit var threadDownloadingDelegate: ThreadDownloadingDelegate
+
+  @Before
+  fun setUp() {
+    val application = RuntimeEnvironment.application
+
+    AndroidUtils.init(application)
+    AppModuleAndroidUtils.init(application)
+    ChanSettings.init(
+      ChanSettingsInfo(
+        applicationId = application.packageName,
+        isTablet = false,
+        defaultFilterOrderName = PostsFilter.Order.BUMP.orderName,
+        isDevBuild = false,
+        isBetaBuild = false,
+        bookmarkGridViewInfo = BookmarkGridViewInfo(defaultWidth = 100, minWidth = 50, maxWidth = 200)
+      )
+    )
+    ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork.set(true)
+
+    server = MockWebServer()
+    server.dispatcher = object : Dispatcher() {
+      override fun dispatch(request: RecordedRequest): MockResponse {
+        return MockResponse().setBody(MEDIA_BODY)
+      }
+    }
+    server.start()
+
+    cacheDir = Files.createTempDirectory("thread_downloader_test").toFile()
+
+    fileManager = spy(
+      FileManager(
+        appContext = application,
+        badPathSymbolResolutionStrategy = BadPathSymbolResolutionStrategy.ReplaceBadSymbols,
+        directoryManager = DirectoryManager(application)
+      )
+    )
+
+    val appConstants = mock<AppConstants> {
+      on { processorsCount } doReturn 4
+      on { threadDownloaderCacheDir } doReturn cacheDir
+    }
+
+    val downloaderOkHttpClient = mock<RealDownloaderOkHttpClient> {
+      on { okHttpClient() } doReturn OkHttpClient()
+    }
+
+    // Nothing is in the disk cache by default so every media file has to be downloaded
+    cacheHandler = mock()
+
+    threadDownloadingDelegate = ThreadDownloadingDelegate(
+      appConstants = appConstants,
+      downloaderOkHttpClient = Lazy { downloaderOkHttpClient },
+      cacheHandler = Lazy { cacheHandler },
+      siteManager = mock(),
+      siteResolver = mock<SiteResolver>(),
+      threadDownloadManager = mock(),
+      chanPostRepository = mock(),
+      chanPostImageRepository = mock(),
+      threadDownloaderFileManagerWrapper = ThreadDownloaderFileManagerWrapper(fileManager),
+      threadDownloadProgressNotifier = ThreadDownloadProgressNotifier(),
+      threadDownloaderPersistPostsInDatabaseUseCase = mock()
+    )
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+    cacheDir.deleteRecursively()
+  }
+
+  @Test
+  fun `thread media directory is listed once per thread run regardless of the amount of media`() {
+    val chanPostImages = createChanPostImages()
+
+    // First run downloads everything
+    val firstRunErrors = processThreadMedia(chanPostImages)
+    assertFalse(firstRunErrors)
+    assertEquals(1, countInvocations("listFiles"))
+    assertEquals(IMAGES_COUNT * 2, countInvocations("getOutputStream"))
+    assertEquals(IMAGES_COUNT * 2, server.requestCount)
+
+    val outputDirectory = File(cacheDir, ThreadDownloadingDelegate.formatDirectoryName(threadDescriptor))
+    // "+ 1" because of the .nomedia file
+    assertEquals(IMAGES_COUNT * 2 + 1, outputDirectory.listFiles()!!.size)
+
+    // Second run sees that everything is already downloaded
+    val secondRunErrors = processThreadMedia(chanPostImages)
+    assertFalse(secondRunErrors)
+    assertEquals(2, countInvocations("listFiles"))
+    assertEquals(IMAGES_COUNT * 2, countInvocations("getOutputStream"))
+    assertEquals(IMAGES_COUNT * 2, server.requestCount)
+  }
+
+  @Test
+  fun `cached media is reused even when media can't be downloaded on the current network`() {
+    ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork.set(false)
+    val connectivityManager = RuntimeEnvironment.application
+      .getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+    shadowOf(connectivityManager).setNetworkInfo(ConnectivityManager.TYPE_WIFI, null)
+
+    // Only the full images are in the disk cache
+    val cachedFile = File(cacheDir, "cached_file")
+    cachedFile.writeText(MEDIA_BODY)
+    whenever(cacheHandler.getCacheFileOrNull(eq(CacheFileType.PostMediaFull), any())).thenReturn(cachedFile)
+
+    val chanPostImages = createChanPostImages()
+    val errors = processThreadMedia(chanPostImages)
+    assertFalse(errors)
+
+    val outputDirectory = File(cacheDir, ThreadDownloadingDelegate.formatDirectoryName(threadDescriptor))
+    chanPostImages.forEachIndexed { index, _ ->
+      assertEquals(MEDIA_BODY, File(outputDirectory, "${index}.jpg").readText())
+      assertFalse(File(outputDirectory, "${index}s.jpg").exists())
+    }
+
+    assertEquals(0, server.requestCount)
+  }
+
+  private fun createChanPostImages(): List<ChanPostImage> {
+    return (0 until IMAGES_COUNT).map { index ->
+      ChanPostImage(
+        serverFilename = "$index",
+        actualThumbnailUrl = server.url("/${index}s.jpg"),
+        imageUrl = server.url("/${index}.jpg")
+      )
+    }
+  }
+
+  /**
+   * Returns whether there were any errors.
+   * */
+  private fun processThreadMedia(chanPostImages: List<ChanPostImage>): Boolean {
+    val outOfDiskSpaceError = AtomicBoolean(false)
+    val outputDirError = AtomicBoolean(false)
+
+    runBlocking {
+      threadDownloadingDelegate.processThreadMedia(
+        index = 1,
+        total = 1,
+        chanPostImages = chanPostImages,
+        threadDescriptor = threadDescriptor,
+        outOfDiskSpaceError = outOfDiskSpaceError,
+        outputDirError = outputDirError
+      )
+    }
+
+    return outOfDiskSpaceError.get() || outputDirError.get()
+  }
+
+  private fun countInvocations(methodName: String): Int {
+    return Mockito.mockingDetails(fileManager).invocations
+      .count { invocation -> invocation.method.name == methodName }
+  }
+
+  companion object {
+    private const val IMAGES_COUNT = 100
+    private const val MEDIA_BODY = "media"
+  }
+
+}
@@ -0,0 +1,51 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ThreadMediaDirectoryListingTest {
+
+  @Test
+  fun `empty and deleted files are downloaded again`() {
+    val fakeDirectory = FakeDirectory()
+    fakeDirectory.files["1.jpg"] = 0L
+    fakeDirectory.files["2.jpg"] = 100L
+    fakeDirectory.files["3.jpg"] = 100L
+
+    val directoryListing = ThreadMediaDirectoryListing(fakeDirectory::list)
+
+    assertTrue(directoryListing.contains("1.jpg"))
+    assertFalse(directoryListing.isDownloaded("1.jpg"))
+    assertTrue(directoryListing.isDownloaded("2.jpg"))
+
+    directoryListing.onFileDeleted("3.jpg")
+    assertFalse(directoryListing.contains("3.jpg"))
+    assertFalse(directoryListing.isDownloaded("3.jpg"))
+
+    directoryListing.onFileWritten("1.jpg", 50L)
+    assertTrue(directoryListing.isDownloaded("1.jpg"))
+
+    assertEquals(1, fakeDirectory.listCalls)
+  }
+
+  @Test
+  fun `directory is not listed when there is nothing to check`() {
+    val fakeDirectory = FakeDirectory()
+    ThreadMediaDirectoryListing(fakeDirectory::list)
+
+    assertEquals(0, fakeDirectory.listCalls)
+  }
+
+  private class FakeDirectory {
+    val files = mutableMapOf<String, Long>()
+    var listCalls = 0
+
+    fun list(): Map<String, Long> {
+      ++listCalls
+      return files.toMap()
+    }
+  }
+
+}
@@ -0,0 +1,178 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class PostCellDataDiffTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", THREAD_NO)
+
+  @Test
+  fun `thread growing from 1000 to 1050 posts rebuilds only new and changed posts`() {
+    val oldPosts = createPosts(1000)
+    // 50 new posts that quote the OP, two posts in the middle and the last ten posts so their
+    // replies count changes
+    val quotedPostIndexes = setOf(0, 500, 501) + (990 until 1000)
+    val newPosts = oldPosts.mapIndexed { index, post ->
+      if (index in quotedPostIndexes) post.copy(contentHash = post.contentHash + 1) else post
+    } + createPosts(50, startIndex = 1000)
+
+    val result = calculate(oldPosts, newPosts)
+
+    assertEquals(50 + quotedPostIndexes.size, result.rebuiltCount)
+    assertEquals(
+      listOf(
+        PostCellDataDiff.Update.Changed(0, 1),
+        PostCellDataDiff.Update.Changed(500, 2),
+        PostCellDataDiff.Update.Changed(990, 10),
+        PostCellDataDiff.Update.Inserted(1000, 50)
+      ),
+      result.updates
+    )
+
+    assertAdapterUpdates(toAdapterItems(oldPosts, -1), toAdapterItems(newPosts, -1), result)
+  }
+
+  @Test
+  fun `last seen indicator is moved along with the posts`() {
+    val oldPosts = createPosts(1000)
+    val quotedPostIndexes = setOf(0, 500, 501) + (990 until 1000)
+    val newPosts = oldPosts.mapIndexed { index, post ->
+      if (index in quotedPostIndexes) post.copy(contentHash = post.contentHash + 1) else post
+    } + createPosts(50, startIndex = 1000)
+
+    // Same last seen post
+    val sameIndicatorResult = calculate(oldPosts, newPosts).withLastSeenIndicator(800, 800)
+    assertEquals(4, sameIndicatorResult.updates!!.size)
+    assertAdapterUpdates(toAdapterItems(oldPosts, 800), toAdapterItems(newPosts, 800), sameIndicatorResult)
+
+    // The user has read the thread up to the last of the old posts
+    val movedIndicatorResult = calculate(oldPosts, newPosts).withLastSeenIndicator(800, 1000)
+    assertEquals(6, movedIndicatorResult.updates!!.size)
+    assertAdapterUpdates(toAdapterItems(oldPosts, 800), toAdapterItems(newPosts, 1000), movedIndicatorResult)
+  }
+
+  @Test
+  fun `removed posts are removed and the indicator goes away together with the last seen post`() {
+    val oldPosts = createPosts(100)
+    // Posts 10..14 and the last seen post (49) got filtered out, 3 new posts
+    val newPosts = oldPosts.filterIndexed { index, _ -> index !in 10..14 && index != 49 } +
+      createPosts(3, startIndex = 100)
+
+    val result = calculate(oldPosts, newPosts)
+    assertEquals(3, result.rebuiltCount)
+    assertEquals(
+      listOf(
+        PostCellDataDiff.Update.Removed(10, 5),
+        PostCellDataDiff.Update.Removed(44, 1),
+        PostCellDataDiff.Update.Inserted(94, 3)
+      ),
+      result.updates
+    )
+
+    assertAdapterUpdates(toAdapterItems(oldPosts, 50), toAdapterItems(newPosts, 60), result.withLastSeenIndicator(50, 60))
+    assertAdapterUpdates(toAdapterItems(oldPosts, 50), toAdapterItems(newPosts, -1), result.withLastSeenIndicator(50, -1))
+  }
+
+  @Test
+  fun `posts after a removed post are reused but rebound because their index changed`() {
+    val oldPosts = createPosts(100)
+    val newPosts = reindex(oldPosts.filterIndexed { index, _ -> index != 90 })
+
+    val result = calculate(oldPosts, newPosts)
+
+    assertEquals(0, result.rebuiltCount)
+    assertEquals(
+      listOf(
+        PostCellDataDiff.Update.Removed(90, 1),
+        PostCellDataDiff.Update.Changed(90, 9)
+      ),
+      result.updates
+    )
+    assertEquals(newPosts.drop(90).map { post -> post.postDescriptor }, result.changedPostDescriptors)
+
+    assertAdapterUpdates(toAdapterItems(oldPosts, -1), toAdapterItems(newPosts, -1), result)
+  }
+
+  @Test
+  fun `reordered posts reset the whole list but still reuse unchanged posts`() {
+    val oldPosts = createPosts(100)
+    // A thread got bumped in the catalog
+    val newPosts = listOf(oldPosts[50]) + oldPosts.filterIndexed { index, _ -> index != 50 }
+
+    val result = calculate(oldPosts, newPosts)
+
+    assertNull(result.updates)
+    assertEquals(0, result.rebuiltCount)
+    assertEquals(50, result.reusedOldIndexes[0])
+  }
+
+  private fun calculate(oldPosts: List<TestPost>, newPosts: List<TestPost>): PostCellDataDiff.Result {
+    return PostCellDataDiff.calculate(
+      oldPostDescriptors = oldPosts.map { post -> post.postDescriptor },
+      oldContentHashes = oldPosts.map { post -> post.contentHash }.toIntArray(),
+      oldPostIndexes = oldPosts.map { post -> post.postIndex }.toIntArray(),
+      newPostDescriptors = newPosts.map { post -> post.postDescriptor },
+      newContentHashes = newPosts.map { post -> post.contentHash }.toIntArray(),
+      newPostIndexes = newPosts.map { post -> post.postIndex }.toIntArray()
+    )
+  }
+
+  /**
+   * Applies the updates to the old adapter items the way RecyclerView does and checks that every
+   * item that was not notified about is exactly the same as the new one at the same position.
+   * */
+  private fun assertAdapterUpdates(
+    oldAdapterItems: List<Any>,
+    newAdapterItems: List<Any>,
+    result: PostCellDataDiff.Result
+  ) {
+    val adapterItems = oldAdapterItems.toMutableList<Any?>()
+
+    result.updates!!.forEach { update ->
+      when (update) {
+        is PostCellDataDiff.Update.Inserted -> adapterItems.addAll(update.position, List(update.count) { null })
+        is PostCellDataDiff.Update.Removed -> repeat(update.count) { adapterItems.removeAt(update.position) }
+        is PostCellDataDiff.Update.Changed -> repeat(update.count) { adapterItems[update.position + it] = null }
+      }
+    }
+
+    assertEquals(newAdapterItems.size, adapterItems.size)
+
+    adapterItems.forEachIndexed { index, adapterItem ->
+      if (adapterItem != null) {
+        assertEquals("position=$index", newAdapterItems[index], adapterItem)
+      }
+    }
+  }
+
+  private fun toAdapterItems(posts: List<TestPost>, lastSeenIndicatorPosition: Int): List<Any> {
+    val adapterItems = posts.toMutableList<Any>()
+
+    if (lastSeenIndicatorPosition >= 0) {
+      adapterItems.add(lastSeenIndicatorPosition, LAST_SEEN_INDICATOR)
+    }
+
+    return adapterItems
+  }
+
+  private fun createPosts(count: Int, startIndex: Int = 0): List<TestPost> {
+    return (startIndex until startIndex + count).map { index ->
+      TestPost(PostDescriptor.create(threadDescriptor, THREAD_NO + index), contentHash = index * 31, postIndex = index)
+    }
+  }
+
+  private fun reindex(posts: List<TestPost>): List<TestPost> {
+    return posts.mapIndexed { index, post -> post.copy(postIndex = index) }
+  }
+
+  private data class TestPost(val postDescriptor: PostDescriptor, val contentHash: Int, val postIndex: Int)
+
+  companion object {
+    private const val THREAD_NO = 1_000_000L
+    private const val LAST_SEEN_INDICATOR = "LAST_SEEN_INDICATOR"
+  }
+
+}
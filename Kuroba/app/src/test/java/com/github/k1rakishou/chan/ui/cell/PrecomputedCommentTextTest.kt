@@ -0,0 +1,168 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import android.app.Application
+import android.graphics.Color
+import android.text.PrecomputedText
+import android.text.SpannableString
+import android.text.Spanned
+import android.text.style.BackgroundColorSpan
+import android.text.style.ForegroundColorSpan
+import android.view.View
+import androidx.appcompat.widget.AppCompatTextView
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [29], application = Application::class)
+class PrecomputedCommentTextTest {
+
+  @Test
+  fun `precomputed comments of a 500 posts thread are laid out like the regular ones`() {
+    val textView = AppCompatTextView(RuntimeEnvironment.application)
+    textView.textSize = TEXT_SIZE_SP.toFloat()
+
+    val comments = createSyntheticComments()
+
+    // The first bind publishes the text metrics of the comment view
+    bindAll(textView, comments, precomputedComments = null)
+
+    val precomputedComments = precomputeInBackground(comments)
+    precomputedComments.forEach { precomputedComment -> assertNotNull(precomputedComment) }
+
+    // Precomputed comments are laid out exactly like the regular ones
+    val lineCounts = bindAll(textView, comments, precomputedComments = null)
+    assertEquals(lineCounts, bindAll(textView, comments, precomputedComments))
+    assertTrue(textView.text is PrecomputedText)
+  }
+
+  @Test
+  fun `precomputed comment is not used for another text size or width`() {
+    val textView = AppCompatTextView(RuntimeEnvironment.application)
+    textView.textSize = TEXT_SIZE_SP.toFloat()
+
+    val comment = createSyntheticComments().first()
+    bindAll(textView, listOf(comment), precomputedComments = null)
+
+    val precomputedComment = precomputeInBackground(listOf(comment)).first()
+
+    PrecomputedCommentText.setCommentText(textView, comment, TEXT_SIZE_SP, WIDTH_PX * 2, precomputedComment)
+    assertTrue(textView.text !is PrecomputedText)
+
+    PrecomputedCommentText.setCommentText(textView, comment, TEXT_SIZE_SP, WIDTH_PX, precomputedComment)
+    assertTrue(textView.text is PrecomputedText)
+
+    // Font size changed, the text metrics of the view don't match anymore
+    textView.textSize = (TEXT_SIZE_SP + 2).toFloat()
+    PrecomputedCommentText.setCommentText(textView, comment, TEXT_SIZE_SP, WIDTH_PX, precomputedComment)
+    assertTrue(textView.text !is PrecomputedText)
+  }
+
+  @Test
+  fun `comments are precomputed once the first bound post cell publishes the text metrics`() {
+    // Other tests publish the metrics for TEXT_SIZE_SP
+    val textSizeSp = TEXT_SIZE_SP + 4
+    val comment = createSyntheticComments().first()
+
+    assertFalse(PrecomputedCommentText.hasCommentTextMetrics(textSizeSp))
+    assertNull(PrecomputedCommentText.precompute(comment, textSizeSp, WIDTH_PX))
+
+    val executor = Executors.newSingleThreadExecutor()
+
+    try {
+      // Same as the preloading of the first opened thread
+      val precomputedCommentFuture = executor.submit<PrecomputedCommentText?> {
+        runBlocking { PrecomputedCommentText.awaitCommentTextMetrics(textSizeSp) }
+        PrecomputedCommentText.precompute(comment, textSizeSp, WIDTH_PX)
+      }
+
+      val textView = AppCompatTextView(RuntimeEnvironment.application)
+      textView.textSize = textSizeSp.toFloat()
+      PrecomputedCommentText.setCommentText(textView, comment, textSizeSp, WIDTH_PX, null)
+
+      val precomputedComment = precomputedCommentFuture.get(5, TimeUnit.SECONDS)
+      assertNotNull(precomputedComment)
+
+      PrecomputedCommentText.setCommentText(textView, comment, textSizeSp, WIDTH_PX, precomputedComment)
+      assertTrue(textView.text is PrecomputedText)
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  private fun bindAll(
+    textView: AppCompatTextView,
+    comments: List<CharSequence>,
+    precomputedComments: List<PrecomputedCommentText?>?
+  ): List<Int> {
+    return comments.mapIndexed { index, comment ->
+      PrecomputedCommentText.setCommentText(
+        textView = textView,
+        commentText = comment,
+        textSizeSp = TEXT_SIZE_SP,
+        postCellDataWidthNoPaddings = WIDTH_PX,
+        precomputedCommentText = precomputedComments?.get(index)
+      )
+
+      textView.measure(
+        View.MeasureSpec.makeMeasureSpec(WIDTH_PX, View.MeasureSpec.EXACTLY),
+        View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED)
+      )
+      textView.layout(0, 0, textView.measuredWidth, textView.measuredHeight)
+
+      return@mapIndexed textView.lineCount
+    }
+  }
+
+  private fun precomputeInBackground(comments: List<CharSequence>): List<PrecomputedCommentText?> {
+    val executor = Executors.newSingleThreadExecutor()
+
+    try {
+      return executor.submit<List<PrecomputedCommentText?>> {
+        comments.map { comment -> PrecomputedCommentText.precompute(comment, TEXT_SIZE_SP, WIDTH_PX) }
+      }.get()
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  private fun createSyntheticComments(): List<CharSequence> {
+    val words = listOf("lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", ">>123456789")
+
+    return (0 until POSTS_COUNT).map { postIndex ->
+      // From a one-liner to a wall of text
+      val wordsCount = 10 + (postIndex * 37) % 400
+      val text = (0 until wordsCount).joinToString(separator = " ") { wordIndex -> words[(postIndex + wordIndex) % words.size] }
+      val comment = SpannableString(text)
+
+      // Quotes and spoilers
+      var start = 0
+      while (start < text.length) {
+        val end = minOf(text.length, start + 12)
+        val span = if ((start / 120) % 2 == 0) ForegroundColorSpan(Color.RED) else BackgroundColorSpan(Color.BLACK)
+
+        comment.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE)
+        start += 120
+      }
+
+      return@map comment
+    }
+  }
+
+  companion object {
+    private const val POSTS_COUNT = 500
+    private const val TEXT_SIZE_SP = 14
+    private const val WIDTH_PX = 1000
+  }
+
+}
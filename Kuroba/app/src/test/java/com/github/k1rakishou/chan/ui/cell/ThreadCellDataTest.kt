@@ -0,0 +1,220 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import android.app.Application
+import com.github.k1rakishou.BookmarkGridViewInfo
+import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.ChanSettingsInfo
+import com.github.k1rakishou.chan.core.manager.ChanThreadManager
+import com.github.k1rakishou.chan.core.manager.ChanThreadViewableInfoManager
+import com.github.k1rakishou.chan.core.manager.PostFilterHighlightManager
+import com.github.k1rakishou.chan.core.manager.PostFilterManager
+import com.github.k1rakishou.chan.core.manager.PostHideManager
+import com.github.k1rakishou.chan.core.manager.SavedReplyManager
+import com.github.k1rakishou.chan.ui.adapter.PostsFilter
+import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
+import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.core_themes.DefaultDarkTheme
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.PostComment
+import com.github.k1rakishou.model.data.post.PostIndexed
+import dagger.Lazy
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [29], application = Application::class)
+class ThreadCellDataTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", THREAD_NO)
+  private val postCellCallback = Mockito.mock(PostCellInterface.PostCellCallback::class.java)
+
+  private lateinit var threadCellData: ThreadCellData
+
+  @Before
+  fun setUp() {
+    val application = RuntimeEnvironment.application
+
+    AndroidUtils.init(application)
+    AppModuleAndroidUtils.init(application)
+    ChanSettings.init(
+      ChanSettingsInfo(
+        applicationId = application.packageName,
+        isTablet = false,
+        defaultFilterOrderName = PostsFilter.Order.BUMP.orderName,
+        isDevBuild = false,
+        isBetaBuild = false,
+        bookmarkGridViewInfo = BookmarkGridViewInfo(defaultWidth = 100, minWidth = 50, maxWidth = 200)
+      )
+    )
+
+    threadCellData = ThreadCellData(
+      _chanThreadViewableInfoManager = Lazy { Mockito.mock(ChanThreadViewableInfoManager::class.java) },
+      _chanThreadManager = Lazy { Mockito.mock(ChanThreadManager::class.java) },
+      _postFilterManager = Lazy { Mockito.mock(PostFilterManager::class.java) },
+      _postFilterHighlightManager = Lazy { PostFilterHighlightManager() },
+      _savedReplyManager = Lazy { Mockito.mock(SavedReplyManager::class.java) },
+      _postHideManager = Lazy { Mockito.mock(PostHideManager::class.java) },
+      initialTheme = DefaultDarkTheme()
+    )
+  }
+
+  @After
+  fun tearDown() {
+    threadCellData.cleanup()
+  }
+
+  @Test
+  fun `posts after a removed post keep their calculated data with the new post instance and index`() {
+    val oldPosts = createPosts(postsCount = 10)
+    updateThreadData(oldPosts)
+
+    val oldPostCellDataList = threadCellData.map { postCellDataLazy -> postCellDataLazy.getOrCalculate(isPrecalculating = true) }
+    val oldTitles = oldPostCellDataList.map { postCellData -> postCellData.postTitle.toString() }
+    assertTrue(oldTitles[4].contains("#5,"))
+
+    // The thread got reloaded (every post is a new instance) and the fourth post got filtered out
+    val newPosts = createPosts(postsCount = 10).filterIndexed { index, _ -> index != 3 }
+    val result = updateThreadData(newPosts)
+
+    assertEquals(0, result.rebuiltCount)
+    assertEquals(
+      listOf(
+        PostCellDataDiff.Update.Removed(3, 1),
+        PostCellDataDiff.Update.Changed(3, 6)
+      ),
+      result.updates
+    )
+
+    val postCellDataLazyList = threadCellData.toList()
+    assertEquals(newPosts.size, postCellDataLazyList.size)
+
+    postCellDataLazyList.forEachIndexed { index, postCellDataLazy ->
+      val oldIndex = if (index < 3) index else index + 1
+
+      assertSame(newPosts[index], postCellDataLazy.post)
+      assertEquals(index, postCellDataLazy.postIndex)
+      assertTrue(postCellDataLazy.isInitialized)
+
+      val postCellData = postCellDataLazy.postCellDataCalculated
+      assertSame(newPosts[index], postCellData.post)
+      assertEquals(index, postCellData.postIndex)
+      assertSame(oldPostCellDataList[oldIndex].commentText, postCellData.commentText)
+      assertTrue(postCellData.postTitle.contains("#${index + 1},"))
+    }
+
+    // Nothing changed before the removed post so even the title is the same
+    assertEquals(oldTitles[0], postCellDataLazyList[0].postCellDataCalculated.postTitle.toString())
+  }
+
+  @Test
+  fun `changed post is rebuilt and the rest of them are reused`() {
+    updateThreadData(createPosts(postsCount = 10))
+    threadCellData.forEach { postCellDataLazy -> postCellDataLazy.getOrCalculate(isPrecalculating = true) }
+
+    val newPosts = createPosts(postsCount = 10, editedPostNo = THREAD_NO + 5)
+    val result = updateThreadData(newPosts)
+
+    assertEquals(1, result.rebuiltCount)
+    assertEquals(listOf(PostCellDataDiff.Update.Changed(5, 1)), result.updates)
+    assertEquals(listOf(newPosts[5].postDescriptor), result.changedPostDescriptors)
+
+    threadCellData.forEachIndexed { index, postCellDataLazy ->
+      assertSame(newPosts[index], postCellDataLazy.post)
+      assertEquals(index != 5, postCellDataLazy.isInitialized)
+    }
+
+    val editedPostCellData = threadCellData.toList()[5].getOrCalculate(isPrecalculating = true)
+    assertSame(newPosts[5], editedPostCellData.post)
+    assertTrue(editedPostCellData.commentText.contains("edited"))
+  }
+
+  private fun updateThreadData(posts: List<ChanPost>): PostCellDataDiff.Result {
+    return runBlocking {
+      threadCellData.updateThreadData(
+        postCellCallback = postCellCallback,
+        chanDescriptor = threadDescriptor,
+        postIndexedList = posts.mapIndexed { index, chanPost -> PostIndexed(chanPost, index) },
+        postCellDataWidthNoPaddings = WIDTH_PX,
+        theme = DefaultDarkTheme()
+      )
+    }
+  }
+
+  private fun createPosts(postsCount: Int, editedPostNo: Long? = null): List<ChanPost> {
+    return (0 until postsCount).map { index ->
+      val postNo = THREAD_NO + index
+      val comment = if (postNo == editedPostNo) "edited" else "comment $postNo"
+
+      return@map createPost(postNo, comment)
+    }
+  }
+
+  private fun createPost(postNo: Long, comment: String): ChanPost {
+    val postComment = PostComment(originalComment = comment, originalUnparsedComment = comment, emptyList())
+
+    if (postNo == THREAD_NO) {
+      return ChanOriginalPost(
+        chanPostId = 0L,
+        postDescriptor = PostDescriptor.create(threadDescriptor, postNo),
+        postImages = emptyList(),
+        postIcons = emptyList(),
+        repliesTo = emptySet(),
+        timestamp = postNo,
+        postComment = postComment,
+        subject = null,
+        tripcode = null,
+        name = null,
+        posterId = null,
+        moderatorCapcode = null,
+        isSavedReply = false,
+        isSage = false,
+        repliesFrom = emptySet(),
+        deleted = false,
+        posterIdColor = 0,
+        archived = false,
+        closed = false,
+        endless = false,
+        sticky = false,
+        lastModified = 0L
+      )
+    }
+
+    return ChanPost(
+      chanPostId = 0L,
+      postDescriptor = PostDescriptor.create(threadDescriptor, postNo),
+      _postImages = emptyList(),
+      postIcons = emptyList(),
+      repliesTo = emptySet(),
+      timestamp = postNo,
+      postComment = postComment,
+      subject = null,
+      tripcode = null,
+      name = null,
+      posterId = null,
+      moderatorCapcode = null,
+      isSavedReply = false,
+      isSage = false,
+      repliesFrom = emptySet(),
+      deleted = false,
+      posterIdColor = 0,
+    )
+  }
+
+  companion object {
+    private const val THREAD_NO = 1_000_000L
+    private const val WIDTH_PX = 1000
+  }
+
+}
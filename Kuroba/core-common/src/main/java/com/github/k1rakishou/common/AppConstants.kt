@@ -18,7 +18,7 @@ open class AppConstants(
   maxPostsInDatabaseSettingValue: Int,
   maxThreadsInDatabaseSettingValue: Int
 ) {
-  val maxPostsCountInPostsCache: Int
+  val postsCacheMaxMemoryFraction: Float
   val maxAmountOfPostsInDatabase: Int = maxPostsInDatabaseSettingValue
   val maxAmountOfThreadsInDatabase: Int = maxThreadsInDatabaseSettingValue
   val processorsCount: Int
@@ -51,8 +51,6 @@ open class AppConstants(
   val isDebuggerAttached: Boolean
     get() = Debug.isDebuggerConnected()
 
-  // 128MB
-  val exoPlayerDiskCacheMaxSize = 128L * 1024 * 1024
   val mpvDemuxerCacheMaxSize: Long
 
   val replyDraftsDir: File
@@ -95,16 +93,6 @@ open class AppConstants(
       return field
     }
 
-  val exoPlayerCacheDir: File
-    get() {
-      if (field.exists()) {
-        return field
-      }
-
-      check(field.mkdir()) { "Failed to create ExoPlayer cache directory! exoPlayerCacheDir=${field.absolutePath}" }
-      return field
-    }
-
   val threadDownloaderCacheDir: File
     get() {
       if (field.exists()) {
@@ -150,7 +138,7 @@ open class AppConstants(
     val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as? ActivityManager
 
     mpvDemuxerCacheMaxSize = calculateMpvDemuxerCacheSize(activityManager)
-    maxPostsCountInPostsCache = calculatePostsCountForPostsCacheDependingOnDeviceRam(activityManager).toInt()
+    postsCacheMaxMemoryFraction = calculatePostsCacheMaxMemoryFraction()
 
     processorsCount = Runtime.getRuntime().availableProcessors()
       .coerceAtLeast(2)
@@ -180,7 +168,14 @@ open class AppConstants(
       oldFileCacheChunksDir.deleteRecursively()
     }
 
-    exoPlayerCacheDir = File(context.cacheDir, EXO_PLAYER_CACHE_DIR_NAME)
+    // TODO(KurobaEx): remove me in v1.5.0
+    val oldExoPlayerCacheDir = File(context.cacheDir, OLD_EXO_PLAYER_CACHE_DIR_NAME)
+    if (oldExoPlayerCacheDir.exists()) {
+      Logger.d(TAG, "Deleting oldExoPlayerCacheDir: '${oldExoPlayerCacheDir.absolutePath}'")
+      oldExoPlayerCacheDir.deleteRecursively()
+      // SimpleCache's index
+      context.deleteDatabase(OLD_EXO_PLAYER_DATABASE_NAME)
+    }
   }
 
   private fun calculateMpvDemuxerCacheSize(activityManager: ActivityManager?): Long {
@@ -191,15 +186,12 @@ open class AppConstants(
     return 64 * ONE_MEGABYTE
   }
 
-  private fun calculatePostsCountForPostsCacheDependingOnDeviceRam(activityManager: ActivityManager?): Long {
-    if (isLowRamDevice || activityManager == null) {
-      return MINIMUM_POSTS_CACHE_POSTS_COUNT
+  private fun calculatePostsCacheMaxMemoryFraction(): Float {
+    if (isLowRamDevice) {
+      return RAM_PERCENT_FOR_POSTS_CACHE_LOW_RAM / 100f
     }
 
-    val memoryChunk = ((activityManager.memoryClass * ONE_MEGABYTE) / 100) * RAM_PERCENT_FOR_POSTS_CACHE
-    val cachePostsCount = memoryChunk / AVERAGE_POST_MEMORY_SIZE
-
-    return cachePostsCount.coerceIn(MINIMUM_POSTS_CACHE_POSTS_COUNT, MAX_POSTS_CACHE_COUNT)
+    return RAM_PERCENT_FOR_POSTS_CACHE / 100f
   }
 
   companion object {
@@ -207,13 +199,11 @@ open class AppConstants(
 
     const val loggingInterceptorEnabled = false
 
-    // 10 percents of the app's available memory (not device's)
+    // Percents of the app's available memory (Runtime.maxMemory(), not device's) that the in-memory
+    // posts cache is allowed to use
     private const val RAM_PERCENT_FOR_POSTS_CACHE = 10
+    private const val RAM_PERCENT_FOR_POSTS_CACHE_LOW_RAM = 6
     private const val ONE_MEGABYTE = 1L * 1024 * 1024
-    private const val AVERAGE_POST_MEMORY_SIZE = 2048
-
-    private const val MINIMUM_POSTS_CACHE_POSTS_COUNT = 5000L
-    private const val MAX_POSTS_CACHE_COUNT = 16000L
 
     private const val USER_AGENT_FORMAT =
       "Mozilla/5.0 (Linux; Android %s; %s) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/85.0.4183.127 Mobile Safari/537.36"
@@ -228,12 +218,15 @@ open class AppConstants(
     private const val THREAD_DOWNLOADER_DIR_NAME = "thread_downloader_storage"
     private const val MPV_NATIVE_LIBS_DIR_NAME = "mpv_native_libs"
     private const val MPV_CERT_DIR_NAME = "certs/mpv"
-    private const val EXO_PLAYER_CACHE_DIR_NAME = "exo_player_cache"
 
     // TODO(KurobaEx): remove me in v1.5.0
     @Deprecated("Use DISK_CACHE_DIR_NAME") private const val OLD_FILE_CACHE_DIR = "filecache"
     // TODO(KurobaEx): remove me in v1.5.0
     @Deprecated("Moved into InnerCache") private const val OLD_FILE_CHUNKS_CACHE_DIR = "file_chunks_cache"
+    // TODO(KurobaEx): remove me in v1.5.0
+    @Deprecated("ExoPlayer uses CacheHandler files") private const val OLD_EXO_PLAYER_CACHE_DIR_NAME = "exo_player_cache"
+    // TODO(KurobaEx): remove me in v1.5.0
+    @Deprecated("ExoPlayer uses CacheHandler files") private const val OLD_EXO_PLAYER_DATABASE_NAME = "exoplayer_internal.db"
 
     const val DISK_CACHE_DIR_NAME = "disk_cache"
 
@@ -129,6 +129,45 @@ object RegexPatternCompiler {
     }
   }
 
+  /**
+   * Literals at least one of which (ignoring case) must be present in a text for the pattern
+   * produced by [compile] to match it. Returns null when there are no such literals (regex patterns
+   * or words consisting only of wildcards) and an empty list when the pattern can never match.
+   * */
+  @AnyThread
+  fun extractRequiredLiterals(rawPattern: String?): List<String>? {
+    if (rawPattern.isNullOrEmpty()) {
+      return emptyList()
+    }
+
+    if (isRegexPattern.matcher(rawPattern).matches()) {
+      return null
+    }
+
+    if (rawPattern.length >= 2 && rawPattern[0] == '"' && rawPattern[rawPattern.length - 1] == '"') {
+      val text = rawPattern.substring(1, rawPattern.length - 1)
+      if (text.isEmpty()) {
+        return emptyList()
+      }
+
+      return listOf(text)
+    }
+
+    val words = rawPattern
+      .split(" ")
+      .map { word -> word.trim() }
+      .filter { word -> word.isNotEmpty() }
+
+    return words.map { word ->
+      // Wildcards (*) may match anything so only the longest part of the word between them is
+      // guaranteed to be present
+      word.split('*')
+        .maxByOrNull { part -> part.length }
+        ?.takeIf { part -> part.isNotEmpty() }
+        ?: return null
+    }
+  }
+
   private fun escapeRegex(filthy: String): String {
     // Escape regex special characters with a \
     return filterFilthyPattern.matcher(filthy).replaceAll("\\\\$1")
@@ -0,0 +1,139 @@
+package com.github.k1rakishou.common.datastructure
+
+import java.util.*
+
+/**
+ * Aho-Corasick automaton which finds all occurrences of a set of keywords in a text in one pass
+ * regardless of the amount of keywords. Keywords are matched case-insensitively (every char is
+ * converted with [Character.toLowerCase]). Every keyword has an id (multiple keywords may share the
+ * same id), [findAll] reports the ids of the keywords that were found.
+ *
+ * Immutable, so it's safe to use from multiple threads once built.
+ * */
+class AhoCorasick(keywords: Collection<Pair<String, Int>>) {
+  // Children of every node, chars are sorted so that we can use binary search
+  private val childChars: Array<CharArray>
+  private val childNodes: Array<IntArray>
+  private val failLinks: IntArray
+  // Ids of all keywords that end at this node (including the ones reachable via fail links)
+  private val outputs: Array<IntArray>
+
+  val isEmpty: Boolean
+    get() = childChars[ROOT].isEmpty()
+
+  init {
+    val trieChildren = mutableListOf(TreeMap<Char, Int>())
+    val trieOutputs = mutableListOf(mutableListOf<Int>())
+
+    for ((keyword, id) in keywords) {
+      if (keyword.isEmpty()) {
+        continue
+      }
+
+      var node = ROOT
+
+      for (char in keyword) {
+        val lowercaseChar = Character.toLowerCase(char)
+        var nextNode = trieChildren[node][lowercaseChar]
+
+        if (nextNode == null) {
+          nextNode = trieChildren.size
+          trieChildren.add(TreeMap())
+          trieOutputs.add(mutableListOf())
+          trieChildren[node][lowercaseChar] = nextNode
+        }
+
+        node = nextNode
+      }
+
+      trieOutputs[node] += id
+    }
+
+    val nodesCount = trieChildren.size
+
+    childChars = Array(nodesCount) { node -> trieChildren[node].keys.toCharArray() }
+    childNodes = Array(nodesCount) { node -> trieChildren[node].values.toIntArray() }
+    failLinks = IntArray(nodesCount)
+
+    val mergedOutputs = arrayOfNulls<IntArray>(nodesCount)
+    mergedOutputs[ROOT] = IntArray(0)
+
+    // Breadth-first so that the fail link target of a node (which is always closer to the root) is
+    // processed before the node itself
+    val queue = ArrayDeque<Int>()
+    childNodes[ROOT].forEach { child -> queue.add(child) }
+
+    while (queue.isNotEmpty()) {
+      val node = queue.poll()!!
+
+      val ownOutputs = trieOutputs[node]
+      val inheritedOutputs = mergedOutputs[failLinks[node]]!!
+
+      mergedOutputs[node] = if (ownOutputs.isEmpty()) {
+        inheritedOutputs
+      } else {
+        (ownOutputs + inheritedOutputs.toList()).distinct().toIntArray()
+      }
+
+      val chars = childChars[node]
+      val children = childNodes[node]
+
+      for (index in chars.indices) {
+        val child = children[index]
+        failLinks[child] = transition(failLinks[node], chars[index])
+        queue.add(child)
+      }
+    }
+
+    outputs = Array(nodesCount) { node -> mergedOutputs[node]!! }
+  }
+
+  /**
+   * Sets the bits of the ids of all keywords found in [text] in [result].
+   * */
+  fun findAll(text: CharSequence, result: BitSet) {
+    if (isEmpty) {
+      return
+    }
+
+    var state = ROOT
+
+    for (index in 0 until text.length) {
+      state = transition(state, Character.toLowerCase(text[index]))
+
+      for (id in outputs[state]) {
+        result.set(id)
+      }
+    }
+  }
+
+  private fun transition(fromState: Int, char: Char): Int {
+    var state = fromState
+
+    while (true) {
+      val nextState = childOf(state, char)
+      if (nextState >= 0) {
+        return nextState
+      }
+
+      if (state == ROOT) {
+        return ROOT
+      }
+
+      state = failLinks[state]
+    }
+  }
+
+  private fun childOf(node: Int, char: Char): Int {
+    val index = Arrays.binarySearch(childChars[node], char)
+    if (index < 0) {
+      return -1
+    }
+
+    return childNodes[node][index]
+  }
+
+  companion object {
+    private const val ROOT = 0
+  }
+}
@@ -0,0 +1,70 @@
+package com.github.k1rakishou.common.datastructure
+
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Returns the same (canonical) instance of [V] for equal keys for as long as somebody else holds a
+ * reference to that instance. Values are weakly referenced so once a value becomes unreachable it
+ * gets collected and its entry is removed from the map (lazily, during the next [intern] call).
+ *
+ * [create] should not capture anything (so that it's not allocated on every call), everything it
+ * needs should be taken from the key.
+ *
+ * Thread safe.
+ * */
+class WeakValueInterner<K : Any, V : Any> {
+  private val map = ConcurrentHashMap<K, KeyedWeakReference<K, V>>()
+  private val referenceQueue = ReferenceQueue<V>()
+
+  val size: Int
+    get() {
+      removeCollected()
+      return map.size
+    }
+
+  fun intern(key: K, create: (K) -> V): V {
+    removeCollected()
+
+    while (true) {
+      val prevReference = map[key]
+      val prevValue = prevReference?.get()
+      if (prevValue != null) {
+        return prevValue
+      }
+
+      val value = create(key)
+      val reference = KeyedWeakReference(key, value, referenceQueue)
+
+      val inserted = if (prevReference == null) {
+        map.putIfAbsent(key, reference) == null
+      } else {
+        map.replace(key, prevReference, reference)
+      }
+
+      if (inserted) {
+        return value
+      }
+
+      // Somebody else has inserted a value for this key concurrently, use it instead
+    }
+  }
+
+  private fun removeCollected() {
+    while (true) {
+      @Suppress("UNCHECKED_CAST")
+      val reference = referenceQueue.poll() as? KeyedWeakReference<K, V>
+        ?: break
+
+      map.remove(reference.key, reference)
+    }
+  }
+
+  private class KeyedWeakReference<K, V>(
+    val key: K,
+    value: V,
+    referenceQueue: ReferenceQueue<V>
+  ) : WeakReference<V>(value, referenceQueue)
+
+}
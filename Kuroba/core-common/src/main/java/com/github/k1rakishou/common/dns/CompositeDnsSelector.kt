@@ -10,7 +10,8 @@ class CompositeDnsSelector(
   private val okHttpClient: OkHttpClient,
   private val okHttpUseDnsOverHttps: Boolean,
   private val normalDnsSelectorFactory: NormalDnsSelectorFactory,
-  private val dnsOverHttpsSelectorFactory: DnsOverHttpsSelectorFactory
+  private val dnsOverHttpsSelectorFactory: DnsOverHttpsSelectorFactory,
+  private val dnsCache: DnsCache
 ) : Dns {
   private val initialLog = AtomicBoolean(false)
 
@@ -23,9 +24,9 @@ class CompositeDnsSelector(
     }
 
     if (okHttpUseDnsOverHttps) {
-      return getOrCreateDnsOverHttpsSelector().lookup(hostname)
+      return dnsCache.lookup(hostname, getOrCreateDnsOverHttpsSelector())
     } else {
-      return getOrCreateNormalDnsSelector().lookup(hostname)
+      return dnsCache.lookup(hostname, getOrCreateNormalDnsSelector())
     }
   }
 
@@ -0,0 +1,64 @@
+package com.github.k1rakishou.common.dns
+
+import okhttp3.Dns
+import java.net.InetAddress
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * In-process cache of dns lookup results shared by all dns selectors (and thus by all OkHttp
+ * clients) so that every client doesn't have to resolve the same hosts over and over again (which
+ * is especially slow with DNS-over-HTTPS). Failed lookups are not cached.
+ * */
+class DnsCache(
+  private val ttlMs: Long = DEFAULT_TTL_MS,
+  private val maxEntries: Int = DEFAULT_MAX_ENTRIES,
+  private val elapsedRealtimeMs: () -> Long = { TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) }
+) {
+  private val entries = ConcurrentHashMap<String, Entry>(32)
+
+  private val hits = AtomicLong(0)
+  private val misses = AtomicLong(0)
+
+  fun lookup(hostname: String, dns: Dns): List<InetAddress> {
+    val now = elapsedRealtimeMs()
+
+    val entry = entries[hostname]
+    if (entry != null && entry.expiresAtMs > now) {
+      hits.incrementAndGet()
+      return entry.addresses
+    }
+
+    misses.incrementAndGet()
+
+    val addresses = dns.lookup(hostname)
+    if (addresses.isEmpty()) {
+      return addresses
+    }
+
+    if (entries.size >= maxEntries) {
+      entries.values.removeAll { cachedEntry -> cachedEntry.expiresAtMs <= now }
+
+      if (entries.size >= maxEntries) {
+        entries.clear()
+      }
+    }
+
+    entries[hostname] = Entry(addresses, now + ttlMs)
+    return addresses
+  }
+
+  fun hits(): Long = hits.get()
+  fun misses(): Long = misses.get()
+
+  private class Entry(
+    val addresses: List<InetAddress>,
+    val expiresAtMs: Long
+  )
+
+  companion object {
+    private val DEFAULT_TTL_MS = TimeUnit.MINUTES.toMillis(2)
+    private const val DEFAULT_MAX_ENTRIES = 256
+  }
+}
@@ -0,0 +1,84 @@
+package com.github.k1rakishou.common.datastructure
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import java.util.*
+import kotlin.random.Random
+
+class AhoCorasickTest {
+
+  @Test
+  fun `test overlapping and nested keywords are all found`() {
+    val ahoCorasick = AhoCorasick(
+      listOf(
+        "he" to 0,
+        "she" to 1,
+        "his" to 2,
+        "hers" to 3,
+        "usher" to 4
+      )
+    )
+
+    assertEquals(setOf(0, 1, 3, 4), findAll(ahoCorasick, "ushers"))
+    assertEquals(setOf(2), findAll(ahoCorasick, "this"))
+    assertEquals(emptySet<Int>(), findAll(ahoCorasick, "nothing"))
+  }
+
+  @Test
+  fun `test keywords are matched ignoring case`() {
+    val ahoCorasick = AhoCorasick(listOf("Hello" to 0, "WORLD" to 1))
+
+    assertEquals(setOf(0, 1), findAll(ahoCorasick, "hELLo, World!"))
+  }
+
+  @Test
+  fun `test multiple keywords may share the same id`() {
+    val ahoCorasick = AhoCorasick(listOf("cat" to 7, "dog" to 7, "bird" to 8))
+
+    assertEquals(setOf(7), findAll(ahoCorasick, "hotdog"))
+    assertEquals(setOf(7, 8), findAll(ahoCorasick, "bird and cat"))
+  }
+
+  @Test
+  fun `test empty automaton and empty keywords`() {
+    assertTrue(AhoCorasick(emptyList()).isEmpty)
+    assertTrue(AhoCorasick(listOf("" to 0)).isEmpty)
+    assertEquals(emptySet<Int>(), findAll(AhoCorasick(emptyList()), "text"))
+  }
+
+  @Test
+  fun `test results are the same as naive search`() {
+    val random = Random(1337)
+    val alphabet = "abcAB"
+
+    repeat(200) {
+      val keywords = (0 until random.nextInt(1, 30)).map { id ->
+        val keyword = (0 until random.nextInt(1, 5))
+          .map { alphabet[random.nextInt(alphabet.length)] }
+          .joinToString(separator = "")
+
+        keyword to id
+      }
+
+      val text = (0 until random.nextInt(0, 100))
+        .map { alphabet[random.nextInt(alphabet.length)] }
+        .joinToString(separator = "")
+
+      val expected = keywords
+        .filter { (keyword, _) -> text.contains(keyword, ignoreCase = true) }
+        .map { (_, id) -> id }
+        .toSet()
+
+      assertEquals(expected, findAll(AhoCorasick(keywords), text))
+    }
+  }
+
+  private fun findAll(ahoCorasick: AhoCorasick, text: String): Set<Int> {
+    val result = BitSet()
+    ahoCorasick.findAll(text, result)
+
+    return result.stream().toArray().toSet()
+  }
+
+}
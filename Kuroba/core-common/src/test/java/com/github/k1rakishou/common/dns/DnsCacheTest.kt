@@ -0,0 +1,74 @@
+package com.github.k1rakishou.common.dns
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import okhttp3.Dns
+import org.junit.Test
+import java.net.InetAddress
+import java.net.UnknownHostException
+
+class DnsCacheTest {
+  private var now = 0L
+  private val dns = CountingDns()
+
+  @Test
+  fun `test lookup results are cached until ttl expires`() {
+    val dnsCache = DnsCache(ttlMs = 1000L, elapsedRealtimeMs = { now })
+
+    repeat(10) { assertEquals(listOf(ADDRESS), dnsCache.lookup("test.com", dns)) }
+    assertEquals(1, dns.lookups)
+    assertEquals(9L, dnsCache.hits())
+    assertEquals(1L, dnsCache.misses())
+
+    now += 1000L
+
+    assertEquals(listOf(ADDRESS), dnsCache.lookup("test.com", dns))
+    assertEquals(2, dns.lookups)
+  }
+
+  @Test
+  fun `test failed lookups are not cached`() {
+    val dnsCache = DnsCache(ttlMs = 1000L, elapsedRealtimeMs = { now })
+    dns.fail = true
+
+    repeat(3) {
+      val result = runCatching { dnsCache.lookup("test.com", dns) }
+      assertTrue(result.exceptionOrNull() is UnknownHostException)
+    }
+
+    dns.fail = false
+
+    assertEquals(listOf(ADDRESS), dnsCache.lookup("test.com", dns))
+    assertEquals(4, dns.lookups)
+  }
+
+  @Test
+  fun `test cache size is bounded`() {
+    val dnsCache = DnsCache(ttlMs = 1000L, maxEntries = 4, elapsedRealtimeMs = { now })
+
+    repeat(10) { index -> dnsCache.lookup("test$index.com", dns) }
+    assertEquals(10, dns.lookups)
+
+    dnsCache.lookup("test9.com", dns)
+    assertEquals(10, dns.lookups)
+  }
+
+  private class CountingDns : Dns {
+    var lookups = 0
+    var fail = false
+
+    override fun lookup(hostname: String): List<InetAddress> {
+      ++lookups
+
+      if (fail) {
+        throw UnknownHostException(hostname)
+      }
+
+      return listOf(ADDRESS)
+    }
+  }
+
+  companion object {
+    private val ADDRESS = InetAddress.getByAddress("test.com", byteArrayOf(127, 0, 0, 1))
+  }
+}
@@ -0,0 +1,261 @@
+package com.github.k1rakishou.model
+
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.common.ModularResult.Companion.Try
+import com.github.k1rakishou.core_logger.Logger
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The only place where the database threads are created.
+ *
+ * - Reads (Room queries and repositories' [lane]s) are executed on a small bounded pool
+ *   ([QUERY_EXECUTOR]). The database uses WAL so readers don't block each other nor the writer.
+ * - Transactions are executed by Room on a single thread ([TRANSACTION_EXECUTOR]) since SQLite
+ *   only allows one writer at a time anyway.
+ * - Small writes that are submitted via [write] with coalesce = true are queued and executed by
+ *   one writer coroutine which runs all the writes that were queued while it was busy in one
+ *   shared transaction.
+ *
+ * Every call is accounted per repository, see [metricsSnapshot].
+ * */
+class KurobaDatabaseScheduler(
+  private val runInTransaction: suspend (suspend () -> Unit) -> Unit
+) {
+  private val writeRequests = Channel<WriteRequest<*>>(Channel.UNLIMITED)
+  private val metrics = ConcurrentHashMap<String, RepositoryMetrics>()
+
+  private val writtenTransactions = AtomicLong(0)
+  private val coalescedWrites = AtomicLong(0)
+
+  init {
+    CoroutineScope(SupervisorJob() + lane()).launch { processWriteRequests() }
+  }
+
+  /**
+   * A dispatcher which executes at most one coroutine at a time (like a single thread executor
+   * used to) on top of the shared query pool.
+   * */
+  @OptIn(ExperimentalCoroutinesApi::class)
+  fun lane(): CoroutineDispatcher = QUERY_DISPATCHER.limitedParallelism(1)
+
+  fun metrics(name: String): RepositoryMetrics {
+    return metrics.getOrPut(name) { RepositoryMetrics(name) }
+  }
+
+  /**
+   * Executes [func] in a transaction on the writer. When [coalesce] is true [func] may be executed
+   * in the same transaction with other writes and, if that transaction fails, executed again in
+   * its own transaction, so it must only write into the database (no in-memory caches updates).
+   * */
+  suspend fun <T> write(name: String, coalesce: Boolean, func: suspend () -> T): ModularResult<T> {
+    val writeRequest = WriteRequest(
+      metrics = metrics(name),
+      coalesce = coalesce,
+      func = func
+    )
+
+    writeRequests.send(writeRequest)
+    return writeRequest.result.await()
+  }
+
+  fun metricsSnapshot(): String {
+    return buildString {
+      append("transactions=${writtenTransactions.get()}, coalescedWrites=${coalescedWrites.get()}")
+
+      metrics.values
+        .sortedByDescending { repositoryMetrics -> repositoryMetrics.totalTimeMs() }
+        .forEach { repositoryMetrics ->
+          appendLine()
+          append(repositoryMetrics.toString())
+        }
+    }
+  }
+
+  private suspend fun processWriteRequests() {
+    var pending: WriteRequest<*>? = null
+
+    while (true) {
+      val first = pending ?: writeRequests.receive()
+      pending = null
+
+      if (!first.coalesce) {
+        executeAlone(first)
+        continue
+      }
+
+      val batch = mutableListOf<WriteRequest<*>>(first)
+
+      while (batch.size < MAX_WRITES_PER_TRANSACTION) {
+        val next = writeRequests.tryReceive().getOrNull()
+          ?: break
+
+        if (!next.coalesce) {
+          pending = next
+          break
+        }
+
+        batch += next
+      }
+
+      if (batch.size == 1) {
+        executeAlone(first)
+        continue
+      }
+
+      executeCoalesced(batch)
+    }
+  }
+
+  private suspend fun executeCoalesced(batch: List<WriteRequest<*>>) {
+    val startTime = System.nanoTime()
+
+    val result = Try {
+      runInTransaction {
+        batch.forEach { writeRequest -> writeRequest.execute() }
+      }
+    }
+
+    val timeNanos = System.nanoTime() - startTime
+    writtenTransactions.incrementAndGet()
+
+    if (result is ModularResult.Value) {
+      coalescedWrites.addAndGet(batch.size.toLong())
+      batch.forEach { writeRequest -> writeRequest.complete(timeNanos) }
+      return
+    }
+
+    Logger.e(TAG, "Shared transaction of ${batch.size} writes failed, executing them one by one",
+      (result as ModularResult.Error).error)
+
+    batch.forEach { writeRequest -> executeAlone(writeRequest) }
+  }
+
+  private suspend fun executeAlone(writeRequest: WriteRequest<*>) {
+    val startTime = System.nanoTime()
+    val result = Try { runInTransaction { writeRequest.execute() } }
+    val timeNanos = System.nanoTime() - startTime
+
+    writtenTransactions.incrementAndGet()
+
+    if (result is ModularResult.Error) {
+      writeRequest.completeWithError(result.error, timeNanos)
+      return
+    }
+
+    writeRequest.complete(timeNanos)
+  }
+
+  private class WriteRequest<T>(
+    val metrics: RepositoryMetrics,
+    val coalesce: Boolean,
+    private val func: suspend () -> T
+  ) {
+    private val enqueuedAt = System.nanoTime()
+    private var value: ModularResult<T>? = null
+
+    val result = CompletableDeferred<ModularResult<T>>()
+
+    suspend fun execute() {
+      value = ModularResult.value(func())
+    }
+
+    fun complete(transactionTimeNanos: Long) {
+      metrics.writes.record(System.nanoTime() - enqueuedAt, transactionTimeNanos)
+      result.complete(requireNotNull(value) { "Write was not executed" })
+    }
+
+    fun completeWithError(error: Throwable, transactionTimeNanos: Long) {
+      metrics.writes.record(System.nanoTime() - enqueuedAt, transactionTimeNanos)
+      result.complete(ModularResult.error(error))
+    }
+  }
+
+  class RepositoryMetrics(val name: String) {
+    val calls = CallMetrics()
+    val writes = CallMetrics()
+
+    fun totalTimeMs(): Long = calls.totalTimeMs() + writes.totalTimeMs()
+
+    override fun toString(): String {
+      return "$name: calls(${calls}), writes(${writes})"
+    }
+  }
+
+  /**
+   * Total time is the time since a call was requested until it's done (includes the time it waited
+   * in a queue), execution time is the time it was actually running (for writes it's the time of
+   * the whole transaction, even if it was shared with other writes).
+   * */
+  class CallMetrics {
+    private val count = AtomicLong(0)
+    private val totalTimeNanos = AtomicLong(0)
+    private val maxTotalTimeNanos = AtomicLong(0)
+    private val executionTimeNanos = AtomicLong(0)
+
+    fun record(totalNanos: Long, executionNanos: Long) {
+      count.incrementAndGet()
+      totalTimeNanos.addAndGet(totalNanos)
+      executionTimeNanos.addAndGet(executionNanos)
+      maxTotalTimeNanos.accumulateAndGet(totalNanos) { prev, new -> maxOf(prev, new) }
+    }
+
+    fun count(): Long = count.get()
+    fun totalTimeMs(): Long = TimeUnit.NANOSECONDS.toMillis(totalTimeNanos.get())
+
+    override fun toString(): String {
+      val count = count.get()
+      if (count <= 0) {
+        return "none"
+      }
+
+      val averageMs = TimeUnit.NANOSECONDS.toMillis(totalTimeNanos.get() / count)
+      val maxMs = TimeUnit.NANOSECONDS.toMillis(maxTotalTimeNanos.get())
+      val executionMs = TimeUnit.NANOSECONDS.toMillis(executionTimeNanos.get())
+
+      return "count=$count, avg=${averageMs}ms, max=${maxMs}ms, total=${totalTimeMs()}ms, execution=${executionMs}ms"
+    }
+  }
+
+  companion object {
+    private const val TAG = "KurobaDatabaseScheduler"
+    private const val MAX_WRITES_PER_TRANSACTION = 32
+    private const val QUERY_THREADS_COUNT = 4
+
+    val QUERY_EXECUTOR: ExecutorService = Executors.newFixedThreadPool(
+      QUERY_THREADS_COUNT,
+      namedThreadFactory("database_query_%d")
+    )
+
+    val TRANSACTION_EXECUTOR: ExecutorService = Executors.newSingleThreadExecutor(
+      namedThreadFactory("database_transaction_%d")
+    )
+
+    private val QUERY_DISPATCHER = QUERY_EXECUTOR.asCoroutineDispatcher()
+
+    private fun namedThreadFactory(threadNameStem: String): ThreadFactory {
+      return object : ThreadFactory {
+        private val mThreadId = AtomicInteger(0)
+
+        override fun newThread(r: Runnable): Thread {
+          val t = Thread(r)
+          t.name = String.format(threadNameStem, mThreadId.getAndIncrement())
+          return t
+        }
+      }
+    }
+  }
+}
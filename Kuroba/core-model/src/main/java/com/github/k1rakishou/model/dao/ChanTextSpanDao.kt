@@ -21,6 +21,13 @@ abstract class ChanTextSpanDao {
     ownerPostIdList: List<Long>
   ): List<ChanTextSpanEntity>
 
+  @Query("""
+        UPDATE ${ChanTextSpanEntity.TABLE_NAME}
+        SET ${ChanTextSpanEntity.SPAN_INFO_BYTES_COLUMN_NAME} = :spanInfoBytes
+        WHERE ${ChanTextSpanEntity.TEXT_SPAN_ID_COLUMN_NAME} = :textSpanId
+    """)
+  abstract suspend fun updateSpanInfoBytes(textSpanId: Long, spanInfoBytes: ByteArray)
+
   @Query("SELECT * FROM ${ChanTextSpanEntity.TABLE_NAME}")
   abstract suspend fun testGetAll(): List<ChanTextSpanEntity>
 }
\ No newline at end of file
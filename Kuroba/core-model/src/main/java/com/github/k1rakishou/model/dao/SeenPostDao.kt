@@ -6,6 +6,7 @@ import androidx.room.OnConflictStrategy
 import androidx.room.Query
 import androidx.room.RewriteQueriesToDropUnusedColumns
 import com.github.k1rakishou.model.entity.SeenPostEntity
+import com.github.k1rakishou.model.entity.chan.board.ChanBoardIdEntity
 import com.github.k1rakishou.model.entity.chan.thread.ChanThreadEntity
 import org.joda.time.DateTime
 
@@ -15,12 +16,29 @@ abstract class SeenPostDao {
   @Insert(onConflict = OnConflictStrategy.REPLACE)
   abstract suspend fun insertMany(seenPostEntities: Collection<SeenPostEntity>)
 
+  /**
+   * Primary key range scan, posts are returned sorted by (postNo, postSubNo).
+   * */
   @Query("""
-        SELECT *
-        FROM ${SeenPostEntity.TABLE_NAME}
-        WHERE ${SeenPostEntity.OWNER_THREAD_ID_COLUMN_NAME} = :threadId
-    """)
-  abstract suspend fun selectAllByThreadId(threadId: Long): List<SeenPostEntity>
+    SELECT spe.*
+    FROM ${SeenPostEntity.TABLE_NAME} spe
+    INNER JOIN ${ChanThreadEntity.TABLE_NAME} cte
+        ON spe.${SeenPostEntity.OWNER_THREAD_ID_COLUMN_NAME} = cte.${ChanThreadEntity.THREAD_ID_COLUMN_NAME}
+    INNER JOIN ${ChanBoardIdEntity.TABLE_NAME} cbe
+        ON cte.${ChanThreadEntity.OWNER_BOARD_ID_COLUMN_NAME} = cbe.${ChanBoardIdEntity.BOARD_ID_COLUMN_NAME}
+    WHERE
+        cbe.${ChanBoardIdEntity.OWNER_SITE_NAME_COLUMN_NAME} = :siteName
+    AND
+        cbe.${ChanBoardIdEntity.BOARD_CODE_COLUMN_NAME} = :boardCode
+    AND
+        cte.${ChanThreadEntity.THREAD_NO_COLUMN_NAME} = :threadNo
+    ORDER BY spe.${SeenPostEntity.POST_NO_COLUMN_NAME}, spe.${SeenPostEntity.POST_SUB_NO_COLUMN_NAME}
+  """)
+  abstract suspend fun selectAllByThreadNo(
+    siteName: String,
+    boardCode: String,
+    threadNo: Long
+  ): List<SeenPostEntity>
 
   @RewriteQueriesToDropUnusedColumns
   @Query("""
@@ -0,0 +1,154 @@
+package com.github.k1rakishou.model.data.bookmark
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+
+/**
+ * Accumulates bookmark changes (created/updated bookmarks with their changed replies and deleted
+ * bookmarks) that were not persisted yet so that only the changed rows are written into the database.
+ *
+ * Not thread safe.
+ * */
+class DirtyBookmarks {
+  private val updated = HashMap<ChanDescriptor.ThreadDescriptor, DirtyReplies>()
+  private val deleted = HashSet<ChanDescriptor.ThreadDescriptor>()
+
+  fun isEmpty(): Boolean = updated.isEmpty() && deleted.isEmpty()
+
+  fun markUpdated(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    changedReplies: Collection<PostDescriptor>
+  ) {
+    deleted.remove(threadDescriptor)
+
+    val dirtyReplies = updated.getOrPut(threadDescriptor) { DirtyReplies() }
+    if (!dirtyReplies.allReplies) {
+      dirtyReplies.replies.addAll(changedReplies)
+    }
+  }
+
+  fun markUpdatedWithAllReplies(threadDescriptor: ChanDescriptor.ThreadDescriptor) {
+    deleted.remove(threadDescriptor)
+
+    val dirtyReplies = updated.getOrPut(threadDescriptor) { DirtyReplies() }
+    dirtyReplies.allReplies = true
+    dirtyReplies.replies.clear()
+  }
+
+  /**
+   * Marks bookmark as updated if [newBookmark] is different from [oldBookmark] (only the replies that
+   * are different are marked).
+   * */
+  fun markUpdatedIfChanged(oldBookmark: ThreadBookmark, newBookmark: ThreadBookmark): Boolean {
+    if (oldBookmark == newBookmark) {
+      return false
+    }
+
+    val changedReplies = newBookmark.threadBookmarkReplies.entries
+      .filter { (postDescriptor, reply) -> oldBookmark.threadBookmarkReplies[postDescriptor] != reply }
+      .map { (postDescriptor, _) -> postDescriptor }
+
+    markUpdated(newBookmark.threadDescriptor, changedReplies)
+    return true
+  }
+
+  fun markDeleted(threadDescriptor: ChanDescriptor.ThreadDescriptor) {
+    updated.remove(threadDescriptor)
+    deleted.add(threadDescriptor)
+  }
+
+  fun clear() {
+    updated.clear()
+    deleted.clear()
+  }
+
+  /**
+   * Returns everything that was changed since the last call (with copies of the changed bookmarks
+   * taken from [bookmarkProvider]) and clears the dirty state.
+   * */
+  fun takeChanges(
+    bookmarkProvider: (ChanDescriptor.ThreadDescriptor) -> ThreadBookmark?
+  ): ThreadBookmarkChanges {
+    if (isEmpty()) {
+      return ThreadBookmarkChanges.EMPTY
+    }
+
+    val updatedBookmarks = ArrayList<ThreadBookmark>(updated.size)
+    val changedReplies = HashMap<ChanDescriptor.ThreadDescriptor, Set<PostDescriptor>?>(updated.size)
+
+    updated.forEach { (threadDescriptor, dirtyReplies) ->
+      val threadBookmark = bookmarkProvider(threadDescriptor)
+        ?: return@forEach
+
+      updatedBookmarks += threadBookmark.deepCopy()
+      changedReplies[threadDescriptor] = if (dirtyReplies.allReplies) null else dirtyReplies.replies.toSet()
+    }
+
+    val changes = ThreadBookmarkChanges(
+      updated = updatedBookmarks,
+      changedReplies = changedReplies,
+      deleted = deleted.toSet()
+    )
+
+    clear()
+    return changes
+  }
+
+  /**
+   * Puts [changes] that failed to be persisted back unless they were superseded by newer changes.
+   * */
+  fun restore(changes: ThreadBookmarkChanges) {
+    changes.updated.forEach { threadBookmark ->
+      val threadDescriptor = threadBookmark.threadDescriptor
+      if (threadDescriptor in deleted) {
+        return@forEach
+      }
+
+      val replies = changes.changedReplies[threadDescriptor]
+      if (replies == null) {
+        markUpdatedWithAllReplies(threadDescriptor)
+      } else {
+        markUpdated(threadDescriptor, replies)
+      }
+    }
+
+    changes.deleted.forEach { threadDescriptor ->
+      if (threadDescriptor !in updated) {
+        deleted.add(threadDescriptor)
+      }
+    }
+  }
+
+  private class DirtyReplies(
+    var allReplies: Boolean = false,
+    val replies: MutableSet<PostDescriptor> = HashSet()
+  )
+
+}
+
+class ThreadBookmarkChanges(
+  val updated: List<ThreadBookmark>,
+  /**
+   * Replies of [updated] bookmarks that were changed. Null means all replies of a bookmark (e.g. it
+   * was just created).
+   * */
+  val changedReplies: Map<ChanDescriptor.ThreadDescriptor, Set<PostDescriptor>?>,
+  val deleted: Set<ChanDescriptor.ThreadDescriptor>
+) {
+
+  fun isEmpty(): Boolean = updated.isEmpty() && deleted.isEmpty()
+
+  fun changedRepliesCount(): Int {
+    return updated.sumOf { threadBookmark ->
+      changedReplies[threadBookmark.threadDescriptor]?.size ?: threadBookmark.threadBookmarkReplies.size
+    }
+  }
+
+  override fun toString(): String {
+    return "ThreadBookmarkChanges(updated=${updated.size}, replies=${changedRepliesCount()}, deleted=${deleted.size})"
+  }
+
+  companion object {
+    val EMPTY = ThreadBookmarkChanges(emptyList(), emptyMap(), emptySet())
+  }
+}
@@ -43,9 +43,9 @@ class BoardDescriptor private constructor(
 
     @JvmStatic
     fun create(siteName: String, boardCodeInput: String): BoardDescriptor {
-      val boardCode = boardCodeInput.intern()
-
-      return BoardDescriptor(SiteDescriptor.create(siteName), boardCode)
+      return DescriptorInterner.board(SiteDescriptor.create(siteName), boardCodeInput) { boardKey ->
+        BoardDescriptor(boardKey.siteDescriptor, boardKey.boardCode.intern())
+      }
     }
   }
 }
\ No newline at end of file
@@ -154,7 +154,12 @@ sealed class ChanDescriptor : Parcelable {
       fun create(boardDescriptor: BoardDescriptor, threadNo: Long): ThreadDescriptor {
         require(threadNo > 0) { "Bad threadId: $threadNo" }
 
-        return ThreadDescriptor(boardDescriptor, threadNo)
+        // The board descriptor may have been created by the Parcelable creator
+        val canonicalBoardDescriptor = BoardDescriptor.create(boardDescriptor.siteName(), boardDescriptor.boardCode)
+
+        return DescriptorInterner.thread(canonicalBoardDescriptor, threadNo) { threadKey ->
+          ThreadDescriptor(threadKey.boardDescriptor, threadKey.threadNo)
+        }
       }
 
       fun fromDescriptorParcelable(descriptorParcelable: DescriptorParcelable): ThreadDescriptor {
@@ -236,10 +241,9 @@ sealed class ChanDescriptor : Parcelable {
 
       @JvmStatic
       fun create(siteNameInput: String, boardCodeInput: String): CatalogDescriptor {
-        val siteName = siteNameInput.intern()
-        val boardCode = boardCodeInput.intern()
-
-        return CatalogDescriptor(BoardDescriptor.create(siteName, boardCode))
+        return DescriptorInterner.catalog(BoardDescriptor.create(siteNameInput, boardCodeInput)) { boardDescriptor ->
+          CatalogDescriptor(boardDescriptor)
+        }
       }
 
       /**
@@ -0,0 +1,46 @@
+package com.github.k1rakishou.model.data.descriptor
+
+import com.github.k1rakishou.common.datastructure.WeakValueInterner
+
+/**
+ * Pool of canonical site/board/catalog/thread descriptors. Every post of a thread (and every reply,
+ * seen post, filter result etc. that points to it) used to have its own copy of the whole
+ * Thread -> Board -> Site descriptor chain, now they all share one instance. Descriptors created
+ * by the Parcelable creators are not interned, they are equal to the interned ones anyway.
+ * */
+internal object DescriptorInterner {
+  private val sites = WeakValueInterner<String, SiteDescriptor>()
+  private val boards = WeakValueInterner<BoardKey, BoardDescriptor>()
+  private val catalogs = WeakValueInterner<BoardDescriptor, ChanDescriptor.CatalogDescriptor>()
+  private val threads = WeakValueInterner<ThreadKey, ChanDescriptor.ThreadDescriptor>()
+
+  fun site(siteName: String, create: (String) -> SiteDescriptor): SiteDescriptor {
+    return sites.intern(siteName, create)
+  }
+
+  fun board(
+    siteDescriptor: SiteDescriptor,
+    boardCode: String,
+    create: (BoardKey) -> BoardDescriptor
+  ): BoardDescriptor {
+    return boards.intern(BoardKey(siteDescriptor, boardCode), create)
+  }
+
+  fun catalog(
+    boardDescriptor: BoardDescriptor,
+    create: (BoardDescriptor) -> ChanDescriptor.CatalogDescriptor
+  ): ChanDescriptor.CatalogDescriptor {
+    return catalogs.intern(boardDescriptor, create)
+  }
+
+  fun thread(
+    boardDescriptor: BoardDescriptor,
+    threadNo: Long,
+    create: (ThreadKey) -> ChanDescriptor.ThreadDescriptor
+  ): ChanDescriptor.ThreadDescriptor {
+    return threads.intern(ThreadKey(boardDescriptor, threadNo), create)
+  }
+
+  data class BoardKey(val siteDescriptor: SiteDescriptor, val boardCode: String)
+  data class ThreadKey(val boardDescriptor: BoardDescriptor, val threadNo: Long)
+}
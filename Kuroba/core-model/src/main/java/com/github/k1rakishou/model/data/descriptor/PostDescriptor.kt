@@ -204,6 +204,14 @@ open class PostDescriptor protected constructor(
       return create(threadDescriptor.siteName(), threadDescriptor.boardCode(), threadDescriptor.threadNo, postNo, 0)
     }
 
+    /**
+     * No validation and no descriptor lookups. Only for re-creating descriptors that were already
+     * validated (e.g. the ones unpacked from PackedPostDescriptorSet).
+     * */
+    internal fun createUnchecked(chanDescriptor: ChanDescriptor, postNo: Long, postSubNo: Long): PostDescriptor {
+      return PostDescriptor(chanDescriptor, postNo, postSubNo)
+    }
+
     @JvmOverloads
     @JvmStatic
     fun create(siteName: String, boardCode: String, threadNo: Long, postNo: Long, postSubNo: Long = 0L): PostDescriptor {
@@ -44,9 +44,7 @@ class SiteDescriptor private constructor(
 
   companion object {
     fun create(siteNameInput: String): SiteDescriptor {
-      val siteName = siteNameInput.intern()
-
-      return SiteDescriptor(siteName)
+      return DescriptorInterner.site(siteNameInput) { siteName -> SiteDescriptor(siteName.intern()) }
     }
   }
 
@@ -38,7 +38,7 @@ class ChanOriginalPost(
 ) : ChanPost(
   chanPostId,
   postDescriptor,
-  postImages.toMutableList(),
+  postImages,
   postIcons,
   repliesTo,
   timestamp,
@@ -1,5 +1,6 @@
 package com.github.k1rakishou.model.data.post
 
+import androidx.annotation.GuardedBy
 import com.github.k1rakishou.common.copy
 import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
@@ -7,7 +8,7 @@ import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 open class ChanPost(
   val chanPostId: Long,
   val postDescriptor: PostDescriptor,
-  private val _postImages: MutableList<ChanPostImage>,
+  _postImages: List<ChanPostImage>,
   val postIcons: List<ChanPostHttpIcon>,
   repliesTo: Set<PostDescriptor>,
   val timestamp: Long = -1L,
@@ -38,33 +39,41 @@ open class ChanPost(
   @set:Synchronized
   var posterIdColor: Int = 0
 
-  @get:Synchronized
-  val repliesFrom = mutableSetOf<PostDescriptor>()
+  // Replies almost always point to posts of the same thread so they are stored as packed post numbers.
+  // A set is never modified once it's assigned, every update creates a new one (see addRepliesFrom())
+  // so that the replies can be iterated without holding the post's monitor.
+  @Volatile
+  private var _repliesFrom: Set<PostDescriptor> = PackedPostDescriptorSet(postDescriptor.descriptor)
+  @Volatile
+  private var _repliesTo: Set<PostDescriptor> = PackedPostDescriptorSet(postDescriptor.descriptor)
 
-  @get:Synchronized
-  val repliesTo = mutableSetOf<PostDescriptor>()
+  val repliesFrom: Set<PostDescriptor>
+    get() = _repliesFrom
 
-  @get:Synchronized
+  val repliesTo: Set<PostDescriptor>
+    get() = _repliesTo
+
+  // The set is immutable so there is nothing to copy anymore
   val repliesFromCopy: Set<PostDescriptor>
-    get() = repliesFrom.toSet()
+    get() = _repliesFrom
+
+  // Same as with the replies, the list is never modified, addImage() replaces it with a new one.
+  @Volatile
+  private var postImagesList: List<ChanPostImage> = _postImages.toList()
 
   fun postNo(): Long = postDescriptor.postNo
   fun postSubNo(): Long = postDescriptor.postSubNo
-  @Synchronized
-  fun firstImage(): ChanPostImage? = _postImages.firstOrNull()
+  fun firstImage(): ChanPostImage? = postImagesList.firstOrNull()
 
   fun isOP(): Boolean = postDescriptor.isOP()
 
-  @get:Synchronized
   val repliesFromCount: Int
-    get() = repliesFrom.size
+    get() = _repliesFrom.size
 
-  @get:Synchronized
   val postImages: List<ChanPostImage>
-    get() = _postImages
-  @get:Synchronized
+    get() = postImagesList
   val postImagesCount: Int
-    get() = _postImages.size
+    get() = postImagesList.size
 
   open val catalogRepliesCount: Int
     get() = 0
@@ -76,6 +85,25 @@ open class ChanPost(
   val boardDescriptor: BoardDescriptor
     get() = postDescriptor.boardDescriptor()
 
+  // -1 when it needs to be (re)calculated
+  @GuardedBy("this")
+  private var _estimatedRetainedBytes = -1L
+
+  /**
+   * Calculated lazily (most of the posts never get into the ChanThread cache) and recalculated after
+   * the post gets new replies or images. ChanThread applies the difference after every such change
+   * so that it can subtract exactly what it has added when a post gets replaced or removed.
+   * */
+  val estimatedRetainedBytes: Long
+    @Synchronized
+    get() {
+      if (_estimatedRetainedBytes < 0L) {
+        _estimatedRetainedBytes = ChanPostSizeEstimator.estimate(this)
+      }
+
+      return _estimatedRetainedBytes
+    }
+
   init {
     this.posterIdColor = posterIdColor
 
@@ -83,18 +111,50 @@ open class ChanPost(
       onDemandContentLoadedArray[loaderType.arrayIndex] = false
     }
 
-    repliesFrom?.let { replies -> this.repliesFrom.addAll(replies) }
+    repliesFrom?.let { replies -> addRepliesFrom(replies) }
+    addRepliesTo(repliesTo)
+  }
 
-    if (repliesTo.isNotEmpty()) {
-      this.repliesTo.addAll(repliesTo)
+  @Synchronized
+  fun addRepliesFrom(replies: Collection<PostDescriptor>): Boolean {
+    val newRepliesFrom = plusReplies(_repliesFrom, replies)
+      ?: return false
+
+    _repliesFrom = newRepliesFrom
+    _estimatedRetainedBytes = -1L
+    return true
+  }
+
+  @Synchronized
+  fun addRepliesTo(replies: Collection<PostDescriptor>): Boolean {
+    val newRepliesTo = plusReplies(_repliesTo, replies)
+      ?: return false
+
+    _repliesTo = newRepliesTo
+    _estimatedRetainedBytes = -1L
+    return true
+  }
+
+  private fun plusReplies(
+    oldReplies: Set<PostDescriptor>,
+    replies: Collection<PostDescriptor>
+  ): Set<PostDescriptor>? {
+    if (replies.isEmpty() || oldReplies.containsAll(replies)) {
+      return null
     }
+
+    val newReplies = PackedPostDescriptorSet(postDescriptor.descriptor)
+    newReplies.addAll(oldReplies)
+    newReplies.addAll(replies)
+
+    return newReplies
   }
 
   open fun deepCopy(overrideDeleted: Boolean? = null): ChanPost {
     return ChanPost(
       chanPostId = chanPostId,
       postDescriptor = postDescriptor,
-      _postImages = _postImages,
+      _postImages = postImagesList,
       postIcons = postIcons,
       repliesTo = repliesTo,
       timestamp = timestamp,
@@ -172,9 +232,8 @@ open class ChanPost(
     return false
   }
 
-  @Synchronized
   fun firstPostImageOrNull(predicate: (ChanPostImage) -> Boolean): ChanPostImage? {
-    for (postImage in _postImages) {
+    for (postImage in postImagesList) {
       if (predicate.invoke(postImage)) {
         return postImage
       }
@@ -183,23 +242,24 @@ open class ChanPost(
     return null
   }
 
-  @Synchronized
   fun iteratePostImages(iterator: (ChanPostImage) -> Unit) {
-    for (postImage in _postImages) {
+    for (postImage in postImagesList) {
       iterator.invoke(postImage)
     }
   }
 
   @Synchronized
   internal fun addImage(chanPostImage: ChanPostImage): Boolean {
-    val alreadyAdded = _postImages
+    val oldPostImages = postImagesList
+    val alreadyAdded = oldPostImages
       .any { postImage -> postImage.serverFilename == chanPostImage.serverFilename }
 
     if (alreadyAdded) {
       return false
     }
 
-    _postImages += chanPostImage
+    postImagesList = oldPostImages + chanPostImage
+    _estimatedRetainedBytes = -1L
     return true
   }
 
@@ -257,18 +317,21 @@ open class ChanPost(
   }
 
   private fun arePostImagesTheSame(other: ChanPost): Boolean {
-    if (_postImages.size != other._postImages.size) {
+    val postImages = postImagesList
+    val otherPostImages = other.postImagesList
+
+    if (postImages.size != otherPostImages.size) {
       return false
     }
 
-    return _postImages.indices.none { _postImages[it] != other._postImages[it] }
+    return postImages.indices.none { postImages[it] != otherPostImages[it] }
   }
 
   override fun hashCode(): Int {
     var result = chanPostId.hashCode()
     result = 31 * result + postDescriptor.hashCode()
     result = 31 * result + repliesTo.hashCode()
-    result = 31 * result + _postImages.hashCode()
+    result = 31 * result + postImagesList.hashCode()
     result = 31 * result + postComment.hashCode()
     result = 31 * result + subject.hashCode()
     result = 31 * result + (name?.hashCode() ?: 0)
@@ -285,7 +348,7 @@ open class ChanPost(
     return "ChanPost{" +
       "chanPostId=" + chanPostId +
       ", postDescriptor=" + postDescriptor +
-      ", postImages=" + _postImages.size +
+      ", postImages=" + postImagesList.size +
       ", subject='" + subject + '\'' +
       ", postComment=" + postComment.originalComment().take(64) +
       '}'
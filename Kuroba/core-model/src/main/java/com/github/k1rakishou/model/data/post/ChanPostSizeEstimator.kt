@@ -0,0 +1,84 @@
+package com.github.k1rakishou.model.data.post
+
+import okhttp3.HttpUrl
+
+/**
+ * Estimates how much heap a [ChanPost] retains. It's not supposed to be precise (we can't measure
+ * the real retained size on Android anyway), it's supposed to make a post with a huge comment and
+ * a bunch of images weigh more than a one-liner without any images.
+ * */
+internal object ChanPostSizeEstimator {
+  // ChanPost object itself, PostDescriptor, the replies sets, onDemandContentLoadedArray, PostComment
+  // object and other small objects every post has.
+  private const val POST_BASE_SIZE = 320L
+  // String/CharSequence object header plus the backing array header
+  private const val STRING_BASE_SIZE = 40L
+  // Span object, its entry in the SpannableString's spans array and the PostLinkable's fields
+  private const val POST_LINKABLE_SIZE = 96L
+  // A packed post number inside of PackedPostDescriptorSet (plus some spare capacity)
+  private const val REPLY_SIZE = 12L
+  private const val POST_IMAGE_BASE_SIZE = 192L
+  private const val POST_ICON_BASE_SIZE = 64L
+  // HttpUrl stores the whole url plus the parsed host/path segments/query
+  private const val HTTP_URL_MULTIPLIER = 3L
+
+  fun estimate(chanPost: ChanPost): Long {
+    var size = POST_BASE_SIZE
+
+    val postComment = chanPost.postComment
+    // The original comment and the updated comment share the text most of the time so count it once
+    size += charSequenceSize(postComment.originalComment())
+    size += charSequenceSize(postComment.originalUnparsedComment)
+    size += postComment.linkables.size * POST_LINKABLE_SIZE
+
+    size += charSequenceSize(chanPost.subject)
+    size += charSequenceSize(chanPost.tripcode)
+    size += charSequenceSize(chanPost.name)
+    size += charSequenceSize(chanPost.posterId)
+    size += charSequenceSize(chanPost.moderatorCapcode)
+
+    size += (chanPost.repliesTo.size + chanPost.repliesFromCount) * REPLY_SIZE
+
+    chanPost.iteratePostImages { chanPostImage -> size += estimatePostImage(chanPostImage) }
+
+    chanPost.postIcons.forEach { chanPostHttpIcon ->
+      size += POST_ICON_BASE_SIZE
+      size += httpUrlSize(chanPostHttpIcon.iconUrl)
+      size += charSequenceSize(chanPostHttpIcon.iconName)
+    }
+
+    return size
+  }
+
+  private fun estimatePostImage(chanPostImage: ChanPostImage): Long {
+    var size = POST_IMAGE_BASE_SIZE
+
+    size += charSequenceSize(chanPostImage.serverFilename)
+    size += charSequenceSize(chanPostImage.filename)
+    size += charSequenceSize(chanPostImage.extension)
+    size += charSequenceSize(chanPostImage.fileHash)
+    size += httpUrlSize(chanPostImage.actualThumbnailUrl)
+    size += httpUrlSize(chanPostImage.spoilerThumbnailUrl)
+    size += httpUrlSize(chanPostImage.imageUrl)
+
+    return size
+  }
+
+  private fun charSequenceSize(charSequence: CharSequence?): Long {
+    if (charSequence == null) {
+      return 0L
+    }
+
+    // Chars are 2 bytes each
+    return STRING_BASE_SIZE + (charSequence.length * 2L)
+  }
+
+  private fun httpUrlSize(httpUrl: HttpUrl?): Long {
+    if (httpUrl == null) {
+      return 0L
+    }
+
+    return STRING_BASE_SIZE + (httpUrl.toString().length * 2L * HTTP_URL_MULTIPLIER)
+  }
+
+}
@@ -0,0 +1,282 @@
+package com.github.k1rakishou.model.data.post
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import java.util.*
+
+/**
+ * A set of post descriptors for the case when (almost) all of them belong to the same thread, like
+ * the replies of a post. Descriptors of [chanDescriptor] are stored as packed longs (postNo and
+ * postSubNo) in a sorted array, which is 8 bytes per descriptor instead of a PostDescriptor object
+ * plus a hash set node. Everything else (e.g. quotes of posts from other threads) goes into a
+ * regular set.
+ *
+ * Descriptors are re-created when iterating so they are equal to the ones that were added but not
+ * the same instances. Packed descriptors are iterated in the (postNo, postSubNo) order, the rest
+ * of them after that in the insertion order.
+ *
+ * Not thread safe. Like the regular collections the iterator throws ConcurrentModificationException
+ * when the set is modified while being iterated (other than through the iterator itself), ChanPost
+ * never modifies a set once it's published and creates a new one instead.
+ * */
+class PackedPostDescriptorSet(
+  private val chanDescriptor: ChanDescriptor
+) : AbstractMutableSet<PostDescriptor>() {
+  private var packedPostNos = EMPTY_ARRAY
+  private var packedSize = 0
+  private var otherPostDescriptors: MutableSet<PostDescriptor>? = null
+  private var modCount = 0
+
+  override val size: Int
+    get() = packedSize + (otherPostDescriptors?.size ?: 0)
+
+  override fun contains(element: PostDescriptor): Boolean {
+    val packed = pack(element)
+    if (packed == NOT_PACKABLE) {
+      return otherPostDescriptors?.contains(element) == true
+    }
+
+    return indexOfPacked(packed) >= 0
+  }
+
+  override fun add(element: PostDescriptor): Boolean {
+    val packed = pack(element)
+    if (packed == NOT_PACKABLE) {
+      val other = otherPostDescriptors
+        ?: LinkedHashSet<PostDescriptor>().also { otherPostDescriptors = it }
+
+      if (!other.add(element)) {
+        return false
+      }
+
+      ++modCount
+      return true
+    }
+
+    val index = indexOfPacked(packed)
+    if (index >= 0) {
+      return false
+    }
+
+    insertPackedAt(-(index + 1), packed)
+    return true
+  }
+
+  override fun addAll(elements: Collection<PostDescriptor>): Boolean {
+    if (elements.isEmpty()) {
+      return false
+    }
+
+    val prevSize = size
+
+    // Append everything and sort once instead of shifting the array for every added descriptor
+    ensureCapacity(packedSize + elements.size)
+
+    if (elements is PackedPostDescriptorSet && elements.chanDescriptor == chanDescriptor) {
+      System.arraycopy(elements.packedPostNos, 0, packedPostNos, packedSize, elements.packedSize)
+      packedSize += elements.packedSize
+      elements.otherPostDescriptors?.let { other -> addAllOther(other) }
+    } else {
+      for (element in elements) {
+        val packed = pack(element)
+        if (packed == NOT_PACKABLE) {
+          addAllOther(listOf(element))
+        } else {
+          packedPostNos[packedSize++] = packed
+        }
+      }
+    }
+
+    sortAndRemoveDuplicates()
+    ++modCount
+
+    return size != prevSize
+  }
+
+  override fun remove(element: PostDescriptor): Boolean {
+    val packed = pack(element)
+    if (packed == NOT_PACKABLE) {
+      if (otherPostDescriptors?.remove(element) != true) {
+        return false
+      }
+
+      ++modCount
+      return true
+    }
+
+    val index = indexOfPacked(packed)
+    if (index < 0) {
+      return false
+    }
+
+    removePackedAt(index)
+    return true
+  }
+
+  override fun clear() {
+    packedPostNos = EMPTY_ARRAY
+    packedSize = 0
+    otherPostDescriptors = null
+    ++modCount
+  }
+
+  override fun iterator(): MutableIterator<PostDescriptor> {
+    return PackedPostDescriptorIterator()
+  }
+
+  private fun pack(postDescriptor: PostDescriptor): Long {
+    // Subclasses may have additional state which would be lost after unpacking
+    if (postDescriptor.javaClass != PostDescriptor::class.java) {
+      return NOT_PACKABLE
+    }
+
+    if (postDescriptor.descriptor != chanDescriptor) {
+      return NOT_PACKABLE
+    }
+
+    val postNo = postDescriptor.postNo
+    val postSubNo = postDescriptor.postSubNo
+
+    if (postNo <= 0L || postNo > MAX_POST_NO || postSubNo < 0L || postSubNo > MAX_POST_SUB_NO) {
+      return NOT_PACKABLE
+    }
+
+    return (postNo shl POST_SUB_NO_BITS) or postSubNo
+  }
+
+  private fun unpack(packed: Long): PostDescriptor {
+    return PostDescriptor.createUnchecked(
+      chanDescriptor = chanDescriptor,
+      postNo = packed ushr POST_SUB_NO_BITS,
+      postSubNo = packed and MAX_POST_SUB_NO
+    )
+  }
+
+  private fun indexOfPacked(packed: Long): Int {
+    return Arrays.binarySearch(packedPostNos, 0, packedSize, packed)
+  }
+
+  private fun insertPackedAt(index: Int, packed: Long) {
+    ensureCapacity(packedSize + 1)
+
+    System.arraycopy(packedPostNos, index, packedPostNos, index + 1, packedSize - index)
+    packedPostNos[index] = packed
+    ++packedSize
+    ++modCount
+  }
+
+  private fun removePackedAt(index: Int) {
+    System.arraycopy(packedPostNos, index + 1, packedPostNos, index, packedSize - index - 1)
+    --packedSize
+    ++modCount
+  }
+
+  private fun ensureCapacity(capacity: Int) {
+    if (packedPostNos.size >= capacity) {
+      return
+    }
+
+    val newCapacity = maxOf(capacity, packedPostNos.size + (packedPostNos.size shr 1), MIN_CAPACITY)
+    packedPostNos = packedPostNos.copyOf(newCapacity)
+  }
+
+  private fun sortAndRemoveDuplicates() {
+    if (packedSize <= 1) {
+      return
+    }
+
+    Arrays.sort(packedPostNos, 0, packedSize)
+
+    var newSize = 1
+    for (index in 1 until packedSize) {
+      if (packedPostNos[index] != packedPostNos[newSize - 1]) {
+        packedPostNos[newSize++] = packedPostNos[index]
+      }
+    }
+
+    packedSize = newSize
+  }
+
+  private fun addAllOther(postDescriptors: Collection<PostDescriptor>) {
+    val other = otherPostDescriptors
+      ?: LinkedHashSet<PostDescriptor>().also { otherPostDescriptors = it }
+
+    other.addAll(postDescriptors)
+  }
+
+  private inner class PackedPostDescriptorIterator : MutableIterator<PostDescriptor> {
+    private var packedIndex = 0
+    private var otherIterator: MutableIterator<PostDescriptor>? = null
+    private var lastWasPacked = false
+    private var canRemove = false
+    private var expectedModCount = modCount
+
+    override fun hasNext(): Boolean {
+      if (packedIndex < packedSize) {
+        return true
+      }
+
+      return otherIterator().hasNext()
+    }
+
+    override fun next(): PostDescriptor {
+      checkForComodification()
+
+      if (packedIndex < packedSize) {
+        lastWasPacked = true
+        canRemove = true
+
+        return unpack(packedPostNos[packedIndex++])
+      }
+
+      val postDescriptor = otherIterator().next()
+      lastWasPacked = false
+      canRemove = true
+
+      return postDescriptor
+    }
+
+    override fun remove() {
+      check(canRemove) { "next() must be called before remove()" }
+      checkForComodification()
+      canRemove = false
+
+      if (lastWasPacked) {
+        --packedIndex
+        removePackedAt(packedIndex)
+      } else {
+        otherIterator().remove()
+        ++modCount
+      }
+
+      expectedModCount = modCount
+    }
+
+    private fun checkForComodification() {
+      if (modCount != expectedModCount) {
+        throw ConcurrentModificationException()
+      }
+    }
+
+    private fun otherIterator(): MutableIterator<PostDescriptor> {
+      otherIterator?.let { iterator -> return iterator }
+
+      val iterator = otherPostDescriptors?.iterator()
+        ?: Collections.emptyIterator()
+
+      otherIterator = iterator
+      return iterator
+    }
+  }
+
+  companion object {
+    private const val POST_SUB_NO_BITS = 16
+    private const val MAX_POST_SUB_NO = (1L shl POST_SUB_NO_BITS) - 1
+    private const val MAX_POST_NO = (1L shl (63 - POST_SUB_NO_BITS)) - 1
+    private const val NOT_PACKABLE = -1L
+    private const val MIN_CAPACITY = 4
+
+    private val EMPTY_ARRAY = LongArray(0)
+  }
+
+}
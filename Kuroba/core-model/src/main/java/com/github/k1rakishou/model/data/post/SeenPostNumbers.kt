@@ -0,0 +1,198 @@
+package com.github.k1rakishou.model.data.post
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import org.joda.time.DateTime
+
+/**
+ * Seen posts of one thread stored as sorted (by postNo, postSubNo) primitive arrays so that lookups
+ * are binary searches which don't allocate anything.
+ *
+ * Not thread safe. An instance that is shared with other threads must never be modified again, use
+ * [mergedWith]/[retainOnly] to create a new one instead.
+ * */
+class SeenPostNumbers(initialCapacity: Int = 16) {
+  private var postNos = LongArray(initialCapacity.coerceAtLeast(1))
+  private var postSubNos = LongArray(initialCapacity.coerceAtLeast(1))
+  private var insertedAtMillis = LongArray(initialCapacity.coerceAtLeast(1))
+
+  var size: Int = 0
+    private set
+
+  fun isEmpty(): Boolean = size == 0
+
+  fun contains(postNo: Long, postSubNo: Long): Boolean {
+    return indexOf(postNo, postSubNo) >= 0
+  }
+
+  /**
+   * Returns the time when the post was seen or -1 if it wasn't.
+   * */
+  fun insertedAtMillis(postNo: Long, postSubNo: Long): Long {
+    val index = indexOf(postNo, postSubNo)
+    if (index < 0) {
+      return -1L
+    }
+
+    return insertedAtMillis[index]
+  }
+
+  /**
+   * Returns false if the post is already in the set (the already stored time is kept).
+   * */
+  fun add(postNo: Long, postSubNo: Long, insertedAt: Long): Boolean {
+    val index = indexOf(postNo, postSubNo)
+    if (index >= 0) {
+      return false
+    }
+
+    val insertionIndex = -(index + 1)
+    ensureCapacity(size + 1)
+
+    if (insertionIndex < size) {
+      val count = size - insertionIndex
+      System.arraycopy(postNos, insertionIndex, postNos, insertionIndex + 1, count)
+      System.arraycopy(postSubNos, insertionIndex, postSubNos, insertionIndex + 1, count)
+      System.arraycopy(insertedAtMillis, insertionIndex, insertedAtMillis, insertionIndex + 1, count)
+    }
+
+    postNos[insertionIndex] = postNo
+    postSubNos[insertionIndex] = postSubNo
+    insertedAtMillis[insertionIndex] = insertedAt
+    ++size
+
+    return true
+  }
+
+  /**
+   * Returns a new instance with posts of both this and [other] (when both have the same post the
+   * time from this one is used).
+   * */
+  fun mergedWith(other: SeenPostNumbers): SeenPostNumbers {
+    val result = SeenPostNumbers(size + other.size)
+    var thisIndex = 0
+    var otherIndex = 0
+
+    while (thisIndex < size || otherIndex < other.size) {
+      val compared = when {
+        thisIndex >= size -> 1
+        otherIndex >= other.size -> -1
+        else -> compare(
+          postNos[thisIndex], postSubNos[thisIndex],
+          other.postNos[otherIndex], other.postSubNos[otherIndex]
+        )
+      }
+
+      if (compared <= 0) {
+        result.append(postNos[thisIndex], postSubNos[thisIndex], insertedAtMillis[thisIndex])
+
+        if (compared == 0) {
+          ++otherIndex
+        }
+
+        ++thisIndex
+      } else {
+        result.append(other.postNos[otherIndex], other.postSubNos[otherIndex], other.insertedAtMillis[otherIndex])
+        ++otherIndex
+      }
+    }
+
+    return result
+  }
+
+  /**
+   * Returns a new instance which only contains the post (if it's in this set).
+   * */
+  fun retainOnly(postNo: Long, postSubNo: Long): SeenPostNumbers {
+    val result = SeenPostNumbers(1)
+
+    val index = indexOf(postNo, postSubNo)
+    if (index >= 0) {
+      result.append(postNos[index], postSubNos[index], insertedAtMillis[index])
+    }
+
+    return result
+  }
+
+  fun toSeenPosts(threadDescriptor: ChanDescriptor.ThreadDescriptor): List<SeenPost> {
+    val seenPosts = ArrayList<SeenPost>(size)
+
+    for (index in 0 until size) {
+      seenPosts += SeenPost(
+        postDescriptor = PostDescriptor.create(
+          chanDescriptor = threadDescriptor,
+          threadNo = threadDescriptor.threadNo,
+          postNo = postNos[index],
+          postSubNo = postSubNos[index]
+        ),
+        insertedAt = DateTime(insertedAtMillis[index])
+      )
+    }
+
+    return seenPosts
+  }
+
+  private fun append(postNo: Long, postSubNo: Long, insertedAt: Long) {
+    ensureCapacity(size + 1)
+
+    postNos[size] = postNo
+    postSubNos[size] = postSubNo
+    insertedAtMillis[size] = insertedAt
+    ++size
+  }
+
+  private fun indexOf(postNo: Long, postSubNo: Long): Int {
+    var low = 0
+    var high = size - 1
+
+    while (low <= high) {
+      val mid = (low + high) ushr 1
+      val compared = compare(postNos[mid], postSubNos[mid], postNo, postSubNo)
+
+      when {
+        compared < 0 -> low = mid + 1
+        compared > 0 -> high = mid - 1
+        else -> return mid
+      }
+    }
+
+    return -(low + 1)
+  }
+
+  private fun ensureCapacity(capacity: Int) {
+    if (capacity <= postNos.size) {
+      return
+    }
+
+    val newCapacity = maxOf(capacity, postNos.size * 2)
+    postNos = postNos.copyOf(newCapacity)
+    postSubNos = postSubNos.copyOf(newCapacity)
+    insertedAtMillis = insertedAtMillis.copyOf(newCapacity)
+  }
+
+  private fun compare(postNo1: Long, postSubNo1: Long, postNo2: Long, postSubNo2: Long): Int {
+    val compared = postNo1.compareTo(postNo2)
+    if (compared != 0) {
+      return compared
+    }
+
+    return postSubNo1.compareTo(postSubNo2)
+  }
+
+  companion object {
+    fun fromSeenPosts(seenPosts: Collection<SeenPost>): SeenPostNumbers {
+      val seenPostNumbers = SeenPostNumbers(seenPosts.size)
+
+      for (seenPost in seenPosts) {
+        seenPostNumbers.add(
+          postNo = seenPost.postDescriptor.postNo,
+          postSubNo = seenPost.postDescriptor.postSubNo,
+          insertedAt = seenPost.insertedAt.millis
+        )
+      }
+
+      return seenPostNumbers
+    }
+  }
+
+}
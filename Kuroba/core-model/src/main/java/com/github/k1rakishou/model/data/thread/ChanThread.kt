@@ -18,8 +18,10 @@ import com.github.k1rakishou.model.data.post.PostComment
 import com.github.k1rakishou.model.util.ChanPostUtils
 import okhttp3.HttpUrl
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.Comparator
+import kotlin.collections.AbstractList
 import kotlin.collections.ArrayList
 import kotlin.collections.component1
 import kotlin.collections.component2
@@ -29,10 +31,22 @@ import kotlin.concurrent.write
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
 
+/**
+ * Writers (addOrUpdatePosts/deletePosts/cleanup etc) modify the posts under the write lock and then
+ * publish a new [PostsSnapshot] once per write. Everything that only reads the posts uses the latest
+ * published snapshot without taking the lock so that the UI never gets blocked by a long merge
+ * running on a background thread.
+ *
+ * A post is never modified once it's published, a post that needs to be changed is replaced with an
+ * updated copy (see updateThreadState()). The only exceptions are the replies and the images of a
+ * post which are immutable collections that [ChanPost] atomically replaces with the updated ones.
+ * */
 class ChanThread(
   private val isDevBuild: Boolean,
   val threadDescriptor: ChanDescriptor.ThreadDescriptor,
-  initialLastAccessTime: Long
+  initialLastAccessTime: Long,
+  // Called (with the write lock held) every time the estimated retained size of this thread changes
+  private val onEstimatedRetainedBytesChanged: ((Long) -> Unit)? = null
 ) {
   private val lock = ReentrantReadWriteLock()
 
@@ -41,12 +55,33 @@ class ChanThread(
   @GuardedBy("lock")
   private val postsByPostDescriptors = mutableMapOf<PostDescriptor, ChanPost>()
   @GuardedBy("lock")
+  // Positions of posts inside of threadPosts. Must always be kept in sync with threadPosts so that
+  // we don't have to use indexOfFirst (which is O(n)) every time we need to find a post's position.
+  // Shared with the published snapshots. New posts are only ever appended into it (their indexes are
+  // out of bounds for the older snapshots), when posts are removed or reordered a new map is created.
+  private var postIndexes = ConcurrentHashMap<PostDescriptor, Int>()
+  @GuardedBy("lock")
   // Stores hashes of unparsed post comments, the way we got the from the server, without any spans added yet.
   private val rawPostHashesMap = mutableMapOf<PostDescriptor, MurmurHashUtils.Murmur3Hash>()
   @GuardedBy("lock")
   private var lastAccessTime = initialLastAccessTime
   @GuardedBy("lock")
   private var lastUpdateTime = 0L
+  @GuardedBy("lock")
+  private var _estimatedRetainedBytes = 0L
+
+  // Replaced (with the write lock held) after every modification of threadPosts, read without the lock.
+  @Volatile
+  private var postsSnapshot = PostsSnapshot.EMPTY
+  @GuardedBy("lock")
+  // Shared by the published snapshots, see publishPostsSnapshot()
+  private var snapshotPostsArray = emptyArray<ChanPost?>()
+  @GuardedBy("lock")
+  private var publishedPostsCount = 0
+  @GuardedBy("lock")
+  // The lowest index of threadPosts that was modified (other than by appending a post) since the
+  // last publishPostsSnapshot() call.
+  private var firstModifiedPostIndex = Int.MAX_VALUE
 
   // All the ***forUi variables/flags are used to display one-shot snackbar messages like
   // This thread is now sticky/no longer sticky/closed/archived/deleted etc
@@ -62,20 +97,26 @@ class ChanThread(
   private var isNowArchivedForUi: Boolean? = null
 
   val postsCount: Int
-    get() = lock.read { threadPosts.size }
+    get() = postsSnapshot.posts.size
 
   val repliesCount: Int
-    get() = lock.read {
+    get() {
       val postsTotal = postsCount
       if (postsTotal <= 0) {
-        return@read 0
+        return 0
       }
 
-      return@read postsTotal - 1
+      return postsTotal - 1
     }
 
+  /**
+   * Estimated amount of heap retained by the posts of this thread (see [ChanPost.estimatedRetainedBytes]).
+   * */
+  val estimatedRetainedBytes: Long
+    get() = lock.read { _estimatedRetainedBytes }
+
   val imagesCount: Int
-    get() = lock.read { threadPosts.sumBy { post -> post.postImages.size } }
+    get() = postsSnapshot.posts.sumBy { post -> post.postImages.size }
 
   fun getAndConsumeDeletedPostsForUi(): Int {
     return lock.write {
@@ -122,12 +163,19 @@ class ChanThread(
     }
   }
 
-  fun isClosed(): Boolean = lock.read { getOriginalPost()?.closed ?: false }
-  fun isArchived(): Boolean = lock.read { getOriginalPost()?.archived ?: false }
-  fun isDeleted(): Boolean = lock.read { getOriginalPost()?.isDeleted ?: false }
+  fun isClosed(): Boolean = getOriginalPost()?.closed ?: false
+  fun isArchived(): Boolean = getOriginalPost()?.archived ?: false
+  fun isDeleted(): Boolean = getOriginalPost()?.isDeleted ?: false
 
-  fun putPostHash(postDescriptor: PostDescriptor, hash: MurmurHashUtils.Murmur3Hash) {
-    lock.write { rawPostHashesMap[postDescriptor] = hash }
+  fun putPostHashes(postHashes: Collection<Map.Entry<PostDescriptor, MurmurHashUtils.Murmur3Hash>>) {
+    lock.write {
+      postHashes.forEach { (postDescriptor, hash) ->
+        // Do not store hashes of posts we don't have (e.g. removed by ChanReadOptions)
+        if (postsByPostDescriptors.containsKey(postDescriptor)) {
+          rawPostHashesMap[postDescriptor] = hash
+        }
+      }
+    }
   }
 
   fun getPostHash(postDescriptor: PostDescriptor): MurmurHashUtils.Murmur3Hash? {
@@ -139,27 +187,24 @@ class ChanThread(
   }
 
   fun getPostImage(postDescriptor: PostDescriptor, imageUrl: HttpUrl): ChanPostImage? {
-    return lock.read {
-      return@read postsByPostDescriptors[postDescriptor]
-        ?.firstPostImageOrNull { chanPostImage -> chanPostImage.imageUrl == imageUrl }
-    }
+    return postsSnapshot.getPost(postDescriptor)
+      ?.firstPostImageOrNull { chanPostImage -> chanPostImage.imageUrl == imageUrl }
   }
 
   fun getPosts(postDescriptors: Collection<PostDescriptor>): List<ChanPost> {
-    return lock.read {
-      val posts = mutableListWithCap<ChanPost>(postDescriptors.size)
-
-      postDescriptors.forEach { postDescriptor ->
-        posts += postsByPostDescriptors[postDescriptor]
-          ?: return@forEach
-      }
+    val snapshot = postsSnapshot
+    val posts = mutableListWithCap<ChanPost>(postDescriptors.size)
 
-      return@read posts
+    postDescriptors.forEach { postDescriptor ->
+      posts += snapshot.getPost(postDescriptor)
+        ?: return@forEach
     }
+
+    return posts
   }
 
   fun getAll(): List<ChanPost> {
-    return lock.read { threadPosts.toList() }
+    return postsSnapshot.posts.toList()
   }
 
   @OptIn(ExperimentalTime::class)
@@ -191,8 +236,10 @@ class ChanThread(
 
         // We don't have this post, just add it at the end
         if (!postsByPostDescriptors.containsKey(newChanPost.postDescriptor)) {
+          postIndexes[newChanPost.postDescriptor] = threadPosts.size
           threadPosts.add(newChanPost)
           postsByPostDescriptors[newChanPost.postDescriptor] = newChanPost
+          onPostAdded(newChanPost)
 
           addedOrUpdatedOrDeletedPosts = true
           addedPostsCount++
@@ -200,8 +247,7 @@ class ChanThread(
           return@forEach
         }
 
-        val oldChanPostIndex = threadPosts
-          .indexOfFirst { post -> post.postDescriptor == newChanPost.postDescriptor }
+        val oldChanPostIndex = indexOfPost(newChanPost.postDescriptor)
         check(oldChanPostIndex >= 0) { "Bad oldChanPostIndex: $oldChanPostIndex" }
 
         val oldChanPost = threadPosts[oldChanPostIndex]
@@ -216,6 +262,7 @@ class ChanThread(
 
         threadPosts[oldChanPostIndex] = mergedPost
         postsByPostDescriptors[newChanPost.postDescriptor] = mergedPost
+        onPostReplaced(oldChanPostIndex, oldChanPost, mergedPost)
 
         addedOrUpdatedOrDeletedPosts = true
         ++updatedPostsCount
@@ -223,9 +270,7 @@ class ChanThread(
 
       if (deletedPostsSet != null && deletedPostsSet.isNotEmpty()) {
         deletedPostsSet.forEach { deletedPostDescriptor ->
-          val oldChanPostIndex = threadPosts
-            .indexOfFirst { post -> post.postDescriptor == deletedPostDescriptor }
-
+          val oldChanPostIndex = indexOfPost(deletedPostDescriptor)
           if (oldChanPostIndex < 0) {
             return@forEach
           }
@@ -241,6 +286,7 @@ class ChanThread(
 
           threadPosts[oldChanPostIndex] = updatedPost
           postsByPostDescriptors[updatedPost.postDescriptor] = updatedPost
+          onPostReplaced(oldChanPostIndex, oldPost, updatedPost)
 
           addedOrUpdatedOrDeletedPosts = true
           ++deletedPostsCount
@@ -252,12 +298,17 @@ class ChanThread(
           if (!postsAreSorted()) {
             Logger.d(TAG, "addOrUpdatePosts() posts need to be sorted")
             threadPosts.sortWith(POSTS_COMPARATOR)
+            onPostsReordered()
           }
 
           recalculatePostReplies(newChanPosts)
         }
       }
 
+      if (addedOrUpdatedOrDeletedPosts) {
+        publishPostsSnapshot()
+      }
+
       deletedPostsForUi += deletedPostsCount
       checkPostsConsistency()
 
@@ -305,62 +356,53 @@ class ChanThread(
 
         threadPosts[0] = mergedChanOriginalPost
         postsByPostDescriptors[newChanOriginalPost.postDescriptor] = mergedChanOriginalPost
+        onPostReplaced(0, oldChanOriginalPost, mergedChanOriginalPost)
       } else {
+        postIndexes[newChanOriginalPost.postDescriptor] = threadPosts.size
         threadPosts.add(newChanOriginalPost)
         postsByPostDescriptors[newChanOriginalPost.postDescriptor] = newChanOriginalPost
+        onPostAdded(newChanOriginalPost)
 
         if (!postsAreSorted()) {
           Logger.d(TAG, "setOrUpdateOriginalPost() posts need to be sorted")
           threadPosts.sortWith(POSTS_COMPARATOR)
+          onPostsReordered()
         }
       }
 
+      publishPostsSnapshot()
       checkPostsConsistency()
     }
   }
 
   fun getOriginalPostSafe(): ChanOriginalPost? {
-    return lock.read {
-      if (threadPosts.isEmpty()) {
-        return@read null
-      }
-
-      val firstPost = threadPosts.first()
-      if (firstPost is ChanOriginalPost) {
-        return@read firstPost
-      }
-
-      return null
-    }
+    return postsSnapshot.posts.firstOrNull() as? ChanOriginalPost
   }
 
   fun getOriginalPost(): ChanOriginalPost? {
-    return lock.read {
-      if (threadPosts.isEmpty()) {
-        return@read null
-      }
-
-      val firstPost = threadPosts.first()
-      if (firstPost is ChanOriginalPost) {
-        return@read firstPost
-      }
+    val posts = postsSnapshot.posts
+    if (posts.isEmpty()) {
+      return null
+    }
 
-      val errorMessage = buildString {
-        appendLine("First post is not an original post! firstPost=${threadPosts.first()}")
-        appendLine("Total posts count: ${threadPosts.size}")
+    val firstPost = posts.first()
+    if (firstPost is ChanOriginalPost) {
+      return firstPost
+    }
 
-        val indexOfOriginalPost = threadPosts.indexOfFirst { it is ChanOriginalPost }
-        appendLine("Actual index of the original post: $indexOfOriginalPost")
-      }
+    val errorMessage = buildString {
+      appendLine("First post is not an original post! firstPost=${firstPost}")
+      appendLine("Total posts count: ${posts.size}")
 
-      error(errorMessage)
+      val indexOfOriginalPost = posts.indexOfFirst { it is ChanOriginalPost }
+      appendLine("Actual index of the original post: $indexOfOriginalPost")
     }
+
+    error(errorMessage)
   }
 
   fun getPostDescriptors(): List<PostDescriptor> {
-    return lock.read {
-      return@read threadPosts.map { chanPost -> chanPost.postDescriptor }
-    }
+    return postsSnapshot.posts.map { chanPost -> chanPost.postDescriptor }
   }
 
   fun updateLastAccessTime() {
@@ -395,55 +437,68 @@ class ChanThread(
         return@write
       }
 
-      val chanOriginalPost = threadPosts.first() as? ChanOriginalPost
+      val oldChanOriginalPost = threadPosts.first() as? ChanOriginalPost
         ?: return@write
 
-      if (deleted != null) {
-        if (chanOriginalPost.isDeleted != deleted) {
-          isNowDeletedForUi = deleted
-        }
+      val deletedChanged = deleted != null && oldChanOriginalPost.isDeleted != deleted
+      val archivedChanged = archived != null && oldChanOriginalPost.archived != archived
+      val closedChanged = closed != null && oldChanOriginalPost.closed != closed
 
-        chanOriginalPost.isDeleted = deleted
+      if (!deletedChanged && !archivedChanged && !closedChanged) {
+        return@write
+      }
+
+      // The old original post may be used by the readers right now so it must not be modified,
+      // the flags are updated on a copy which is then published instead of the old post.
+      val newChanOriginalPost = oldChanOriginalPost.deepCopy(overrideDeleted = deleted) as ChanOriginalPost
+
+      if (deletedChanged) {
+        isNowDeletedForUi = deleted
       }
 
       if (archived != null) {
-        if (chanOriginalPost.archived != archived) {
+        if (archivedChanged) {
           isNowArchivedForUi = archived
         }
 
-        chanOriginalPost.archived = archived
+        newChanOriginalPost.archived = archived
       }
 
       if (closed != null) {
-        if (chanOriginalPost.closed != closed) {
+        if (closedChanged) {
           isNowClosedForUi = closed
         }
 
-        chanOriginalPost.closed = closed
+        newChanOriginalPost.closed = closed
       }
+
+      threadPosts[0] = newChanOriginalPost
+      postsByPostDescriptors[newChanOriginalPost.postDescriptor] = newChanOriginalPost
+      onPostReplaced(0, oldChanOriginalPost, newChanOriginalPost)
+
+      publishPostsSnapshot()
+      checkPostsConsistency()
     }
   }
 
   fun canUpdateThread(): Boolean {
-    return lock.read {
-      val originalPost = getOriginalPostSafe()
-      if (originalPost == null) {
-        // I guess we should update the thread if we have no posts?
-        return@read true
-      }
-
-      return@read !originalPost.closed
-        && !originalPost.isDeleted
-        && !originalPost.archived
+    val originalPost = getOriginalPostSafe()
+    if (originalPost == null) {
+      // I guess we should update the thread if we have no posts?
+      return true
     }
+
+    return !originalPost.closed
+      && !originalPost.isDeleted
+      && !originalPost.archived
   }
 
   fun lastPost(): ChanPost? {
-    return lock.read { threadPosts.lastOrNull() }
+    return postsSnapshot.posts.lastOrNull()
   }
 
   fun getPost(postDescriptor: PostDescriptor): ChanPost? {
-    return lock.read { postsByPostDescriptors[postDescriptor] }
+    return postsSnapshot.getPost(postDescriptor)
   }
 
   fun <T> iteratePostIndexes(
@@ -452,32 +507,27 @@ class ChanThread(
     postDescriptorSelector: (T) -> PostDescriptor,
     iterator: (ChanPost, Int) -> Unit
   ) {
-    lock.read {
-      input.forEach { inputValue ->
-        val postDescriptor = postDescriptorSelector(inputValue)
-
-        check(postDescriptor.threadDescriptor() == threadDescriptor) {
-          "All posts must belong to the same thread! threadDescriptor=$threadDescriptor, " +
-            "postDescriptor.threadDescriptor=${postDescriptor.threadDescriptor()}"
-        }
-
-        val postIndex = threadPosts
-          .indexOfFirst { chanPost -> chanPost.postDescriptor == postDescriptor }
+    val snapshot = postsSnapshot
 
-        if (postIndex < 0) {
-          return@forEach
-        }
+    input.forEach { inputValue ->
+      val postDescriptor = postDescriptorSelector(inputValue)
 
-        val chanPost = threadPosts.getOrNull(postIndex)
-          ?: return@forEach
+      check(postDescriptor.threadDescriptor() == threadDescriptor) {
+        "All posts must belong to the same thread! threadDescriptor=$threadDescriptor, " +
+          "postDescriptor.threadDescriptor=${postDescriptor.threadDescriptor()}"
+      }
 
-        iterator(chanPost, postIndex)
+      val postIndex = snapshot.indexOfPost(postDescriptor)
+      if (postIndex < 0) {
+        return@forEach
       }
+
+      iterator(snapshot.posts[postIndex], postIndex)
     }
   }
 
   fun getNewPostsCount(lastPostNo: Long): Int {
-    return lock.read { threadPosts.count { chanPost -> chanPost.postNo() > lastPostNo } }
+    return postsSnapshot.posts.count { chanPost -> chanPost.postNo() > lastPostNo }
   }
 
   fun findPostWithRepliesRecursive(
@@ -495,49 +545,36 @@ class ChanThread(
       "Either includeRepliesFrom or includeRepliesTo must be true"
     }
 
-    val postsToCheck = mutableListOf<ChanPost>()
-
-    lock.read {
-      for (post in threadPosts) {
-        if (post.postDescriptor != postDescriptor || postsSet.contains(post)) {
-          continue
-        }
+    val post = postsSnapshot.getPost(postDescriptor)
+      ?: return
 
-        postsToCheck.add(post)
-      }
+    if (!postsSet.add(post)) {
+      return
     }
 
-    for (post in postsToCheck) {
-      if (postsSet.contains(post)) {
-        continue
-      }
-
-      postsSet.add(post)
-
-      if (includeRepliesFrom) {
-        val repliesFrom = post.repliesFromCopy
-        repliesFrom.forEach { lookUpPostDescriptor ->
-          findPostWithRepliesRecursive(
-            postDescriptor = lookUpPostDescriptor,
-            postsSet = postsSet,
-            includeRepliesFrom = includeRepliesFrom,
-            includeRepliesTo = includeRepliesTo,
-            maxRecursion = maxRecursion - 1
-          )
-        }
+    if (includeRepliesFrom) {
+      val repliesFrom = post.repliesFromCopy
+      repliesFrom.forEach { lookUpPostDescriptor ->
+        findPostWithRepliesRecursive(
+          postDescriptor = lookUpPostDescriptor,
+          postsSet = postsSet,
+          includeRepliesFrom = includeRepliesFrom,
+          includeRepliesTo = includeRepliesTo,
+          maxRecursion = maxRecursion - 1
+        )
       }
+    }
 
-      if (includeRepliesTo) {
-        val repliesTo = post.repliesTo
-        repliesTo.forEach { lookUpPostDescriptor ->
-          findPostWithRepliesRecursive(
-            postDescriptor = lookUpPostDescriptor,
-            postsSet = postsSet,
-            includeRepliesFrom = includeRepliesFrom,
-            includeRepliesTo = includeRepliesTo,
-            maxRecursion = maxRecursion - 1
-          )
-        }
+    if (includeRepliesTo) {
+      val repliesTo = post.repliesTo
+      repliesTo.forEach { lookUpPostDescriptor ->
+        findPostWithRepliesRecursive(
+          postDescriptor = lookUpPostDescriptor,
+          postsSet = postsSet,
+          includeRepliesFrom = includeRepliesFrom,
+          includeRepliesTo = includeRepliesTo,
+          maxRecursion = maxRecursion - 1
+        )
       }
     }
   }
@@ -549,21 +586,29 @@ class ChanThread(
         "First post is not an original post! post=${threadPosts.first()}"
       }
 
+      var anyPostRemoved = false
+
       postDescriptors.forEach { postDescriptor ->
         if (postDescriptor.isOP()) {
           Logger.e(TAG, "Deleting original post ${postDescriptor}!!! This may end up very badly!")
         }
 
-        val postIndex = threadPosts.indexOfFirst { chanPost ->
-          chanPost.postDescriptor == postDescriptor
-        }
+        rawPostHashesMap.remove(postDescriptor)
 
-        if (postIndex >= 0) {
-          threadPosts.removeAt(postIndex)
+        val removedPost = postsByPostDescriptors.remove(postDescriptor)
+        if (removedPost != null) {
+          onPostRemoved(removedPost)
+          anyPostRemoved = true
         }
+      }
 
-        rawPostHashesMap.remove(postDescriptor)
-        postsByPostDescriptors.remove(postDescriptor)
+      if (anyPostRemoved) {
+        // Remove all deleted posts in one pass and then recalculate the positions of the remaining
+        // ones instead of calling removeAt() (which shifts the whole list) for every deleted post.
+        threadPosts.removeAll { chanPost -> !postsByPostDescriptors.containsKey(chanPost.postDescriptor) }
+
+        onPostsReordered()
+        publishPostsSnapshot()
       }
 
       checkPostsConsistency()
@@ -578,39 +623,26 @@ class ChanThread(
   }
 
   fun iteratePostsOrderedWhile(iterator: (ChanPost) -> Boolean) {
-    lock.read {
-      if (threadPosts.isEmpty()) {
-        return@read
-      }
-
-      for (index in threadPosts.indices) {
-        val chanPost = threadPosts.getOrNull(index)
-          ?: return@read
-
-        if (!iterator(chanPost)) {
-          return@read
-        }
+    for (chanPost in postsSnapshot.posts) {
+      if (!iterator(chanPost)) {
+        return
       }
     }
   }
 
   fun <T> mapPostsOrdered(mapper: (ChanPost) -> T): List<T> {
-    return lock.read {
-      if (threadPosts.isEmpty()) {
-        return@read emptyList()
-      }
-
-      val resultList = mutableListOf<T>()
-
-      for (index in threadPosts.indices) {
-        val chanPost = threadPosts.getOrNull(index)
-          ?: return@read emptyList()
+    val posts = postsSnapshot.posts
+    if (posts.isEmpty()) {
+      return emptyList()
+    }
 
-        resultList += mapper(chanPost)
-      }
+    val resultList = mutableListWithCap<T>(posts.size)
 
-      return@read resultList
+    for (chanPost in posts) {
+      resultList += mapper(chanPost)
     }
+
+    return resultList
   }
 
   fun mapPostsWithImagesAround(
@@ -625,105 +657,101 @@ class ChanThread(
     check(leftCount >= 0) { "Bad left count: $leftCount" }
     check(rightCount >= 0) { "Bad right count: $rightCount" }
 
-    return lock.read {
-      val indexOfPost = threadPosts.indexOfFirst { post -> post.postDescriptor == postDescriptor }
-      if (indexOfPost < 0) {
-        return@read emptyList()
-      }
+    val snapshot = postsSnapshot
+    val posts = snapshot.posts
 
-      val totalCount = leftCount + rightCount
-      val postDescriptors = mutableListWithCap<PostDescriptor>(totalCount)
+    val indexOfPost = snapshot.indexOfPost(postDescriptor)
+    if (indexOfPost < 0) {
+      return emptyList()
+    }
 
-      // Check current post and add it to the list if it has images
-      threadPosts.getOrNull(indexOfPost)?.let { currentPost ->
-        if (currentPost.postImages.isNotEmpty()) {
-          postDescriptors += currentPost.postDescriptor
-        }
-      }
+    val totalCount = leftCount + rightCount
+    val postDescriptors = mutableListWithCap<PostDescriptor>(totalCount)
 
-      var currentPostIndex = indexOfPost - 1
-      var takeFromLeft = leftCount
+    // Check current post and add it to the list if it has images
+    posts.getOrNull(indexOfPost)?.let { currentPost ->
+      if (currentPost.postImages.isNotEmpty()) {
+        postDescriptors += currentPost.postDescriptor
+      }
+    }
 
-      // Check posts to the left of the current post and add to the list those that have images
-      while (takeFromLeft > 0 && currentPostIndex in threadPosts.indices) {
-        val post = threadPosts.getOrNull(currentPostIndex--)
-          ?: break
+    var currentPostIndex = indexOfPost - 1
+    var takeFromLeft = leftCount
 
-        if (post.postImages.isEmpty()) {
-          continue
-        }
+    // Check posts to the left of the current post and add to the list those that have images
+    while (takeFromLeft > 0 && currentPostIndex in posts.indices) {
+      val post = posts.getOrNull(currentPostIndex--)
+        ?: break
 
-        --takeFromLeft
-        postDescriptors += post.postDescriptor
+      if (post.postImages.isEmpty()) {
+        continue
       }
 
-      currentPostIndex = indexOfPost + 1
-      var takeFromRight = rightCount
+      --takeFromLeft
+      postDescriptors += post.postDescriptor
+    }
 
-      // Check posts to the right of the current post and add to the list those that have images
-      while (takeFromRight > 0 && currentPostIndex in threadPosts.indices) {
-        val post = threadPosts.getOrNull(currentPostIndex++)
-          ?: break
+    currentPostIndex = indexOfPost + 1
+    var takeFromRight = rightCount
 
-        if (post.postImages.isEmpty()) {
-          continue
-        }
+    // Check posts to the right of the current post and add to the list those that have images
+    while (takeFromRight > 0 && currentPostIndex in posts.indices) {
+      val post = posts.getOrNull(currentPostIndex++)
+        ?: break
 
-        --takeFromRight
-        postDescriptors += post.postDescriptor
+      if (post.postImages.isEmpty()) {
+        continue
       }
 
-      return@read postDescriptors
+      --takeFromRight
+      postDescriptors += post.postDescriptor
     }
+
+    return postDescriptors
   }
 
   fun getPostDescriptorRelativeTo(postDescriptor: PostDescriptor, offset: Int): PostDescriptor? {
-    return lock.read {
-      val currentPostIndex = threadPosts.indexOfFirst { post -> post.postDescriptor == postDescriptor }
-      if (currentPostIndex < 0) {
-        return@read null
-      }
+    val snapshot = postsSnapshot
 
-      val postIndex = (currentPostIndex + offset).coerceIn(0, threadPosts.size)
-      return@read threadPosts.getOrNull(postIndex)?.postDescriptor
+    val currentPostIndex = snapshot.indexOfPost(postDescriptor)
+    if (currentPostIndex < 0) {
+      return null
     }
+
+    val postIndex = (currentPostIndex + offset).coerceIn(0, snapshot.posts.size)
+    return snapshot.posts.getOrNull(postIndex)?.postDescriptor
   }
 
   fun iteratePostImages(
     postDescriptor: PostDescriptor,
     iterator: (ChanPostImage) -> Unit
   ): Boolean {
-    return lock.read {
-      val post = postsByPostDescriptors[postDescriptor]
-        ?: return@read false
+    val post = postsSnapshot.getPost(postDescriptor)
+      ?: return false
 
-      post.iteratePostImages { postImage -> iterator(postImage) }
-      return@read true
-    }
+    post.iteratePostImages { postImage -> iterator(postImage) }
+    return true
   }
 
 
   fun getThreadPostImages(): List<ChanPostImage> {
-    return lock.read {
-      val resultList = mutableListWithCap<ChanPostImage>(threadPosts.size)
-
-      threadPosts.forEach { chanPost ->
-        resultList.addAll(chanPost.postImages)
-      }
+    val posts = postsSnapshot.posts
+    val resultList = mutableListWithCap<ChanPostImage>(posts.size)
 
-      return@read resultList
+    posts.forEach { chanPost ->
+      resultList.addAll(chanPost.postImages)
     }
+
+    return resultList
   }
 
   fun postHasImages(postDescriptor: PostDescriptor): Boolean {
-    return lock.read {
-      return@read postsByPostDescriptors[postDescriptor]?.postImages?.isNotEmpty()
-        ?: false
-    }
+    return postsSnapshot.getPost(postDescriptor)?.postImages?.isNotEmpty()
+      ?: false
   }
 
   fun hasAtLeastOnePost(): Boolean {
-    return lock.read { threadPosts.isNotEmpty() }
+    return postsSnapshot.posts.isNotEmpty()
   }
 
   fun cleanup() {
@@ -733,6 +761,9 @@ class ChanThread(
         threadPosts.clear()
         postsByPostDescriptors.clear()
         rawPostHashesMap.clear()
+        changeEstimatedRetainedBytes(-_estimatedRetainedBytes)
+        onPostsReordered()
+        publishPostsSnapshot()
 
         return@write
       }
@@ -745,6 +776,7 @@ class ChanThread(
       threadPosts.mutableIteration { mutableIterator, chanPost ->
         if (chanPost !== chanOriginalPost) {
           mutableIterator.remove()
+          onPostRemoved(chanPost)
         }
 
         return@mutableIteration true
@@ -767,7 +799,121 @@ class ChanThread(
 
         return@mutableIteration true
       }
+
+      onPostsReordered()
+      publishPostsSnapshot()
+    }
+  }
+
+  private fun indexOfPost(postDescriptor: PostDescriptor): Int {
+    require(lock.isWriteLocked || lock.readHoldCount > 0) { "Lock must be locked!" }
+
+    val index = postIndexes[postDescriptor]
+      ?: return -1
+
+    if (index !in threadPosts.indices) {
+      return -1
+    }
+
+    return index
+  }
+
+  private fun onPostAdded(chanPost: ChanPost) {
+    changeEstimatedRetainedBytes(chanPost.estimatedRetainedBytes + POST_ENTRY_SIZE)
+  }
+
+  private fun onPostReplaced(postIndex: Int, oldChanPost: ChanPost, newChanPost: ChanPost) {
+    firstModifiedPostIndex = Math.min(firstModifiedPostIndex, postIndex)
+    changeEstimatedRetainedBytes(newChanPost.estimatedRetainedBytes - oldChanPost.estimatedRetainedBytes)
+  }
+
+  /**
+   * For the changes of a post that is already in the thread that make it retain more (or less) heap.
+   * */
+  private inline fun updatePost(chanPost: ChanPost, update: () -> Boolean): Boolean {
+    require(lock.isWriteLocked) { "Lock must be write locked!" }
+
+    val estimatedRetainedBytesBefore = chanPost.estimatedRetainedBytes
+
+    if (!update()) {
+      return false
+    }
+
+    changeEstimatedRetainedBytes(chanPost.estimatedRetainedBytes - estimatedRetainedBytesBefore)
+    return true
+  }
+
+  /**
+   * Must be called after posts were removed from [threadPosts] or reordered.
+   * */
+  private fun onPostsReordered() {
+    firstModifiedPostIndex = 0
+    rebuildPostIndexes()
+  }
+
+  private fun onPostRemoved(chanPost: ChanPost) {
+    changeEstimatedRetainedBytes(-(chanPost.estimatedRetainedBytes + POST_ENTRY_SIZE))
+  }
+
+  private fun changeEstimatedRetainedBytes(delta: Long) {
+    require(lock.isWriteLocked) { "Lock must be write locked!" }
+
+    if (delta == 0L) {
+      return
+    }
+
+    _estimatedRetainedBytes += delta
+    onEstimatedRetainedBytesChanged?.invoke(delta)
+  }
+
+  private fun rebuildPostIndexes() {
+    require(lock.isWriteLocked) { "Lock must be write locked!" }
+
+    // Do not clear the old map, it may still be used by the published snapshot
+    val newPostIndexes = ConcurrentHashMap<PostDescriptor, Int>(threadPosts.size)
+
+    threadPosts.forEachIndexed { index, chanPost ->
+      newPostIndexes[chanPost.postDescriptor] = index
+    }
+
+    postIndexes = newPostIndexes
+  }
+
+  /**
+   * Must be called (once) at the end of every write that modifies [threadPosts]. The posts themselves
+   * and, unless the posts were removed or reordered, the [postIndexes] map are shared with the
+   * previous snapshot. When posts were only appended (the most common case, e.g. a thread update
+   * with a couple of new posts) the array of references is shared too: the new posts are written
+   * into its free slots past the end of the older snapshots so only the new posts get copied. The
+   * whole array is only copied when it runs out of free slots or when any already published slot
+   * would have to be changed.
+   * */
+  private fun publishPostsSnapshot() {
+    require(lock.isWriteLocked) { "Lock must be write locked!" }
+
+    val postsCount = threadPosts.size
+    var postsArray = snapshotPostsArray
+
+    val publishedPostsChanged = firstModifiedPostIndex < publishedPostsCount
+      || postsCount < publishedPostsCount
+
+    if (publishedPostsChanged || postsCount > postsArray.size) {
+      postsArray = arrayOfNulls(postsCount + (postsCount shr 1))
+
+      for (index in 0 until postsCount) {
+        postsArray[index] = threadPosts[index]
+      }
+    } else {
+      for (index in publishedPostsCount until postsCount) {
+        postsArray[index] = threadPosts[index]
+      }
     }
+
+    snapshotPostsArray = postsArray
+    publishedPostsCount = postsCount
+    firstModifiedPostIndex = Int.MAX_VALUE
+
+    postsSnapshot = PostsSnapshot(postsArray, postsCount, postIndexes)
   }
 
   private fun updateThreadStatusFlagsForUi(
@@ -993,8 +1139,9 @@ class ChanThread(
 
     for ((postNo, replyList) in replies) {
       val subject = postsByPostDescriptors[postNo]
+        ?: continue
 
-      subject?.repliesFrom?.addAll(replyList)
+      updatePost(subject) { subject.addRepliesFrom(replyList) }
     }
   }
 
@@ -1009,9 +1156,29 @@ class ChanThread(
           "postsByPostDescriptors.size=${postsByPostDescriptors.size}"
       }
 
-      threadPosts.forEach { chanPost1 ->
+      check(threadPosts.size == postIndexes.size) {
+        "Sizes do not match (threadPosts.size=${threadPosts.size}, " +
+          "postIndexes.size=${postIndexes.size}"
+      }
+
+      val snapshotPosts = postsSnapshot.posts
+      check(threadPosts.size == snapshotPosts.size) {
+        "Sizes do not match (threadPosts.size=${threadPosts.size}, " +
+          "postsSnapshot.posts.size=${snapshotPosts.size}"
+      }
+
+      threadPosts.forEachIndexed { index, chanPost1 ->
         val chanPost2 = postsByPostDescriptors[chanPost1.postDescriptor]
 
+        check(postIndexes[chanPost1.postDescriptor] == index) {
+          "Bad post index (expected=$index, actual=${postIndexes[chanPost1.postDescriptor]}, " +
+            "postDescriptor=${chanPost1.postDescriptor})"
+        }
+
+        check(snapshotPosts[index] === chanPost1) {
+          "Snapshot post does not match (index=$index, postDescriptor=${chanPost1.postDescriptor})"
+        }
+
         if (chanPost1 is ChanOriginalPost) {
           check(chanPost1.lastModified >= 0L) { "Bad lastModified" }
         }
@@ -1068,18 +1235,18 @@ class ChanThread(
     val duplicatesSet = hashSetWithCap<PostDescriptor>(totalCount)
     val resultList = mutableListWithCap<ChanPost>(totalCount)
 
-    lock.read {
-      ranges.forEach { range ->
-        range.forEach { index ->
-          val post = threadPosts.getOrNull(index)
-            ?: return@forEach
+    val posts = postsSnapshot.posts
 
-          if (!duplicatesSet.add(post.postDescriptor)) {
-            return@forEach
-          }
+    ranges.forEach { range ->
+      range.forEach { index ->
+        val post = posts.getOrNull(index)
+          ?: return@forEach
 
-          resultList += post
+        if (!duplicatesSet.add(post.postDescriptor)) {
+          return@forEach
         }
+
+        resultList += post
       }
     }
 
@@ -1087,19 +1254,13 @@ class ChanThread(
   }
 
   fun getPostWithRepliesToThisPost(postDescriptor: PostDescriptor): List<PostDescriptor> {
-    return lock.read {
-      val chanPost = postsByPostDescriptors[postDescriptor]
-        ?: return@read emptyList()
+    val chanPost = postsSnapshot.getPost(postDescriptor)
+      ?: return emptyList()
 
-      val resultPosts = mutableListOf<PostDescriptor>()
-      resultPosts += chanPost.postDescriptor
-      resultPosts.addAll(chanPost.repliesFrom)
-      return@read resultPosts
-    }
-  }
-
-  fun isThreadLockCurrentlyLocked(): Boolean {
-    return lock.isWriteLocked && !lock.isWriteLockedByCurrentThread
+    val resultPosts = mutableListOf<PostDescriptor>()
+    resultPosts += chanPost.postDescriptor
+    resultPosts.addAll(chanPost.repliesFrom)
+    return resultPosts
   }
 
   fun addImage(chanPostImage: ChanPostImage) {
@@ -1107,13 +1268,70 @@ class ChanThread(
       val chanPost = postsByPostDescriptors[chanPostImage.ownerPostDescriptor]
         ?: return@write false
 
-      return@write chanPost.addImage(chanPostImage)
+      return@write updatePost(chanPost) { chanPost.addImage(chanPostImage) }
+    }
+  }
+
+  /**
+   * Immutable view of the thread posts. [postIndexes] may contain posts that were added after this
+   * snapshot was published, their indexes are always out of the [posts] bounds so they are ignored.
+   * */
+  private class PostsSnapshot(
+    postsArray: Array<ChanPost?>,
+    postsCount: Int,
+    private val postIndexes: Map<PostDescriptor, Int>
+  ) {
+    val posts: List<ChanPost> = PostsArrayView(postsArray, postsCount)
+
+    fun indexOfPost(postDescriptor: PostDescriptor): Int {
+      val index = postIndexes[postDescriptor]
+        ?: return -1
+
+      if (index !in posts.indices) {
+        return -1
+      }
+
+      return index
+    }
+
+    fun getPost(postDescriptor: PostDescriptor): ChanPost? {
+      val index = indexOfPost(postDescriptor)
+      if (index < 0) {
+        return null
+      }
+
+      return posts[index]
+    }
+
+    companion object {
+      val EMPTY = PostsSnapshot(emptyArray(), 0, emptyMap())
+    }
+  }
+
+  /**
+   * The first [size] slots of [postsArray]. The slots past them may be filled by the writer (for the
+   * newer snapshots) while this view is being used.
+   * */
+  private class PostsArrayView(
+    private val postsArray: Array<ChanPost?>,
+    override val size: Int
+  ) : AbstractList<ChanPost>(), RandomAccess {
+
+    override fun get(index: Int): ChanPost {
+      if (index < 0 || index >= size) {
+        throw IndexOutOfBoundsException("index=$index, size=$size")
+      }
+
+      return postsArray[index]!!
     }
   }
 
   companion object {
     private const val TAG = "ChanThread"
 
+    // The entries in threadPosts, postsByPostDescriptors and postIndexes every post has
+    private const val POST_ENTRY_SIZE = 96L
+
     private val POSTS_COMPARATOR = Comparator<ChanPost> { chanPost1, chanPost2 ->
       // Due to a strange thread on Lainchan where OP has postNo greater that the next post after it we
       //  need to add a new step to this comparator which will force OP to be the very first post of
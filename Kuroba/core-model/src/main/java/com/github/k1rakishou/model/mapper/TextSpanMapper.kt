@@ -1,16 +1,25 @@
 package com.github.k1rakishou.model.mapper
 
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.common.ModularResult.Companion.Try
 import com.github.k1rakishou.common.errorMessageOrClassName
-import com.github.k1rakishou.common.marshall
-import com.github.k1rakishou.common.unmarshall
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_spannable.ParcelableSpannableString
 import com.github.k1rakishou.core_spannable.ParcelableSpans
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.ParcelableSpannableStringMapper
 import com.github.k1rakishou.model.entity.chan.post.ChanTextSpanEntity
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
 object TextSpanMapper {
   private const val TAG = "TextSpanMapper"
 
+  private val legacyDecodeStats = DecodeStats()
+  private val currentDecodeStats = DecodeStats()
+  private val migratedCount = AtomicLong(0)
+  private val migratedBytesBefore = AtomicLong(0)
+  private val migratedBytesAfter = AtomicLong(0)
+
   fun toEntity(
     ownerPostId: Long,
     parcelableSpannableString: ParcelableSpannableString,
@@ -26,7 +35,7 @@ object TextSpanMapper {
       ownerPostId = ownerPostId,
       parsedText = parcelableSpannableString.text,
       unparsedText = originalUnparsedComment,
-      spanInfoBytes = parcelableSpannableString.parcelableSpans.marshall(),
+      spanInfoBytes = ParcelableSpannableStringMapper.serializeSpans(parcelableSpannableString),
       textType = chanTextType
     )
   }
@@ -54,7 +63,7 @@ object TextSpanMapper {
 
     val textSpanEntity = filteredTextSpanEntityList.first()
 
-    val parcelableSpans = textSpanEntity.spanInfoBytes.unmarshall(ParcelableSpans.CREATOR)
+    val parcelableSpans = deserializeSpans(textSpanEntity)
       .peekError { error -> Logger.e(TAG, "fromEntity() error: ${error.errorMessageOrClassName()}") }
       .valueOrNull()
       ?: ParcelableSpans()
@@ -65,4 +74,78 @@ object TextSpanMapper {
     )
   }
 
-}
\ No newline at end of file
+  /**
+   * Returns a copy of [textSpanEntity] with spans re-encoded in the current format or null if the
+   * spans are already in the current format (or can't be decoded).
+   * */
+  fun migrateToCurrentFormat(textSpanEntity: ChanTextSpanEntity): ChanTextSpanEntity? {
+    if (ParcelableSpannableStringMapper.isCurrentSpansFormat(textSpanEntity.spanInfoBytes)) {
+      return null
+    }
+
+    val parcelableSpans = deserializeSpans(textSpanEntity)
+      .peekError { error -> Logger.e(TAG, "migrateToCurrentFormat() error: ${error.errorMessageOrClassName()}") }
+      .valueOrNull()
+      ?: return null
+
+    val newSpanInfoBytes = ParcelableSpannableStringMapper.serializeSpans(
+      ParcelableSpannableString(parcelableSpans, textSpanEntity.parsedText)
+    )
+
+    migratedCount.incrementAndGet()
+    migratedBytesBefore.addAndGet(textSpanEntity.spanInfoBytes.size.toLong())
+    migratedBytesAfter.addAndGet(newSpanInfoBytes.size.toLong())
+
+    return textSpanEntity.copy(spanInfoBytes = newSpanInfoBytes)
+  }
+
+  fun statsSnapshot(): String {
+    return buildString {
+      append("Legacy: ${legacyDecodeStats}, ")
+      append("compact: ${currentDecodeStats}, ")
+      append("migrated: ${migratedCount.get()} ")
+      append("(${migratedBytesBefore.get()} -> ${migratedBytesAfter.get()} bytes)")
+    }
+  }
+
+  private fun deserializeSpans(textSpanEntity: ChanTextSpanEntity): ModularResult<ParcelableSpans> = Try {
+    val spanInfoBytes = textSpanEntity.spanInfoBytes
+
+    val decodeStats = if (ParcelableSpannableStringMapper.isCurrentSpansFormat(spanInfoBytes)) {
+      currentDecodeStats
+    } else {
+      legacyDecodeStats
+    }
+
+    val start = System.nanoTime()
+    val parcelableSpans = ParcelableSpannableStringMapper.deserializeSpans(spanInfoBytes, textSpanEntity.parsedText)
+    decodeStats.record(spanInfoBytes.size, System.nanoTime() - start)
+
+    return@Try parcelableSpans
+  }
+
+  private class DecodeStats {
+    private val count = AtomicLong(0)
+    private val bytes = AtomicLong(0)
+    private val timeNanos = AtomicLong(0)
+
+    fun record(size: Int, nanos: Long) {
+      count.incrementAndGet()
+      bytes.addAndGet(size.toLong())
+      timeNanos.addAndGet(nanos)
+    }
+
+    override fun toString(): String {
+      val count = count.get()
+      if (count <= 0) {
+        return "none"
+      }
+
+      val avgBytes = bytes.get() / count
+      val avgMicros = TimeUnit.NANOSECONDS.toMicros(timeNanos.get() / count)
+
+      return "count=$count, avg=${avgBytes} bytes/${avgMicros}us"
+    }
+  }
+
+}
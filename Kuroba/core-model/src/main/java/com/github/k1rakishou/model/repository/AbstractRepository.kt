@@ -8,17 +8,14 @@ import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.NonCancellable
-import kotlinx.coroutines.ObsoleteCoroutinesApi
-import kotlinx.coroutines.asCoroutineDispatcher
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import java.util.concurrent.Executors
 
 abstract class AbstractRepository(
   private val database: KurobaDatabase
 ) {
-  @OptIn(ObsoleteCoroutinesApi::class)
-  private val dbDispatcher = Executors.newSingleThreadExecutor().asCoroutineDispatcher()
+  private val dbDispatcher = database.scheduler.lane()
+  private val dbMetrics = database.scheduler.metrics(javaClass.simpleName)
 
   protected suspend fun <T> tryWithTransaction(func: suspend () -> T): ModularResult<T> {
     return Try { database.withTransaction(func) }
@@ -30,7 +27,18 @@ abstract class AbstractRepository(
   protected suspend fun <T> CoroutineScope.dbCall(
     func: suspend () -> T
   ): T {
-    return withContext(dbDispatcher + NonCancellable) { func() }
+    val startTime = System.nanoTime()
+
+    return withContext(dbDispatcher + NonCancellable) {
+      val executionStartTime = System.nanoTime()
+
+      try {
+        return@withContext func()
+      } finally {
+        val now = System.nanoTime()
+        dbMetrics.calls.record(now - startTime, now - executionStartTime)
+      }
+    }
   }
 
   @Suppress("RedundantAsync")
@@ -40,6 +48,18 @@ abstract class AbstractRepository(
     launch(dbDispatcher) { func() }
   }
 
+  /**
+   * Executes [func] in a transaction on the database writer. Small writes that only touch the
+   * database (no in-memory caches) should use [coalesce] = true so that they can share one
+   * transaction with other such writes.
+   * */
+  protected suspend fun <T> dbWrite(
+    coalesce: Boolean,
+    func: suspend () -> T
+  ): ModularResult<T> {
+    return database.scheduler.write(javaClass.simpleName, coalesce, func)
+  }
+
   /**
    * An implementation of a function that first checks whether an in-memory cache has a value, if
    * it doesn't then try to get it from the local source and if it doesn't have it then fetch it
@@ -4,6 +4,7 @@ import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.bookmark.ThreadBookmark
+import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkChanges
 import com.github.k1rakishou.model.source.local.ThreadBookmarkLocalSource
 import com.github.k1rakishou.model.util.ensureBackgroundThread
 import kotlinx.coroutines.CoroutineScope
@@ -40,16 +41,19 @@ class BookmarksRepository(
   }
 
   @OptIn(ExperimentalTime::class)
-  suspend fun persist(bookmarks: List<ThreadBookmark>): ModularResult<Unit> {
-    return applicationScope.dbCall {
-      return@dbCall tryWithTransaction {
-        val (result, duration) = measureTimedValue {
-          return@measureTimedValue localSource.persist(bookmarks)
-        }
+  suspend fun persistChanges(changes: ThreadBookmarkChanges): ModularResult<Unit> {
+    if (changes.isEmpty()) {
+      return ModularResult.value(Unit)
+    }
 
-        Logger.d(TAG, "persist(${bookmarks.size}) took $duration")
-        return@tryWithTransaction result
+    // Not coalesced because ThreadBookmarkLocalSource.persistChanges() updates the bookmarks cache
+    return dbWrite(coalesce = false) {
+      val (result, duration) = measureTimedValue {
+        return@measureTimedValue localSource.persistChanges(changes)
       }
+
+      Logger.d(TAG, "persistChanges(${changes}) took $duration")
+      return@dbWrite result
     }
   }
 }
\ No newline at end of file
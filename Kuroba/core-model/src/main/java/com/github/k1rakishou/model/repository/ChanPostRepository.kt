@@ -28,11 +28,18 @@ import com.github.k1rakishou.model.source.local.ChanPostLocalSource
 import com.github.k1rakishou.model.util.ensureBackgroundThread
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.math.max
+import kotlin.math.min
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
-import kotlin.time.measureTimedValue
 
 class ChanPostRepository(
   database: KurobaDatabase,
@@ -45,16 +52,27 @@ class ChanPostRepository(
 ) : AbstractRepository(database) {
   private val TAG = "ChanPostRepository"
   private val suspendableInitializer = SuspendableInitializer<Unit>("ChanPostRepository")
+  private val oldDataGcMutex = Mutex()
+  private val lastLoadTime = AtomicLong(0L)
+
+  private val _oldDataGcProgress = MutableStateFlow<Map<OldDataGcProgress.Type, OldDataGcProgress>>(emptyMap())
+  val oldDataGcProgress: StateFlow<Map<OldDataGcProgress.Type, OldDataGcProgress>>
+    get() = _oldDataGcProgress.asStateFlow()
 
   fun initialize() {
     Logger.d(TAG, "ChanPostRepository.initialize()")
 
+    // Deleting old posts/threads may take a lot of time on big databases so nobody waits for it.
+    // It runs in small transactions which are paused while the user is loading threads/catalogs.
+    suspendableInitializer.initWithValue(Unit)
+
     applicationScope.launch(Dispatchers.IO) {
+      delay(OLD_DATA_GC_START_DELAY_MS)
+
       // We need to first delete the posts, so that the threads are only left with the OP
       val postDeleteResult = deleteOldPostsIfNeeded()
       if (postDeleteResult is ModularResult.Error) {
         Logger.e(TAG, "deleteOldPostsIfNeeded() error", postDeleteResult.error)
-        suspendableInitializer.initWithError(postDeleteResult.error)
         return@launch
       }
 
@@ -62,16 +80,19 @@ class ChanPostRepository(
       val threadDeleteResult = deleteOldThreadsIfNeeded()
       if (threadDeleteResult is ModularResult.Error) {
         Logger.e(TAG, "deleteOldThreadsIfNeeded() error", threadDeleteResult.error)
-        suspendableInitializer.initWithError(threadDeleteResult.error)
         return@launch
       }
-
-      suspendableInitializer.initWithValue(Unit)
     }
   }
 
+  /**
+   * Called at the beginning of every thread/catalog load so it is also used as a signal to pause
+   * the old data deletion.
+   * */
   @OptIn(ExperimentalTime::class)
   suspend fun awaitUntilInitialized() {
+    lastLoadTime.set(System.currentTimeMillis())
+
     if (isReady()) {
       return
     }
@@ -254,10 +275,10 @@ class ChanPostRepository(
     }
   }
 
-  fun putPostHash(postDescriptor: PostDescriptor, hash: MurmurHashUtils.Murmur3Hash) {
+  fun putPostHashes(postHashes: Map<PostDescriptor, MurmurHashUtils.Murmur3Hash>) {
     check(suspendableInitializer.isInitialized()) { "ChanPostRepository is not initialized yet!" }
 
-    chanThreadsCache.putPostHash(postDescriptor, hash)
+    chanThreadsCache.putPostHashes(postHashes)
   }
 
   fun getPostHash(postDescriptor: PostDescriptor): MurmurHashUtils.Murmur3Hash? {
@@ -686,14 +707,16 @@ class ChanPostRepository(
     }
   }
 
-  @OptIn(ExperimentalTime::class)
   suspend fun deleteOldPostsIfNeeded(forced: Boolean = false): ModularResult<ChanPostLocalSource.DeleteResult> {
-    return applicationScope.dbCall {
-      return@dbCall tryWithTransaction {
-        val totalAmountOfPostsInDatabase = localSource.countTotalAmountOfPosts()
+    return Try {
+      return@Try oldDataGcMutex.withLock {
+        val totalAmountOfPostsInDatabase = applicationScope.dbCall {
+          return@dbCall tryWithTransaction { localSource.countTotalAmountOfPosts() }
+        }.unwrap()
+
         if (totalAmountOfPostsInDatabase <= 0) {
           Logger.d(TAG, "deleteOldPostsIfNeeded database is empty")
-          return@tryWithTransaction ChanPostLocalSource.DeleteResult()
+          return@withLock ChanPostLocalSource.DeleteResult()
         }
 
         val maxPostsAmount = appConstants.maxAmountOfPostsInDatabase
@@ -702,7 +725,7 @@ class ChanPostRepository(
           Logger.d(TAG, "Not enough posts to start deleting, " +
             "posts in database amount: $totalAmountOfPostsInDatabase, " +
             "max allowed posts amount: $maxPostsAmount")
-          return@tryWithTransaction ChanPostLocalSource.DeleteResult()
+          return@withLock ChanPostLocalSource.DeleteResult()
         }
 
         val postsInDatabaseToUse = if (forced) {
@@ -713,38 +736,42 @@ class ChanPostRepository(
 
         val toDeleteCount = (postsInDatabaseToUse / 4)
         if (toDeleteCount <= 0) {
-          return@tryWithTransaction ChanPostLocalSource.DeleteResult()
+          return@withLock ChanPostLocalSource.DeleteResult()
         }
 
         Logger.d(TAG, "Starting deleting $toDeleteCount posts " +
           "(totalAmountOfPostsInDatabase = $totalAmountOfPostsInDatabase, " +
           "maxPostsAmount = $maxPostsAmount)")
 
-        val (deleteMRResult, time) = measureTimedValue { Try { localSource.deleteOldPosts(toDeleteCount) } }
-        val deleteResult = if (deleteMRResult is ModularResult.Error) {
-          Logger.d(TAG, "Error while trying to delete old posts", deleteMRResult.error)
-          throw deleteMRResult.error
-        } else {
-          (deleteMRResult as ModularResult.Value).value
-        }
+        val deleteResult = deleteOldDataInBatches(
+          type = OldDataGcProgress.Type.Posts,
+          toDeleteCount = toDeleteCount,
+          maxToDeletePerBatch = OLD_DATA_GC_POSTS_PER_BATCH,
+          throttle = !forced
+        ) { offset, maxToDelete -> localSource.deleteOldPostsBatch(offset, maxToDelete) }
+
+        val newAmount = applicationScope.dbCall {
+          return@dbCall tryWithTransaction { localSource.countTotalAmountOfPosts() }
+        }.unwrap()
 
-        val newAmount = localSource.countTotalAmountOfPosts()
         Logger.d(TAG, "Deleted ${deleteResult.deletedTotal} posts, " +
-          "skipped ${deleteResult.skippedTotal} posts, $newAmount posts left, took $time")
+          "skipped ${deleteResult.skippedTotal} posts, $newAmount posts left")
 
-        return@tryWithTransaction deleteResult
+        return@withLock deleteResult
       }
     }
   }
 
-  @OptIn(ExperimentalTime::class)
   suspend fun deleteOldThreadsIfNeeded(forced: Boolean = false): ModularResult<ChanPostLocalSource.DeleteResult> {
-    return applicationScope.dbCall {
-      return@dbCall tryWithTransaction {
-        val totalAmountOfThreadsInDatabase = localSource.countTotalAmountOfThreads()
+    return Try {
+      return@Try oldDataGcMutex.withLock {
+        val totalAmountOfThreadsInDatabase = applicationScope.dbCall {
+          return@dbCall tryWithTransaction { localSource.countTotalAmountOfThreads() }
+        }.unwrap()
+
         if (totalAmountOfThreadsInDatabase <= 0) {
           Logger.d(TAG, "deleteOldThreadsIfNeeded database is empty")
-          return@tryWithTransaction ChanPostLocalSource.DeleteResult()
+          return@withLock ChanPostLocalSource.DeleteResult()
         }
 
         val maxThreadsAmount = appConstants.maxAmountOfThreadsInDatabase
@@ -753,7 +780,7 @@ class ChanPostRepository(
           Logger.d(TAG, "Not enough threads to start deleting, " +
             "threads in database amount: $totalAmountOfThreadsInDatabase, " +
             "max allowed threads amount: $maxThreadsAmount")
-          return@tryWithTransaction ChanPostLocalSource.DeleteResult()
+          return@withLock ChanPostLocalSource.DeleteResult()
         }
 
         val threadsInDatabaseToUse = if (forced) {
@@ -764,27 +791,111 @@ class ChanPostRepository(
 
         val toDeleteCount = (threadsInDatabaseToUse / 4)
         if (toDeleteCount <= 0) {
-          return@tryWithTransaction ChanPostLocalSource.DeleteResult()
+          return@withLock ChanPostLocalSource.DeleteResult()
         }
 
         Logger.d(TAG, "Starting deleting $toDeleteCount threads " +
           "(totalAmountOfThreadsInDatabase = $totalAmountOfThreadsInDatabase, " +
           "maxThreadsAmount = $maxThreadsAmount)")
 
-        val (deleteMRResult, time) = measureTimedValue { Try { localSource.deleteOldThreads(toDeleteCount) } }
-        val deleteResult = if (deleteMRResult is ModularResult.Error) {
-          Logger.d(TAG, "Error while trying to delete old threads", deleteMRResult.error)
-          throw deleteMRResult.error
-        } else {
-          (deleteMRResult as ModularResult.Value).value
-        }
+        val deleteResult = deleteOldDataInBatches(
+          type = OldDataGcProgress.Type.Threads,
+          toDeleteCount = toDeleteCount,
+          maxToDeletePerBatch = OLD_DATA_GC_THREADS_PER_BATCH,
+          throttle = !forced
+        ) { offset, maxToDelete -> localSource.deleteOldThreadsBatch(offset, maxToDelete) }
+
+        val newAmount = applicationScope.dbCall {
+          return@dbCall tryWithTransaction { localSource.countTotalAmountOfThreads() }
+        }.unwrap()
 
-        val newAmount = localSource.countTotalAmountOfThreads()
         Logger.d(TAG, "Deleted ${deleteResult.deletedTotal} threads, " +
-          "skipped ${deleteResult.skippedTotal} threads, $newAmount threads left, took $time")
+          "skipped ${deleteResult.skippedTotal} threads, $newAmount threads left")
+
+        return@withLock deleteResult
+      }
+    }
+  }
+
+  /**
+   * Runs [deleteBatch] (every call in a separate transaction) until [toDeleteCount] entities are
+   * deleted or there is nothing left to delete. When [throttle] is true every batch waits until no
+   * thread/catalog was loaded for [OLD_DATA_GC_IDLE_TIME_MS] so that the database is not busy
+   * deleting stuff while the user waits for posts.
+   * */
+  private suspend fun deleteOldDataInBatches(
+    type: OldDataGcProgress.Type,
+    toDeleteCount: Int,
+    maxToDeletePerBatch: Int,
+    throttle: Boolean,
+    deleteBatch: suspend (offset: Int, maxToDelete: Int) -> ChanPostLocalSource.BatchDeleteResult
+  ): ChanPostLocalSource.DeleteResult {
+    val startTime = System.currentTimeMillis()
+    var progress = OldDataGcProgress(type = type, toDeleteCount = toDeleteCount)
+    var offset = 0
+
+    _oldDataGcProgress.value = _oldDataGcProgress.value + (type to progress)
+
+    while (progress.deletedTotal < toDeleteCount) {
+      val throttledMs = if (throttle) waitUntilNotLoading() else 0L
+
+      val maxToDelete = min(maxToDeletePerBatch, toDeleteCount - progress.deletedTotal)
+      val batchStartTime = System.currentTimeMillis()
+
+      val batchResult = applicationScope.dbCall {
+        return@dbCall tryWithTransaction { deleteBatch(offset, maxToDelete) }
+      }.unwrap()
+
+      val batchTimeMs = System.currentTimeMillis() - batchStartTime
+      offset += batchResult.skippedThreads
+
+      progress = progress.copy(
+        deletedTotal = progress.deletedTotal + batchResult.deletedTotal,
+        skippedTotal = progress.skippedTotal + batchResult.skippedTotal,
+        batches = progress.batches + 1,
+        transactionsTimeMs = progress.transactionsTimeMs + batchTimeMs,
+        longestTransactionMs = max(progress.longestTransactionMs, batchTimeMs),
+        throttledMs = progress.throttledMs + throttledMs,
+        elapsedMs = System.currentTimeMillis() - startTime
+      )
+      _oldDataGcProgress.value = _oldDataGcProgress.value + (type to progress)
+
+      if (isDevFlavor) {
+        Logger.d(TAG, "deleteOldDataInBatches() batch done in ${batchTimeMs}ms, $progress")
+      }
+
+      if (!batchResult.hasMore) {
+        break
+      }
 
-        return@tryWithTransaction deleteResult
+      if (batchResult.deletedTotal <= 0 && batchResult.skippedThreads <= 0) {
+        // Should not happen but better safe than looping forever
+        Logger.e(TAG, "deleteOldDataInBatches() batch made no progress, exiting early")
+        break
       }
+
+      delay(OLD_DATA_GC_PAUSE_BETWEEN_BATCHES_MS)
+    }
+
+    progress = progress.copy(finished = true, elapsedMs = System.currentTimeMillis() - startTime)
+    _oldDataGcProgress.value = _oldDataGcProgress.value + (type to progress)
+
+    Logger.d(TAG, "deleteOldDataInBatches() done, $progress")
+    return ChanPostLocalSource.DeleteResult(progress.deletedTotal, progress.skippedTotal)
+  }
+
+  private suspend fun waitUntilNotLoading(): Long {
+    var throttledMs = 0L
+
+    while (true) {
+      val timeSinceLastLoad = System.currentTimeMillis() - lastLoadTime.get()
+      if (timeSinceLastLoad >= OLD_DATA_GC_IDLE_TIME_MS) {
+        return throttledMs
+      }
+
+      val toWait = OLD_DATA_GC_IDLE_TIME_MS - timeSinceLastLoad
+      delay(toWait)
+      throttledMs += toWait
     }
   }
 
@@ -813,4 +924,30 @@ class ChanPostRepository(
     return false
   }
 
+  data class OldDataGcProgress(
+    val type: Type,
+    val toDeleteCount: Int,
+    val deletedTotal: Int = 0,
+    val skippedTotal: Int = 0,
+    val batches: Int = 0,
+    val transactionsTimeMs: Long = 0L,
+    val longestTransactionMs: Long = 0L,
+    val throttledMs: Long = 0L,
+    val elapsedMs: Long = 0L,
+    val finished: Boolean = false
+  ) {
+    enum class Type {
+      Posts,
+      Threads
+    }
+  }
+
+  companion object {
+    private const val OLD_DATA_GC_START_DELAY_MS = 5_000L
+    private const val OLD_DATA_GC_IDLE_TIME_MS = 2_000L
+    private const val OLD_DATA_GC_PAUSE_BETWEEN_BATCHES_MS = 50L
+    private const val OLD_DATA_GC_POSTS_PER_BATCH = 500
+    private const val OLD_DATA_GC_THREADS_PER_BATCH = 50
+  }
+
 }
\ No newline at end of file
@@ -23,10 +23,8 @@ class ChanThreadViewableInfoRepository(
   }
 
   suspend fun persist(chanThreadViewableInfo: ChanThreadViewableInfo): ModularResult<Unit> {
-    return applicationScope.dbCall {
-      return@dbCall tryWithTransaction {
-        return@tryWithTransaction localSource.persist(chanThreadViewableInfo)
-      }
+    return dbWrite(coalesce = true) {
+      return@dbWrite localSource.persist(chanThreadViewableInfo)
     }
   }
 
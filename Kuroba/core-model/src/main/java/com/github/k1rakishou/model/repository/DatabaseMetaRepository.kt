@@ -2,11 +2,12 @@ package com.github.k1rakishou.model.repository
 
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.mapper.TextSpanMapper
 import com.github.k1rakishou.model.source.local.DatabaseMetaLocalSource
 import kotlinx.coroutines.CoroutineScope
 
 class DatabaseMetaRepository(
-  database: KurobaDatabase,
+  private val database: KurobaDatabase,
   private val applicationScope: CoroutineScope,
   private val localSource: DatabaseMetaLocalSource
 ) : AbstractRepository(database) {
@@ -18,4 +19,12 @@ class DatabaseMetaRepository(
     }
   }
 
+  fun schedulerMetrics(): String {
+    return database.scheduler.metricsSnapshot()
+  }
+
+  fun textSpansStats(): String {
+    return TextSpanMapper.statsSnapshot()
+  }
+
 }
\ No newline at end of file
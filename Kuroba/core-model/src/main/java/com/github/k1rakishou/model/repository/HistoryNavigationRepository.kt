@@ -35,15 +35,13 @@ class HistoryNavigationRepository(
 
   @OptIn(ExperimentalTime::class)
   suspend fun persist(navHistoryStack: List<NavHistoryElement>): ModularResult<Unit> {
-    return applicationScope.dbCall {
-      return@dbCall tryWithTransaction {
-        val (result, duration) = measureTimedValue {
-          return@measureTimedValue localSource.persist(navHistoryStack)
-        }
-
-        Logger.d(TAG, "persist(${navHistoryStack.size}) took $duration")
-        return@tryWithTransaction result
+    return dbWrite(coalesce = true) {
+      val (result, duration) = measureTimedValue {
+        return@measureTimedValue localSource.persist(navHistoryStack)
       }
+
+      Logger.d(TAG, "persist(${navHistoryStack.size}) took $duration")
+      return@dbWrite result
     }
   }
 
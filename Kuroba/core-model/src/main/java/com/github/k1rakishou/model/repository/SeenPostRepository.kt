@@ -6,6 +6,7 @@ import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.post.SeenPost
+import com.github.k1rakishou.model.data.post.SeenPostNumbers
 import com.github.k1rakishou.model.source.local.SeenPostLocalSource
 import kotlinx.coroutines.CoroutineScope
 import java.util.concurrent.atomic.AtomicBoolean
@@ -22,21 +23,19 @@ class SeenPostRepository(
     threadDescriptor: ChanDescriptor.ThreadDescriptor,
     seenPosts: Collection<SeenPost>
   ): ModularResult<Unit> {
-    return applicationScope.dbCall {
-      return@dbCall tryWithTransaction {
-        seenPostLocalRepositoryCleanup()
+    return dbWrite(coalesce = true) {
+      seenPostLocalRepositoryCleanup()
 
-        return@tryWithTransaction seenPostLocalSource.insertMany(threadDescriptor, seenPosts)
-      }
+      return@dbWrite seenPostLocalSource.insertMany(threadDescriptor, seenPosts)
     }
   }
 
-  suspend fun selectAllByThreadDescriptor(
+  suspend fun selectSeenPostNumbers(
     threadDescriptor: ChanDescriptor.ThreadDescriptor
-  ): ModularResult<List<SeenPost>> {
+  ): ModularResult<SeenPostNumbers> {
     return applicationScope.dbCall {
       return@dbCall tryWithTransaction {
-        return@tryWithTransaction seenPostLocalSource.selectAllByThreadDescriptor(threadDescriptor)
+        return@tryWithTransaction seenPostLocalSource.selectSeenPostNumbers(threadDescriptor)
       }
     }
   }
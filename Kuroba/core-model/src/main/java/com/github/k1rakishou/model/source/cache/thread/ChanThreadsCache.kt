@@ -1,5 +1,6 @@
 package com.github.k1rakishou.model.source.cache.thread
 
+import androidx.annotation.GuardedBy
 import com.github.k1rakishou.common.MurmurHashUtils
 import com.github.k1rakishou.common.hashSetWithCap
 import com.github.k1rakishou.common.linkedMapWithCap
@@ -28,24 +29,50 @@ import kotlin.time.measureTime
 class ChanThreadsCache(
   private val isDevBuild: Boolean,
   private val isLowRamDevice: Boolean,
-  private val maxCacheSize: Int,
-  private val chanCatalogSnapshotCache: ChanCatalogSnapshotCache
+  maxMemoryFraction: Float,
+  private val chanCatalogSnapshotCache: ChanCatalogSnapshotCache,
+  maxMemory: Long = Runtime.getRuntime().maxMemory(),
+  private val evictionTimeoutMs: Long = EVICTION_TIMEOUT_MS
 ) {
   private val chanThreads = ConcurrentHashMap<ChanDescriptor.ThreadDescriptor, ChanThread>(128)
   private val lastEvictInvokeTime = AtomicLong(0L)
+  // Sum of ChanThread.estimatedRetainedBytes of all threads in chanThreads
+  private val estimatedRetainedBytes = AtomicLong(0L)
+  private val maxCacheSizeBytes: Long
+
+  private val evictionQueueLock = Any()
+  // Threads that were added for previewing (see getLastThreadAccessTime()), they are evicted before
+  // all other threads unless the user opens them.
+  @GuardedBy("evictionQueueLock")
+  private val evictFirstQueue = LinkedHashSet<ChanDescriptor.ThreadDescriptor>(32)
+  // Threads ordered by their last access time, the least recently accessed ones come first. This
+  // way we don't need to sort all the threads every time we need to evict something.
+  @GuardedBy("evictionQueueLock")
+  private val accessOrderQueue = LinkedHashSet<ChanDescriptor.ThreadDescriptor>(128)
+
   private val oneYearPeriodMillis by lazy { Period.years(1).millis }
   private val chanThreadDeleteEventListeners = CopyOnWriteArrayList<(ThreadDeleteEvent) -> Unit>()
 
+  init {
+    require(maxMemoryFraction > 0f && maxMemoryFraction <= 1f) { "Bad maxMemoryFraction: $maxMemoryFraction" }
+
+    maxCacheSizeBytes = (maxMemory * maxMemoryFraction.toDouble()).toLong()
+  }
+
   fun addChanThreadDeleteEventListener(listener: (ThreadDeleteEvent) -> Unit) {
     chanThreadDeleteEventListeners += listener
   }
 
-  fun isThreadLockCurrentlyLocked(threadDescriptor: ChanDescriptor.ThreadDescriptor): Boolean {
-    return chanThreads[threadDescriptor]?.isThreadLockCurrentlyLocked() ?: false
-  }
+  fun putPostHashes(postHashes: Map<PostDescriptor, MurmurHashUtils.Murmur3Hash>) {
+    if (postHashes.isEmpty()) {
+      return
+    }
 
-  fun putPostHash(postDescriptor: PostDescriptor, hash: MurmurHashUtils.Murmur3Hash) {
-    chanThreads[postDescriptor.threadDescriptor()]?.putPostHash(postDescriptor, hash)
+    postHashes.entries
+      .groupBy { (postDescriptor, _) -> postDescriptor.threadDescriptor() }
+      .forEach { (threadDescriptor, entries) ->
+        chanThreads[threadDescriptor]?.putPostHashes(entries)
+      }
   }
 
   fun getPostHash(postDescriptor: PostDescriptor): MurmurHashUtils.Murmur3Hash? {
@@ -93,14 +120,7 @@ class ChanThreadsCache(
       }
 
       val threadDescriptor = chanOriginalPost.postDescriptor.threadDescriptor()
-
-      val chanThread = chanThreads.getOrPut(threadDescriptor, defaultValue = {
-        return@getOrPut ChanThread(
-          isDevBuild = isDevBuild,
-          threadDescriptor = threadDescriptor,
-          initialLastAccessTime = getLastThreadAccessTime(cacheOptions)
-        )
-      })
+      val chanThread = getOrCreateChanThread(threadDescriptor, cacheOptions)
 
       chanThread.setOrUpdateOriginalPost(chanOriginalPost)
       // Do not update "lastUpdateTime" here because it will break catalog thread previewing
@@ -132,13 +152,7 @@ class ChanThreadsCache(
 
     runOldPostEvictionRoutineIfNeeded()
 
-    val chanThread = chanThreads.getOrPut(threadDescriptor, defaultValue = {
-      return@getOrPut ChanThread(
-        isDevBuild = isDevBuild,
-        threadDescriptor = threadDescriptor,
-        initialLastAccessTime = getLastThreadAccessTime(cacheOptions)
-      )
-    })
+    val chanThread = getOrCreateChanThread(threadDescriptor, cacheOptions)
 
     if (cacheOptions.canStoreInMemory()) {
       chanThread.addOrUpdatePosts(parsedPosts, postsFromServerData)
@@ -245,6 +259,14 @@ class ChanThreadsCache(
     return chanThreads.values.sumBy { chanThread -> chanThread.postsCount }
   }
 
+  fun getEstimatedRetainedBytes(): Long {
+    return estimatedRetainedBytes.get()
+  }
+
+  fun getMaxCacheSizeBytes(): Long {
+    return maxCacheSizeBytes
+  }
+
   fun getLastPost(threadDescriptor: ChanDescriptor.ThreadDescriptor): ChanPost? {
     return chanThreads[threadDescriptor]?.lastPost()
   }
@@ -297,7 +319,18 @@ class ChanThreadsCache(
   }
 
   fun updateLastAccessTime(threadDescriptor: ChanDescriptor.ThreadDescriptor) {
-    chanThreads[threadDescriptor]?.updateLastAccessTime()
+    val chanThread = chanThreads[threadDescriptor]
+      ?: return
+
+    chanThread.updateLastAccessTime()
+
+    synchronized(evictionQueueLock) {
+      evictFirstQueue.remove(threadDescriptor)
+
+      // Move it to the end of the queue
+      accessOrderQueue.remove(threadDescriptor)
+      accessOrderQueue.add(threadDescriptor)
+    }
   }
 
   fun deletePost(postDescriptor: PostDescriptor) {
@@ -336,7 +369,7 @@ class ChanThreadsCache(
     val entries = mutableListWithCap<ThreadDeleteEvent.RemoveThreadPostsExceptOP.Entry>(threadDescriptors.size)
 
     threadDescriptors.forEach { threadDescriptor ->
-      val chanThread = chanThreads.remove(threadDescriptor)
+      val chanThread = removeChanThread(threadDescriptor)
         ?: return@forEach
 
       val originalPostDescriptor = chanThread.getOriginalPost()?.postDescriptor
@@ -356,6 +389,110 @@ class ChanThreadsCache(
     notifyChanThreadDeleteEventListeners(event)
   }
 
+  private fun getOrCreateChanThread(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    cacheOptions: ChanCacheOptions
+  ): ChanThread {
+    val chanThread = chanThreads.getOrPut(threadDescriptor, defaultValue = {
+      lateinit var newChanThread: ChanThread
+
+      newChanThread = ChanThread(
+        isDevBuild = isDevBuild,
+        threadDescriptor = threadDescriptor,
+        initialLastAccessTime = getLastThreadAccessTime(cacheOptions),
+        onEstimatedRetainedBytesChanged = { delta ->
+          // The thread may have already been removed from the cache (and its size subtracted) by
+          // the time it gets updated.
+          if (chanThreads[threadDescriptor] === newChanThread) {
+            estimatedRetainedBytes.addAndGet(delta)
+          }
+        }
+      )
+
+      return@getOrPut newChanThread
+    })
+
+    synchronized(evictionQueueLock) {
+      // Threads are removed from the queues when their posts are evicted, so we need to add them back
+      // once new posts are added to them.
+      if (threadDescriptor in evictFirstQueue || threadDescriptor in accessOrderQueue) {
+        return@synchronized
+      }
+
+      if (cacheOptions.canAddInFrontOfTheMemoryCache()) {
+        accessOrderQueue.add(threadDescriptor)
+      } else {
+        evictFirstQueue.add(threadDescriptor)
+      }
+    }
+
+    return chanThread
+  }
+
+  private fun removeChanThread(threadDescriptor: ChanDescriptor.ThreadDescriptor): ChanThread? {
+    val chanThread = chanThreads.remove(threadDescriptor)
+      ?: return null
+
+    estimatedRetainedBytes.addAndGet(-chanThread.estimatedRetainedBytes)
+
+    synchronized(evictionQueueLock) {
+      evictFirstQueue.remove(threadDescriptor)
+      accessOrderQueue.remove(threadDescriptor)
+    }
+
+    return chanThread
+  }
+
+  /**
+   * Removes the least recently accessed thread from the eviction queue unless there are only
+   * [immuneThreadsCount] threads left in it.
+   * */
+  private fun pollLeastRecentlyAccessedThread(immuneThreadsCount: Int): ChanDescriptor.ThreadDescriptor? {
+    return synchronized(evictionQueueLock) {
+      if (evictFirstQueue.size + accessOrderQueue.size <= immuneThreadsCount) {
+        return@synchronized null
+      }
+
+      val queue = if (evictFirstQueue.isNotEmpty()) {
+        evictFirstQueue
+      } else {
+        accessOrderQueue
+      }
+
+      val iterator = queue.iterator()
+      val threadDescriptor = iterator.next()
+      iterator.remove()
+
+      return@synchronized threadDescriptor
+    }
+  }
+
+  /**
+   * Adds threads that were polled by [pollLeastRecentlyAccessedThread] but were not removed from the
+   * cache back to the end of the eviction queue, otherwise they could never be evicted again and
+   * wouldn't count towards the immune threads.
+   * */
+  private fun requeueThreads(threadDescriptors: Collection<ChanDescriptor.ThreadDescriptor>) {
+    if (threadDescriptors.isEmpty()) {
+      return
+    }
+
+    synchronized(evictionQueueLock) {
+      threadDescriptors.forEach { threadDescriptor ->
+        if (!chanThreads.containsKey(threadDescriptor)) {
+          return@forEach
+        }
+
+        // The thread may have been accessed (and re-added) in the meantime
+        if (threadDescriptor in evictFirstQueue || threadDescriptor in accessOrderQueue) {
+          return@forEach
+        }
+
+        accessOrderQueue.add(threadDescriptor)
+      }
+    }
+  }
+
   private fun getLastThreadAccessTime(cacheOptions: ChanCacheOptions): Long {
     val now = System.currentTimeMillis()
 
@@ -374,92 +511,51 @@ class ChanThreadsCache(
   @OptIn(ExperimentalTime::class)
   private fun runOldPostEvictionRoutineIfNeeded() {
     val delta = System.currentTimeMillis() - lastEvictInvokeTime.get()
-    if (delta < EVICTION_TIMEOUT_MS) {
+    if (delta < evictionTimeoutMs) {
       return
     }
 
-    val currentTotalPostsCount = getTotalCachedPostsCount()
-    if (currentTotalPostsCount <= maxCacheSize) {
+    val currentRetainedBytes = estimatedRetainedBytes.get()
+    if (currentRetainedBytes <= maxCacheSizeBytes) {
       return
     }
 
-    val amountOfThreadsWithMoreThanOnPost = getThreadsWithMoreThanOnePostCount()
     val actualImmuneThreadsCount = immuneThreadsCount(isLowRamDevice)
+    // Evict down to the half of the max size so that we don't have to run the eviction on every put
+    val bytesToFree = currentRetainedBytes - (maxCacheSizeBytes / 2)
 
-    if (amountOfThreadsWithMoreThanOnPost <= actualImmuneThreadsCount) {
-      return
-    }
-
-    val amountToEvict = (currentTotalPostsCount - maxCacheSize) + (maxCacheSize / 2)
-    if (amountToEvict > 0) {
-      Logger.d(TAG, "evictOld start (immuneThreadsCount=${actualImmuneThreadsCount}, " +
-        "currentTotalPostsCount: ${currentTotalPostsCount} / max:${maxCacheSize}, " +
-        "threads with posts: ${amountOfThreadsWithMoreThanOnPost} / total threads: ${getCachedThreadsCount()})")
-
-      val time = measureTime {
-        evictOld(immuneThreadsCount = actualImmuneThreadsCount, amountToEvictParam = amountToEvict)
-      }
+    Logger.d(TAG, "evictOld start (immuneThreadsCount=${actualImmuneThreadsCount}, " +
+      "estimatedRetainedBytes: ${currentRetainedBytes} / max:${maxCacheSizeBytes}, " +
+      "bytesToFree: ${bytesToFree}, total threads: ${getCachedThreadsCount()})")
 
-      Logger.d(TAG, "evictOld end (immuneThreadsCount=${actualImmuneThreadsCount}, " +
-        "currentTotalPostsCount: ${getTotalCachedPostsCount()} / max:${maxCacheSize}), " +
-        "threads with posts: ${getThreadsWithMoreThanOnePostCount()}) / total threads: ${getCachedThreadsCount()} " +
-        "took ${time}")
+    val time = measureTime {
+      evictOld(immuneThreadsCount = actualImmuneThreadsCount, bytesToFreeParam = bytesToFree)
     }
 
+    Logger.d(TAG, "evictOld end (immuneThreadsCount=${actualImmuneThreadsCount}, " +
+      "estimatedRetainedBytes: ${estimatedRetainedBytes.get()} / max:${maxCacheSizeBytes}, " +
+      "total threads: ${getCachedThreadsCount()}) took ${time}")
+
     lastEvictInvokeTime.set(System.currentTimeMillis())
   }
 
-  private fun evictOld(immuneThreadsCount: Int, amountToEvictParam: Int) {
-    require(amountToEvictParam > 0) { "amountToEvictParam is too small: $amountToEvictParam" }
-
-    val accessTimes = chanThreads.entries
-      .map { (threadDescriptor, chanThread) -> threadDescriptor to chanThread.getLastAccessTime() }
-    val totalPostsCount = getTotalCachedPostsCount()
-
-    val threadDescriptorsSorted = accessTimes
-      // We will get the oldest accessed key in the beginning of the list
-      .sortedBy { (_, lastAccessTime) -> lastAccessTime }
-      .dropLast(immuneThreadsCount)
-      .map { (threadDescriptor, _) -> threadDescriptor }
-
-    if (threadDescriptorsSorted.isEmpty()) {
-      Logger.d(TAG, "threadDescriptorsSorted is empty, accessTimes size=${accessTimes.size}")
-      return
-    }
-
-    Logger.d(TAG, "threadDescriptorsSorted size=${threadDescriptorsSorted.size}, " +
-        "accessTimes size=${accessTimes.size}, " +
-        "totalPostsCount=${totalPostsCount}")
-
-    val threadDescriptorsToClean = mutableListOf<ChanDescriptor.ThreadDescriptor>()
-    var amountOfPostsToEvict = amountToEvictParam
-
-    for (threadDescriptor in threadDescriptorsSorted) {
-      if (amountOfPostsToEvict <= 0) {
-        break
-      }
-
-      val count = chanThreads[threadDescriptor]?.postsCount ?: 0
-
-      threadDescriptorsToClean += threadDescriptor
-      amountOfPostsToEvict -= count
-    }
-
-    Logger.d(TAG, "Evicting ${threadDescriptorsToClean.size} threads, " +
-        "postsToEvict=${amountToEvictParam - amountOfPostsToEvict}")
-
-    if (threadDescriptorsToClean.isEmpty()) {
-      Logger.d(TAG, "threadDescriptorsToDelete is empty")
-      return
-    }
+  private fun evictOld(immuneThreadsCount: Int, bytesToFreeParam: Long) {
+    require(bytesToFreeParam > 0) { "bytesToFreeParam is too small: $bytesToFreeParam" }
 
     val threadsToRemove = mutableListWithCap<ChanDescriptor.ThreadDescriptor>(16)
     val threadsToClean = mutableListWithCap<ThreadDeleteEvent.RemoveThreadPostsExceptOP.Entry>(16)
+    // Threads that were cleaned up but are still in the cache
+    val threadsToRequeue = mutableListWithCap<ChanDescriptor.ThreadDescriptor>(16)
+    var bytesToFree = bytesToFreeParam
+
+    while (bytesToFree > 0) {
+      val threadDescriptor = pollLeastRecentlyAccessedThread(immuneThreadsCount)
+        ?: break
 
-    threadDescriptorsToClean.forEach { threadDescriptor ->
       val chanThread = chanThreads[threadDescriptor]
-        ?: return@forEach
+        ?: continue
 
+      val retainedBytesBefore = chanThread.estimatedRetainedBytes
       chanThread.cleanup()
 
       val isThreadInCurrentCatalog = chanCatalogSnapshotCache.get(chanThread.threadDescriptor.catalogDescriptor())
@@ -468,8 +564,10 @@ class ChanThreadsCache(
         ?: false
 
       if (!isThreadInCurrentCatalog && chanThread.postsCount <= 1) {
+        removeChanThread(threadDescriptor)
+
         threadsToRemove += threadDescriptor
-        chanThreads.remove(threadDescriptor)
+        bytesToFree -= retainedBytesBefore
       } else {
         val originalPostDescriptor = chanThread.getOriginalPost()?.postDescriptor
 
@@ -479,10 +577,17 @@ class ChanThreadsCache(
             originalPostDescriptor
           )
         }
+
+        threadsToRequeue += threadDescriptor
+        bytesToFree -= retainedBytesBefore - chanThread.estimatedRetainedBytes
       }
     }
 
-    Logger.d(TAG, "evictOld() threadsToRemove=${threadsToRemove.size}, threadsToClean=${threadsToClean.size}")
+    // Put them back only after the loop, otherwise they would be polled again during this run
+    requeueThreads(threadsToRequeue)
+
+    Logger.d(TAG, "evictOld() threadsToRemove=${threadsToRemove.size}, threadsToClean=${threadsToClean.size}, " +
+      "freed=${bytesToFreeParam - bytesToFree} bytes")
 
     if (threadsToRemove.isNotEmpty()) {
       val event = ThreadDeleteEvent.RemoveThreads(
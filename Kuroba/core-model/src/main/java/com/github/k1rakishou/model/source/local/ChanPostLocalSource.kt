@@ -17,14 +17,11 @@ import com.github.k1rakishou.model.entity.chan.post.ChanPostImageEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostReplyEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanTextSpanEntity
 import com.github.k1rakishou.model.entity.chan.thread.ChanThreadEntity
-import com.github.k1rakishou.model.entity.view.ChanThreadsWithPosts
-import com.github.k1rakishou.model.entity.view.OldChanPostThread
 import com.github.k1rakishou.model.mapper.ChanPostEntityMapper
 import com.github.k1rakishou.model.mapper.ChanPostHttpIconMapper
 import com.github.k1rakishou.model.mapper.ChanPostImageMapper
 import com.github.k1rakishou.model.mapper.ChanThreadMapper
 import com.github.k1rakishou.model.mapper.TextSpanMapper
-import java.util.concurrent.TimeUnit
 
 class ChanPostLocalSource(
   database: KurobaDatabase
@@ -404,10 +401,7 @@ class ChanPostLocalSource(
     }
 
     // Load posts' comments/subjects/tripcodes and other Spannables
-    val textSpansGroupedByPostId = postIdList
-      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
-      .flatMap { chunk -> chanTextSpanDao.selectManyByOwnerPostIdList(chunk) }
-      .groupBy { chanTextSpanEntity -> chanTextSpanEntity.ownerPostId }
+    val textSpansGroupedByPostId = selectTextSpansGroupedByPostId(postIdList)
 
     val postAdditionalData = getPostsAdditionalData(postIdList)
 
@@ -480,10 +474,7 @@ class ChanPostLocalSource(
     val postIdList = chanPostFullList.map { it.chanPostIdEntity.postId }
 
     // Load posts' comments/subjects/tripcodes and other Spannables
-    val textSpansGroupedByPostId = postIdList
-      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
-      .flatMap { chunk -> chanTextSpanDao.selectManyByOwnerPostIdList(chunk) }
-      .groupBy { chanTextSpanEntity -> chanTextSpanEntity.ownerPostId }
+    val textSpansGroupedByPostId = selectTextSpansGroupedByPostId(postIdList)
 
     val postAdditionalData = getPostsAdditionalData(postIdList)
 
@@ -503,6 +494,42 @@ class ChanPostLocalSource(
       }
   }
 
+  private suspend fun selectTextSpansGroupedByPostId(
+    postIdList: List<Long>
+  ): Map<Long, List<ChanTextSpanEntity>> {
+    ensureInTransaction()
+
+    var migrated = 0
+
+    // Spans stored in the legacy (Parcel) format are re-encoded in the current (compact) format the
+    // first time they are read. The amount is limited so that reads don't become slow writes.
+    val textSpans = postIdList
+      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+      .flatMap { chunk -> chanTextSpanDao.selectManyByOwnerPostIdList(chunk) }
+      .map { chanTextSpanEntity ->
+        if (migrated >= MAX_TEXT_SPANS_TO_MIGRATE_PER_READ) {
+          return@map chanTextSpanEntity
+        }
+
+        val migratedTextSpanEntity = TextSpanMapper.migrateToCurrentFormat(chanTextSpanEntity)
+          ?: return@map chanTextSpanEntity
+
+        chanTextSpanDao.updateSpanInfoBytes(
+          textSpanId = migratedTextSpanEntity.textSpanId,
+          spanInfoBytes = migratedTextSpanEntity.spanInfoBytes
+        )
+
+        ++migrated
+        return@map migratedTextSpanEntity
+      }
+
+    if (migrated > 0) {
+      Logger.d(TAG, "Migrated ${migrated} text spans, ${TextSpanMapper.statsSnapshot()}")
+    }
+
+    return textSpans.groupBy { chanTextSpanEntity -> chanTextSpanEntity.ownerPostId }
+  }
+
   private suspend fun getPostsAdditionalData(postIdList: List<Long>): PostAdditionalData {
     ensureInTransaction()
 
@@ -583,10 +610,7 @@ class ChanPostLocalSource(
     val postIdList = chanPostFullList.map { it.chanPostIdEntity.postId }
 
     // Load posts' comments/subjects/tripcodes and other Spannables
-    val textSpansGroupedByPostId = postIdList
-      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
-      .flatMap { chunk -> chanTextSpanDao.selectManyByOwnerPostIdList(chunk) }
-      .groupBy { chanTextSpanEntity -> chanTextSpanEntity.ownerPostId }
+    val textSpansGroupedByPostId = selectTextSpansGroupedByPostId(postIdList)
 
     val postAdditionalData = getPostsAdditionalData(postIdList)
 
@@ -737,137 +761,104 @@ class ChanPostLocalSource(
     }
   }
 
-  suspend fun deleteOldPosts(toDeleteCount: Int): DeleteResult {
+  /**
+   * Deletes all the non-OP posts of the threads that were not accessed the longest, as many whole
+   * threads as fit into [maxPostsToDelete] posts so that every call is a small bounded transaction.
+   * Threads are never partially deleted (that would leave them with broken reply chains) so when the
+   * first thread alone has more posts than that it's deleted anyway. [offset] is the amount of
+   * threads to skip (bookmarked/downloading ones which we must not touch) and it must be increased
+   * by [BatchDeleteResult.skippedThreads] after every call.
+   * */
+  suspend fun deleteOldPostsBatch(offset: Int, maxPostsToDelete: Int): BatchDeleteResult {
     ensureInTransaction()
-    require(toDeleteCount > 0) { "Bad toDeleteCount: $toDeleteCount" }
-
-    var deletedTotal = 0
-    var skippedTotal = 0
-    var offset = 0
-    val startTime = System.currentTimeMillis()
-
-    do {
-      if (System.currentTimeMillis() - startTime > TEN_SECONDS) {
-        Logger.d(TAG, "deleteOldPosts() execution took more than ${TEN_SECONDS} millis, exiting early")
-        break
-      }
-
-      val threadBatch = chanThreadDao.selectThreadsWithPostsOtherThanOp(offset, ENTITIES_IN_BATCH)
-      if (threadBatch.isEmpty()) {
-        Logger.d(TAG, "deleteOldPosts() selectThreadsWithPostsOtherThanOp returned empty list")
-        return DeleteResult(deletedTotal, skippedTotal)
-      }
-
-      val chanThreads = mutableSetOf<ChanThreadsWithPosts>()
-
-      for (thread in threadBatch) {
-        if (thread.threadBookmarkId != null) {
-          skippedTotal += thread.postsCount
+    require(maxPostsToDelete > 0) { "Bad maxPostsToDelete: $maxPostsToDelete" }
 
-          Logger.d(TAG, "deleteOldPosts() skipping bookmarked thread " +
-            "(threadNo = ${thread.threadNo}, posts count = ${thread.postsCount})")
-          continue
-        }
-
-        if (thread.threadDownloadId != null) {
-          skippedTotal += thread.postsCount
-
-          Logger.d(TAG, "deleteOldPosts() skipping downloading thread " +
-            "(threadNo = ${thread.threadNo}, posts count = ${thread.postsCount})")
-          continue
-        }
+    val threadBatch = chanThreadDao.selectThreadsWithPostsOtherThanOp(offset, THREADS_IN_GC_BATCH)
+    if (threadBatch.isEmpty()) {
+      Logger.d(TAG, "deleteOldPostsBatch() selectThreadsWithPostsOtherThanOp returned empty list")
+      return BatchDeleteResult(hasMore = false)
+    }
 
-        if (deletedTotal >= toDeleteCount) {
-          Logger.d(TAG, "deleteOldPosts() Deleted enough posts " +
-            "(posts count = ${thread.postsCount}), exiting early")
-          break
+    val threadIdSet = mutableSetOf<Long>()
+    var skippedThreads = 0
+    var skippedPosts = 0
+    var postsInThreads = 0
+
+    for (thread in threadBatch) {
+      if (thread.threadBookmarkId != null || thread.threadDownloadId != null) {
+        // Only the threads that go before the first deletable one are counted because the rest of
+        // them will be checked again by the next batch.
+        if (threadIdSet.isEmpty()) {
+          ++skippedThreads
+          skippedPosts += thread.postsCount
         }
 
-        chanThreads += thread
-        deletedTotal += thread.postsCount
+        continue
       }
 
-      if (chanThreads.isNotEmpty()) {
-        val threadIdSet = chanThreads
-          .map { chanThreadsWithPosts -> chanThreadsWithPosts.threadId }
-          .toSet()
+      if (threadIdSet.isNotEmpty() && postsInThreads + thread.postsCount > maxPostsToDelete) {
+        break
+      }
 
-        val totalPosts = chanThreads
-          .sumBy { chanThreadsWithPosts -> chanThreadsWithPosts.postsCount }
+      threadIdSet += thread.threadId
+      postsInThreads += thread.postsCount
+    }
 
-        Logger.d(TAG, "deleteOldPosts() deleting a batch of ${threadIdSet.size} threads with ${totalPosts} posts")
-        chanPostDao.deletePostsByThreadIds(threadIdSet)
-      }
+    if (threadIdSet.isEmpty()) {
+      return BatchDeleteResult(skippedTotal = skippedPosts, skippedThreads = skippedThreads)
+    }
 
-      offset += threadBatch.size
-    } while (deletedTotal < toDeleteCount)
+    val deleted = chanPostDao.deletePostsByThreadIds(threadIdSet)
 
-    return DeleteResult(deletedTotal, skippedTotal)
+    return BatchDeleteResult(
+      deletedTotal = deleted,
+      skippedTotal = skippedPosts,
+      skippedThreads = skippedThreads
+    )
   }
 
-  suspend fun deleteOldThreads(toDeleteCount: Int): DeleteResult {
+  /**
+   * Deletes up to [maxThreadsToDelete] threads (that only have the OP left) that were not accessed
+   * the longest. See [deleteOldPostsBatch] for what [offset] is.
+   * */
+  suspend fun deleteOldThreadsBatch(offset: Int, maxThreadsToDelete: Int): BatchDeleteResult {
     ensureInTransaction()
-    require(toDeleteCount > 0) { "Bad toDeleteCount: $toDeleteCount" }
-
-    var deletedTotal = 0
-    var skippedTotal = 0
-    var offset = 0
-    val startTime = System.currentTimeMillis()
-
-    do {
-      if (System.currentTimeMillis() - startTime > TEN_SECONDS) {
-        Logger.d(TAG, "deleteOldPosts() execution took more than ${TEN_SECONDS} millis, exiting early")
-        break
-      }
+    require(maxThreadsToDelete > 0) { "Bad maxThreadsToDelete: $maxThreadsToDelete" }
 
-      val threadBatch = chanThreadDao.selectOldThreads(offset, ENTITIES_IN_BATCH)
-      if (threadBatch.isEmpty()) {
-        Logger.d(TAG, "deleteOldThreads() selectOldThreads returned empty list")
-        return DeleteResult(deletedTotal, skippedTotal)
-      }
-
-      val chanThreads = mutableSetOf<OldChanPostThread>()
-
-      for (thread in threadBatch) {
-        if (thread.threadBookmarkId != null) {
-          ++skippedTotal
-          Logger.d(TAG, "deleteOldThreads() skipping bookmarked thread (threadNo = ${thread.threadNo}, " +
-            "deletedTotal = $deletedTotal, toDeleteCount = $toDeleteCount)")
-          continue
-        }
+    val threadBatch = chanThreadDao.selectOldThreads(offset, THREADS_IN_GC_BATCH)
+    if (threadBatch.isEmpty()) {
+      Logger.d(TAG, "deleteOldThreadsBatch() selectOldThreads returned empty list")
+      return BatchDeleteResult(hasMore = false)
+    }
 
-        if (thread.downloadThreadId != null) {
-          ++skippedTotal
-          Logger.d(TAG, "deleteOldThreads() skipping downloading thread (threadNo = ${thread.threadNo}, " +
-            "deletedTotal = $deletedTotal, toDeleteCount = $toDeleteCount)")
-          continue
-        }
+    val threadIdSet = mutableSetOf<Long>()
+    var skippedThreads = 0
 
-        if (deletedTotal >= toDeleteCount) {
-          Logger.d(TAG, "deleteOldThreads() Deleted enough threads (deletedTotal = $deletedTotal, " +
-            "toDeleteCount = $toDeleteCount), exiting early")
-          break
+    for (thread in threadBatch) {
+      if (thread.threadBookmarkId != null || thread.downloadThreadId != null) {
+        if (threadIdSet.isEmpty()) {
+          ++skippedThreads
         }
 
-        chanThreads += thread
+        continue
       }
 
-      if (chanThreads.isNotEmpty()) {
-        val threadIdSet = chanThreads
-          .map { chanThreadsWithPosts -> chanThreadsWithPosts.threadId }
-          .toSet()
-
-        val totalPosts = chanThreads
-          .sumBy { chanThreadsWithPosts -> chanThreadsWithPosts.postsCount }
+      threadIdSet += thread.threadId
 
-        Logger.d(TAG, "deleteOldThreads() deleting a batch of ${threadIdSet.size} threads with $totalPosts posts")
-        deletedTotal += chanThreadDao.deleteThreads(threadIdSet)
+      if (threadIdSet.size >= maxThreadsToDelete) {
+        break
       }
+    }
 
-      offset += threadBatch.size
-    } while (deletedTotal < toDeleteCount)
+    if (threadIdSet.isEmpty()) {
+      return BatchDeleteResult(skippedTotal = skippedThreads, skippedThreads = skippedThreads)
+    }
 
-    return DeleteResult(deletedTotal, skippedTotal)
+    return BatchDeleteResult(
+      deletedTotal = chanThreadDao.deleteThreads(threadIdSet),
+      skippedTotal = skippedThreads,
+      skippedThreads = skippedThreads
+    )
   }
 
   class PostAdditionalData(
@@ -878,9 +869,15 @@ class ChanPostLocalSource(
 
   data class DeleteResult(val deletedTotal: Int = 0, val skippedTotal: Int = 0)
 
-  companion object {
-    private const val ENTITIES_IN_BATCH = KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE
+  data class BatchDeleteResult(
+    val deletedTotal: Int = 0,
+    val skippedTotal: Int = 0,
+    val skippedThreads: Int = 0,
+    val hasMore: Boolean = true
+  )
 
-    private val TEN_SECONDS = TimeUnit.SECONDS.toMillis(10)
+  companion object {
+    private const val THREADS_IN_GC_BATCH = 64
+    private const val MAX_TEXT_SPANS_TO_MIGRATE_PER_READ = 512
   }
 }
\ No newline at end of file
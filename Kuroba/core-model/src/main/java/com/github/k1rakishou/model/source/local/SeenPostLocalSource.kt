@@ -4,6 +4,7 @@ import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.post.SeenPost
+import com.github.k1rakishou.model.data.post.SeenPostNumbers
 import com.github.k1rakishou.model.mapper.SeenPostMapper
 import org.joda.time.DateTime
 
@@ -36,25 +37,32 @@ open class SeenPostLocalSource(
     seenPostDao.insertMany(seenPostEntities)
   }
 
-  open suspend fun selectAllByThreadDescriptor(
+  open suspend fun selectSeenPostNumbers(
     threadDescriptor: ChanDescriptor.ThreadDescriptor
-  ): List<SeenPost> {
+  ): SeenPostNumbers {
     ensureInTransaction()
 
-    val chanBoardEntity = chanBoardDao.selectBoardId(
-      threadDescriptor.siteName(),
-      threadDescriptor.boardCode()
-    ) ?: return emptyList()
+    val seenPostEntities = seenPostDao.selectAllByThreadNo(
+      siteName = threadDescriptor.siteName(),
+      boardCode = threadDescriptor.boardCode(),
+      threadNo = threadDescriptor.threadNo
+    )
 
-    val chanThreadEntity = chanThreadDao.select(
-      chanBoardEntity.boardId,
-      threadDescriptor.threadNo
-    ) ?: return emptyList()
+    val seenPostNumbers = SeenPostNumbers(seenPostEntities.size)
 
-    return seenPostDao.selectAllByThreadId(chanThreadEntity.threadId)
-      .mapNotNull { seenPostEntity ->
-        return@mapNotNull SeenPostMapper.fromEntity(threadDescriptor, seenPostEntity)
+    for (seenPostEntity in seenPostEntities) {
+      if (seenPostEntity.postNo <= 0) {
+        continue
       }
+
+      seenPostNumbers.add(
+        postNo = seenPostEntity.postNo,
+        postSubNo = seenPostEntity.postSubNo,
+        insertedAt = seenPostEntity.insertedAt.millis
+      )
+    }
+
+    return seenPostNumbers
   }
 
   suspend fun selectAllByThreadDescriptors(
@@ -1,13 +1,14 @@
 package com.github.k1rakishou.model.source.local
 
 import com.github.k1rakishou.common.flatMapIndexed
-import com.github.k1rakishou.common.mapReverseIndexedNotNull
-import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.common.mutableMapWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.bookmark.DirtyBookmarks
 import com.github.k1rakishou.model.data.bookmark.ThreadBookmark
+import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkChanges
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.id.ThreadBookmarkDBId
 import com.github.k1rakishou.model.entity.bookmark.ThreadBookmarkEntity
 import com.github.k1rakishou.model.entity.bookmark.ThreadBookmarkFull
@@ -43,29 +44,21 @@ class ThreadBookmarkLocalSource(
     return bookmarks
   }
 
-  suspend fun persist(bookmarks: List<ThreadBookmark>) {
+  /**
+   * Writes only the changed bookmarks (and only their changed replies), see [DirtyBookmarks].
+   * */
+  suspend fun persistChanges(changes: ThreadBookmarkChanges) {
     ensureInTransaction()
-    Logger.d(TAG, "persist(${bookmarks.size})")
 
-    val threadDescriptors = bookmarks.map { bookmark -> bookmark.threadDescriptor }
-    val cachedBookmarks = threadBookmarkCache.getMany(threadDescriptors)
-
-    val toDelete = retainDeletedBookmarks(
-      bookmarks.map { it.threadDescriptor }.toHashSet(),
-      threadBookmarkCache.getAll()
-    )
-
-    if (toDelete.isNotEmpty()) {
-      deleteBookmarks(toDelete)
+    if (changes.deleted.isNotEmpty()) {
+      deleteBookmarks(changes.deleted.toList())
     }
 
-    val toInsertOrUpdateInDatabase = retainUpdatedBookmarks(bookmarks, cachedBookmarks)
-    if (toInsertOrUpdateInDatabase.isNotEmpty()) {
-      insertOrUpdateBookmarks(toInsertOrUpdateInDatabase)
+    if (changes.updated.isNotEmpty()) {
+      insertOrUpdateBookmarks(changes.updated, changes.changedReplies)
     }
 
-    Logger.d(TAG, "persist() inserted/updated ${toInsertOrUpdateInDatabase.size} bookmarks, " +
-      "deleted ${toDelete.size} bookmarks")
+    Logger.d(TAG, "persistChanges() ${changes}")
   }
 
   suspend fun deleteAll() {
@@ -89,7 +82,10 @@ class ThreadBookmarkLocalSource(
     chanDescriptorCache.deleteManyBookmarkIds(toDelete)
   }
 
-  private suspend fun insertOrUpdateBookmarks(toInsertOrUpdateInDatabase: List<ThreadBookmark>) {
+  private suspend fun insertOrUpdateBookmarks(
+    toInsertOrUpdateInDatabase: List<ThreadBookmark>,
+    changedReplies: Map<ChanDescriptor.ThreadDescriptor, Set<PostDescriptor>?>
+  ) {
     val toInsertOrUpdateThreadDescriptors = toInsertOrUpdateInDatabase.map { threadBookmark ->
       return@map threadBookmark.threadDescriptor
     }
@@ -125,15 +121,23 @@ class ThreadBookmarkLocalSource(
       val threadBookmarkId = toInsertOrUpdateThreadBookmarkEntities[index].threadBookmarkId
       check(threadBookmarkId > 0L) { "Bad threadBookmarkId: $threadBookmarkId" }
 
-      return@flatMapIndexed threadBookmark.threadBookmarkReplies.values.map { threadBookmarkReply ->
-        ThreadBookmarkReplyMapper.toThreadBookmarkReplyEntity(
+      val changedBookmarkReplies = changedReplies[threadBookmark.threadDescriptor]
+
+      return@flatMapIndexed threadBookmark.threadBookmarkReplies.values.mapNotNull { threadBookmarkReply ->
+        if (changedBookmarkReplies != null && threadBookmarkReply.postDescriptor !in changedBookmarkReplies) {
+          return@mapNotNull null
+        }
+
+        return@mapNotNull ThreadBookmarkReplyMapper.toThreadBookmarkReplyEntity(
           threadBookmarkId,
           threadBookmarkReply
         )
       }
     }
 
-    threadBookmarkReplyDao.insertOrUpdateMany(toInsertOrUpdateBookmarkReplyEntities)
+    if (toInsertOrUpdateBookmarkReplyEntities.isNotEmpty()) {
+      threadBookmarkReplyDao.insertOrUpdateMany(toInsertOrUpdateBookmarkReplyEntities)
+    }
 
     threadBookmarkCache.storeMany(
       toInsertOrUpdateInDatabase.associateBy { threadBookmark ->
@@ -147,43 +151,6 @@ class ThreadBookmarkLocalSource(
       "toInsertOrUpdateThreadBookmarkEntities: ${toInsertOrUpdateThreadBookmarkEntities.size}")
   }
 
-  private fun retainDeletedBookmarks(
-    bookmarksDescriptors: Set<ChanDescriptor.ThreadDescriptor>,
-    cachedBookmarks: Map<ChanDescriptor.ThreadDescriptor, ThreadBookmark>
-  ): List<ChanDescriptor.ThreadDescriptor> {
-    val list = mutableListWithCap<ChanDescriptor.ThreadDescriptor>(cachedBookmarks.size / 2)
-
-    cachedBookmarks.forEach { (threadDescriptor, _) ->
-      if (!bookmarksDescriptors.contains(threadDescriptor)) {
-        list += threadDescriptor
-      }
-    }
-
-    return list
-  }
-
-  private fun retainUpdatedBookmarks(
-    bookmarks: List<ThreadBookmark>,
-    cachedBookmarks: Map<ChanDescriptor.ThreadDescriptor, ThreadBookmark>
-  ): List<ThreadBookmark> {
-    if (bookmarks.isEmpty()) {
-      return emptyList()
-    }
-
-    return bookmarks.mapReverseIndexedNotNull { order, threadBookmark ->
-      val threadDescriptor = threadBookmark.threadDescriptor
-
-      val cachedThreadBookmark = cachedBookmarks[threadDescriptor]
-        ?: return@mapReverseIndexedNotNull threadBookmark
-
-      if (cachedThreadBookmark == threadBookmark) {
-        return@mapReverseIndexedNotNull null
-      }
-
-      return@mapReverseIndexedNotNull threadBookmark.deepCopy()
-    }
-  }
-
   private fun associateBookmarks(
     bookmarks: List<ThreadBookmark>
   ): Map<ChanDescriptor.ThreadDescriptor, ThreadBookmark> {
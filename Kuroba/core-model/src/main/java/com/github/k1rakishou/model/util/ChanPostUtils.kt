@@ -9,7 +9,6 @@ import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor.CatalogDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor.ThreadDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
-import com.github.k1rakishou.model.data.post.ChanOriginalPost
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.ChanPostBuilder
 import com.github.k1rakishou.model.data.post.ChanPostImage
@@ -21,6 +20,7 @@ import kotlin.math.min
 
 object ChanPostUtils {
   private const val TAG = "ChanPostUtils"
+  private const val POST_HASH_FIELD_SEPARATOR = '\u0000'
 
   private val dateFormatEnglish = SimpleDateFormat.getDateTimeInstance(
     DateFormat.SHORT,
@@ -165,68 +165,6 @@ object ChanPostUtils {
     }
   }
 
-  fun postsDiffer(chanPostBuilder: ChanPostBuilder, chanPostFromCache: ChanPost, isThreadMode: Boolean): Boolean {
-    if (chanPostBuilder.boardDescriptor!! != chanPostFromCache.postDescriptor.descriptor.boardDescriptor()) {
-      return true
-    }
-    if (chanPostBuilder.op != (chanPostFromCache is ChanOriginalPost)) {
-      return true
-    }
-    if (chanPostBuilder.sage != chanPostFromCache.isSage) {
-      return true
-    }
-
-    if (chanPostBuilder.op) {
-      chanPostFromCache as ChanOriginalPost
-
-      if (!isThreadMode) {
-        // When in a thread lastModified will most likely not be sent from the server
-        // (4chan.org/2ch.hk) it is only sent for catalog threads. So we don't want to compare
-        // them here because otherwise this method will be always returning true for OPs.
-        if (chanPostBuilder.lastModified != chanPostFromCache.lastModified) {
-          return true
-        }
-      }
-
-      if (chanPostBuilder.sticky != chanPostFromCache.sticky) {
-        return true
-      }
-      if (chanPostBuilder.uniqueIps != chanPostFromCache.uniqueIps) {
-        return true
-      }
-      if (chanPostBuilder.threadImagesCount != chanPostFromCache.catalogImagesCount) {
-        return true
-      }
-      if (chanPostBuilder.closed != chanPostFromCache.closed) {
-        return true
-      }
-      if (chanPostBuilder.archived != chanPostFromCache.archived) {
-        return true
-      }
-      if (chanPostBuilder.deleted != chanPostFromCache.isDeleted) {
-        return true
-      }
-      if (chanPostBuilder.endless != chanPostFromCache.endless) {
-        return true
-      }
-      if (chanPostBuilder.totalRepliesCount != chanPostFromCache.catalogRepliesCount) {
-        return true
-      }
-    }
-
-    // We do not compare comments, subject, name, tripcode, posterId, capcode and repliesTo here
-    // because they will always differ because we add and remove some stuff from the raw values.
-    // (like the server usually sends HTML code inside of post comment and we need to extract and
-    // remove it to not show it to the user).
-    // Instead, we calculate a hash of a raw post comment (+ subject, name, tripcode, posterId and
-    // moderatorCapcode) and then compare them instead.
-    if (postImagesDiffer(chanPostBuilder.postImages, chanPostFromCache.postImages)) {
-      return true
-    }
-
-    return false
-  }
-
   fun postImagesDiffer(
     postImages1: List<ChanPostImage>,
     postImages2: List<ChanPostImage>
@@ -259,21 +197,55 @@ object ChanPostUtils {
     return false
   }
 
+  /**
+   * Hash of everything we get from the server for a post (raw comment, subject, name etc, images and
+   * icons) so that it's enough to compare the hashes to figure out whether a post has changed since
+   * the last time we parsed it.
+   * */
   @JvmStatic
   fun getPostHash(chanPostBuilder: ChanPostBuilder): MurmurHashUtils.Murmur3Hash {
     val inputString = buildString {
       append(chanPostBuilder.postCommentBuilder.getUnparsedComment())
 
-      chanPostBuilder.subject?.let { subject -> append(subject) }
-      chanPostBuilder.name?.let { name -> append(name) }
-      chanPostBuilder.tripcode?.let { tripcode -> append(tripcode) }
-      chanPostBuilder.posterId?.let { posterId -> append(posterId) }
-      chanPostBuilder.moderatorCapcode?.let { moderatorCapcode -> append(moderatorCapcode) }
+      // Separate the fields so that e.g. subject "ab" + name "c" and subject "a" + name "bc" do not
+      // produce the same hash.
+      appendPostHashField(chanPostBuilder.subject)
+      appendPostHashField(chanPostBuilder.name)
+      appendPostHashField(chanPostBuilder.tripcode)
+      appendPostHashField(chanPostBuilder.posterId)
+      appendPostHashField(chanPostBuilder.moderatorCapcode)
+      appendPostHashField(chanPostBuilder.sage.toString())
+
+      chanPostBuilder.postImages.forEach { postImage ->
+        appendPostHashField(postImage.serverFilename)
+        appendPostHashField(postImage.imageUrl?.toString())
+        appendPostHashField(postImage.actualThumbnailUrl?.toString())
+        appendPostHashField(postImage.spoilerThumbnailUrl?.toString())
+        appendPostHashField(postImage.filename)
+        appendPostHashField(postImage.extension)
+        appendPostHashField(postImage.fileHash)
+        appendPostHashField(postImage.type?.name)
+        appendPostHashField("${postImage.size}:${postImage.imageWidth}x${postImage.imageHeight}")
+        appendPostHashField("${postImage.spoiler}:${postImage.isInlined}")
+      }
+
+      chanPostBuilder.httpIcons.forEach { postIcon ->
+        appendPostHashField(postIcon.iconUrl.toString())
+        appendPostHashField(postIcon.iconName)
+      }
     }
 
     return MurmurHashUtils.murmurhash3_x64_128(inputString)
   }
 
+  private fun StringBuilder.appendPostHashField(value: CharSequence?) {
+    append(POST_HASH_FIELD_SEPARATOR)
+
+    if (value != null) {
+      append(value)
+    }
+  }
+
   @JvmStatic
   fun findPostWithReplies(postDescriptor: PostDescriptor, posts: Collection<ChanPost>): HashSet<ChanPost> {
     val postsSet = HashSet<ChanPost>()
@@ -0,0 +1,108 @@
+package com.github.k1rakishou.model
+
+import com.github.k1rakishou.common.ModularResult
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+class KurobaDatabaseSchedulerTest {
+  private val transactions = AtomicInteger(0)
+  private val scheduler = KurobaDatabaseScheduler { func ->
+    transactions.incrementAndGet()
+    func()
+  }
+
+  @Test
+  fun `writes queued while the writer is busy share one transaction`() {
+    runBlocking(Dispatchers.Default) {
+      val gate = CompletableDeferred<Unit>()
+      val executed = CopyOnWriteArrayList<Int>()
+
+      val first = async { scheduler.write("Test", coalesce = true) { gate.await(); executed += 0 } }
+      awaitWriterIsBusy()
+
+      val others = (1..5).map { index ->
+        async { scheduler.write("Test", coalesce = true) { executed += index } }
+      }
+
+      awaitQueued(others.size)
+      gate.complete(Unit)
+
+      (listOf(first) + others).awaitAll().forEach { result -> assertTrue(result is ModularResult.Value) }
+      assertEquals(2, transactions.get())
+      assertEquals(6, executed.size)
+      assertEquals(6L, scheduler.metrics("Test").writes.count())
+    }
+  }
+
+  @Test
+  fun `a failing write does not fail other writes of the shared transaction`() {
+    runBlocking(Dispatchers.Default) {
+      val gate = CompletableDeferred<Unit>()
+
+      val first = async { scheduler.write("Test", coalesce = true) { gate.await() } }
+      awaitWriterIsBusy()
+
+      val good1 = async { scheduler.write("Test", coalesce = true) { 1 } }
+      val bad = async { scheduler.write("Test", coalesce = true) { error("Write failed") } }
+      val good2 = async { scheduler.write("Test", coalesce = true) { 2 } }
+
+      awaitQueued(3)
+      gate.complete(Unit)
+
+      assertTrue(first.await() is ModularResult.Value)
+      assertEquals(1, good1.await().unwrap())
+      assertTrue(bad.await() is ModularResult.Error)
+      assertEquals(2, good2.await().unwrap())
+
+      // first alone, the failed shared one and then 3 separate ones
+      assertEquals(5, transactions.get())
+    }
+  }
+
+  @Test
+  fun `not coalesced writes are executed alone and in order`() {
+    runBlocking(Dispatchers.Default) {
+      val gate = CompletableDeferred<Unit>()
+      val executed = CopyOnWriteArrayList<String>()
+
+      val first = async { scheduler.write("Test", coalesce = true) { gate.await(); executed += "first" } }
+      awaitWriterIsBusy()
+
+      val a = async { scheduler.write("Test", coalesce = true) { executed += "a" } }
+      awaitQueued(1)
+      val b = async { scheduler.write("Test", coalesce = false) { executed += "b" } }
+      awaitQueued(2)
+      val c = async { scheduler.write("Test", coalesce = true) { executed += "c" } }
+      awaitQueued(3)
+
+      gate.complete(Unit)
+      listOf(first, a, b, c).awaitAll()
+
+      assertEquals(listOf("first", "a", "b", "c"), executed.toList())
+      assertEquals(4, transactions.get())
+    }
+  }
+
+  private suspend fun awaitWriterIsBusy() {
+    while (transactions.get() == 0) {
+      delay(1)
+    }
+  }
+
+  private suspend fun awaitQueued(count: Int) {
+    // There is no way to observe the channel so just give the writes some time to be sent
+    delay(50L * count)
+  }
+}
@@ -0,0 +1,130 @@
+package com.github.k1rakishou.model.data.bookmark
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import org.joda.time.DateTime
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class DirtyBookmarksTest {
+  private val createdOn = DateTime(0L)
+
+  @Test
+  fun `only the changed bookmark and its changed replies are taken`() {
+    val bookmarks = (1L..300L).associate { threadNo ->
+      val threadBookmark = createBookmark(threadNo, repliesCount = 100)
+      threadBookmark.threadDescriptor to threadBookmark
+    }.toMutableMap()
+
+    val dirtyBookmarks = DirtyBookmarks()
+    val threadDescriptor = threadDescriptor(150L)
+    val oldThreadBookmark = bookmarks[threadDescriptor]!!
+    val newThreadBookmark = oldThreadBookmark.deepCopy()
+
+    newThreadBookmark.readRepliesUpTo(1000L + 10L)
+    newThreadBookmark.updateLastViewedPostNo(1000L + 10L)
+    bookmarks[threadDescriptor] = newThreadBookmark
+
+    assertTrue(dirtyBookmarks.markUpdatedIfChanged(oldThreadBookmark, newThreadBookmark))
+    assertFalse(dirtyBookmarks.markUpdatedIfChanged(newThreadBookmark, newThreadBookmark.deepCopy()))
+
+    val changes = dirtyBookmarks.takeChanges { descriptor -> bookmarks[descriptor] }
+
+    assertEquals(1, changes.updated.size)
+    assertEquals(newThreadBookmark, changes.updated.first())
+    assertEquals(10, changes.changedReplies[threadDescriptor]!!.size)
+    assertEquals(10, changes.changedRepliesCount())
+    assertTrue(changes.deleted.isEmpty())
+
+    assertTrue(dirtyBookmarks.isEmpty())
+    assertTrue(dirtyBookmarks.takeChanges { descriptor -> bookmarks[descriptor] }.isEmpty())
+  }
+
+  @Test
+  fun `created bookmarks persist all replies`() {
+    val threadBookmark = createBookmark(1L, repliesCount = 5)
+    val dirtyBookmarks = DirtyBookmarks()
+
+    dirtyBookmarks.markUpdated(threadBookmark.threadDescriptor, listOf(replyPostDescriptor(1L, 1)))
+    dirtyBookmarks.markUpdatedWithAllReplies(threadBookmark.threadDescriptor)
+    dirtyBookmarks.markUpdated(threadBookmark.threadDescriptor, listOf(replyPostDescriptor(1L, 2)))
+
+    val changes = dirtyBookmarks.takeChanges { threadBookmark }
+
+    assertNull(changes.changedReplies[threadBookmark.threadDescriptor])
+    assertEquals(5, changes.changedRepliesCount())
+  }
+
+  @Test
+  fun `deleting an updated bookmark only deletes it`() {
+    val threadBookmark = createBookmark(1L, repliesCount = 5)
+    val dirtyBookmarks = DirtyBookmarks()
+
+    dirtyBookmarks.markUpdatedWithAllReplies(threadBookmark.threadDescriptor)
+    dirtyBookmarks.markDeleted(threadBookmark.threadDescriptor)
+
+    val changes = dirtyBookmarks.takeChanges { null }
+
+    assertTrue(changes.updated.isEmpty())
+    assertEquals(setOf(threadBookmark.threadDescriptor), changes.deleted)
+  }
+
+  @Test
+  fun `restoring failed changes does not override newer changes`() {
+    val threadBookmark1 = createBookmark(1L, repliesCount = 1)
+    val threadBookmark2 = createBookmark(2L, repliesCount = 1)
+    val dirtyBookmarks = DirtyBookmarks()
+
+    dirtyBookmarks.markUpdatedWithAllReplies(threadBookmark1.threadDescriptor)
+    dirtyBookmarks.markDeleted(threadBookmark2.threadDescriptor)
+
+    val failedChanges = dirtyBookmarks.takeChanges { threadBookmark1 }
+
+    // Bookmark 1 was deleted and bookmark 2 was created again while the changes were being persisted
+    dirtyBookmarks.markDeleted(threadBookmark1.threadDescriptor)
+    dirtyBookmarks.markUpdatedWithAllReplies(threadBookmark2.threadDescriptor)
+    dirtyBookmarks.restore(failedChanges)
+
+    val changes = dirtyBookmarks.takeChanges { descriptor ->
+      if (descriptor == threadBookmark2.threadDescriptor) threadBookmark2 else null
+    }
+
+    assertEquals(listOf(threadBookmark2), changes.updated)
+    assertEquals(setOf(threadBookmark1.threadDescriptor), changes.deleted)
+  }
+
+  private fun createBookmark(threadNo: Long, repliesCount: Int): ThreadBookmark {
+    val threadBookmark = ThreadBookmark.create(threadDescriptor(threadNo), createdOn)
+
+    for (index in 1..repliesCount) {
+      val postDescriptor = replyPostDescriptor(threadNo, index)
+
+      threadBookmark.threadBookmarkReplies[postDescriptor] = ThreadBookmarkReply(
+        postDescriptor = postDescriptor,
+        repliesTo = PostDescriptor.create(threadDescriptor(threadNo), threadNo),
+        alreadyNotified = false,
+        alreadySeen = false,
+        alreadyRead = false,
+        time = createdOn,
+        commentRaw = null
+      )
+    }
+
+    return threadBookmark
+  }
+
+  private fun threadDescriptor(threadNo: Long): ChanDescriptor.ThreadDescriptor {
+    return ChanDescriptor.ThreadDescriptor.create("test", "g", threadNo)
+  }
+
+  private fun replyPostDescriptor(threadNo: Long, index: Int): PostDescriptor {
+    return PostDescriptor.create(threadDescriptor(threadNo), 1000L + index)
+  }
+
+}
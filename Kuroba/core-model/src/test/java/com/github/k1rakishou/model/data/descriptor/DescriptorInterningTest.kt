@@ -0,0 +1,196 @@
+package com.github.k1rakishou.model.data.descriptor
+
+import android.os.Parcel
+import com.github.k1rakishou.model.data.post.PackedPostDescriptorSet
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.*
+
+@RunWith(RobolectricTestRunner::class)
+class DescriptorInterningTest {
+  @Test
+  fun `equal descriptors are the same instance`() {
+    val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", THREAD_NO)
+
+    assertSame(threadDescriptor, ChanDescriptor.ThreadDescriptor.create(BoardDescriptor.create("test", "g"), THREAD_NO))
+    assertSame(threadDescriptor, PostDescriptor.create("test", "g", THREAD_NO, THREAD_NO + 1).descriptor)
+    assertSame(threadDescriptor, PostDescriptor.create(threadDescriptor, THREAD_NO + 2).descriptor)
+    assertSame(threadDescriptor.boardDescriptor, ChanDescriptor.CatalogDescriptor.create("test", "g").boardDescriptor)
+    assertSame(threadDescriptor.catalogDescriptor(), ChanDescriptor.CatalogDescriptor.create("test", "g"))
+    assertSame(threadDescriptor.siteDescriptor(), SiteDescriptor.create("test"))
+  }
+
+  @Test
+  fun `descriptors read from a parcel are interned when used to create other descriptors`() {
+    val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", THREAD_NO)
+    val threadDescriptorCopy = parcelCopy(threadDescriptor)
+
+    assertTrue(threadDescriptor !== threadDescriptorCopy)
+    assertEquals(threadDescriptor, threadDescriptorCopy)
+    assertSame(threadDescriptor, ChanDescriptor.ThreadDescriptor.create(threadDescriptorCopy.boardDescriptor, THREAD_NO))
+  }
+
+  @Test
+  fun `packed replies of a 10k posts thread contain the same interned descriptors as regular sets`() {
+    val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", THREAD_NO)
+    val threadDescriptorCopy = parcelCopy(threadDescriptor)
+
+    val expected = createSyntheticThread { postNo -> PostDescriptor.create(threadDescriptor, postNo) }
+    // Descriptors created from a not interned (parcel copy) thread descriptor are still equal
+    val packed = createSyntheticThread { postNo -> PostDescriptor.create(threadDescriptorCopy, postNo) }
+      .map { post ->
+        SyntheticPost(
+          postDescriptor = post.postDescriptor,
+          repliesTo = PackedPostDescriptorSet(threadDescriptor).apply { addAll(post.repliesTo) },
+          repliesFrom = PackedPostDescriptorSet(threadDescriptor).apply { addAll(post.repliesFrom) }
+        )
+      }
+
+    assertEquals(expected.size, packed.size)
+
+    expected.forEachIndexed { index, expectedPost ->
+      val packedPost = packed[index]
+
+      assertEquals(expectedPost.postDescriptor, packedPost.postDescriptor)
+      assertEquals(expectedPost.repliesTo.size, packedPost.repliesTo.size)
+      assertEquals(expectedPost.repliesFrom.size, packedPost.repliesFrom.size)
+      assertEquals(expectedPost.repliesTo.sortedBy { it.postNo }, packedPost.repliesTo.toList())
+      assertEquals(expectedPost.repliesFrom.sortedBy { it.postNo }, packedPost.repliesFrom.toList())
+
+      // Unpacked descriptors point to the interned thread descriptor, not to the one they were added with
+      (packedPost.repliesTo + packedPost.repliesFrom).forEach { postDescriptor ->
+        assertSame(threadDescriptor, postDescriptor.descriptor)
+      }
+    }
+
+    // OP is quoted by every post
+    assertEquals(POSTS_COUNT - 1, packed.first().repliesFrom.size)
+  }
+
+  @Test
+  fun `old layout retains a descriptor chain per post descriptor and the new one shares a single chain`() {
+    val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", THREAD_NO)
+
+    // The old layout: every descriptor had its own Thread -> Board -> Site chain (parcel copies are
+    // not interned) and the replies were regular sets of PostDescriptor objects
+    val oldLayout = createSyntheticThread(
+      createPostDescriptor = { postNo -> PostDescriptor.createUnchecked(parcelCopy(threadDescriptor), postNo, 0L) },
+      createSet = { LinkedHashSet() }
+    )
+
+    val newLayout = createSyntheticThread(
+      createPostDescriptor = { postNo -> PostDescriptor.create(threadDescriptor, postNo) },
+      createSet = { PackedPostDescriptorSet(threadDescriptor) }
+    )
+
+    val repliesCount = oldLayout.sumOf { post -> post.repliesTo.size }
+    assertEquals(repliesCount, newLayout.sumOf { post -> post.repliesTo.size })
+    assertEquals(repliesCount, newLayout.sumOf { post -> post.repliesFrom.size })
+
+    // Every post descriptor of the old layout (the posts' own ones plus one per reply in either
+    // direction) is a separate object with its own chain
+    val oldLayoutInstances = countRetainedDescriptorInstances(oldLayout)
+    val oldLayoutPostDescriptors = POSTS_COUNT + repliesCount * 2
+    assertEquals(DescriptorInstances(oldLayoutPostDescriptors, oldLayoutPostDescriptors, oldLayoutPostDescriptors, oldLayoutPostDescriptors), oldLayoutInstances)
+
+    // The new layout only retains the posts' own post descriptors (replies are packed post numbers)
+    // and all of them share the interned chain
+    val newLayoutInstances = countRetainedDescriptorInstances(newLayout)
+    assertEquals(DescriptorInstances(POSTS_COUNT, 1, 1, 1), newLayoutInstances)
+  }
+
+  /**
+   * Counts distinct (by identity) descriptor objects that are retained by [posts]. Descriptors of
+   * [PackedPostDescriptorSet]s are not retained by the sets (they are re-created when iterating)
+   * so only their chains are counted.
+   * */
+  private fun countRetainedDescriptorInstances(posts: List<SyntheticPost>): DescriptorInstances {
+    val postDescriptors = Collections.newSetFromMap(IdentityHashMap<PostDescriptor, Boolean>())
+    val threadDescriptors = Collections.newSetFromMap(IdentityHashMap<ChanDescriptor, Boolean>())
+    val boardDescriptors = Collections.newSetFromMap(IdentityHashMap<BoardDescriptor, Boolean>())
+    val siteDescriptors = Collections.newSetFromMap(IdentityHashMap<SiteDescriptor, Boolean>())
+
+    fun collect(postDescriptor: PostDescriptor, retained: Boolean) {
+      if (retained) {
+        postDescriptors += postDescriptor
+      }
+
+      threadDescriptors += postDescriptor.descriptor
+      boardDescriptors += postDescriptor.boardDescriptor()
+      siteDescriptors += postDescriptor.siteDescriptor()
+    }
+
+    posts.forEach { post ->
+      collect(post.postDescriptor, retained = true)
+
+      (post.repliesTo + post.repliesFrom).forEach { postDescriptor ->
+        collect(postDescriptor, retained = post.repliesTo !is PackedPostDescriptorSet)
+      }
+    }
+
+    return DescriptorInstances(postDescriptors.size, threadDescriptors.size, boardDescriptors.size, siteDescriptors.size)
+  }
+
+  private fun createSyntheticThread(createPostDescriptor: (Long) -> PostDescriptor): List<SyntheticPost> {
+    return createSyntheticThread(createPostDescriptor) { LinkedHashSet() }
+  }
+
+  private fun createSyntheticThread(
+    createPostDescriptor: (Long) -> PostDescriptor,
+    createSet: () -> MutableSet<PostDescriptor>
+  ): List<SyntheticPost> {
+    val posts = (0 until POSTS_COUNT).map { index ->
+      SyntheticPost(createPostDescriptor(THREAD_NO + index), createSet(), createSet())
+    }
+
+    posts.forEachIndexed { index, post ->
+      // Every post quotes the OP and a couple of previous posts
+      for (repliesToIndex in intArrayOf(0, index - 1, index - 7)) {
+        if (repliesToIndex < 0 || repliesToIndex >= index) {
+          continue
+        }
+
+        post.repliesTo += createPostDescriptor(THREAD_NO + repliesToIndex)
+        posts[repliesToIndex].repliesFrom += createPostDescriptor(THREAD_NO + index)
+      }
+    }
+
+    return posts
+  }
+
+  private fun parcelCopy(threadDescriptor: ChanDescriptor.ThreadDescriptor): ChanDescriptor.ThreadDescriptor {
+    val parcel = Parcel.obtain()
+
+    try {
+      parcel.writeParcelable(threadDescriptor, 0)
+      parcel.setDataPosition(0)
+
+      return parcel.readParcelable(ChanDescriptor.ThreadDescriptor::class.java.classLoader)!!
+    } finally {
+      parcel.recycle()
+    }
+  }
+
+  private data class DescriptorInstances(
+    val postDescriptors: Int,
+    val threadDescriptors: Int,
+    val boardDescriptors: Int,
+    val siteDescriptors: Int
+  )
+
+  private class SyntheticPost(
+    val postDescriptor: PostDescriptor,
+    val repliesTo: MutableSet<PostDescriptor>,
+    val repliesFrom: MutableSet<PostDescriptor>
+  )
+
+  companion object {
+    private const val THREAD_NO = 1_000_000L
+    private const val POSTS_COUNT = 10_000
+  }
+
+}
@@ -0,0 +1,120 @@
+package com.github.k1rakishou.model.data.post
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.*
+
+@RunWith(RobolectricTestRunner::class)
+class PackedPostDescriptorSetTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", THREAD_NO)
+  private val otherThreadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", THREAD_NO + 1)
+
+  @Test
+  fun `behaves like a regular set`() {
+    val random = Random(1)
+    val packedSet = PackedPostDescriptorSet(threadDescriptor)
+    val expectedSet = HashSet<PostDescriptor>()
+
+    repeat(5000) {
+      val postDescriptor = randomPostDescriptor(random)
+
+      when (random.nextInt(4)) {
+        0 -> assertEquals(expectedSet.remove(postDescriptor), packedSet.remove(postDescriptor))
+        1 -> {
+          val postDescriptors = (0 until random.nextInt(20)).map { randomPostDescriptor(random) }
+          assertEquals(expectedSet.addAll(postDescriptors), packedSet.addAll(postDescriptors))
+        }
+        else -> assertEquals(expectedSet.add(postDescriptor), packedSet.add(postDescriptor))
+      }
+
+      assertEquals(expectedSet.contains(postDescriptor), packedSet.contains(postDescriptor))
+      assertEquals(expectedSet.size, packedSet.size)
+    }
+
+    assertEquals(expectedSet, packedSet)
+    assertEquals(expectedSet.hashCode(), packedSet.hashCode())
+    assertEquals(expectedSet, packedSet.toSet())
+  }
+
+  @Test
+  fun `post descriptors of the thread are iterated sorted and before the rest`() {
+    val packedSet = PackedPostDescriptorSet(threadDescriptor)
+    val otherThreadPost = PostDescriptor.create(otherThreadDescriptor, THREAD_NO + 10)
+
+    packedSet.add(PostDescriptor.create(threadDescriptor, THREAD_NO + 3))
+    packedSet.add(otherThreadPost)
+    packedSet.add(PostDescriptor.create(threadDescriptor, THREAD_NO, THREAD_NO + 1, 1))
+    packedSet.add(PostDescriptor.create(threadDescriptor, THREAD_NO + 1))
+
+    val expected = listOf(
+      PostDescriptor.create(threadDescriptor, THREAD_NO + 1),
+      PostDescriptor.create(threadDescriptor, THREAD_NO, THREAD_NO + 1, 1),
+      PostDescriptor.create(threadDescriptor, THREAD_NO + 3),
+      otherThreadPost
+    )
+
+    assertEquals(expected, packedSet.toList())
+  }
+
+  @Test
+  fun `iterator remove removes both packed and not packed descriptors`() {
+    val packedSet = PackedPostDescriptorSet(threadDescriptor)
+    (1L..10L).forEach { offset -> packedSet.add(PostDescriptor.create(threadDescriptor, THREAD_NO + offset)) }
+    (1L..10L).forEach { offset -> packedSet.add(PostDescriptor.create(otherThreadDescriptor, THREAD_NO + offset)) }
+
+    packedSet.removeAll { postDescriptor -> postDescriptor.postNo % 2 == 0L }
+
+    assertEquals(10, packedSet.size)
+    assertTrue(packedSet.all { postDescriptor -> postDescriptor.postNo % 2 == 1L })
+    assertTrue(packedSet.contains(PostDescriptor.create(otherThreadDescriptor, THREAD_NO + 1)))
+    assertFalse(packedSet.contains(PostDescriptor.create(threadDescriptor, THREAD_NO + 2)))
+  }
+
+  @Test
+  fun `merging two packed sets`() {
+    val first = PackedPostDescriptorSet(threadDescriptor)
+    val second = PackedPostDescriptorSet(threadDescriptor)
+
+    (1L..10L).forEach { offset -> first.add(PostDescriptor.create(threadDescriptor, THREAD_NO + offset)) }
+    (5L..15L).forEach { offset -> second.add(PostDescriptor.create(threadDescriptor, THREAD_NO + offset)) }
+
+    assertTrue(first.addAll(second))
+    assertFalse(first.addAll(second))
+    assertEquals(15, first.size)
+    assertEquals((1L..15L).map { offset -> THREAD_NO + offset }, first.map { postDescriptor -> postDescriptor.postNo })
+  }
+
+  @Test(expected = ConcurrentModificationException::class)
+  fun `modifying the set while iterating it throws`() {
+    val packedSet = PackedPostDescriptorSet(threadDescriptor)
+    (1L..10L).forEach { offset -> packedSet.add(PostDescriptor.create(threadDescriptor, THREAD_NO + offset)) }
+
+    for (postDescriptor in packedSet) {
+      if (postDescriptor.postNo == THREAD_NO + 5) {
+        packedSet.addAll(listOf(PostDescriptor.create(threadDescriptor, THREAD_NO + 20)))
+      }
+    }
+  }
+
+  private fun randomPostDescriptor(random: Random): PostDescriptor {
+    val postNo = THREAD_NO + random.nextInt(200)
+    val postSubNo = if (random.nextInt(10) == 0) random.nextInt(3).toLong() else 0L
+
+    return when (random.nextInt(10)) {
+      0 -> PostDescriptor.create(otherThreadDescriptor, postNo)
+      1 -> PostDescriptor.create(threadDescriptor.catalogDescriptor(), postNo)
+      else -> PostDescriptor.create(threadDescriptor, THREAD_NO, postNo, postSubNo)
+    }
+  }
+
+  companion object {
+    private const val THREAD_NO = 1_000_000L
+  }
+
+}
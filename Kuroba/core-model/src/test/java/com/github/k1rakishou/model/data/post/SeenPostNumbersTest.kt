@@ -0,0 +1,77 @@
+package com.github.k1rakishou.model.data.post
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class SeenPostNumbersTest {
+
+  @Test
+  fun `posts added in any order can be found`() {
+    val seenPostNumbers = SeenPostNumbers(2)
+    val postNos = (1L..2000L).shuffled(java.util.Random(1))
+
+    postNos.forEach { postNo -> assertTrue(seenPostNumbers.add(postNo, 0L, postNo * 10)) }
+
+    assertEquals(2000, seenPostNumbers.size)
+    postNos.forEach { postNo ->
+      assertTrue(seenPostNumbers.contains(postNo, 0L))
+      assertEquals(postNo * 10, seenPostNumbers.insertedAtMillis(postNo, 0L))
+    }
+
+    assertFalse(seenPostNumbers.contains(0L, 0L))
+    assertFalse(seenPostNumbers.contains(2001L, 0L))
+    assertEquals(-1L, seenPostNumbers.insertedAtMillis(2001L, 0L))
+  }
+
+  @Test
+  fun `post sub numbers are different posts`() {
+    val seenPostNumbers = SeenPostNumbers()
+
+    assertTrue(seenPostNumbers.add(100L, 0L, 1L))
+    assertTrue(seenPostNumbers.add(100L, 2L, 2L))
+    assertFalse(seenPostNumbers.add(100L, 2L, 3L))
+
+    assertTrue(seenPostNumbers.contains(100L, 0L))
+    assertTrue(seenPostNumbers.contains(100L, 2L))
+    assertFalse(seenPostNumbers.contains(100L, 1L))
+    assertEquals(2L, seenPostNumbers.insertedAtMillis(100L, 2L))
+  }
+
+  @Test
+  fun `merging keeps the time of already seen posts and does not modify the sources`() {
+    val seen = SeenPostNumbers()
+    seen.add(1L, 0L, 10L)
+    seen.add(5L, 0L, 50L)
+
+    val batch = SeenPostNumbers()
+    batch.add(5L, 0L, 500L)
+    batch.add(3L, 0L, 300L)
+    batch.add(7L, 0L, 700L)
+
+    val merged = seen.mergedWith(batch)
+
+    assertEquals(4, merged.size)
+    assertEquals(10L, merged.insertedAtMillis(1L, 0L))
+    assertEquals(300L, merged.insertedAtMillis(3L, 0L))
+    assertEquals(50L, merged.insertedAtMillis(5L, 0L))
+    assertEquals(700L, merged.insertedAtMillis(7L, 0L))
+
+    assertEquals(2, seen.size)
+    assertEquals(3, batch.size)
+  }
+
+  @Test
+  fun `retainOnly keeps only the requested post`() {
+    val seenPostNumbers = SeenPostNumbers()
+    (1L..10L).forEach { postNo -> seenPostNumbers.add(postNo, 0L, postNo) }
+
+    val retained = seenPostNumbers.retainOnly(1L, 0L)
+    assertEquals(1, retained.size)
+    assertTrue(retained.contains(1L, 0L))
+
+    assertTrue(seenPostNumbers.retainOnly(11L, 0L).isEmpty())
+  }
+
+}
@@ -0,0 +1,311 @@
+package com.github.k1rakishou.model.data.thread
+
+import com.github.k1rakishou.model.data.PostsFromServerData
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import com.github.k1rakishou.model.data.post.ChanPostSizeEstimator
+import com.github.k1rakishou.model.data.post.PostComment
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+class ChanThreadTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", THREAD_NO)
+
+  @Test
+  fun `test refresh merges updated, new and deleted posts`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+    chanThread.addOrUpdatePosts(createPosts(1, 100), postsFromServerData(1, 100))
+
+    // Posts 2..10 were deleted on the server, 101..105 are new
+    val refreshedPosts = createPosts(1, 1) + createPosts(11, 105)
+    chanThread.addOrUpdatePosts(refreshedPosts, postsFromServerData(refreshedPosts))
+
+    assertEquals(105, chanThread.postsCount)
+
+    val postNos = chanThread.mapPostsOrdered { chanPost -> chanPost.postNo() }
+    assertEquals((THREAD_NO until THREAD_NO + 105).toList(), postNos)
+
+    (2L..10L).forEach { offset ->
+      val postDescriptor = PostDescriptor.create(threadDescriptor, THREAD_NO + offset - 1)
+      assertTrue(chanThread.getPost(postDescriptor)!!.isDeleted)
+    }
+
+    val lastPostDescriptor = PostDescriptor.create(threadDescriptor, THREAD_NO + 104)
+    assertEquals(
+      PostDescriptor.create(threadDescriptor, THREAD_NO + 103),
+      chanThread.getPostDescriptorRelativeTo(lastPostDescriptor, -1)
+    )
+
+    chanThread.deletePosts((2L..10L).map { offset -> PostDescriptor.create(threadDescriptor, THREAD_NO + offset - 1) })
+    assertEquals(96, chanThread.postsCount)
+    assertEquals(
+      PostDescriptor.create(threadDescriptor, THREAD_NO + 10),
+      chanThread.getPostDescriptorRelativeTo(PostDescriptor.create(threadDescriptor, THREAD_NO), 1)
+    )
+  }
+
+  @Test
+  fun `test posts out of order are sorted and stay addressable`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+    chanThread.addOrUpdatePosts(createPosts(1, 1) + createPosts(50, 60), null)
+    chanThread.addOrUpdatePosts(createPosts(2, 49), null)
+
+    assertEquals(60, chanThread.postsCount)
+    assertEquals(
+      (THREAD_NO until THREAD_NO + 60).toList(),
+      chanThread.mapPostsOrdered { chanPost -> chanPost.postNo() }
+    )
+
+    // Update all posts once again, this must not break the order
+    chanThread.addOrUpdatePosts(createPosts(1, 60), null)
+    assertEquals(
+      (THREAD_NO until THREAD_NO + 60).toList(),
+      chanThread.mapPostsOrdered { chanPost -> chanPost.postNo() }
+    )
+  }
+
+  @Test
+  fun `test readers are not blocked by a writer and see the previous snapshot`() {
+    val writerEnteredLatch = CountDownLatch(1)
+    val releaseWriterLatch = CountDownLatch(1)
+    var blockWriter = false
+
+    // The callback is invoked with the write lock held which lets us hold it for as long as we need
+    val chanThread = ChanThread(true, threadDescriptor, 0L) {
+      if (blockWriter) {
+        writerEnteredLatch.countDown()
+        releaseWriterLatch.await()
+      }
+    }
+
+    chanThread.addOrUpdatePosts(createPosts(1, 100), null)
+    val postsBeforeUpdate = chanThread.getAll()
+
+    blockWriter = true
+    val executor = Executors.newSingleThreadExecutor()
+
+    try {
+      val writerFuture = executor.submit {
+        chanThread.addOrUpdatePosts(createPosts(101, 110), null)
+      }
+
+      assertTrue(writerEnteredLatch.await(5, TimeUnit.SECONDS))
+
+      // The write lock is held by the writer right now
+      assertEquals(100, chanThread.postsCount)
+      assertEquals(postsBeforeUpdate, chanThread.getAll())
+      assertNull(chanThread.getPost(PostDescriptor.create(threadDescriptor, THREAD_NO + 100)))
+      assertEquals(
+        PostDescriptor.create(threadDescriptor, THREAD_NO + 99),
+        chanThread.getPostDescriptorRelativeTo(PostDescriptor.create(threadDescriptor, THREAD_NO + 98), 1)
+      )
+      assertFalse(writerFuture.isDone)
+
+      releaseWriterLatch.countDown()
+      writerFuture.get(5, TimeUnit.SECONDS)
+    } finally {
+      releaseWriterLatch.countDown()
+      executor.shutdown()
+    }
+
+    assertEquals(110, chanThread.postsCount)
+    assertEquals(
+      (THREAD_NO until THREAD_NO + 110).toList(),
+      chanThread.mapPostsOrdered { chanPost -> chanPost.postNo() }
+    )
+
+    // Unchanged posts are shared between the snapshots
+    postsBeforeUpdate.forEach { chanPost -> assertTrue(chanThread.getPost(chanPost.postDescriptor) === chanPost) }
+  }
+
+  @Test
+  fun `test reply sets that were handed out are not modified by later updates`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+    chanThread.addOrUpdatePosts(createPosts(1, 10), null)
+
+    val lastPostDescriptor = PostDescriptor.create(threadDescriptor, THREAD_NO + 9)
+    val lastPost = chanThread.getPost(lastPostDescriptor)!!
+    val repliesFromBefore = lastPost.repliesFrom
+    val iterator = repliesFromBefore.iterator()
+
+    chanThread.addOrUpdatePosts(createPosts(11, 12), null)
+
+    // The post got a new set, the old one (and the iterator over it) stayed the same
+    assertTrue(chanThread.getPost(lastPostDescriptor) === lastPost)
+    assertTrue(repliesFromBefore.isEmpty())
+    assertFalse(iterator.hasNext())
+    assertEquals(setOf(PostDescriptor.create(threadDescriptor, THREAD_NO + 10)), lastPost.repliesFrom)
+    assertEquals(1, lastPost.repliesFromCount)
+  }
+
+  @Test
+  fun `test posts that were iterated are not modified by updates made during the iteration`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+    chanThread.addOrUpdatePosts(createPosts(1, 10), null)
+
+    val originalPost = chanThread.getOriginalPost()!!
+    val iteratedPosts = mutableListOf<ChanPost>()
+
+    chanThread.iteratePostsOrdered { chanPost ->
+      iteratedPosts += chanPost
+
+      if (iteratedPosts.size == 5) {
+        // Appended into the same array the iterated snapshot uses
+        chanThread.addOrUpdatePosts(createPosts(11, 15), null)
+        chanThread.addOrUpdatePosts(createPosts(16, 20), null)
+        // Already published posts are replaced
+        chanThread.addOrUpdatePosts(createPosts(6, 8), null)
+        chanThread.updateThreadState(deleted = null, archived = true, closed = true)
+      }
+    }
+
+    assertEquals((THREAD_NO until THREAD_NO + 10).toList(), iteratedPosts.map { chanPost -> chanPost.postNo() })
+    assertTrue(iteratedPosts.first() === originalPost)
+    assertFalse(originalPost.closed)
+    assertFalse(originalPost.archived)
+
+    assertTrue(chanThread.isClosed())
+    assertTrue(chanThread.isArchived())
+    assertFalse(chanThread.canUpdateThread())
+    assertEquals(20, chanThread.postsCount)
+    assertEquals(
+      (THREAD_NO until THREAD_NO + 20).toList(),
+      chanThread.mapPostsOrdered { chanPost -> chanPost.postNo() }
+    )
+  }
+
+  @Test
+  fun `test estimated retained size includes replies and images added after the posts`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+    chanThread.addOrUpdatePosts(createPosts(1, 1), null)
+
+    val postEntrySize = chanThread.estimatedRetainedBytes - ChanPostSizeEstimator.estimate(chanThread.getOriginalPost()!!)
+
+    chanThread.addOrUpdatePosts(createPosts(2, 10), null)
+    chanThread.addOrUpdatePosts(createPosts(11, 20), null)
+
+    val postDescriptor = PostDescriptor.create(threadDescriptor, THREAD_NO + 5)
+    val chanPostImage = ChanPostImage(serverFilename = "1234567890", filename = "image", extension = "png")
+    chanPostImage.setPostDescriptor(postDescriptor)
+    chanThread.addImage(chanPostImage)
+
+    assertEquals(1, chanThread.getPost(postDescriptor)!!.postImagesCount)
+
+    val posts = chanThread.getAll()
+    posts.forEach { chanPost -> assertEquals(ChanPostSizeEstimator.estimate(chanPost), chanPost.estimatedRetainedBytes) }
+
+    val expectedRetainedBytes = posts.sumOf { chanPost -> ChanPostSizeEstimator.estimate(chanPost) + postEntrySize }
+    assertEquals(expectedRetainedBytes, chanThread.estimatedRetainedBytes)
+
+    chanThread.deletePosts(posts.drop(1).map { chanPost -> chanPost.postDescriptor })
+    assertEquals(ChanPostSizeEstimator.estimate(posts.first()) + postEntrySize, chanThread.estimatedRetainedBytes)
+  }
+
+  @Test
+  fun `test refresh of a big thread with posts deleted in the middle`() {
+    val postsCount = 10000
+    val chanThread = ChanThread(false, threadDescriptor, 0L)
+    chanThread.addOrUpdatePosts(createPosts(1, postsCount), postsFromServerData(1, postsCount))
+
+    // The refresh returns all the old posts (which all need to be merged), a couple of new posts and
+    // is missing a couple of deleted posts.
+    val deletedFrom = postsCount / 2
+    val refreshedPosts = createPosts(1, deletedFrom - 1) + createPosts(deletedFrom + 5, postsCount + 5)
+    chanThread.addOrUpdatePosts(refreshedPosts, postsFromServerData(refreshedPosts))
+
+    assertEquals(postsCount + 5, chanThread.postsCount)
+
+    val postNos = chanThread.mapPostsOrdered { chanPost -> chanPost.postNo() }
+    assertEquals((THREAD_NO until THREAD_NO + postsCount + 5).toList(), postNos)
+
+    val deletedPostNos = chanThread.mapPostsOrdered { chanPost -> chanPost }
+      .filter { chanPost -> chanPost.isDeleted }
+      .map { chanPost -> chanPost.postNo() }
+    assertEquals((deletedFrom until deletedFrom + 5).map { index -> THREAD_NO + index - 1 }, deletedPostNos)
+
+    val lastPostDescriptor = PostDescriptor.create(threadDescriptor, THREAD_NO + postsCount + 4)
+    assertEquals(
+      PostDescriptor.create(threadDescriptor, THREAD_NO + postsCount + 3),
+      chanThread.getPostDescriptorRelativeTo(lastPostDescriptor, -1)
+    )
+  }
+
+  private fun postsFromServerData(from: Int, to: Int): PostsFromServerData {
+    return postsFromServerData(createPosts(from, to))
+  }
+
+  private fun postsFromServerData(posts: List<ChanPost>): PostsFromServerData {
+    return PostsFromServerData(
+      allPostDescriptors = posts.map { chanPost -> chanPost.postDescriptor }.toSet(),
+      isIncrementalUpdate = false,
+      isUpdatingDataFromTheServer = true
+    )
+  }
+
+  /**
+   * [from] and [to] are one-based and inclusive, post number 1 is the OP.
+   * */
+  private fun createPosts(from: Int, to: Int): List<ChanPost> {
+    return (from..to).map { index ->
+      val postNo = THREAD_NO + index - 1
+      val postDescriptor = PostDescriptor.create(threadDescriptor, postNo)
+      val repliesTo = if (index > 1) {
+        setOf(PostDescriptor.create(threadDescriptor, postNo - 1))
+      } else {
+        emptySet()
+      }
+
+      if (index == 1) {
+        return@map ChanOriginalPost(
+          chanPostId = postNo,
+          postDescriptor = postDescriptor,
+          postImages = emptyList(),
+          postIcons = emptyList(),
+          repliesTo = repliesTo,
+          postComment = PostComment("Comment $postNo", null, emptyList()),
+          isSavedReply = false,
+          lastModified = 0L,
+          sticky = false,
+          closed = false,
+          archived = false,
+          endless = false,
+          isSage = false,
+          deleted = false,
+          posterIdColor = 0
+        )
+      }
+
+      return@map ChanPost(
+        chanPostId = postNo,
+        postDescriptor = postDescriptor,
+        _postImages = mutableListOf(),
+        postIcons = emptyList(),
+        repliesTo = repliesTo,
+        postComment = PostComment("Comment $postNo", null, emptyList()),
+        subject = null,
+        tripcode = null,
+        isSavedReply = false,
+        isSage = false,
+        deleted = false,
+        posterIdColor = 0
+      )
+    }
+  }
+
+  companion object {
+    private const val THREAD_NO = 1000L
+  }
+
+}
@@ -0,0 +1,261 @@
+package com.github.k1rakishou.model.source.cache.thread
+
+import com.github.k1rakishou.common.MurmurHashUtils
+import com.github.k1rakishou.model.data.catalog.IChanCatalogSnapshot
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.options.ChanCacheOption
+import com.github.k1rakishou.model.data.options.ChanCacheOptions
+import com.github.k1rakishou.model.data.options.ChanCacheUpdateOptions
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.PostComment
+import com.github.k1rakishou.model.data.thread.ChanThread
+import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.Executors
+
+@RunWith(RobolectricTestRunner::class)
+class ChanThreadsCacheTest {
+  // ChanThreadsCache.putManyThreadPostsIntoCache() must not be called on the main thread
+  private val executor = Executors.newSingleThreadExecutor()
+
+  @After
+  fun tearDown() {
+    executor.shutdown()
+  }
+
+  @Test
+  fun `test estimated size is kept up to date on add, merge, delete and cleanup`() {
+    val chanThreadsCache = ChanThreadsCache(false, false, 0.1f, ChanCatalogSnapshotCache(), Long.MAX_VALUE)
+    val threadDescriptor = threadDescriptor(0)
+
+    putThreadPosts(chanThreadsCache, threadDescriptor, createPosts(threadDescriptor, 1, 100))
+    val sizeAfterAdd = chanThreadsCache.getEstimatedRetainedBytes()
+
+    assertTrue(sizeAfterAdd > 0)
+    assertEquals(chanThreadsCache.getThread(threadDescriptor)!!.estimatedRetainedBytes, sizeAfterAdd)
+
+    // Merging the same posts must not change anything
+    putThreadPosts(chanThreadsCache, threadDescriptor, createPosts(threadDescriptor, 1, 100))
+    assertEquals(sizeAfterAdd, chanThreadsCache.getEstimatedRetainedBytes())
+
+    // Posts with bigger comments must weigh more
+    putThreadPosts(chanThreadsCache, threadDescriptor, createPosts(threadDescriptor, 1, 100, commentLength = 2000))
+    val sizeAfterMerge = chanThreadsCache.getEstimatedRetainedBytes()
+    assertTrue(sizeAfterMerge > sizeAfterAdd)
+
+    chanThreadsCache.deletePosts((51..100).map { index -> postDescriptor(threadDescriptor, index) })
+    val sizeAfterDelete = chanThreadsCache.getEstimatedRetainedBytes()
+    assertTrue(sizeAfterDelete < sizeAfterMerge)
+    assertEquals(chanThreadsCache.getThread(threadDescriptor)!!.estimatedRetainedBytes, sizeAfterDelete)
+
+    chanThreadsCache.getThread(threadDescriptor)!!.cleanup()
+    val originalPost = chanThreadsCache.getThread(threadDescriptor)!!.getOriginalPost()!!
+    assertTrue(chanThreadsCache.getEstimatedRetainedBytes() >= originalPost.estimatedRetainedBytes)
+    assertTrue(chanThreadsCache.getEstimatedRetainedBytes() < sizeAfterDelete)
+
+    chanThreadsCache.deleteThread(threadDescriptor)
+    assertEquals(0L, chanThreadsCache.getEstimatedRetainedBytes())
+  }
+
+  @Test
+  fun `test least recently accessed threads are evicted first`() {
+    val threadSize = ChanThread(false, threadDescriptor(0), 0L)
+      .also { chanThread -> chanThread.addOrUpdatePosts(createPosts(threadDescriptor(0), 1, 50), null) }
+      .estimatedRetainedBytes
+
+    // The budget fits 10.5 threads
+    val maxMemoryFraction = 0.1f
+    val maxMemory = ((threadSize * 10 + threadSize / 2) / maxMemoryFraction).toLong()
+    val chanThreadsCache = ChanThreadsCache(false, false, maxMemoryFraction, ChanCatalogSnapshotCache(), maxMemory)
+
+    // A thread that was opened for previewing, it must be evicted first
+    val previewThreadDescriptor = threadDescriptor(100)
+    putThreadPosts(
+      chanThreadsCache = chanThreadsCache,
+      threadDescriptor = previewThreadDescriptor,
+      posts = createPosts(previewThreadDescriptor, 1, 50),
+      cacheOptions = ChanCacheOptions.singleOption(ChanCacheOption.StoreInMemory)
+    )
+
+    (0 until 10).forEach { index ->
+      putThreadPosts(chanThreadsCache, threadDescriptor(index), createPosts(threadDescriptor(index), 1, 50))
+    }
+
+    // The oldest thread was accessed so it must not be evicted anymore
+    chanThreadsCache.updateLastAccessTime(threadDescriptor(0))
+
+    // Exceeds the budget, 11 threads are in the cache, 8 of them are immune
+    putThreadPosts(chanThreadsCache, threadDescriptor(10), createPosts(threadDescriptor(10), 1, 50))
+
+    assertNull(chanThreadsCache.getThread(previewThreadDescriptor))
+    assertNull(chanThreadsCache.getThread(threadDescriptor(1)))
+    assertNull(chanThreadsCache.getThread(threadDescriptor(2)))
+
+    assertNotNull(chanThreadsCache.getThread(threadDescriptor(0)))
+    (3..10).forEach { index -> assertEquals(50, chanThreadsCache.getThreadPostsCount(threadDescriptor(index))) }
+
+    val expectedSize = (listOf(0) + (3..10)).sumOf { index ->
+      chanThreadsCache.getThread(threadDescriptor(index))!!.estimatedRetainedBytes
+    }
+    assertEquals(expectedSize, chanThreadsCache.getEstimatedRetainedBytes())
+  }
+
+  @Test
+  fun `test threads cleaned up to the OP stay in the eviction queue`() {
+    val threadSize = ChanThread(false, threadDescriptor(0), 0L)
+      .also { chanThread -> chanThread.addOrUpdatePosts(createPosts(threadDescriptor(0), 1, 50), null) }
+      .estimatedRetainedBytes
+
+    // The budget fits 10.5 threads, the eviction runs every time the budget is exceeded
+    val maxMemoryFraction = 0.1f
+    val maxMemory = ((threadSize * 10 + threadSize / 2) / maxMemoryFraction).toLong()
+    val chanCatalogSnapshotCache = ChanCatalogSnapshotCache()
+    val chanThreadsCache = ChanThreadsCache(false, false, maxMemoryFraction, chanCatalogSnapshotCache, maxMemory, 0L)
+
+    // Threads of the current catalog are only cleaned up to the OP
+    val catalogDescriptor = threadDescriptor(0).catalogDescriptor()
+    chanCatalogSnapshotCache.getOrPut(catalogDescriptor) {
+      IChanCatalogSnapshot.fromSortedThreadDescriptorList(
+        catalogDescriptor = catalogDescriptor,
+        threadDescriptors = (0..11).map { index -> threadDescriptor(index) },
+        isUnlimitedCatalog = false
+      )
+    }
+
+    // The eviction runs before the posts are added so the last put finds 11 threads in the cache
+    // (exceeds the budget), 8 of them are immune
+    (0..11).forEach { index ->
+      putThreadPosts(chanThreadsCache, threadDescriptor(index), createPosts(threadDescriptor(index), 1, 50))
+    }
+
+    (0..2).forEach { index -> assertEquals(1, chanThreadsCache.getThreadPostsCount(threadDescriptor(index))) }
+    (3..11).forEach { index -> assertEquals(50, chanThreadsCache.getThreadPostsCount(threadDescriptor(index))) }
+
+    // The threads are not in the catalog anymore so they are removed once their posts are evicted
+    chanCatalogSnapshotCache.delete(catalogDescriptor)
+
+    // Exceeds the budget again. 14 threads are in the cache (the cleaned up ones included), 8 of them
+    // are immune so 6 threads can be evicted.
+    (12..14).forEach { index ->
+      putThreadPosts(chanThreadsCache, threadDescriptor(index), createPosts(threadDescriptor(index), 1, 50))
+    }
+
+    (3..8).forEach { index -> assertNull(chanThreadsCache.getThread(threadDescriptor(index))) }
+    (9..14).forEach { index -> assertEquals(50, chanThreadsCache.getThreadPostsCount(threadDescriptor(index))) }
+    (0..2).forEach { index -> assertEquals(1, chanThreadsCache.getThreadPostsCount(threadDescriptor(index))) }
+  }
+
+  @Test
+  fun `test post hashes are only stored for cached posts and are removed together with them`() {
+    val chanThreadsCache = ChanThreadsCache(false, false, 0.1f, ChanCatalogSnapshotCache(), Long.MAX_VALUE)
+    val threadDescriptor = threadDescriptor(0)
+
+    putThreadPosts(chanThreadsCache, threadDescriptor, createPosts(threadDescriptor, 1, 10))
+
+    val postHashes = (1..20).associate { index ->
+      postDescriptor(threadDescriptor, index) to MurmurHashUtils.murmurhash3_x64_128("post $index")
+    }
+    chanThreadsCache.putPostHashes(postHashes)
+
+    (1..10).forEach { index ->
+      val postDescriptor = postDescriptor(threadDescriptor, index)
+      assertEquals(postHashes[postDescriptor], chanThreadsCache.getPostHash(postDescriptor))
+    }
+
+    // These posts are not in the cache
+    (11..20).forEach { index -> assertNull(chanThreadsCache.getPostHash(postDescriptor(threadDescriptor, index))) }
+
+    chanThreadsCache.deletePosts(listOf(postDescriptor(threadDescriptor, 5)))
+    assertNull(chanThreadsCache.getPostHash(postDescriptor(threadDescriptor, 5)))
+    assertNotNull(chanThreadsCache.getPostHash(postDescriptor(threadDescriptor, 6)))
+  }
+
+  private fun putThreadPosts(
+    chanThreadsCache: ChanThreadsCache,
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    posts: List<ChanPost>,
+    cacheOptions: ChanCacheOptions = ChanCacheOptions.onlyCacheInMemory()
+  ) {
+    executor.submit {
+      chanThreadsCache.putManyThreadPostsIntoCache(
+        threadDescriptor = threadDescriptor,
+        parsedPosts = posts,
+        cacheOptions = cacheOptions,
+        chanCacheUpdateOptions = ChanCacheUpdateOptions.UpdateCache,
+        postsFromServerData = null
+      )
+    }.get()
+  }
+
+  private fun threadDescriptor(index: Int): ChanDescriptor.ThreadDescriptor {
+    return ChanDescriptor.ThreadDescriptor.create("test", "g", THREAD_NO_BASE + index * 1000L)
+  }
+
+  private fun postDescriptor(threadDescriptor: ChanDescriptor.ThreadDescriptor, index: Int): PostDescriptor {
+    return PostDescriptor.create(threadDescriptor, threadDescriptor.threadNo + index - 1)
+  }
+
+  /**
+   * [from] and [to] are one-based and inclusive, post number 1 is the OP.
+   * */
+  private fun createPosts(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    from: Int,
+    to: Int,
+    commentLength: Int = 16
+  ): List<ChanPost> {
+    return (from..to).map { index ->
+      val postDescriptor = postDescriptor(threadDescriptor, index)
+      val postComment = PostComment("a".repeat(commentLength), null, emptyList())
+
+      if (index == 1) {
+        return@map ChanOriginalPost(
+          chanPostId = postDescriptor.postNo,
+          postDescriptor = postDescriptor,
+          postImages = emptyList(),
+          postIcons = emptyList(),
+          repliesTo = emptySet(),
+          postComment = postComment,
+          isSavedReply = false,
+          lastModified = 0L,
+          sticky = false,
+          closed = false,
+          archived = false,
+          endless = false,
+          isSage = false,
+          deleted = false,
+          posterIdColor = 0
+        )
+      }
+
+      return@map ChanPost(
+        chanPostId = postDescriptor.postNo,
+        postDescriptor = postDescriptor,
+        _postImages = mutableListOf(),
+        postIcons = emptyList(),
+        repliesTo = emptySet(),
+        postComment = postComment,
+        subject = null,
+        tripcode = null,
+        isSavedReply = false,
+        isSage = false,
+        deleted = false,
+        posterIdColor = 0
+      )
+    }
+  }
+
+  companion object {
+    private const val THREAD_NO_BASE = 100_000L
+  }
+
+}
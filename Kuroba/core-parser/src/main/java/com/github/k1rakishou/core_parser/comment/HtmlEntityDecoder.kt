@@ -0,0 +1,168 @@
+package com.github.k1rakishou.core_parser.comment
+
+import org.jsoup.parser.Parser
+
+/**
+ * Decodes html entities of a text range without allocating anything when the text has no entities
+ * at all (which is the case for most of the text runs of a post comment). Only the most common
+ * entities (the ones imageboards actually use in post comments) are decoded here, for everything
+ * else we fall back to Jsoup's [Parser.unescapeEntities] so that the result is always the same.
+ *
+ * Not thread safe!
+ * */
+class HtmlEntityDecoder {
+  private val buffer = StringBuilder(64)
+
+  fun decode(input: String, start: Int, end: Int): String {
+    val firstAmpersandIndex = indexOfAmpersand(input, start, end)
+    if (firstAmpersandIndex < 0) {
+      return input.substring(start, end)
+    }
+
+    buffer.setLength(0)
+    buffer.append(input, start, firstAmpersandIndex)
+
+    var offset = firstAmpersandIndex
+
+    while (offset < end) {
+      val ch = input[offset]
+      if (ch != '&') {
+        buffer.append(ch)
+        ++offset
+        continue
+      }
+
+      val entityEnd = decodeEntity(input, offset, end)
+      if (entityEnd < 0) {
+        // Unknown or malformed entity, let Jsoup handle the whole text run
+        return Parser.unescapeEntities(input.substring(start, end), false)
+      }
+
+      offset = entityEnd
+    }
+
+    return buffer.toString()
+  }
+
+  /**
+   * Decodes an entity that starts at [start] (which must point to '&') and appends it to the
+   * [buffer]. Returns the offset right after the entity's ';' or -1 if the entity is not supported.
+   * */
+  private fun decodeEntity(input: String, start: Int, end: Int): Int {
+    val semicolonIndex = indexOfSemicolon(input, start + 1, end)
+    if (semicolonIndex < 0) {
+      return -1
+    }
+
+    if (input[start + 1] == '#') {
+      val codePoint = parseCodePoint(input, start + 2, semicolonIndex)
+      if (codePoint < 0) {
+        return -1
+      }
+
+      buffer.appendCodePoint(codePoint)
+      return semicolonIndex + 1
+    }
+
+    val decoded = when (semicolonIndex - start - 1) {
+      2 -> when {
+        input.regionMatches(start + 1, "lt", 0, 2) -> '<'
+        input.regionMatches(start + 1, "gt", 0, 2) -> '>'
+        else -> null
+      }
+      3 -> when {
+        input.regionMatches(start + 1, "amp", 0, 3) -> '&'
+        else -> null
+      }
+      4 -> when {
+        input.regionMatches(start + 1, "quot", 0, 4) -> '"'
+        input.regionMatches(start + 1, "apos", 0, 4) -> '\''
+        input.regionMatches(start + 1, "nbsp", 0, 4) -> '\u00A0'
+        else -> null
+      }
+      else -> null
+    }
+
+    if (decoded == null) {
+      return -1
+    }
+
+    buffer.append(decoded)
+    return semicolonIndex + 1
+  }
+
+  /**
+   * Parses "39" or "x27" into a code point. Returns -1 for anything that Jsoup would either
+   * replace with another character or not decode at all.
+   * */
+  private fun parseCodePoint(input: String, start: Int, end: Int): Int {
+    if (start >= end) {
+      return -1
+    }
+
+    var offset = start
+    var radix = 10
+
+    if (input[offset] == 'x' || input[offset] == 'X') {
+      radix = 16
+      ++offset
+    }
+
+    if (offset >= end || end - offset > MAX_CODE_POINT_DIGITS) {
+      return -1
+    }
+
+    var codePoint = 0
+
+    while (offset < end) {
+      val digit = Character.digit(input[offset], radix)
+      if (digit < 0) {
+        return -1
+      }
+
+      codePoint = codePoint * radix + digit
+      ++offset
+    }
+
+    if (codePoint <= 0
+      || codePoint in WIN1252_EXTENSIONS_RANGE
+      || codePoint in SURROGATES_RANGE
+      || codePoint > Character.MAX_CODE_POINT
+    ) {
+      return -1
+    }
+
+    return codePoint
+  }
+
+  private fun indexOfAmpersand(input: String, start: Int, end: Int): Int {
+    for (index in start until end) {
+      if (input[index] == '&') {
+        return index
+      }
+    }
+
+    return -1
+  }
+
+  private fun indexOfSemicolon(input: String, start: Int, end: Int): Int {
+    val maxEnd = Math.min(end, start + MAX_ENTITY_LENGTH)
+
+    for (index in start until maxEnd) {
+      if (input[index] == ';') {
+        return index
+      }
+    }
+
+    return -1
+  }
+
+  companion object {
+    private const val MAX_ENTITY_LENGTH = 10
+    private const val MAX_CODE_POINT_DIGITS = 7
+
+    private val WIN1252_EXTENSIONS_RANGE = 0x80..0x9F
+    private val SURROGATES_RANGE = 0xD800..0xDFFF
+  }
+
+}
@@ -1,12 +1,14 @@
 package com.github.k1rakishou.core_parser.comment
 
 import com.github.k1rakishou.common.mutableListWithCap
-import org.jsoup.parser.Parser
+import java.nio.CharBuffer
 
 /**
  * Not thread safe!
  * */
 class HtmlParser {
+  private val entityDecoder = HtmlEntityDecoder()
+  private val tagPartBuffer = StringBuilder(32)
 
   fun parse(html: String): HtmlDocument {
     try {
@@ -22,18 +24,18 @@ class HtmlParser {
     var tagIndex = 0
 
     val outNodes = mutableListWithCap<HtmlNode>(4)
-    val currentBuffer = mutableListWithCap<Char>(32)
+    // Text is always a contiguous range of the html so we only need to remember where it starts
+    var textStart = -1
 
     while (localOffset < html.length) {
       val currChar = html[localOffset]
 
       if (currChar == '<') {
-        if (currentBuffer.size > 0) {
-          val text = String(currentBuffer.toCharArray())
-          val textUnescaped = Parser.unescapeEntities(text, false)
+        if (textStart >= 0) {
+          val textUnescaped = entityDecoder.decode(html, textStart, localOffset)
 
           addNewTextNode(parentNode, outNodes, textUnescaped)
-          currentBuffer.clear()
+          textStart = -1
         }
 
         ++localOffset
@@ -64,16 +66,16 @@ class HtmlParser {
         continue
       }
 
-      currentBuffer.add(currChar)
+      if (textStart < 0) {
+        textStart = localOffset
+      }
+
       ++localOffset
     }
 
-    if (currentBuffer.size > 0) {
-      val text = String(currentBuffer.toCharArray())
-      val textUnescaped = Parser.unescapeEntities(text, false)
-
+    if (textStart >= 0) {
+      val textUnescaped = entityDecoder.decode(html, textStart, localOffset)
       addNewTextNode(parentNode, outNodes, textUnescaped)
-      currentBuffer.clear()
     }
 
     return ParseResult(outNodes, localOffset)
@@ -82,7 +84,7 @@ class HtmlParser {
   private fun addNewTextNode(parentNode: HtmlNode?, outNodes: MutableList<HtmlNode>, textUnescaped: String) {
     val lastNode = outNodes.lastOrNull()
     val isLastNodeVoid = (lastNode as? HtmlNode.Tag)?.htmlTag?.isVoidElement == true
-    val emptyOrNewLineCharacter = textUnescaped.trim().let { text -> text.isEmpty() || (text.length == 1 && text[0] == '\n') }
+    val emptyOrNewLineCharacter = textUnescaped.isBlank()
 
     if (lastNode == null || !isLastNodeVoid || !emptyOrNewLineCharacter) {
       outNodes.add(HtmlNode.Text(textUnescaped, parentNode))
@@ -91,7 +93,6 @@ class HtmlParser {
 
   private fun parseNode(parentNode: HtmlNode?, html: String, start: Int, tagIndex: Int): ParseNodeResult {
     var localOffset = start
-    val tagRaw = mutableListWithCap<Char>(32)
 
     while (localOffset < html.length) {
       val ch = html[localOffset]
@@ -99,14 +100,15 @@ class HtmlParser {
         break
       }
 
-      tagRaw.add(ch)
       ++localOffset
     }
 
+    val tagEnd = localOffset
+
     // Skip the ">"
     ++localOffset
 
-    val htmlNodeTag = createHtmlTag(parentNode, tagRaw.toCharArray(), tagIndex)
+    val htmlNodeTag = createHtmlTag(parentNode, html, start, tagEnd, tagIndex)
     if (htmlNodeTag.htmlTag.isVoidElement) {
       return ParseNodeResult(htmlNodeTag, localOffset)
     }
@@ -125,10 +127,16 @@ class HtmlParser {
     return ParseNodeResult(HtmlNode.Tag(updatedHtmlTag), parseResult.offset)
   }
 
-  private fun createHtmlTag(parentNode: HtmlNode?, tagRaw: CharArray, tagIndex: Int): HtmlNode.Tag {
-    val tagParts = splitIntoPartsBySeparator(tagRaw, separator = ' ')
+  private fun createHtmlTag(
+    parentNode: HtmlNode?,
+    html: String,
+    tagStart: Int,
+    tagEnd: Int,
+    tagIndex: Int
+  ): HtmlNode.Tag {
+    val tagParts = splitIntoPartsBySeparator(html, tagStart, tagEnd, separator = ' ')
     if (tagParts.isEmpty()) {
-      throw ParsingException("tagParts is empty! tagRaw=${tagRaw.joinToString()}")
+      throw ParsingException("tagParts is empty! tagRaw=${html.substring(tagStart, tagEnd)}")
     }
 
     var tagNameMaybe: CharArray? = null
@@ -145,7 +153,7 @@ class HtmlParser {
         continue
       }
 
-      val attributeSplitList = splitIntoPartsBySeparator(tagPart, '=')
+      val attributeSplitList = splitIntoPartsBySeparator(CharBuffer.wrap(tagPart), 0, tagPart.size, '=')
       val attrName = attributeSplitList.getOrNull(0) ?: CharArray(0)
       var attrValue = attributeSplitList?.getOrNull(1) ?: CharArray(0)
 
@@ -195,16 +203,22 @@ class HtmlParser {
     )
   }
 
-  private fun splitIntoPartsBySeparator(tagRaw: CharArray, separator: Char): List<CharArray> {
+  private fun splitIntoPartsBySeparator(
+    tagRaw: CharSequence,
+    start: Int,
+    end: Int,
+    separator: Char
+  ): List<CharArray> {
     var isInsideString = false
-    var offset = 0
+    var offset = start
     val tagParts = mutableListWithCap<CharArray>(4)
-    val currentTagPart = mutableListWithCap<Char>(32)
+    val currentTagPart = tagPartBuffer
+    currentTagPart.setLength(0)
 
-    while (offset < tagRaw.size) {
-      val prevCh = tagRaw.getOrNull(offset - 1)
+    while (offset < end) {
+      val prevCh = if (offset - 1 >= start) tagRaw[offset - 1] else NO_CHAR
       val currentCh = tagRaw[offset]
-      val nextCh = tagRaw.getOrNull(offset + 1)
+      val nextCh = if (offset + 1 < end) tagRaw[offset + 1] else NO_CHAR
 
       if (currentCh == '\"' && prevCh != '\\') {
         isInsideString = isInsideString.not()
@@ -213,8 +227,8 @@ class HtmlParser {
       }
 
       if (currentCh == separator && !isInsideString && nextCh != '/') {
-        tagParts.add(currentTagPart.toCharArray())
-        currentTagPart.clear()
+        tagParts.add(toCharArray(currentTagPart))
+        currentTagPart.setLength(0)
 
         ++offset
         continue
@@ -225,18 +239,25 @@ class HtmlParser {
         continue
       }
 
-      currentTagPart.add(currentCh)
+      currentTagPart.append(currentCh)
       ++offset
     }
 
-    if (currentTagPart.size > 0) {
-      tagParts.add(currentTagPart.toCharArray())
-      currentTagPart.clear()
+    if (currentTagPart.isNotEmpty()) {
+      tagParts.add(toCharArray(currentTagPart))
+      currentTagPart.setLength(0)
     }
 
     return tagParts
   }
 
+  private fun toCharArray(stringBuilder: StringBuilder): CharArray {
+    val charArray = CharArray(stringBuilder.length)
+    stringBuilder.getChars(0, stringBuilder.length, charArray, 0)
+
+    return charArray
+  }
+
   private fun skipTagEnd(html: String, start: Int): Int {
     var localOffset = start
 
@@ -311,6 +332,7 @@ class HtmlParser {
 
   companion object {
     private const val TAG = "HtmlParser"
+    private const val NO_CHAR = '\u0000'
 
     private val VOID_TAGS = mutableSetOf(
       "area",
@@ -0,0 +1,66 @@
+package comment
+
+import com.github.k1rakishou.core_parser.comment.HtmlParser
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+
+class HtmlParserLegacyOutputTest {
+
+  @Test
+  fun new_parser_output_matches_legacy_parser_output_on_html_fixtures() {
+    val fixtures = loadHtmlFixtures()
+    assertTrue(fixtures.isNotEmpty())
+
+    val htmlParser = HtmlParser()
+    val legacyHtmlParser = LegacyHtmlParser()
+
+    fixtures.forEach { (fileName, html) ->
+      val expected = runCatching { legacyHtmlParser.debugConcatIntoString(legacyHtmlParser.parse(html).nodes) }
+      val actual = runCatching { htmlParser.debugConcatIntoString(htmlParser.parse(html).nodes) }
+
+      assertEquals("Parsing result differs for $fileName", expected.isSuccess, actual.isSuccess)
+
+      if (expected.isSuccess) {
+        assertEquals("Output differs for $fileName", expected.getOrThrow(), actual.getOrThrow())
+      }
+    }
+  }
+
+  @Test
+  fun new_parser_output_matches_legacy_parser_output_on_post_comments() {
+    val htmlParser = HtmlParser()
+    val legacyHtmlParser = LegacyHtmlParser()
+
+    POST_COMMENTS.forEach { html ->
+      val expected = legacyHtmlParser.debugConcatIntoString(legacyHtmlParser.parse(html).nodes)
+      val actual = htmlParser.debugConcatIntoString(htmlParser.parse(html).nodes)
+
+      assertEquals(expected, actual)
+    }
+  }
+
+  private fun loadHtmlFixtures(): List<Pair<String, String>> {
+    val parsingDir = File(javaClass.classLoader!!.getResource("parsing")!!.toURI())
+
+    return parsingDir.walkTopDown()
+      .filter { file -> file.isFile && file.extension == "html" }
+      .map { file -> file.name to file.readText() }
+      .toList()
+  }
+
+  companion object {
+    private val POST_COMMENTS = listOf(
+      "Test<a href=\"#p333650561\" class=\"quotelink\">&gt;&gt;33365<wbr>0561</a><br><span class=\"quote\">&gt;what&#039;s the<wbr>best alternative</span><br>Reps",
+      "<s><a class=\"linkify twitter\" rel=\"noreferrer noopener\" target=\"_blank\" href=\"https://twitter.com/denonbu_eng/status/1388107521022468102\">https://twitter.com/denonbu_eng/sta<wbr>tus/1388107521022468102</a><a class=\"embedder\" href=\"javascript:;\" data-key=\"Twitter\" data-uid=\"denonbu_eng/status/1388107521022468102\" data-options=\"undefined\" data-href=\"https://twitter.com/denonbu_eng/status/1388107521022468102\">(<span>un</span>embed)</a></s>",
+      "<a href=\"/a/res/7272693.html#7272700\" class=\"post-reply-link\" data-thread=\"7272693\" data-num=\"7272700\">>>7272700</a><br>Ах ты пидор!!!!1<br>Хуй я тебе что посоветую теперь.",
+      "<span class=\"quote\">&gt;tfw no gf</span><br>Tom &amp; Jerry &quot;quoted&quot; &lt;not a tag&gt; &#x27;hex&#x27; &nbsp;&copy; 2021",
+      "Plain comment without any tags or entities at all, just a lot of text that needs to be scanned char by char. " +
+        "Plain comment without any tags or entities at all, just a lot of text that needs to be scanned char by char.",
+      "<a href=\"#p1\" class=\"quotelink\">&gt;&gt;1</a><br><a href=\"#p2\" class=\"quotelink\">&gt;&gt;2</a><br><pre class=\"prettyprint\">fun main() {<br>  println(&quot;a &lt; b&quot;)<br>}</pre>",
+      "&amp Broken entity without a semicolon &#39 and &unknownentity; and & alone"
+    )
+  }
+
+}
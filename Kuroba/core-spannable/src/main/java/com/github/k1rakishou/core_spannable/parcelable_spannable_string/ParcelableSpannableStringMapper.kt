@@ -2,17 +2,21 @@ package com.github.k1rakishou.core_spannable.parcelable_spannable_string
 
 import android.util.Log
 import com.github.k1rakishou.core_spannable.ParcelableSpannableString
+import com.github.k1rakishou.core_spannable.ParcelableSpans
 import com.github.k1rakishou.core_spannable.parcelable_spannable_string.v1.ParcelableSpannableStringMapperV1
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.v2.CompactSpansCodec
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.v2.ParcelableSpannableStringMapperV2
 import java.util.concurrent.ConcurrentHashMap
 
 object ParcelableSpannableStringMapper {
   private const val TAG = "ParcelableStringMapper"
-  const val CURRENT_MAPPER_VERSION = 1
+  const val CURRENT_MAPPER_VERSION = 2
 
   private val mappers = ConcurrentHashMap<Int, ParcelableStringMapper>()
 
   init {
     mappers[ParcelableSpannableStringMapperV1.version] = ParcelableSpannableStringMapperV1
+    mappers[ParcelableSpannableStringMapperV2.version] = ParcelableSpannableStringMapperV2
     // Add new mappers here if ParcelableSpannableString internal structure ever changes
   }
 
@@ -75,4 +79,37 @@ object ParcelableSpannableStringMapper {
   }
 
 
-}
\ No newline at end of file
+  /**
+   * Serializes spans (of any version, spans have the same structure) with the current mapper so that
+   * the bytes can be stored in the database.
+   * */
+  @JvmStatic
+  fun serializeSpans(parcelableSpannableString: ParcelableSpannableString): ByteArray {
+    return mappers[CURRENT_MAPPER_VERSION]!!.serializeSpans(parcelableSpannableString)
+  }
+
+  /**
+   * Deserializes spans stored by [serializeSpans]. Works with both the Parcel-based (V1) and the
+   * compact (V2) formats.
+   * */
+  @JvmStatic
+  fun deserializeSpans(bytes: ByteArray, text: String): ParcelableSpans {
+    val version = if (isCurrentSpansFormat(bytes)) {
+      ParcelableSpannableStringMapperV2.version
+    } else {
+      ParcelableSpannableStringMapperV1.version
+    }
+
+    return mappers[version]!!.deserializeSpans(bytes, text)
+  }
+
+  /**
+   * Whether [bytes] were serialized by the mapper of [CURRENT_MAPPER_VERSION]. When false the spans
+   * should be serialized again (see [serializeSpans]).
+   * */
+  @JvmStatic
+  fun isCurrentSpansFormat(bytes: ByteArray): Boolean {
+    return CompactSpansCodec.isCompact(bytes)
+  }
+
+}
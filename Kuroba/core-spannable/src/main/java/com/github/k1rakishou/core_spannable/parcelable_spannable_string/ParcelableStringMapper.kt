@@ -1,6 +1,7 @@
 package com.github.k1rakishou.core_spannable.parcelable_spannable_string
 
 import com.github.k1rakishou.core_spannable.ParcelableSpannableString
+import com.github.k1rakishou.core_spannable.ParcelableSpans
 
 interface ParcelableStringMapper {
   val version: Int
@@ -13,4 +14,13 @@ interface ParcelableStringMapper {
     parcelableSpannableString: ParcelableSpannableString?
   ): CharSequence
 
+  fun serializeSpans(
+    parcelableSpannableString: ParcelableSpannableString
+  ): ByteArray
+
+  fun deserializeSpans(
+    bytes: ByteArray,
+    text: String
+  ): ParcelableSpans
+
 }
\ No newline at end of file
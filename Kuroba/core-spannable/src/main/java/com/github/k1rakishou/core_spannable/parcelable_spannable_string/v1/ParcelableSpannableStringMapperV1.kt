@@ -7,7 +7,9 @@ import android.text.style.StyleSpan
 import android.text.style.TypefaceSpan
 import android.util.Log
 import com.github.k1rakishou.common.data.ArchiveType
+import com.github.k1rakishou.common.marshall
 import com.github.k1rakishou.common.setSpanSafe
+import com.github.k1rakishou.common.unmarshall
 import com.github.k1rakishou.core_spannable.AbsoluteSizeSpanHashed
 import com.github.k1rakishou.core_spannable.BackgroundColorIdSpan
 import com.github.k1rakishou.core_spannable.BackgroundColorSpanHashed
@@ -269,6 +271,16 @@ internal object ParcelableSpannableStringMapperV1 : ParcelableStringMapper {
     return spannableString
   }
 
+  override fun serializeSpans(
+    parcelableSpannableString: ParcelableSpannableString
+  ): ByteArray {
+    return parcelableSpannableString.parcelableSpans.marshall()
+  }
+
+  override fun deserializeSpans(bytes: ByteArray, text: String): ParcelableSpans {
+    return bytes.unmarshall(ParcelableSpans.CREATOR).unwrap()
+  }
+
   private fun serializePostLinkable(
     postLinkable: PostLinkable,
     spanStart: Int,
@@ -0,0 +1,383 @@
+package com.github.k1rakishou.core_spannable.parcelable_spannable_string.v2
+
+import com.github.k1rakishou.core_spannable.ParcelableSpan
+import com.github.k1rakishou.core_spannable.ParcelableSpanInfo
+import com.github.k1rakishou.core_spannable.ParcelableSpanType
+import com.github.k1rakishou.core_spannable.PostLinkableValue
+import com.github.k1rakishou.core_themes.ChanThemeColorId
+import java.io.ByteArrayOutputStream
+
+/**
+ * Compact binary encoding of a list of [ParcelableSpanInfo] (doesn't depend on android.os.Parcel).
+ *
+ * Layout:
+ * MAGIC, format version, strings count, strings, spans count, spans.
+ *
+ * All the numbers are varints. Span starts are delta encoded (relative to the previous span start),
+ * span ends are encoded as the span length. All the strings (PostLinkable keys, board codes, links,
+ * etc) are stored once in the strings table and are referenced by their index. PostLinkable keys
+ * are usually the same as the spanned text so they are not stored at all in that case.
+ * */
+object CompactSpansCodec {
+  // Parcel encoded ParcelableSpans start with the version int (1) so this byte can never be the first
+  // byte of them.
+  private const val MAGIC = 0xFB.toByte()
+  private const val FORMAT_VERSION = 1
+
+  private const val KEY_IS_SPANNED_TEXT = 0
+
+  private const val VALUE_ARCHIVE = 0
+  private const val VALUE_BOARD = 1
+  private const val VALUE_LINK = 2
+  private const val VALUE_QUOTE = 3
+  private const val VALUE_DEAD = 4
+  private const val VALUE_SEARCH = 5
+  private const val VALUE_SPOILER = 6
+  private const val VALUE_THREAD_OR_POST = 7
+
+  fun isCompact(bytes: ByteArray): Boolean {
+    return bytes.isNotEmpty() && bytes[0] == MAGIC
+  }
+
+  fun encode(spanInfoList: List<ParcelableSpanInfo>, text: String): ByteArray {
+    val strings = StringsTable()
+    val spansWriter = Writer()
+    var prevSpanStart = 0
+    var spansCount = 0
+
+    for (spanInfo in spanInfoList) {
+      val parcelableSpan = spanInfo.parcelableSpan
+        ?: continue
+
+      spansWriter.writeVarInt(spanTypeOf(parcelableSpan).value)
+      spansWriter.writeSignedVarLong((spanInfo.spanStart - prevSpanStart).toLong())
+      spansWriter.writeVarInt(spanInfo.spanEnd - spanInfo.spanStart)
+      spansWriter.writeVarInt(spanInfo.flags)
+      writeSpan(spansWriter, strings, parcelableSpan, spanSubstring(text, spanInfo.spanStart, spanInfo.spanEnd))
+
+      prevSpanStart = spanInfo.spanStart
+      ++spansCount
+    }
+
+    val writer = Writer()
+    writer.writeByte(MAGIC)
+    writer.writeVarInt(FORMAT_VERSION)
+    writer.writeVarInt(strings.size())
+    strings.forEach { string -> writer.writeString(string) }
+    writer.writeVarInt(spansCount)
+    writer.writeBytes(spansWriter)
+
+    return writer.toByteArray()
+  }
+
+  fun decode(bytes: ByteArray, text: String): List<ParcelableSpanInfo> {
+    require(isCompact(bytes)) { "Not a compact spans encoding" }
+
+    val reader = Reader(bytes, 1)
+
+    val formatVersion = reader.readVarInt()
+    require(formatVersion == FORMAT_VERSION) { "Unsupported format version: $formatVersion" }
+
+    val strings = Array(reader.readVarInt()) { reader.readString() }
+    val spansCount = reader.readVarInt()
+    val spanInfoList = ArrayList<ParcelableSpanInfo>(spansCount)
+    var prevSpanStart = 0
+
+    repeat(spansCount) {
+      val spanType = ParcelableSpanType.from(reader.readVarInt())
+      val spanStart = prevSpanStart + reader.readSignedVarLong().toInt()
+      val spanEnd = spanStart + reader.readVarInt()
+      val flags = reader.readVarInt()
+
+      val parcelableSpan = readSpan(reader, strings, spanType, spanSubstring(text, spanStart, spanEnd))
+
+      spanInfoList += ParcelableSpanInfo(
+        spanStart = spanStart,
+        spanEnd = spanEnd,
+        flags = flags,
+        parcelableTypeRaw = spanType.value,
+        parcelableSpan = parcelableSpan
+      )
+
+      prevSpanStart = spanStart
+    }
+
+    return spanInfoList
+  }
+
+  private fun spanTypeOf(parcelableSpan: ParcelableSpan): ParcelableSpanType {
+    return when (parcelableSpan) {
+      is ParcelableSpan.AbsoluteSize -> ParcelableSpanType.AbsoluteSizeSpanHashed
+      is ParcelableSpan.BackgroundColor -> ParcelableSpanType.BackgroundColorSpanType
+      is ParcelableSpan.ForegroundColor -> ParcelableSpanType.ForegroundColorSpanType
+      is ParcelableSpan.BackgroundColorId -> ParcelableSpanType.BackgroundColorIdSpan
+      is ParcelableSpan.ForegroundColorId -> ParcelableSpanType.ForegroundColorIdSpan
+      is ParcelableSpan.PostLinkable -> ParcelableSpanType.PostLinkable
+      is ParcelableSpan.Style -> ParcelableSpanType.StyleSpanType
+      is ParcelableSpan.Typeface -> ParcelableSpanType.TypefaceSpanType
+      ParcelableSpan.Strikethrough -> ParcelableSpanType.StrikethroughSpanType
+    }
+  }
+
+  private fun writeSpan(
+    writer: Writer,
+    strings: StringsTable,
+    parcelableSpan: ParcelableSpan,
+    spannedText: String?
+  ) {
+    when (parcelableSpan) {
+      is ParcelableSpan.AbsoluteSize -> writer.writeVarInt(parcelableSpan.size)
+      is ParcelableSpan.BackgroundColor -> writer.writeInt(parcelableSpan.color)
+      is ParcelableSpan.ForegroundColor -> writer.writeInt(parcelableSpan.color)
+      is ParcelableSpan.BackgroundColorId -> writer.writeVarInt(parcelableSpan.colorId.id)
+      is ParcelableSpan.ForegroundColorId -> writer.writeVarInt(parcelableSpan.colorId.id)
+      is ParcelableSpan.Style -> writer.writeVarInt(parcelableSpan.style)
+      is ParcelableSpan.Typeface -> writer.writeVarInt(strings.indexOf(parcelableSpan.family))
+      ParcelableSpan.Strikethrough -> Unit
+      is ParcelableSpan.PostLinkable -> {
+        writer.writeVarInt(parcelableSpan.postLinkableTypeRaw)
+
+        if (parcelableSpan.key == spannedText) {
+          writer.writeVarInt(KEY_IS_SPANNED_TEXT)
+        } else {
+          writer.writeVarInt(strings.indexOf(parcelableSpan.key) + 1)
+        }
+
+        writePostLinkableValue(writer, strings, parcelableSpan.postLinkableValue)
+      }
+    }
+  }
+
+  private fun readSpan(
+    reader: Reader,
+    strings: Array<String>,
+    spanType: ParcelableSpanType,
+    spannedText: String?
+  ): ParcelableSpan? {
+    return when (spanType) {
+      ParcelableSpanType.AbsoluteSizeSpanHashed -> ParcelableSpan.AbsoluteSize(reader.readVarInt())
+      ParcelableSpanType.BackgroundColorSpanType -> ParcelableSpan.BackgroundColor(reader.readInt())
+      ParcelableSpanType.ForegroundColorSpanType -> ParcelableSpan.ForegroundColor(reader.readInt())
+      ParcelableSpanType.BackgroundColorIdSpan -> ParcelableSpan.BackgroundColorId(ChanThemeColorId.byId(reader.readVarInt()))
+      ParcelableSpanType.ForegroundColorIdSpan -> ParcelableSpan.ForegroundColorId(ChanThemeColorId.byId(reader.readVarInt()))
+      ParcelableSpanType.StyleSpanType -> ParcelableSpan.Style(reader.readVarInt())
+      ParcelableSpanType.TypefaceSpanType -> ParcelableSpan.Typeface(strings[reader.readVarInt()])
+      ParcelableSpanType.StrikethroughSpanType -> ParcelableSpan.Strikethrough
+      ParcelableSpanType.PostLinkable -> {
+        val postLinkableTypeRaw = reader.readVarInt()
+
+        val keyIndex = reader.readVarInt()
+        val key = if (keyIndex == KEY_IS_SPANNED_TEXT) {
+          requireNotNull(spannedText) { "Span is out of the text bounds" }
+        } else {
+          strings[keyIndex - 1]
+        }
+
+        ParcelableSpan.PostLinkable(
+          key = key,
+          postLinkableTypeRaw = postLinkableTypeRaw,
+          postLinkableValue = readPostLinkableValue(reader, strings)
+        )
+      }
+      ParcelableSpanType.Unknown -> throw IllegalStateException("Unknown span type")
+    }
+  }
+
+  private fun writePostLinkableValue(writer: Writer, strings: StringsTable, value: PostLinkableValue) {
+    when (value) {
+      is PostLinkableValue.Archive -> {
+        writer.writeVarInt(VALUE_ARCHIVE)
+        writer.writeVarInt(strings.indexOf(value.archiveDomain))
+        writer.writeVarInt(strings.indexOf(value.boardCode))
+        writer.writeSignedVarLong(value.threadNo)
+        writer.writeSignedVarLong(value.postNo)
+        writer.writeSignedVarLong(value.postSubNo)
+      }
+      is PostLinkableValue.Board -> {
+        writer.writeVarInt(VALUE_BOARD)
+        writer.writeVarInt(strings.indexOf(value.boardCode))
+      }
+      is PostLinkableValue.Link -> {
+        writer.writeVarInt(VALUE_LINK)
+        writer.writeVarInt(strings.indexOf(value.link))
+      }
+      is PostLinkableValue.Quote -> {
+        writer.writeVarInt(VALUE_QUOTE)
+        writer.writeSignedVarLong(value.postNo)
+        writer.writeSignedVarLong(value.postSubNo)
+      }
+      is PostLinkableValue.Dead -> {
+        writer.writeVarInt(VALUE_DEAD)
+        writer.writeSignedVarLong(value.postNo)
+        writer.writeSignedVarLong(value.postSubNo)
+      }
+      is PostLinkableValue.Search -> {
+        writer.writeVarInt(VALUE_SEARCH)
+        writer.writeVarInt(strings.indexOf(value.boardCode))
+        writer.writeVarInt(strings.indexOf(value.searchQuery))
+      }
+      PostLinkableValue.Spoiler -> {
+        writer.writeVarInt(VALUE_SPOILER)
+      }
+      is PostLinkableValue.ThreadOrPost -> {
+        writer.writeVarInt(VALUE_THREAD_OR_POST)
+        writer.writeVarInt(strings.indexOf(value.boardCode))
+        writer.writeSignedVarLong(value.threadNo)
+        writer.writeSignedVarLong(value.postNo)
+        writer.writeSignedVarLong(value.postSubNo)
+      }
+    }
+  }
+
+  private fun readPostLinkableValue(reader: Reader, strings: Array<String>): PostLinkableValue {
+    return when (val valueType = reader.readVarInt()) {
+      VALUE_ARCHIVE -> PostLinkableValue.Archive(
+        archiveDomain = strings[reader.readVarInt()],
+        boardCode = strings[reader.readVarInt()],
+        threadNo = reader.readSignedVarLong(),
+        postNo = reader.readSignedVarLong(),
+        postSubNo = reader.readSignedVarLong()
+      )
+      VALUE_BOARD -> PostLinkableValue.Board(boardCode = strings[reader.readVarInt()])
+      VALUE_LINK -> PostLinkableValue.Link(link = strings[reader.readVarInt()])
+      VALUE_QUOTE -> PostLinkableValue.Quote(
+        postNo = reader.readSignedVarLong(),
+        postSubNo = reader.readSignedVarLong()
+      )
+      VALUE_DEAD -> PostLinkableValue.Dead(
+        postNo = reader.readSignedVarLong(),
+        postSubNo = reader.readSignedVarLong()
+      )
+      VALUE_SEARCH -> PostLinkableValue.Search(
+        boardCode = strings[reader.readVarInt()],
+        searchQuery = strings[reader.readVarInt()]
+      )
+      VALUE_SPOILER -> PostLinkableValue.Spoiler
+      VALUE_THREAD_OR_POST -> PostLinkableValue.ThreadOrPost(
+        boardCode = strings[reader.readVarInt()],
+        threadNo = reader.readSignedVarLong(),
+        postNo = reader.readSignedVarLong(),
+        postSubNo = reader.readSignedVarLong()
+      )
+      else -> throw IllegalStateException("Unknown PostLinkableValue type: $valueType")
+    }
+  }
+
+  private fun spanSubstring(text: String, spanStart: Int, spanEnd: Int): String? {
+    if (spanStart < 0 || spanEnd > text.length || spanStart > spanEnd) {
+      return null
+    }
+
+    return text.substring(spanStart, spanEnd)
+  }
+
+  private class StringsTable {
+    private val indexes = LinkedHashMap<String, Int>()
+
+    fun indexOf(string: String): Int = indexes.getOrPut(string) { indexes.size }
+    fun size(): Int = indexes.size
+    fun forEach(func: (String) -> Unit) = indexes.keys.forEach(func)
+  }
+
+  private class Writer : ByteArrayOutputStream(64) {
+
+    fun writeByte(byte: Byte) {
+      write(byte.toInt())
+    }
+
+    fun writeBytes(other: Writer) {
+      write(other.buf, 0, other.count)
+    }
+
+    fun writeInt(value: Int) {
+      write(value ushr 24)
+      write(value ushr 16)
+      write(value ushr 8)
+      write(value)
+    }
+
+    fun writeVarInt(value: Int) {
+      require(value >= 0) { "Negative varint: $value" }
+      writeVarLong(value.toLong())
+    }
+
+    fun writeSignedVarLong(value: Long) {
+      // zigzag
+      writeVarLong((value shl 1) xor (value shr 63))
+    }
+
+    fun writeString(string: String) {
+      val bytes = string.toByteArray(Charsets.UTF_8)
+      writeVarInt(bytes.size)
+      write(bytes, 0, bytes.size)
+    }
+
+    private fun writeVarLong(value: Long) {
+      var remaining = value
+
+      while (remaining and 0x7FL.inv() != 0L) {
+        write(((remaining and 0x7F) or 0x80).toInt())
+        remaining = remaining ushr 7
+      }
+
+      write(remaining.toInt())
+    }
+  }
+
+  private class Reader(
+    private val bytes: ByteArray,
+    private var position: Int
+  ) {
+
+    fun readInt(): Int {
+      return (readUnsignedByte() shl 24) or
+        (readUnsignedByte() shl 16) or
+        (readUnsignedByte() shl 8) or
+        readUnsignedByte()
+    }
+
+    fun readVarInt(): Int {
+      val value = readVarLong()
+      require(value in 0..Int.MAX_VALUE) { "Bad varint: $value" }
+      return value.toInt()
+    }
+
+    fun readSignedVarLong(): Long {
+      val value = readVarLong()
+      return (value ushr 1) xor -(value and 1)
+    }
+
+    fun readString(): String {
+      val length = readVarInt()
+      require(position + length <= bytes.size) { "String is out of bounds" }
+
+      val string = String(bytes, position, length, Charsets.UTF_8)
+      position += length
+      return string
+    }
+
+    private fun readVarLong(): Long {
+      var result = 0L
+      var shift = 0
+
+      while (shift < 64) {
+        val byte = readUnsignedByte()
+        result = result or ((byte and 0x7F).toLong() shl shift)
+
+        if (byte and 0x80 == 0) {
+          return result
+        }
+
+        shift += 7
+      }
+
+      throw IllegalStateException("Malformed varint")
+    }
+
+    private fun readUnsignedByte(): Int {
+      require(position < bytes.size) { "Unexpected end of data" }
+      return bytes[position++].toInt() and 0xFF
+    }
+  }
+
+}
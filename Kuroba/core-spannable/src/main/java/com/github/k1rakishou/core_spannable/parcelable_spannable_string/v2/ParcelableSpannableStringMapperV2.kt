@@ -0,0 +1,55 @@
+package com.github.k1rakishou.core_spannable.parcelable_spannable_string.v2
+
+import com.github.k1rakishou.core_spannable.ParcelableSpannableString
+import com.github.k1rakishou.core_spannable.ParcelableSpans
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.ParcelableStringMapper
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.v1.ParcelableSpannableStringMapperV1
+
+/**
+ * Spans themselves are the same as in V1, only the way they are stored in the database is different
+ * (see [CompactSpansCodec]).
+ * */
+internal object ParcelableSpannableStringMapperV2 : ParcelableStringMapper {
+  private const val MAPPER_VERSION = 2
+
+  override val version: Int
+    get() = MAPPER_VERSION
+
+  override fun toParcelableSpannableString(
+    charSequence: CharSequence?
+  ): ParcelableSpannableString? {
+    val parcelableSpannableString = ParcelableSpannableStringMapperV1.toParcelableSpannableString(charSequence)
+      ?: return null
+
+    return ParcelableSpannableString(
+      parcelableSpans = ParcelableSpans(
+        version = MAPPER_VERSION,
+        spanInfoList = parcelableSpannableString.parcelableSpans.spanInfoList
+      ),
+      text = parcelableSpannableString.text
+    )
+  }
+
+  override fun fromParcelableSpannableString(
+    parcelableSpannableString: ParcelableSpannableString?
+  ): CharSequence {
+    return ParcelableSpannableStringMapperV1.fromParcelableSpannableString(parcelableSpannableString)
+  }
+
+  override fun serializeSpans(
+    parcelableSpannableString: ParcelableSpannableString
+  ): ByteArray {
+    return CompactSpansCodec.encode(
+      spanInfoList = parcelableSpannableString.parcelableSpans.spanInfoList,
+      text = parcelableSpannableString.text
+    )
+  }
+
+  override fun deserializeSpans(bytes: ByteArray, text: String): ParcelableSpans {
+    return ParcelableSpans(
+      version = MAPPER_VERSION,
+      spanInfoList = CompactSpansCodec.decode(bytes, text)
+    )
+  }
+
+}
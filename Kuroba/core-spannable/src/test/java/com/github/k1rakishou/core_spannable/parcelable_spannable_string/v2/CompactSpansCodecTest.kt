@@ -0,0 +1,136 @@
+package com.github.k1rakishou.core_spannable.parcelable_spannable_string.v2
+
+import com.github.k1rakishou.core_spannable.ParcelableSpan
+import com.github.k1rakishou.core_spannable.ParcelableSpanInfo
+import com.github.k1rakishou.core_spannable.ParcelableSpanType
+import com.github.k1rakishou.core_spannable.PostLinkableType
+import com.github.k1rakishou.core_spannable.PostLinkableValue
+import com.github.k1rakishou.core_themes.ChanThemeColorId
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+
+class CompactSpansCodecTest {
+
+  @Test
+  fun `all span types survive encode and decode`() {
+    val text = ">>123456789 >>>/g/ https://example.com/test spoiler >>>/g/search text >>987654321"
+
+    val spans = listOf(
+      spanInfo(0, 11, ParcelableSpanType.PostLinkable, postLinkable(text, 0, 11, PostLinkableType.Quote,
+        PostLinkableValue.Quote(postNo = 123456789L, postSubNo = 1L))),
+      spanInfo(0, 11, ParcelableSpanType.ForegroundColorIdSpan,
+        ParcelableSpan.ForegroundColorId(ChanThemeColorId.PostQuoteColor)),
+      spanInfo(12, 18, ParcelableSpanType.PostLinkable, postLinkable(text, 12, 18, PostLinkableType.Board,
+        PostLinkableValue.Board("g"))),
+      spanInfo(19, 43, ParcelableSpanType.PostLinkable, postLinkable(text, 19, 43, PostLinkableType.Link,
+        PostLinkableValue.Link("https://example.com/test"))),
+      spanInfo(44, 51, ParcelableSpanType.PostLinkable, ParcelableSpan.PostLinkable(
+        key = "other key",
+        postLinkableTypeRaw = PostLinkableType.Spoiler.value,
+        postLinkableValue = PostLinkableValue.Spoiler
+      )),
+      spanInfo(44, 51, ParcelableSpanType.BackgroundColorSpanType, ParcelableSpan.BackgroundColor(0xFF000000.toInt())),
+      spanInfo(44, 51, ParcelableSpanType.ForegroundColorSpanType, ParcelableSpan.ForegroundColor(-1)),
+      spanInfo(52, 69, ParcelableSpanType.PostLinkable, postLinkable(text, 52, 69, PostLinkableType.Search,
+        PostLinkableValue.Search("g", "search text"))),
+      spanInfo(70, 81, ParcelableSpanType.PostLinkable, postLinkable(text, 70, 81, PostLinkableType.Thread,
+        PostLinkableValue.ThreadOrPost("g", 987654321L, 987654321L, 0L))),
+      spanInfo(70, 81, ParcelableSpanType.PostLinkable, postLinkable(text, 70, 81, PostLinkableType.Archive,
+        PostLinkableValue.Archive("archive.example.com", "g", 1L, 2L, 3L))),
+      spanInfo(70, 81, ParcelableSpanType.PostLinkable, postLinkable(text, 70, 81, PostLinkableType.Dead,
+        PostLinkableValue.Dead(987654321L))),
+      spanInfo(0, 5, ParcelableSpanType.AbsoluteSizeSpanHashed, ParcelableSpan.AbsoluteSize(24)),
+      spanInfo(0, 5, ParcelableSpanType.BackgroundColorIdSpan,
+        ParcelableSpan.BackgroundColorId(ChanThemeColorId.BackColorSecondary)),
+      spanInfo(5, 10, ParcelableSpanType.StyleSpanType, ParcelableSpan.Style(1)),
+      spanInfo(5, 10, ParcelableSpanType.TypefaceSpanType, ParcelableSpan.Typeface("monospace")),
+      spanInfo(1, 2, ParcelableSpanType.StrikethroughSpanType, ParcelableSpan.Strikethrough),
+    )
+
+    val bytes = CompactSpansCodec.encode(spans, text)
+
+    assertTrue(CompactSpansCodec.isCompact(bytes))
+    assertEquals(spans, CompactSpansCodec.decode(bytes, text))
+  }
+
+  @Test
+  fun `spans without parcelableSpan are not stored`() {
+    val text = "test text"
+    val spans = listOf(
+      spanInfo(0, 4, ParcelableSpanType.StyleSpanType, ParcelableSpan.Style(2)),
+      spanInfo(5, 9, ParcelableSpanType.Unknown, null),
+    )
+
+    val decoded = CompactSpansCodec.decode(CompactSpansCodec.encode(spans, text), text)
+
+    assertEquals(listOf(spans.first()), decoded)
+  }
+
+  @Test
+  fun `post linkable keys equal to the spanned text and repeated strings are not duplicated`() {
+    val text = (0 until 100).joinToString(separator = " ") { postNo -> ">>${1000000000L + postNo}" }
+    var start = 0
+
+    val spans = (0 until 100).map { postNo ->
+      val end = start + ">>${1000000000L + postNo}".length
+      val spanInfo = spanInfo(start, end, ParcelableSpanType.PostLinkable, postLinkable(text, start, end,
+        PostLinkableType.Thread, PostLinkableValue.ThreadOrPost("boardCode", 1000000000L, 1000000000L + postNo)))
+
+      start = end + 1
+      return@map spanInfo
+    }
+
+    val bytes = CompactSpansCodec.encode(spans, text)
+
+    assertEquals(spans, CompactSpansCodec.decode(bytes, text))
+    // Type, start delta, length, flags, linkable type, key, value type, board code, 3 numbers
+    assertTrue("Encoded size is ${bytes.size}", bytes.size < spans.size * 20)
+  }
+
+  @Test
+  fun `empty span list round trips`() {
+    val bytes = CompactSpansCodec.encode(emptyList(), "")
+
+    assertTrue(CompactSpansCodec.isCompact(bytes))
+    assertEquals(emptyList<ParcelableSpanInfo>(), CompactSpansCodec.decode(bytes, ""))
+  }
+
+  @Test
+  fun `parcel encoded spans are not detected as compact`() {
+    // ParcelableSpans are written into a Parcel starting with the version int (little-endian 1)
+    assertFalse(CompactSpansCodec.isCompact(byteArrayOf(1, 0, 0, 0, 3, 0, 0, 0)))
+    assertFalse(CompactSpansCodec.isCompact(byteArrayOf()))
+  }
+
+  private fun spanInfo(
+    start: Int,
+    end: Int,
+    type: ParcelableSpanType,
+    parcelableSpan: ParcelableSpan?
+  ): ParcelableSpanInfo {
+    return ParcelableSpanInfo(
+      spanStart = start,
+      spanEnd = end,
+      flags = 33,
+      parcelableTypeRaw = type.value,
+      parcelableSpan = parcelableSpan
+    )
+  }
+
+  private fun postLinkable(
+    text: String,
+    start: Int,
+    end: Int,
+    type: PostLinkableType,
+    value: PostLinkableValue
+  ): ParcelableSpan.PostLinkable {
+    return ParcelableSpan.PostLinkable(
+      key = text.substring(start, end),
+      postLinkableTypeRaw = type.value,
+      postLinkableValue = value
+    )
+  }
+
+}